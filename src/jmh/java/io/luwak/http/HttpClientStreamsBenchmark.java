@@ -0,0 +1,94 @@
+package io.luwak.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+
+/**
+ * Benchmark of {@link HttpClientStreams#read(HttpMethod)} on a keep-alive connection, with fixed
+ * size and chunked bodies of various sizes
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpClientStreamsBenchmark {
+
+    @Param({ "0", "1024", "65536" })
+    public int bodySize;
+
+    @Param({ "false", "true" })
+    public boolean chunked;
+
+    private HttpClientStreams streams;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        String header = "HTTP/1.1 200 OK\r\n"
+                + "Date: Mon, 19 Oct 2026 10:00:00 GMT\r\n"
+                + "Server: nginx\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Cache-Control: private, max-age=60\r\n"
+                + "ETag: \"33a64df551425fcc55e4d42a148795d9f25f89d4\"\r\n"
+                + (chunked ? "Transfer-Encoding: chunked\r\n"
+                        : "Content-Length: " + bodySize + "\r\n")
+                + "\r\n";
+        message.write(header.getBytes(StandardCharsets.US_ASCII));
+        byte[] body = new byte[bodySize];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        if (chunked) {
+            for (int off = 0; off < body.length; off += 8192) {
+                int len = Math.min(8192, body.length - off);
+                message.write((Integer.toHexString(len) + "\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                message.write(body, off, len);
+                message.write('\r');
+                message.write('\n');
+            }
+            message.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        else {
+            message.write(body);
+        }
+        streams = new HttpClientStreams(new ReplayInputStream(message.toByteArray()),
+                new OutputStream() {
+
+                    @Override
+                    public void write(int b) {
+                    }
+                });
+    }
+
+    @Benchmark
+    public HttpResponse read() throws IOException, HttpResponseException {
+        HttpResponse httpResponse = streams.read(HttpMethod.GET);
+        if (httpResponse.getEntityBody() != null) {
+            httpResponse.getEntityBody().release();
+        }
+        return httpResponse;
+    }
+}
@@ -0,0 +1,43 @@
+package io.luwak.http;
+
+import java.io.InputStream;
+
+/**
+ * Input stream replaying the same message endlessly, one message per read at most, like a client
+ * sending one request per TCP segment on a keep-alive connection
+ *
+ */
+public class ReplayInputStream extends InputStream {
+
+    private final byte[] message;
+    private int position;
+
+    public ReplayInputStream(byte[] message) {
+        this.message = message;
+    }
+
+    @Override
+    public int read() {
+        int b = message[position++] & 0xff;
+        if (position == message.length) {
+            position = 0;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int n = Math.min(len, message.length - position);
+        System.arraycopy(message, position, b, off, n);
+        position += n;
+        if (position == message.length) {
+            position = 0;
+        }
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return message.length - position;
+    }
+}
@@ -0,0 +1,72 @@
+package io.luwak.http.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of {@link ChunkedOutputStream} and {@link ChunkedInputStream} on a 64KB payload, at
+ * various chunk sizes
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkedStreamsBenchmark {
+
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+
+    @Param({ "256", "4096", "16384" })
+    public int chunkSize;
+
+    private byte[] payload;
+    private byte[] encoded;
+    private final byte[] readBuffer = new byte[8192];
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(PAYLOAD_SIZE * 2);
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        encode();
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        out.reset();
+        ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out, chunkSize);
+        chunkedOut.write(payload, 0, payload.length);
+        chunkedOut.finish();
+        return out.size();
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        ChunkedInputStream chunkedIn = new ChunkedInputStream(new ByteArrayInputStream(encoded));
+        long total = 0;
+        int n;
+        while ((n = chunkedIn.read(readBuffer, 0, readBuffer.length)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+}
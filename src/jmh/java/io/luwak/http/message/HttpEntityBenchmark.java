@@ -0,0 +1,101 @@
+package io.luwak.http.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.luwak.http.io.SpoolManager;
+
+/**
+ * Benchmark of {@link HttpEntity#fromInputStream(java.io.InputStream, long, String,
+ * HttpEntityLimits, io.luwak.http.io.MemoryBudget, SpoolManager)} and
+ * {@link HttpEntity#writeTo(OutputStream)}, with the entity kept in memory or in a spool file
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpEntityBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    @Param({ "memory", "file" })
+    public String storage;
+
+    private byte[] body;
+    private HttpEntityLimits limits;
+    private File spoolDir;
+    private SpoolManager spoolManager;
+    private final OutputStream nullOut = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        body = new byte[size];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        limits = new HttpEntityLimits();
+        limits.setMaxInMemorySize("memory".equals(storage) ? size : 0);
+        spoolDir = Files.createTempDirectory("luwak-jmh").toFile();
+        spoolManager = new SpoolManager(spoolDir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = spoolDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spoolDir.delete();
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        HttpEntity entity = HttpEntity.fromInputStream(new ByteArrayInputStream(body), size, null,
+                limits, null, spoolManager);
+        long length = entity.getLength();
+        entity.release();
+        return length;
+    }
+
+    @Benchmark
+    public long readAndWrite() throws IOException {
+        HttpEntity entity = HttpEntity.fromInputStream(new ByteArrayInputStream(body), size, null,
+                limits, null, spoolManager);
+        entity.writeTo(nullOut);
+        long length = entity.getLength();
+        entity.release();
+        return length;
+    }
+}
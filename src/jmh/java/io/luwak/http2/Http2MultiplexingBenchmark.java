@@ -0,0 +1,214 @@
+package io.luwak.http2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Benchmark of a batch of requests in flight on one connection, pipelined on an HTTP/1.1
+ * keep-alive connection or multiplexed as streams of an h2c connection. The first request of a
+ * batch is slow: on HTTP/1.1 the requests queued behind it wait, on HTTP/2 they are served by
+ * other streams meanwhile.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Http2MultiplexingBenchmark {
+
+    private static final int IN_FLIGHT = 8;
+    private static final byte[] BODY = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({ "http1", "h2" })
+    public String protocol;
+
+    @Param({ "0", "2" })
+    public long slowMillis;
+
+    private LuwakHttpd httpd;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private HpackEncoder encoder;
+    private HpackDecoder decoder;
+    private int nextStreamId = 1;
+
+    /** Answers a small body, after a delay for the slow requests */
+    private static class MixedLatencyHttpSession implements HttpSession {
+
+        private final long slowMillis;
+
+        MixedLatencyHttpSession(long slowMillis) {
+            this.slowMillis = slowMillis;
+        }
+
+        @Override
+        public HttpResponse serve(HttpRequest httpRequest) {
+            if (slowMillis > 0 && httpRequest.getUriPath().equals("/slow")) {
+                try {
+                    Thread.sleep(slowMillis);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "text/plain");
+            headers.put("Content-Length", Integer.toString(BODY.length));
+            return new HttpResponse(DefaultHttpStatus.OK, headers,
+                    new HttpEntity(BODY, false, false));
+        }
+
+        @Override
+        public void onResponseSent(HttpResponse httpResponse) {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+        HttpSession session = new MixedLatencyHttpSession(slowMillis);
+        httpdContext.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET),
+                acceptSocket -> session);
+        httpd = new LuwakHttpd("localhost", 0, 4, httpdContext);
+        httpd.setHttp2Config(new Http2Config());
+        httpd.startInBackground();
+
+        socket = new Socket("localhost", httpd.getLocalPort());
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new BufferedInputStream(socket.getInputStream());
+        if (protocol.equals("h2")) {
+            encoder = new HpackEncoder(4096);
+            decoder = new HpackDecoder(4096);
+            out.write(Http2ConnectionHandler.PREFACE);
+            Http2Frame.write(out, Http2Frame.SETTINGS, 0, 0, new byte[0]);
+            out.flush();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socket.close();
+        httpd.stop();
+    }
+
+    @Benchmark
+    public void batch() throws IOException {
+        if (protocol.equals("h2")) {
+            batchHttp2();
+        }
+        else {
+            batchHttp1();
+        }
+    }
+
+    private static String path(int request) {
+        return request == 0 ? "/slow" : "/fast";
+    }
+
+    private void batchHttp1() throws IOException {
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            out.write(("GET " + path(i) + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        out.flush();
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            skipResponse(in);
+        }
+    }
+
+    /** Skip a response head ending with an empty line, then its body */
+    private static void skipResponse(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            matched = c == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (c == '\r' ? 1 : 0);
+        }
+        for (int i = 0; i < BODY.length; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    private void batchHttp2() throws IOException {
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(64);
+            encoder.beginBlock(block);
+            encoder.encode(block, ":method", "GET");
+            encoder.encode(block, ":scheme", "http");
+            encoder.encode(block, ":path", path(i));
+            encoder.encode(block, ":authority", "localhost");
+            Http2Frame.write(out, Http2Frame.HEADERS,
+                    Http2Frame.FLAG_END_HEADERS | Http2Frame.FLAG_END_STREAM, nextStreamId,
+                    block.toByteArray());
+            nextStreamId += 2;
+        }
+        out.flush();
+        int completed = 0;
+        while (completed < IN_FLIGHT) {
+            Http2Frame frame = Http2Frame.read(in, 16384);
+            if (frame == null) {
+                throw new IOException("Connection closed");
+            }
+            if (frame.getType() == Http2Frame.SETTINGS && !frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                Http2Frame.write(out, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0]);
+            }
+            else if (frame.getType() == Http2Frame.HEADERS) {
+                decoder.decode(frame.getPayload(), 0, frame.getPayload().length,
+                        (name, value) -> { });
+            }
+            else if (frame.getType() == Http2Frame.DATA) {
+                // Give the connection window back, the stream windows are not exhausted
+                int length = frame.getPayload().length;
+                if (length > 0) {
+                    byte[] increment = new byte[4];
+                    Http2Frame.putInt(increment, 0, length);
+                    Http2Frame.write(out, Http2Frame.WINDOW_UPDATE, 0, 0, increment);
+                }
+                if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+                    completed++;
+                }
+            }
+        }
+        out.flush();
+    }
+}
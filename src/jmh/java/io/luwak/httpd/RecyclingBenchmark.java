@@ -0,0 +1,160 @@
+package io.luwak.httpd;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.RecyclableHttpRequest;
+
+/**
+ * Benchmark of a small request over a keep-alive connection with the request recycling off and
+ * on. The GC profiler counts the allocations of all threads, so the allocations per operation
+ * include the ones of the server threads.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RecyclingBenchmark {
+
+    private static final byte[] BODY = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REQUEST = ("GET /hello?name=luwak HTTP/1.1\r\n"
+            + "Host: localhost\r\nUser-Agent: luwak-benchmark\r\nAccept: */*\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /** Answers from the recycled response objects when they are available */
+    private static class HelloHttpSession implements HttpSession {
+
+        @Override
+        public HttpResponse serve(HttpRequest httpRequest) {
+            HttpEntity body = new HttpEntity(BODY, false, false);
+            HttpResponse httpResponse;
+            if (httpRequest instanceof RecyclableHttpRequest) {
+                httpResponse = ((RecyclableHttpRequest) httpRequest).newResponse(
+                        DefaultHttpStatus.OK, body);
+            }
+            else {
+                httpResponse = new HttpResponse(DefaultHttpStatus.OK, new HashMap<>(), body);
+            }
+            Map<String, String> headers = httpResponse.getHeaders();
+            headers.put("Content-Type", "text/plain");
+            headers.put("Content-Length", Integer.toString(BODY.length));
+            return httpResponse;
+        }
+
+        @Override
+        public void onResponseSent(HttpResponse httpResponse) {
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({ "OFF", "ON" })
+        public RecyclingMode recycling;
+
+        LuwakHttpd httpd;
+
+        @Setup
+        public void setUp() throws IOException {
+            HttpSession session = new HelloHttpSession();
+            DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+            httpdContext.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET),
+                    new HttpSessionFactory() {
+
+                        @Override
+                        public HttpSession newInstance(Socket acceptSocket) {
+                            return session;
+                        }
+
+                        @Override
+                        public HttpSessionScope getScope() {
+                            return HttpSessionScope.SINGLETON;
+                        }
+                    });
+            httpd = new LuwakHttpd("localhost", 0, 8, httpdContext);
+            httpd.setRecyclingMode(recycling);
+            httpd.startInBackground();
+        }
+
+        @TearDown
+        public void tearDown() {
+            httpd.stop();
+        }
+    }
+
+    /** One keep-alive connection per benchmark thread */
+    @State(Scope.Thread)
+    public static class Client {
+
+        Socket socket;
+        OutputStream out;
+        InputStream in;
+
+        @Setup
+        public void setUp(Server server) throws IOException {
+            socket = new Socket("localhost", server.httpd.getLocalPort());
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public void request(Client client) throws IOException {
+        client.out.write(REQUEST);
+        client.out.flush();
+        skipResponse(client.in);
+    }
+
+    /** Skip a response head ending with an empty line, then its body */
+    private static void skipResponse(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            matched = c == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (c == '\r' ? 1 : 0);
+        }
+        for (int i = 0; i < BODY.length; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.luwak.httpd;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.luwak.http.message.HttpMethod;
+
+/**
+ * Benchmark of {@link DefaultHttpdContext#getHttpSessionFactory(String, HttpMethod)} at various
+ * route counts, matching the first route, the last one or none
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int routes;
+
+    @Param({ "first", "last", "none" })
+    public String target;
+
+    private DefaultHttpdContext context;
+    private String uri;
+
+    @Setup
+    public void setUp() {
+        context = new DefaultHttpdContext();
+        HttpSessionFactory factory = acceptSocket -> null;
+        for (int i = 0; i < routes; i++) {
+            context.addHttpSessionFactory("/api/v1/resource" + i + "/*",
+                    EnumSet.of(HttpMethod.GET, HttpMethod.POST), factory);
+        }
+        int index = "first".equals(target) ? 0 : "last".equals(target) ? routes - 1 : routes;
+        uri = "/api/v1/resource" + index + "/items/42";
+    }
+
+    @Benchmark
+    public HttpSessionFactory getHttpSessionFactory() {
+        return context.getHttpSessionFactory(uri, HttpMethod.GET);
+    }
+}
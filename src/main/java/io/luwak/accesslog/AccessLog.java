@@ -0,0 +1,394 @@
+package io.luwak.accesslog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * Access log written asynchronously, see
+ * {@link io.luwak.httpd.LuwakHttpd#setAccessLog(AccessLog)}. The server threads copy the fields
+ * of a request into a slot of a bounded lock-free ring buffer, which costs one CAS and no
+ * allocation. A background thread encodes the records in batches into a large buffer, written to
+ * the file when it is full or after the flush interval. The file is rotated by size and by time.
+ * When the ring buffer is full, the records are dropped and counted rather than blocking the
+ * server.
+ *
+ */
+public class AccessLog implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+
+    /** How long the writer thread sleeps when there is nothing to write */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final File file;
+    private final AccessLogRecord[] ring;
+    private final int mask;
+    /** The next position to be claimed by a server thread */
+    private final AtomicLong tail = new AtomicLong();
+    /** The next position to be encoded by the writer thread */
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private volatile long written;
+
+    private final AccessLogEncoder encoder;
+    private final Thread writerThread;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    private volatile AccessLogFormat format = AccessLogFormat.COMBINED;
+    private volatile long maxFileSize;
+    private volatile long rotationInterval;
+    private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /** The file output, used by the writer thread only */
+    private OutputStream out;
+    private long fileSize;
+    private long fileOpened;
+    private long reportedDrops;
+
+    /**
+     * Create an access log appending to a file, in the combined format
+     *
+     * @param file the file
+     * @throws IOException if the file can't be opened
+     */
+    public AccessLog(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY, DEFAULT_BUFFER_SIZE, ZoneId.systemDefault());
+    }
+
+    /**
+     * Create an access log appending to a file
+     *
+     * @param file the file
+     * @param capacity the number of records the ring buffer can hold, rounded up to a power of two
+     * @param bufferSize the size of the buffer records are encoded into before being written
+     * @param zone the time zone of the dates in the combined format
+     * @throws IOException if the file can't be opened
+     */
+    public AccessLog(File file, int capacity, int bufferSize, ZoneId zone) throws IOException {
+        this.file = file;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new AccessLogRecord[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new AccessLogRecord(i);
+        }
+        mask = size - 1;
+        encoder = new AccessLogEncoder(bufferSize, zone);
+        open();
+        writerThread = new Thread(this::runWriter, "luwak-access-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public AccessLogFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Set the format of the lines
+     *
+     * @param format the format, {@link AccessLogFormat#COMBINED} by default
+     */
+    public void setFormat(AccessLogFormat format) {
+        this.format = format;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Set the size from which the file is rotated
+     *
+     * @param maxFileSize the size in bytes, 0 (the default) to disable
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getRotationInterval() {
+        return rotationInterval;
+    }
+
+    /**
+     * Set the time after which the file is rotated, e.g. one day
+     *
+     * @param rotationInterval the interval in milliseconds, 0 (the default) to disable
+     */
+    public void setRotationInterval(long rotationInterval) {
+        this.rotationInterval = rotationInterval;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Set the maximum time a record is buffered before being written to the file
+     *
+     * @param flushInterval the interval in milliseconds
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Log a request which has been served
+     *
+     * @param remoteAddress the address of the client
+     * @param httpRequest the request
+     * @param httpResponse the response which has been sent
+     * @param durationNanos the time taken to serve the request, in nanoseconds
+     * @return false if the record has been dropped
+     */
+    public boolean log(InetAddress remoteAddress, HttpRequest httpRequest,
+            HttpResponse httpResponse, long durationNanos) {
+        long bodyBytes = 0;
+        if (httpRequest.getMethod() != HttpMethod.HEAD && httpResponse.getEntityBody() != null) {
+            try {
+                // Cheap once the response has been sent, the length is cached
+                bodyBytes = httpResponse.getEntityBody().getLength();
+            }
+            catch (IOException e) {
+                bodyBytes = -1;
+            }
+        }
+        return log(remoteAddress, httpRequest, httpResponse.getStatus().getStatusCode(),
+                bodyBytes, durationNanos);
+    }
+
+    /**
+     * Log a request which has been served
+     *
+     * @param remoteAddress the address of the client
+     * @param httpRequest the request
+     * @param statusCode the status code of the response
+     * @param bodyBytes the length of the response body, -1 if unknown
+     * @param durationNanos the time taken to serve the request, in nanoseconds
+     * @return false if the record has been dropped
+     */
+    public boolean log(InetAddress remoteAddress, HttpRequest httpRequest, int statusCode,
+            long bodyBytes, long durationNanos) {
+        if (closed) {
+            dropped.increment();
+            return false;
+        }
+        long position = tail.get();
+        AccessLogRecord record;
+        while (true) {
+            record = ring[(int) position & mask];
+            long available = record.sequence - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            }
+            else if (available < 0) {
+                // The slot still holds the record of the previous lap: the ring is full
+                dropped.increment();
+                return false;
+            }
+            else {
+                position = tail.get();
+            }
+        }
+        Map<String, String> headers = httpRequest.getHeaders();
+        record.timeMillis = System.currentTimeMillis();
+        record.remoteAddress = remoteAddress;
+        record.method = httpRequest.getMethod();
+        record.requestUri = httpRequest.getRequestUri();
+        record.httpVersion = httpRequest.getHttpVersion();
+        record.statusCode = statusCode;
+        record.bodyBytes = bodyBytes;
+        record.durationNanos = durationNanos;
+        record.referer = headers != null ? headers.get("referer") : null;
+        record.userAgent = headers != null ? headers.get("user-agent") : null;
+        record.sequence = position + 1;
+
+        // Wake the writer up early if the ring is filling up while it sleeps
+        if (writerParked && position - head >= ring.length / 2) {
+            LockSupport.unpark(writerThread);
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of records written to the file
+     *
+     * @return the number of records
+     */
+    public long getWrittenRecords() {
+        return written;
+    }
+
+    /**
+     * Get the number of records dropped because the ring buffer was full
+     *
+     * @return the number of records
+     */
+    public long getDroppedRecords() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write the pending records and close the file. The records logged afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        long firstBuffered = 0;
+        while (true) {
+            boolean closing = closed;
+            int count = drain();
+            long now = System.currentTimeMillis();
+            if (encoder.size() > 0) {
+                if (firstBuffered == 0) {
+                    firstBuffered = now;
+                }
+                if (closing || now - firstBuffered >= flushInterval) {
+                    writeBuffer(now);
+                    firstBuffered = 0;
+                }
+            }
+            if (closing && head == tail.get()) {
+                break;
+            }
+            if (count == 0) {
+                reportDrops();
+                writerParked = true;
+                if (!closed && !isPublished(head)) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+            }
+        }
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            LOGGER.error("Exception caught while closing access log {}", file, e);
+        }
+    }
+
+    private boolean isPublished(long position) {
+        return ring[(int) position & mask].sequence == position + 1;
+    }
+
+    /**
+     * Encode the published records, writing the buffer whenever it is full
+     *
+     * @return the number of records encoded
+     */
+    private int drain() {
+        AccessLogFormat currentFormat = format;
+        long position = head;
+        int count = 0;
+        while (isPublished(position)) {
+            AccessLogRecord record = ring[(int) position & mask];
+            if (AccessLogEncoder.maxLength(record) > encoder.remaining() && encoder.size() > 0) {
+                writeBuffer(System.currentTimeMillis());
+            }
+            encoder.encode(record, currentFormat);
+            record.clear();
+            // Hand the slot over to the next lap
+            record.sequence = position + ring.length;
+            position++;
+            head = position;
+            count++;
+        }
+        written += count;
+        return count;
+    }
+
+    private void writeBuffer(long now) {
+        long rotation = rotationInterval;
+        long maxSize = maxFileSize;
+        if (fileSize > 0 && ((maxSize > 0 && fileSize + encoder.size() > maxSize)
+                || (rotation > 0 && now - fileOpened >= rotation))) {
+            rotate(now);
+        }
+        try {
+            out.write(encoder.getBuffer(), 0, encoder.size());
+            fileSize += encoder.size();
+        }
+        catch (IOException e) {
+            LOGGER.error("Exception caught while writing access log {}", file, e);
+        }
+        encoder.reset();
+    }
+
+    private void open() throws IOException {
+        out = new FileOutputStream(file, true);
+        fileSize = file.length();
+        fileOpened = System.currentTimeMillis();
+    }
+
+    /**
+     * Rename the file with the time it is rotated, e.g. access.log.20261019-100000, and open a
+     * new one
+     */
+    private void rotate(long now) {
+        try {
+            out.close();
+            String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(now));
+            File rotated = new File(file.getPath() + "." + suffix);
+            for (int i = 1; rotated.exists(); i++) {
+                rotated = new File(file.getPath() + "." + suffix + "-" + i);
+            }
+            if (!file.renameTo(rotated)) {
+                LOGGER.error("Failed to rotate access log {} to {}", file, rotated);
+            }
+            open();
+        }
+        catch (IOException e) {
+            LOGGER.error("Exception caught while rotating access log {}", file, e);
+        }
+    }
+
+    private void reportDrops() {
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            LOGGER.warn("{} access log records dropped, the ring buffer was full",
+                    drops - reportedDrops);
+            reportedDrops = drops;
+        }
+    }
+}
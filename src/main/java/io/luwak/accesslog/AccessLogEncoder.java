@@ -0,0 +1,265 @@
+package io.luwak.accesslog;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Encodes access log records into a byte buffer, without going through String or a Charset
+ * encoder. The formatted date is cached for the current second. Not thread-safe, used by the
+ * writer thread of an {@link AccessLog} only.
+ *
+ */
+final class AccessLogEncoder {
+
+    private static final DateTimeFormatter COMBINED_DATE =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ROOT);
+    private static final DateTimeFormatter JSON_DATE =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final ZoneId zone;
+    private byte[] buffer;
+    private int size;
+
+    private long cachedSecond = Long.MIN_VALUE;
+    private AccessLogFormat cachedFormat;
+    private byte[] cachedDate;
+
+    AccessLogEncoder(int bufferSize, ZoneId zone) {
+        this.buffer = new byte[bufferSize];
+        this.zone = zone;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the number of bytes which can still be encoded without growing the buffer
+     */
+    int remaining() {
+        return buffer.length - size;
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    /**
+     * Get the maximum number of bytes a record can be encoded into
+     */
+    static int maxLength(AccessLogRecord record) {
+        // A char is at most 6 bytes once escaped (\\u00XX), or 3 bytes in UTF-8
+        return 256 + 6 * (length(record.requestUri) + length(record.httpVersion)
+                + length(record.referer) + length(record.userAgent));
+    }
+
+    void encode(AccessLogRecord record, AccessLogFormat format) {
+        int maxLength = maxLength(record);
+        if (maxLength > remaining()) {
+            buffer = Arrays.copyOf(buffer, size + maxLength);
+        }
+        if (format == AccessLogFormat.JSON) {
+            encodeJson(record);
+        }
+        else {
+            encodeCombined(record);
+        }
+    }
+
+    private void encodeCombined(AccessLogRecord record) {
+        address(record);
+        ascii(" - - [");
+        date(record.timeMillis, AccessLogFormat.COMBINED);
+        ascii("] \"");
+        if (record.method != null) {
+            ascii(record.method.name());
+        }
+        put(' ');
+        quotedValue(record.requestUri);
+        put(' ');
+        quotedValue(record.httpVersion);
+        ascii("\" ");
+        number(record.statusCode);
+        put(' ');
+        if (record.bodyBytes > 0) {
+            number(record.bodyBytes);
+        }
+        else {
+            put('-');
+        }
+        ascii(" \"");
+        quotedValue(record.referer != null ? record.referer : "-");
+        ascii("\" \"");
+        quotedValue(record.userAgent != null ? record.userAgent : "-");
+        ascii("\"\n");
+    }
+
+    private void encodeJson(AccessLogRecord record) {
+        ascii("{\"time\":\"");
+        date(record.timeMillis, AccessLogFormat.JSON);
+        long millis = Math.floorMod(record.timeMillis, 1000L);
+        put((char) ('0' + millis / 100));
+        put((char) ('0' + millis / 10 % 10));
+        put((char) ('0' + millis % 10));
+        ascii("Z\",\"remote_addr\":\"");
+        address(record);
+        ascii("\",\"method\":");
+        jsonString(record.method != null ? record.method.name() : null);
+        ascii(",\"uri\":");
+        jsonString(record.requestUri);
+        ascii(",\"protocol\":");
+        jsonString(record.httpVersion);
+        ascii(",\"status\":");
+        number(record.statusCode);
+        ascii(",\"body_bytes\":");
+        number(Math.max(record.bodyBytes, 0));
+        ascii(",\"duration_us\":");
+        number(record.durationNanos / 1000);
+        ascii(",\"referer\":");
+        jsonString(record.referer);
+        ascii(",\"user_agent\":");
+        jsonString(record.userAgent);
+        ascii("}\n");
+    }
+
+    private void address(AccessLogRecord record) {
+        ascii(record.remoteAddress != null ? record.remoteAddress.getHostAddress() : "-");
+    }
+
+    private void date(long timeMillis, AccessLogFormat format) {
+        long second = Math.floorDiv(timeMillis, 1000L);
+        if (second != cachedSecond || format != cachedFormat) {
+            Instant instant = Instant.ofEpochSecond(second);
+            String date = format == AccessLogFormat.JSON
+                    ? JSON_DATE.format(ZonedDateTime.ofInstant(instant, ZoneId.of("UTC"))) + "."
+                    : COMBINED_DATE.format(ZonedDateTime.ofInstant(instant, zone));
+            cachedDate = date.getBytes(StandardCharsets.US_ASCII);
+            cachedSecond = second;
+            cachedFormat = format;
+        }
+        System.arraycopy(cachedDate, 0, buffer, size, cachedDate.length);
+        size += cachedDate.length;
+    }
+
+    /**
+     * Put a value between the quotes of the combined format, escaping quotes, backslashes and
+     * control characters as \xHH like nginx
+     */
+    private void quotedValue(String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20 || c == 0x7f) {
+                put('\\');
+                put('x');
+                put((char) HEX[c >> 4]);
+                put((char) HEX[c & 0xf]);
+            }
+            else {
+                i = utf8(value, i);
+            }
+        }
+    }
+
+    private void jsonString(String value) {
+        if (value == null) {
+            ascii("null");
+            return;
+        }
+        put('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                put('\\');
+                put(c);
+            }
+            else if (c < 0x20) {
+                ascii("\\u00");
+                put((char) HEX[c >> 4]);
+                put((char) HEX[c & 0xf]);
+            }
+            else {
+                i = utf8(value, i);
+            }
+        }
+        put('"');
+    }
+
+    /**
+     * Put the character at index i in UTF-8
+     *
+     * @return the index of the last char consumed
+     */
+    private int utf8(String value, int i) {
+        char c = value.charAt(i);
+        if (c < 0x80) {
+            buffer[size++] = (byte) c;
+        }
+        else if (c < 0x800) {
+            buffer[size++] = (byte) (0xc0 | c >> 6);
+            buffer[size++] = (byte) (0x80 | c & 0x3f);
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+            buffer[size++] = (byte) (0xf0 | codePoint >> 18);
+            buffer[size++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+            buffer[size++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+            buffer[size++] = (byte) (0x80 | codePoint & 0x3f);
+            return i + 1;
+        }
+        else if (Character.isSurrogate(c)) {
+            buffer[size++] = '?';
+        }
+        else {
+            buffer[size++] = (byte) (0xe0 | c >> 12);
+            buffer[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+            buffer[size++] = (byte) (0x80 | c & 0x3f);
+        }
+        return i;
+    }
+
+    private void number(long value) {
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int start = size;
+        do {
+            buffer[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were put from the least significant one
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    private void ascii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void put(char c) {
+        buffer[size++] = (byte) c;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 1;
+    }
+}
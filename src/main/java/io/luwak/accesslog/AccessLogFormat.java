@@ -0,0 +1,20 @@
+package io.luwak.accesslog;
+
+/**
+ * The format of the lines of an {@link AccessLog}
+ *
+ */
+public enum AccessLogFormat {
+
+    /**
+     * The NCSA combined log format of Apache and nginx:
+     * {@code 127.0.0.1 - - [19/Oct/2026:10:00:00 +0000] "GET / HTTP/1.1" 200 5 "-" "curl/8.0"}
+     */
+    COMBINED,
+
+    /**
+     * One JSON object per line, with the time in UTC and the duration of the request:
+     * {@code {"time":"2026-10-19T10:00:00.123Z","remote_addr":"127.0.0.1","method":"GET",...}}
+     */
+    JSON
+}
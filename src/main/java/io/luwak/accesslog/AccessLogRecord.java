@@ -0,0 +1,46 @@
+package io.luwak.accesslog;
+
+import java.net.InetAddress;
+
+import io.luwak.http.message.HttpMethod;
+
+/**
+ * A slot of the ring buffer of an {@link AccessLog}, filled by a server thread and encoded by the
+ * writer thread. The slots are allocated once and reused.
+ *
+ */
+final class AccessLogRecord {
+
+    /**
+     * The position for which the slot can be claimed by a server thread, or that position + 1
+     * once the record has been published for the writer thread
+     */
+    volatile long sequence;
+
+    long timeMillis;
+    InetAddress remoteAddress;
+    HttpMethod method;
+    String requestUri;
+    String httpVersion;
+    int statusCode;
+    long bodyBytes;
+    long durationNanos;
+    String referer;
+    String userAgent;
+
+    AccessLogRecord(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Drop the references held by the record, so that they can be collected
+     */
+    void clear() {
+        remoteAddress = null;
+        method = null;
+        requestUri = null;
+        httpVersion = null;
+        referer = null;
+        userAgent = null;
+    }
+}
@@ -0,0 +1,22 @@
+package io.luwak.http;
+
+/**
+ * Thrown when the header of an HTTP message exceeds the maximum header size
+ *
+ */
+public class HeaderTooLargeException extends HttpParseException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = -3371850646734790926L;
+
+    /**
+     * Constructs a HeaderTooLargeException with the given message
+     *
+     * @param message error message
+     */
+    public HeaderTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,24 @@
+package io.luwak.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a client starts a connection with the HTTP/2 connection preface instead of an
+ * HTTP/1.1 request, i.e. HTTP/2 with prior knowledge. The header parser has consumed the
+ * {@code PRI * HTTP/2.0} part of the preface, the rest is left in the input stream.
+ *
+ */
+public class Http2PrefaceException extends IOException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = -6012457385518262381L;
+
+    /**
+     * Constructs an Http2PrefaceException
+     */
+    public Http2PrefaceException() {
+        super("HTTP/2 connection preface");
+    }
+}
@@ -1,28 +1,22 @@
 package io.luwak.http;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
-import java.util.LinkedHashMap;
-import java.util.Locale;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.StringTokenizer;
 
+import io.luwak.http.io.ChunkedInputStream;
+import io.luwak.http.io.FixedSizeInputStream;
 import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
 import io.luwak.http.message.HttpRequest;
 import io.luwak.http.message.HttpResponse;
 import io.luwak.http.message.HttpResponseException;
-import io.luwak.http.message.HttpStatus;
 
 /**
  * Class to send outgoing HTTP Request and read incoming HTTP Response.
@@ -42,122 +36,122 @@ public class HttpClientStreams extends HttpStreamsBase {
      * @throws IOException when IO exception occurs while trying to send the HTTP request
      */
     public void send(HttpRequest httpRequest) throws IOException {
-        // TODO: encoding
-        try {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(this.out, "UTF-8"));
-            PrintWriter pw = new PrintWriter(bw, false);
+        writeRequest(httpRequest, this.out);
+        this.out.flush();
+    }
 
-            // Request-Line
-            pw.append(httpRequest.getMethod().toString()).append(" ")
-                    .append(httpRequest.getRequestUri()).append(" ")
-                    .append(httpRequest.getHttpVersion()).append("\r\n");
+    /**
+     * Write an HTTP request to the specified output stream. The request line and headers are
+     * buffered and written together with the body.
+     *
+     * @param httpRequest the HTTP request to be written
+     * @param out the output stream
+     * @throws IOException when IO exception occurs while writing the HTTP request
+     */
+    public static void writeRequest(HttpRequest httpRequest, OutputStream out) throws IOException {
+        // TODO: encoding
+        StringBuilder head = new StringBuilder(256);
 
-            // Request-Headers
-            for (Map.Entry<String, String> entry : httpRequest.getHeaders().entrySet()) {
-                pw.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
-            }
-            pw.append("\r\n");
-            pw.flush();
+        // Request-Line
+        head.append(httpRequest.getMethod().toString()).append(' ')
+                .append(httpRequest.getRequestUri()).append(' ')
+                .append(httpRequest.getHttpVersion()).append("\r\n");
 
-            if (httpRequest.getEntityBody() != null) {
-                // System.out.println("Sending entity body");
-                httpRequest.getEntityBody().writeTo(this.out);
-            }
-            // System.out.println("Request sent");
+        // Request-Headers
+        for (Map.Entry<String, String> entry : httpRequest.getHeaders().entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.UTF_8));
 
-            this.out.flush();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+        if (httpRequest.getEntityBody() != null) {
+            httpRequest.getEntityBody().writeTo(out);
         }
     }
 
+    /**
+     * Read an HTTP response
+     *
+     * @return the HTTP response
+     * @throws IOException when IO exception occurs while reading the HTTP response
+     * @throws HttpResponseException if the response is malformed
+     */
     public HttpResponse read() throws IOException, HttpResponseException {
-        try {
-            byte[] header = readHeader();
-
-            // Create a BufferedReader for parsing the header.
-            InputStreamReader isr = new InputStreamReader(new ByteArrayInputStream(header));
-            BufferedReader hin = new BufferedReader(isr);
+        return read(null);
+    }
 
-            return decodeHeader(hin);
-        } catch (SocketException e) {
-            // throw it out to close socket object (finalAccept)
-            throw e;
-        } catch (SocketTimeoutException ste) {
-            // treat socket timeouts the same way we treat socket exceptions
-            // i.e. close the stream & finalAccept object by throwing the
-            // exception up the call stack.
-            throw ste;
-        }
+    /**
+     * Read the HTTP response to a request sent with the specified method. Interim (1xx) responses
+     * are skipped. The response body is read completely, unless the request method or the
+     * response status do not allow a body (HEAD requests, 1xx, 204 and 304 responses).
+     *
+     * @param requestMethod the method of the request, or null if unknown
+     * @return the HTTP response
+     * @throws IOException when IO exception occurs while reading the HTTP response
+     * @throws HttpResponseException if the response is malformed
+     */
+    public HttpResponse read(HttpMethod requestMethod) throws IOException, HttpResponseException {
+        return read(requestMethod, false);
     }
 
     /**
-     * Decodes the sent headers and loads the data into Key/value pairs
+     * Read the HTTP response to a request sent with the specified method. Interim (1xx) responses
+     * are skipped. If streamBody is true, only the response header is read and the body is
+     * returned as a streaming entity that reads it from the connection (see
+     * {@link HttpEntity#fromStream(InputStream, long, boolean)}), without decoding its content
+     * encoding. Closing the
+     * entity's stream drains the rest of a body delimited by Content-Length or chunked encoding.
      *
-     * @return 
+     * @param requestMethod the method of the request, or null if unknown
+     * @param streamBody true to stream the response body instead of reading it completely
+     * @return the HTTP response
+     * @throws IOException when IO exception occurs while reading the HTTP response
+     * @throws HttpResponseException if the response is malformed
      */
-    private HttpResponse decodeHeader(BufferedReader in) throws HttpResponseException {
+    public HttpResponse read(HttpMethod requestMethod, boolean streamBody)
+            throws IOException, HttpResponseException {
         try {
-            // Read the request line
-            String inLine = in.readLine();
-            if (inLine == null) {
-                return null;
-            }
-
-            StringTokenizer st = new StringTokenizer(inLine);
-            if (!st.hasMoreTokens()) {
-                throw new HttpResponseException("BAD RESPONSE: Syntax error, missing Status-Line");
-            }
-
-            String protocolVersion = st.nextToken();
-
-            if (!st.hasMoreTokens()) {
-                throw new HttpResponseException("BAD RESPONSE: Syntax error, missing Status-Code");
-            }
-
-            String statusCodeStr = st.nextToken();
-            int statusCode = 0;
-            try {
-                statusCode = Integer.parseInt(statusCodeStr);
-            } catch (Exception e) {
-                throw new HttpResponseException("BAD RESPONSE: Syntax error, non-numeric Status-Code");
-            }
-
-            if (!st.hasMoreTokens()) {
-                throw new HttpResponseException("BAD RESPONSE: Syntax error, missing Reason-Phrase");
-            }
-            String reasonPhrase = st.nextToken();
-
-            final int finalStatusCode = statusCode;
-
-            HttpStatus status = new HttpStatus() {
+            while (true) {
+                HttpHeaderParser header;
+                try {
+                    header = readHeader();
+                }
+                catch (HttpParseException e) {
+                    throw new HttpResponseException("BAD RESPONSE: " + e.getMessage(), e);
+                }
 
-                @Override
-                public int getStatusCode() {
-                    return finalStatusCode;
+                StatusLine statusLine = StatusLine.parse(header.getStartLine());
+                int statusCode = statusLine.getStatus().getStatusCode();
+                if (isInterim(statusCode) && statusCode != 101) {
+                    continue;
                 }
 
-                @Override
-                public String getReasonPhrase() {
-                    return reasonPhrase;
+                Map<String, String> headers = header.getHeaders();
+                HttpEntity body;
+                try {
+                    if (!hasBody(requestMethod, statusCode)) {
+                        body = null;
+                    }
+                    else {
+                        body = streamBody ? streamHttpResponseBody(headers)
+                                : readHttpRequestBody(headers);
+                    }
                 }
-            };
-
-            Map<String, String> headers = new LinkedHashMap<>();
-            String line = in.readLine();
-            while (line != null && !line.trim().isEmpty()) {
-                int p = line.indexOf(':');
-                if (p >= 0) {
-                    headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+                catch (IOException ioe) {
+                    throw new HttpResponseException("SERVER INTERNAL ERROR: IOException: "
+                            + ioe.getMessage(), ioe);
                 }
-                line = in.readLine();
+                return new HttpResponse(statusLine.getHttpVersion(), statusLine.getStatus(),
+                        headers, body);
             }
-
-            HttpEntity body = readHttpRequestBody(headers);
-            return new HttpResponse(protocolVersion, status, headers, body); 
-        }
-        catch (IOException ioe) {
-            throw new HttpResponseException("SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+        } catch (SocketException e) {
+            // throw it out to close socket object (finalAccept)
+            throw e;
+        } catch (SocketTimeoutException ste) {
+            // treat socket timeouts the same way we treat socket exceptions
+            // i.e. close the stream & finalAccept object by throwing the
+            // exception up the call stack.
+            throw ste;
         }
     }
 
@@ -167,18 +161,23 @@ public class HttpClientStreams extends HttpStreamsBase {
      * @param headers
      * @return
      * @throws IOException
+     * @throws HttpResponseException if the Content-Length is invalid
      */
-    public HttpEntity readHttpRequestBody(Map<String, String> headers) throws IOException {
+    public HttpEntity readHttpRequestBody(Map<String, String> headers)
+            throws IOException, HttpResponseException {
         long contentLength = -1;
         boolean gzip = false;
         boolean chunked = false;
 
         if (headers.containsKey("content-length")) {
-            contentLength = Long.parseLong(headers.get("content-length"));
+            contentLength = parseContentLength(headers.get("content-length"));
+            if (contentLength < 0) {
+                throw new HttpResponseException("BAD RESPONSE: Invalid Content-Length: "
+                        + headers.get("content-length"));
+            }
         }
         if (headers.containsKey("content-encoding")) {
             String contentEnc = headers.get("content-encoding");
-            System.out.println("Content encoding: " + contentEnc);
             gzip = contentEnc.equalsIgnoreCase("gzip");
         }
         if (headers.containsKey("transfer-encoding")) {
@@ -186,19 +185,57 @@ public class HttpClientStreams extends HttpStreamsBase {
             chunked = transferEncoding.equalsIgnoreCase("chunked");
         }
 
-        // No body
-        if (contentLength == -1 && !chunked) {
-            return null;
+        if (chunked) {
+            return HttpEntity.fromChunkedInputStream(this.in, gzip);
         }
+        // Neither content-length nor transfer-encoding=chunked available, the body is delimited
+        // by closing the connection
+        return HttpEntity.fromInputStream(this.in, contentLength, gzip);
+    }
 
-        if (contentLength != -1) {
-            return HttpEntity.fromInputStream(this.in, contentLength, gzip);
+    /**
+     * Create an entity that streams the response body from the input stream. A body without
+     * Content-Length is chunked when it is written.
+     */
+    private HttpEntity streamHttpResponseBody(Map<String, String> headers)
+            throws HttpResponseException {
+        String transferEncoding = headers.get("transfer-encoding");
+        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            return HttpEntity.fromStream(new ChunkedInputStream(this.in), -1, true);
         }
-        if (chunked) {
-            return HttpEntity.fromChunkedInputStream(this.in, gzip);
+        if (headers.containsKey("content-length")) {
+            long contentLength = parseContentLength(headers.get("content-length"));
+            if (contentLength < 0) {
+                throw new HttpResponseException("BAD RESPONSE: Invalid Content-Length: "
+                        + headers.get("content-length"));
+            }
+            return HttpEntity.fromStream(new FixedSizeInputStream(this.in, contentLength),
+                    contentLength, false);
         }
-        // Neither content-length nor transfer-encoding=chunked available, assume no body
-        return null;
+        // Delimited by closing the connection
+        return HttpEntity.fromStream(this.in, -1, true);
+    }
+
+    /**
+     * Return true if the response to a request with the specified method and the specified status
+     * code has a body (RFC 7230 section 3.3.3)
+     *
+     * @param requestMethod the method of the request, or null if unknown
+     * @param statusCode the status code of the response
+     * @return true if the response has a body
+     */
+    public static boolean hasBody(HttpMethod requestMethod, int statusCode) {
+        if (requestMethod == HttpMethod.HEAD || isInterim(statusCode)) {
+            return false;
+        }
+        if (requestMethod == HttpMethod.CONNECT && statusCode >= 200 && statusCode < 300) {
+            return false;
+        }
+        return statusCode != 204 && statusCode != 304;
+    }
+
+    private static boolean isInterim(int statusCode) {
+        return statusCode >= 100 && statusCode < 200;
     }
 
     /**
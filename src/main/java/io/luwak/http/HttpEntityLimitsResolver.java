@@ -0,0 +1,22 @@
+package io.luwak.http;
+
+import io.luwak.http.message.HttpEntityLimits;
+import io.luwak.http.message.HttpMethod;
+
+/**
+ * Resolves the limits to be applied when reading the entity (body) of an incoming HTTP request.
+ * The limits are resolved once the request header has been read, before the body is read.
+ *
+ */
+public interface HttpEntityLimitsResolver {
+
+    /**
+     * Return the limits for the body of a request with the specified URI path and HTTP method
+     *
+     * @param uriPath the URI path of the request
+     * @param method the HTTP method of the request
+     * @return the limits, or null to apply the default limits
+     */
+    public HttpEntityLimits getEntityLimits(String uriPath, HttpMethod method);
+
+}
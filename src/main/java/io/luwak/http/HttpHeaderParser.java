@@ -0,0 +1,183 @@
+package io.luwak.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental parser for the header (start line and header fields) of an HTTP request or response.
+ * The header can be fed in pieces of any size as they arrive, which makes the parser usable both
+ * by the blocking streams and by non-blocking connections. Parsing stops right after the empty
+ * line that ends the header, so the bytes remaining in the buffer belong to the message body or
+ * to the next message.
+ *
+ * Header names are converted to lower case, empty lines before the start line are ignored and a
+ * bare LF is accepted as line terminator.
+ *
+ */
+public class HttpHeaderParser {
+
+    public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+
+    private final int maxHeaderSize;
+
+    private byte[] line = new byte[128];
+    private int lineLength;
+    private int size;
+
+    private String startLine;
+    private Map<String, String> headers = new LinkedHashMap<>();
+    private String lastHeaderName;
+    private boolean complete;
+
+    /**
+     * Constructs an HttpHeaderParser with the default maximum header size (8 KB)
+     */
+    public HttpHeaderParser() {
+        this(DEFAULT_MAX_HEADER_SIZE);
+    }
+
+    /**
+     * Constructs an HttpHeaderParser
+     *
+     * @param maxHeaderSize the maximum size of the header in bytes
+     */
+    public HttpHeaderParser(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Parse the bytes remaining in the buffer. The position of the buffer is advanced past the
+     * parsed bytes, which is the end of the header if this method returns true, or the limit of
+     * the buffer otherwise.
+     *
+     * @param buffer the buffer holding the next part of the header
+     * @return true if the header is complete
+     * @throws HeaderTooLargeException if the header exceeds the maximum header size
+     * @throws HttpParseException if the header is malformed
+     */
+    public boolean parse(ByteBuffer buffer) throws HttpParseException {
+        if (complete) {
+            return true;
+        }
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (++size > maxHeaderSize) {
+                throw new HeaderTooLargeException("Header exceeds the limit of " + maxHeaderSize
+                        + " bytes");
+            }
+            if (b == '\n') {
+                int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1
+                        : lineLength;
+                lineLength = 0;
+                if (endOfLine(length)) {
+                    complete = true;
+                    return true;
+                }
+            }
+            else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the complete header has been parsed
+     *
+     * @return true if the header is complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Return true if no byte of the header has been parsed yet
+     *
+     * @return true if nothing has been parsed since the parser was created or reset
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the start line (Request-Line or Status-Line)
+     *
+     * @return the start line, or null if it has not been parsed yet
+     */
+    public String getStartLine() {
+        return startLine;
+    }
+
+    /**
+     * Get the header fields parsed so far, with lower case names
+     *
+     * @return the header fields
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Reset this parser to parse the next header. The map returned by {@link #getHeaders()} is not
+     * modified, it can still be used by the message it was handed to.
+     */
+    public void reset() {
+        reset(new LinkedHashMap<>());
+    }
+
+    /**
+     * Reset this parser to parse the next header into the specified map, e.g. the recycled map of
+     * the previous message
+     *
+     * @param headers the empty map receiving the header fields
+     */
+    public void reset(Map<String, String> headers) {
+        lineLength = 0;
+        size = 0;
+        startLine = null;
+        this.headers = headers;
+        lastHeaderName = null;
+        complete = false;
+    }
+
+    /**
+     * Process a complete line
+     *
+     * @return true if the line is the empty line that ends the header
+     */
+    private boolean endOfLine(int length) throws HttpParseException {
+        if (startLine == null) {
+            // Robustness: empty lines before the start line are ignored (RFC 7230 section 3.5)
+            if (length > 0) {
+                startLine = new String(line, 0, length, StandardCharsets.UTF_8);
+            }
+            return false;
+        }
+        if (length == 0) {
+            return true;
+        }
+
+        String headerLine = new String(line, 0, length, StandardCharsets.UTF_8);
+        if (line[0] == ' ' || line[0] == '\t') {
+            // Obsolete line folding, the continuation is appended to the previous value
+            if (lastHeaderName == null) {
+                throw new HttpParseException("Header continuation without header field");
+            }
+            headers.put(lastHeaderName, headers.get(lastHeaderName) + " " + headerLine.trim());
+            return false;
+        }
+        int p = headerLine.indexOf(':');
+        if (p > 0) {
+            lastHeaderName = headerLine.substring(0, p).trim().toLowerCase(Locale.US);
+            headers.put(lastHeaderName, headerLine.substring(p + 1).trim());
+        }
+        return false;
+    }
+}
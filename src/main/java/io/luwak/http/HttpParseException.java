@@ -0,0 +1,24 @@
+package io.luwak.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the header of an HTTP message is malformed
+ *
+ */
+public class HttpParseException extends IOException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 4921586215379104185L;
+
+    /**
+     * Constructs an HttpParseException with the given message
+     *
+     * @param message error message
+     */
+    public HttpParseException(String message) {
+        super(message);
+    }
+}
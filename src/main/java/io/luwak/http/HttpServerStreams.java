@@ -1,30 +1,35 @@
 package io.luwak.http;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedHashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.io.ChunkedInputStream;
+import io.luwak.http.io.FixedSizeInputStream;
+import io.luwak.http.io.InsufficientStorageException;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.PayloadTooLargeException;
+import io.luwak.http.io.SpoolManager;
 import io.luwak.http.message.DefaultHttpStatus;
 import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpEntityLimits;
 import io.luwak.http.message.HttpMethod;
 import io.luwak.http.message.HttpRequest;
 import io.luwak.http.message.HttpRequestException;
 import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.RecyclableHttpRequest;
+import io.luwak.http.message.SerializedHttpResponse;
 
 /**
  * Class to read incoming HTTP Request and send outgoing HTTP Response.
@@ -33,6 +38,16 @@ import io.luwak.http.message.HttpResponse;
  */
 public class HttpServerStreams extends HttpStreamsBase {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpServerStreams.class);
+
+    private static final HttpEntityLimits DEFAULT_ENTITY_LIMITS = new HttpEntityLimits();
+    /** The start of the HTTP/2 connection preface, as read by the header parser */
+    private static final String HTTP2_PREFACE_LINE = "PRI * HTTP/2.0";
+
+    private HttpEntityLimitsResolver entityLimitsResolver;
+    private MemoryBudget memoryBudget;
+    private SpoolManager spoolManager;
+
     /**
      * Constructs a HttpServerStreams from the given input and output streams
      *
@@ -43,6 +58,35 @@ public class HttpServerStreams extends HttpStreamsBase {
         super(in, out);
     }
 
+    /**
+     * Set the resolver for the limits applied when reading request bodies. Request bodies are kept
+     * in memory within the limits and the {@link MemoryBudget}, otherwise they are stored in spool
+     * files obtained from the {@link SpoolManager}.
+     *
+     * @param entityLimitsResolver the limits resolver, or null to always apply the default limits
+     */
+    public void setEntityLimitsResolver(HttpEntityLimitsResolver entityLimitsResolver) {
+        this.entityLimitsResolver = entityLimitsResolver;
+    }
+
+    /**
+     * Set the budget of heap memory reserved by the request bodies kept in memory
+     *
+     * @param memoryBudget the memory budget, or null to use {@link MemoryBudget#getDefault()}
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the SpoolManager providing the spool files of the request bodies not kept in memory
+     *
+     * @param spoolManager the SpoolManager, or null to use {@link SpoolManager#getDefault()}
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        this.spoolManager = spoolManager;
+    }
+
     /**
      * Read and parse HTTP request
      * 
@@ -52,12 +96,35 @@ public class HttpServerStreams extends HttpStreamsBase {
      * @throws HttpRequestException
      */
     public HttpRequest read() throws IOException, SocketException, HttpRequestException {
-        try {
-            byte[] header = readHeader();
-            // Create a BufferedReader for parsing the header.
-            BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(header)));
+        return read(null);
+    }
 
-            return decodeRequestHeader(hin);
+    /**
+     * Read and parse HTTP request into a recycled request object, whose maps are reused
+     *
+     * @param recycled the request object to fill, or null to create a new request
+     * @return parsed HTTP request, the recycled object if one is specified
+     * @throws Http2PrefaceException if the client has sent the HTTP/2 connection preface
+     * @throws IOException
+     * @throws SocketException
+     * @throws HttpRequestException
+     */
+    public HttpRequest read(RecyclableHttpRequest recycled)
+            throws IOException, SocketException, HttpRequestException {
+        try {
+            HttpHeaderParser header = readHeader(recycled != null ? recycled.nextHeaders() : null);
+            if (HTTP2_PREFACE_LINE.equals(header.getStartLine())) {
+                throw new Http2PrefaceException();
+            }
+            return decodeRequestHeader(header.getStartLine(), header.getHeaders(), recycled);
+        }
+        catch (HeaderTooLargeException e) {
+            throw new HttpRequestException(DefaultHttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE,
+                    "REQUEST HEADER FIELDS TOO LARGE: " + e.getMessage(), e);
+        }
+        catch (HttpParseException e) {
+            throw new HttpRequestException(DefaultHttpStatus.BAD_REQUEST,
+                    "BAD REQUEST: " + e.getMessage(), e);
         }
         catch (SocketException e) {
             // throw it out to close socket object (finalAccept)
@@ -69,6 +136,9 @@ public class HttpServerStreams extends HttpStreamsBase {
             // exception up the call stack.
             throw ste;
         }
+        catch (Http2PrefaceException e) {
+            throw e;
+        }
         catch (IOException ioe) {
             throw new HttpRequestException(DefaultHttpStatus.INTERNAL_SERVER_ERROR,
                     "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
@@ -76,61 +146,69 @@ public class HttpServerStreams extends HttpStreamsBase {
     }
 
     public void send(HttpResponse httpResponse) throws IOException {
+        send(httpResponse, true);
+    }
+
+    /**
+     * Send an HTTP response
+     *
+     * @param httpResponse the HTTP response to be sent
+     * @param sendBody false to send only the status line and headers, as required for the response
+     *      to a HEAD request
+     * @throws IOException when IO exception occurs while sending the HTTP response
+     */
+    public void send(HttpResponse httpResponse, boolean sendBody) throws IOException {
+        if (httpResponse instanceof SerializedHttpResponse) {
+            SerializedHttpResponse serialized = (SerializedHttpResponse) httpResponse;
+            this.out.write(serialized.getMessage(), 0,
+                    sendBody ? serialized.getMessage().length : serialized.getHeadLength());
+            this.out.flush();
+            return;
+        }
+        // The status line and headers are buffered and written together with the body, so that
+        // a small response goes out in a single segment
+        this.out.write(encodeHead(httpResponse));
+
+        if (sendBody && httpResponse.getEntityBody() != null) {
+            httpResponse.getEntityBody().writeTo(this.out);
+        }
+        this.out.flush();
+    }
+
+    /**
+     * Encode the status line and the headers of an HTTP response
+     *
+     * @param httpResponse the HTTP response
+     * @return the encoded head, ending with the empty line
+     */
+    public static byte[] encodeHead(HttpResponse httpResponse) {
         // TODO: encoding
-        try {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(this.out, "UTF-8"));
-            PrintWriter pw = new PrintWriter(bw, false);
-
-            // System.out.println("HTTP Response: " + httpResponse.getHttpVersion() + " " +
-            //        Integer.toString(httpResponse.getStatus().getStatusCode()) + " " + httpResponse.getStatus().getReasonPhrase());
-            // Status-Line
-            if (httpResponse.getStatus().getReasonPhrase() != null) {
-                pw.append(httpResponse.getHttpVersion()).append(" ")
-                        .append(Integer.toString(httpResponse.getStatus().getStatusCode()))
-                        .append(" ").append(httpResponse.getStatus().getReasonPhrase())
-                        .append("\r\n");
-            }
-            else {
-                pw.append(httpResponse.getHttpVersion()).append(" ")
-                        .append(Integer.toString(httpResponse.getStatus().getStatusCode()))
-                        .append(" \r\n");
-            }
-            // Header
-            // System.out.println("Headers: " + httpResponse.getHeaders().entrySet());
-            for (Map.Entry<String, String> entry : httpResponse.getHeaders().entrySet()) {
-                pw.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
-            }
-            pw.append("\r\n");
-            pw.flush();
-
-            if (httpResponse.getEntityBody() != null) {
-                // httpResponse.getHeaders().put("Content-Encoding", "gzip");
-                String contentEncoding = httpResponse.getHeaders().get("content-encoding");
-                if (contentEncoding != null && contentEncoding.equals("gzip")) {
-                    httpResponse.getEntityBody().writeTo(this.out);
-                }
-                else {
-                    httpResponse.getEntityBody().writeTo(this.out);
-                }
-            }
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        } 
+        StringBuilder head = new StringBuilder(256);
+
+        // Status-Line
+        head.append(httpResponse.getHttpVersion()).append(' ')
+                .append(httpResponse.getStatus().getStatusCode()).append(' ');
+        if (httpResponse.getStatus().getReasonPhrase() != null) {
+            head.append(httpResponse.getStatus().getReasonPhrase());
+        }
+        head.append("\r\n");
+
+        // Header
+        for (Map.Entry<String, String> entry : httpResponse.getHeaders().entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     /**
-     * Decodes the sent headers and loads the data into Key/value pairs
+     * Decodes the request line and the parsed headers, and reads the request body
      *
-     * @return 
+     * @return the HTTP request
      */
-    private HttpRequest decodeRequestHeader(BufferedReader in) throws HttpRequestException {
+    private HttpRequest decodeRequestHeader(String inLine, Map<String, String> headers,
+            RecyclableHttpRequest recycled) throws HttpRequestException {
         try {
-            // Read the request line
-            String inLine = in.readLine();
-            if (inLine == null) {
-                return null;
-            }
-
             StringTokenizer st = new StringTokenizer(inLine);
             if (!st.hasMoreTokens()) {
                 throw new HttpRequestException(DefaultHttpStatus.BAD_REQUEST,
@@ -150,7 +228,8 @@ public class HttpServerStreams extends HttpStreamsBase {
             }
 
             String uri = st.nextToken();
-            Map<String, String> parms = new LinkedHashMap<>();
+            Map<String, String> parms = recycled != null ? recycled.nextQueries()
+                    : new LinkedHashMap<>();
             int qmi = uri.indexOf('?');
             if (qmi >= 0) {
                 decodeParms(uri.substring(qmi + 1), parms);
@@ -158,71 +237,111 @@ public class HttpServerStreams extends HttpStreamsBase {
             }
 
             String protocolVersion = null;
-            // If there's another token, its protocol version, followed by HTTP headers.
-            // NOTE: this now forces header names lower case since they are case insensitive and
-            // vary by client.
+            // If there's another token, its protocol version. Header names have been converted to
+            // lower case by the header parser since they are case insensitive and vary by client.
             if (st.hasMoreTokens()) {
                 protocolVersion = st.nextToken();
             }
             else {
                 protocolVersion = "HTTP/1.1";
-                System.out.println("No protocol version specified, strange. Assuming HTTP/1.1.");
+                LOGGER.debug("No protocol version specified, assuming HTTP/1.1");
             }
 
-            Map<String, String> headers = new HashMap<String, String>();
-            String line = in.readLine();
-            while (line != null && !line.trim().isEmpty()) {
-                int p = line.indexOf(':');
-                if (p >= 0) {
-                    headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                }
-                line = in.readLine();
-            }
+            HttpEntityLimits limits = entityLimitsResolver != null ?
+                    entityLimitsResolver.getEntityLimits(uri, httpMethod) : null;
 
             // Read HTTP Request body (if any) based on information from the HTTP header
-            HttpEntity body = readHttpRequestBody(headers);
+            HttpEntity body = readHttpRequestBody(headers,
+                    limits != null ? limits : DEFAULT_ENTITY_LIMITS);
+            if (recycled != null) {
+                recycled.reset(httpMethod, uri, protocolVersion, body);
+                return recycled;
+            }
             return new HttpRequest(httpMethod, uri, parms, protocolVersion, headers, body);
         }
+        catch (PayloadTooLargeException e) {
+            throw new HttpRequestException(DefaultHttpStatus.PAYLOAD_TOO_LARGE,
+                    "PAYLOAD TOO LARGE: " + e.getMessage(), e);
+        }
+        catch (InsufficientStorageException e) {
+            throw new HttpRequestException(DefaultHttpStatus.INSUFFICIENT_STORAGE,
+                    "INSUFFICIENT STORAGE: " + e.getMessage(), e);
+        }
         catch (IOException ioe) {
             throw new HttpRequestException(DefaultHttpStatus.INTERNAL_SERVER_ERROR, 
                     "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
         }
     }
 
-    private HttpEntity readHttpRequestBody(Map<String, String> headers) throws IOException {
+    private HttpEntity readHttpRequestBody(Map<String, String> headers, HttpEntityLimits limits)
+            throws IOException, HttpRequestException {
         long contentLength = -1;
-        boolean gzip = false;
         boolean chunked = false;
 
         if (headers.containsKey("content-length")) {
-            contentLength = Long.parseLong(headers.get("content-length"));
-        }
-        if (headers.containsKey("content-encoding")) {
-            String contentEnc = headers.get("content-encoding");
-            gzip = contentEnc.equalsIgnoreCase("gzip");
+            // The body of a request can't be delimited by closing the connection, a request with
+            // an invalid length can't be framed and the connection is closed
+            contentLength = parseContentLength(headers.get("content-length"));
+            if (contentLength < 0) {
+                throw new HttpRequestException(DefaultHttpStatus.BAD_REQUEST,
+                        "BAD REQUEST: Invalid Content-Length: " + headers.get("content-length"));
+            }
         }
+        // gzip and deflate encoded bodies are decoded while they are read
+        String contentEncoding = headers.get("content-encoding");
         if (headers.containsKey("transfer-encoding")) {
             String transferEncoding = headers.get("transfer-encoding");
             chunked = transferEncoding.equalsIgnoreCase("chunked");
         }
 
+        if (limits.isStreaming()) {
+            return streamHttpRequestBody(contentLength, chunked, limits);
+        }
+        MemoryBudget budget = memoryBudget != null ? memoryBudget : MemoryBudget.getDefault();
+        SpoolManager spool = spoolManager != null ? spoolManager : SpoolManager.getDefault();
         if (contentLength != -1) {
-            return HttpEntity.fromInputStream(this.in, contentLength, gzip);
+            return HttpEntity.fromInputStream(this.in, contentLength, contentEncoding, limits,
+                    budget, spool);
         }
         if (chunked) {
-            return HttpEntity.fromChunkedInputStream(this.in, gzip);
+            return HttpEntity.fromChunkedInputStream(this.in, contentEncoding, limits, budget,
+                    spool);
         }
         // Neither content-length nor transfer-encoding=chunked available, assume no body & return null
         return null;
     }
 
+    /**
+     * Create an entity that streams the request body from the connection while the request is
+     * served. Closing the entity's stream drains the rest of the body, so that the connection is
+     * positioned at the next request.
+     */
+    private HttpEntity streamHttpRequestBody(long contentLength, boolean chunked,
+            HttpEntityLimits limits) throws IOException {
+        if (contentLength != -1) {
+            if (limits.getMaxBodySize() >= 0 && contentLength > limits.getMaxBodySize()) {
+                throw new PayloadTooLargeException("Content-Length " + contentLength
+                        + " exceeds the limit of " + limits.getMaxBodySize() + " bytes");
+            }
+            return HttpEntity.fromStream(new FixedSizeInputStream(this.in, contentLength),
+                    contentLength, false);
+        }
+        if (chunked) {
+            return HttpEntity.fromStream(new ChunkedInputStream(this.in), -1, true);
+        }
+        return null;
+    }
+
     /**
      * Decodes parameters in percent-encoded URI-format ( e.g.
      * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
      * Map. NOTE: this doesn't support multiple identical keys due to the
      * simplicity of Map.
+     *
+     * @param parms the query string
+     * @param p the map receiving the decoded parameters
      */
-    private static void decodeParms(String parms, Map<String, String> p) {
+    public static void decodeParms(String parms, Map<String, String> p) {
         if (parms == null) {
             return;
         }
@@ -2,6 +2,7 @@ package io.luwak.http;
 
 import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -9,6 +10,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Parent class for HTTP Request and Response Streams 
@@ -23,57 +29,128 @@ public abstract class HttpStreamsBase {
     public static final int MEMORY_STORE_LIMIT = 500 * 1024;
     public static final int REQUEST_BUFFER_LEN = 512;
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpStreamsBase.class);
+
     protected InputStream in;
     protected OutputStream out;
 
+    private final byte[] headerBuffer = new byte[BUFSIZE];
+    private final HttpHeaderParser headerParser = new HttpHeaderParser(BUFSIZE);
+    private boolean timing;
+    private long headerStartNanos;
+
     public HttpStreamsBase(InputStream in, OutputStream out) {
         this.in = new BufferedInputStream(in, BUFSIZE);
         this.out = out;
     }
 
-    protected byte[] readHeader() throws IOException {
+    /**
+     * Record when the first bytes of each header are read, see {@link #getHeaderStartNanos()}
+     *
+     * @param timing true to record the time, false (the default) to save the clock reads
+     */
+    public void setTiming(boolean timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * Get when the first bytes of the last header were read, if timing is enabled
+     *
+     * @return the time from {@link System#nanoTime()}
+     */
+    public long getHeaderStartNanos() {
+        return headerStartNanos;
+    }
+
+    /**
+     * Parse the value of a Content-Length header, which must be a non-empty string of digits.
+     * Signs, hexadecimal digits and lists are rejected, as well as values too large for a long.
+     *
+     * @param value the header value
+     * @return the length, or -1 if the value is not a valid length
+     */
+    protected static long parseContentLength(String value) {
+        String digits = value.trim();
+        // 18 digits can't overflow a long
+        if (digits.isEmpty() || digits.length() > 18) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    /**
+     * Read the header of the next message from the input stream. Only the header is consumed from
+     * the input stream, the message body (if any) is left to be read.
+     *
+     * @return the parser holding the header of the next message
+     * @throws SocketException if the connection has been closed before the next message
+     * @throws HttpParseException if the header is malformed or too large
+     * @throws IOException if an I/O error occurs
+     */
+    protected HttpHeaderParser readHeader() throws IOException {
+        return readHeader(null);
+    }
+
+    /**
+     * Read the header of the next message from the input stream into the specified map
+     *
+     * @param headers the empty map receiving the header fields, or null for a new map
+     * @return the parser holding the header of the next message
+     * @throws SocketException if the connection has been closed before the next message
+     * @throws HttpParseException if the header is malformed or too large
+     * @throws IOException if an I/O error occurs
+     */
+    protected HttpHeaderParser readHeader(Map<String, String> headers) throws IOException {
         try {
-            // Read the first 8192 bytes.
-            // The full header should fit in here.
-            // Apache's default header limit is 8KB.
+            // The full header should fit in BUFSIZE bytes, Apache's default header limit is 8KB.
             // Do NOT assume that a single read will get the entire header at once!
-            byte[] buf = new byte[BUFSIZE];
-            int splitbyte = 0;
-            int rlen = 0;
-
-            int read = -1;
-            this.in.mark(BUFSIZE);
-            try {
-                read = this.in.read(buf, 0, BUFSIZE);
-            } catch (IOException e) {
-                this.in.close();
-                throw e;
+            if (headers != null) {
+                headerParser.reset(headers);
             }
-
-            if (read == -1) {
-                // socket has been closed
-                this.in.close();
-                throw new SocketException("Remote host closes socket connection");
+            else {
+                headerParser.reset();
             }
+            while (true) {
+                int read = -1;
+                this.in.mark(BUFSIZE);
+                try {
+                    read = this.in.read(headerBuffer, 0, BUFSIZE);
+                } catch (IOException e) {
+                    this.in.close();
+                    throw e;
+                }
 
-            while (read > 0) {
-                rlen += read;
-                splitbyte = findHeaderEnd(buf, rlen);
-                if (splitbyte > 0) {
-                    break;
+                if (read == -1) {
+                    // socket has been closed
+                    this.in.close();
+                    if (headerParser.isEmpty()) {
+                        throw new SocketException("Remote host closes socket connection");
+                    }
+                    throw new EOFException("Remote host closes socket connection within header");
                 }
-                read = this.in.read(buf, rlen, BUFSIZE - rlen);
-            }
 
-            System.out.println("rlen: " + rlen + ", splitbyte: " + splitbyte);
-            if (splitbyte < rlen) {
-                this.in.reset();
-                this.in.skip(splitbyte);
+                if (timing && headerParser.isEmpty()) {
+                    headerStartNanos = System.nanoTime();
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(headerBuffer, 0, read);
+                if (headerParser.parse(buffer)) {
+                    LOGGER.trace("rlen: {}, remaining: {}", read, buffer.remaining());
+                    if (buffer.hasRemaining()) {
+                        // Leave the rest (body or next message) in the input stream
+                        this.in.reset();
+                        this.in.skip(read - buffer.remaining());
+                    }
+                    return headerParser;
+                }
             }
-
-            byte[] header = new byte[splitbyte];
-            System.arraycopy(buf, 0, header, 0, splitbyte);
-            return header;
         } catch (SocketException e) {
             // throw it out to close socket object (finalAccept)
             throw e;
@@ -85,6 +162,28 @@ public abstract class HttpStreamsBase {
         }
     }
 
+    /**
+     * Take the bytes that have already been read from the underlying input stream but not
+     * consumed yet, e.g. data sent by the client right after a CONNECT request. This method does
+     * not block.
+     *
+     * @return the buffered bytes, which may be empty
+     * @throws IOException if an I/O error occurs
+     */
+    public ByteBuffer takeBufferedInput() throws IOException {
+        int available = this.in.available();
+        byte[] buffered = new byte[available];
+        int n = 0;
+        while (n < available) {
+            int read = this.in.read(buffered, n, available - n);
+            if (read == -1) {
+                break;
+            }
+            n += read;
+        }
+        return ByteBuffer.wrap(buffered, 0, n);
+    }
+
     protected final void safeClose(Object closeable) {
         try {
             if (closeable != null) {
@@ -99,31 +198,7 @@ public abstract class HttpStreamsBase {
                 }
             }
         } catch (IOException e) {
-            System.out.println("Could not close");
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
-     *
-     */
-    private static int findHeaderEnd(final byte[] buf, int rlen) {
-        int splitbyte = 0;
-        while (splitbyte + 1 < rlen) {
-
-            // RFC2616
-            if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && splitbyte + 3 < rlen &&
-                    buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                return splitbyte + 4;
-            }
-
-            // tolerance
-            if (buf[splitbyte] == '\n' && buf[splitbyte + 1] == '\n') {
-                return splitbyte + 2;
-            }
-            splitbyte++;
+            LOGGER.debug("Could not close {}", closeable, e);
         }
-        return 0;
     }
 }
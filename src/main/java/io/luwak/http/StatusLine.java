@@ -0,0 +1,89 @@
+package io.luwak.http;
+
+import java.util.StringTokenizer;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpResponseException;
+import io.luwak.http.message.HttpStatus;
+
+/**
+ * The Status-Line of an HTTP response
+ *
+ */
+public final class StatusLine {
+
+    private final String httpVersion;
+    private final HttpStatus status;
+
+    private StatusLine(String httpVersion, HttpStatus status) {
+        this.httpVersion = httpVersion;
+        this.status = status;
+    }
+
+    /**
+     * Parse a Status-Line
+     *
+     * @param line the Status-Line
+     * @return the parsed Status-Line
+     * @throws HttpResponseException if the Status-Line is malformed
+     */
+    public static StatusLine parse(String line) throws HttpResponseException {
+        StringTokenizer st = new StringTokenizer(line);
+        if (!st.hasMoreTokens()) {
+            throw new HttpResponseException("BAD RESPONSE: Syntax error, missing Status-Line");
+        }
+
+        String protocolVersion = st.nextToken();
+
+        if (!st.hasMoreTokens()) {
+            throw new HttpResponseException("BAD RESPONSE: Syntax error, missing Status-Code");
+        }
+
+        String statusCodeStr = st.nextToken();
+        int statusCode = 0;
+        try {
+            statusCode = Integer.parseInt(statusCodeStr);
+        } catch (Exception e) {
+            throw new HttpResponseException("BAD RESPONSE: Syntax error, non-numeric Status-Code");
+        }
+
+        // The Reason-Phrase may be empty or contain spaces
+        String reasonPhrase = st.hasMoreTokens() ? st.nextToken("").trim() : "";
+
+        HttpStatus status = DefaultHttpStatus.fromStatusCode(statusCode);
+        if (status == null || !status.getReasonPhrase().equals(reasonPhrase)) {
+            final int finalStatusCode = statusCode;
+            status = new HttpStatus() {
+
+                @Override
+                public int getStatusCode() {
+                    return finalStatusCode;
+                }
+
+                @Override
+                public String getReasonPhrase() {
+                    return reasonPhrase;
+                }
+            };
+        }
+        return new StatusLine(protocolVersion, status);
+    }
+
+    /**
+     * Gets the HTTP version
+     *
+     * @return the HTTP version
+     */
+    public String getHttpVersion() {
+        return httpVersion;
+    }
+
+    /**
+     * Gets the HTTP status
+     *
+     * @return the HTTP status
+     */
+    public HttpStatus getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,117 @@
+package io.luwak.http.cache;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The directives of a Cache-Control header (RFC 7234 section 5.2), plus helpers for the other
+ * header fields used by {@link HttpCache}
+ *
+ */
+final class CacheControl {
+
+    private static final CacheControl EMPTY = new CacheControl(new HashMap<>());
+
+    private final Map<String, String> directives;
+
+    private CacheControl(Map<String, String> directives) {
+        this.directives = directives;
+    }
+
+    /**
+     * Parse the Cache-Control header of a message
+     *
+     * @param headers the message headers
+     * @return the directives, empty if the message has no Cache-Control header
+     */
+    static CacheControl of(Map<String, String> headers) {
+        String value = getHeader(headers, "cache-control");
+        if (value == null) {
+            return EMPTY;
+        }
+        Map<String, String> directives = new HashMap<>();
+        for (String token : value.split(",")) {
+            String directive = token.trim();
+            if (directive.isEmpty()) {
+                continue;
+            }
+            int eq = directive.indexOf('=');
+            if (eq < 0) {
+                directives.put(directive.toLowerCase(Locale.US), "");
+            }
+            else {
+                String argument = directive.substring(eq + 1).trim();
+                if (argument.length() >= 2 && argument.startsWith("\"")
+                        && argument.endsWith("\"")) {
+                    argument = argument.substring(1, argument.length() - 1);
+                }
+                directives.put(directive.substring(0, eq).trim().toLowerCase(Locale.US),
+                        argument);
+            }
+        }
+        return new CacheControl(directives);
+    }
+
+    boolean has(String directive) {
+        return directives.containsKey(directive);
+    }
+
+    /**
+     * Get the value of a delta-seconds directive such as max-age
+     *
+     * @return the number of seconds, or -1 if the directive is absent or invalid
+     */
+    long getSeconds(String directive) {
+        String value = directives.get(directive);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? seconds : -1;
+        }
+        catch (NumberFormatException e) {
+            // RFC 7234 section 1.2.1: a delta-seconds too large to be represented is infinite
+            return value.matches("\\d+") ? Integer.MAX_VALUE : -1;
+        }
+    }
+
+    /**
+     * Get a header value, header names are compared case-insensitively
+     */
+    static String getHeader(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse an HTTP-date header
+     *
+     * @return the time in milliseconds, or -1 if the header is absent or invalid
+     */
+    static long getDate(Map<String, String> headers, String name) {
+        String value = getHeader(headers, name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
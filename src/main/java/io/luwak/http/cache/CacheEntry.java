@@ -0,0 +1,326 @@
+package io.luwak.http.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.luwak.http.StatusLine;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+import io.luwak.http.message.HttpStatus;
+
+/**
+ * A response stored by {@link HttpCache}. Entries are immutable, a revalidated entry replaces the
+ * previous one. The age and freshness of an entry are computed as specified by RFC 7234 section
+ * 4.2, for a shared cache.
+ *
+ */
+public final class CacheEntry {
+
+    /** Heuristic freshness is 10% of the time since Last-Modified, at most one day */
+    private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    private final String httpVersion;
+    private final HttpStatus status;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    /** The values of the request headers nominated by Vary, null for absent headers */
+    private final Map<String, String> varyValues;
+    private final long requestTime;
+    private final long responseTime;
+
+    private final CacheControl cacheControl;
+    private final long freshnessLifetime;
+
+    CacheEntry(String httpVersion, HttpStatus status, Map<String, String> headers, byte[] body,
+            Map<String, String> varyValues, long requestTime, long responseTime) {
+        this.httpVersion = httpVersion;
+        this.status = status;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body;
+        this.varyValues = Collections.unmodifiableMap(varyValues);
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.cacheControl = CacheControl.of(headers);
+        this.freshnessLifetime = computeFreshnessLifetime();
+    }
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the stored response headers, with lower case names
+     *
+     * @return the headers
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the stored response body
+     *
+     * @return the body, or null if the response has no body
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * Get the approximate memory used by this entry
+     *
+     * @return the size in bytes
+     */
+    public int getSize() {
+        int size = body != null ? body.length : 0;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            size += entry.getKey().length() + entry.getValue().length();
+        }
+        return size + 64;
+    }
+
+    /**
+     * Get the freshness lifetime of the response
+     *
+     * @return the lifetime in milliseconds
+     */
+    public long getFreshnessLifetime() {
+        return freshnessLifetime;
+    }
+
+    /**
+     * Get the current age of the response (RFC 7234 section 4.2.3)
+     *
+     * @param now the current time in milliseconds
+     * @return the age in milliseconds
+     */
+    public long getCurrentAge(long now) {
+        long date = CacheControl.getDate(headers, "date");
+        long apparentAge = date >= 0 ? Math.max(0, responseTime - date) : 0;
+        long ageValue = 0;
+        String age = headers.get("age");
+        if (age != null) {
+            try {
+                ageValue = TimeUnit.SECONDS.toMillis(Long.parseLong(age.trim()));
+            }
+            catch (NumberFormatException e) {
+                // ignored
+            }
+        }
+        long correctedAgeValue = ageValue + (responseTime - requestTime);
+        long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        return correctedInitialAge + Math.max(0, now - responseTime);
+    }
+
+    /**
+     * Return true if the response can be used without validation
+     *
+     * @param now the current time in milliseconds
+     * @return true if the response is fresh
+     */
+    public boolean isFresh(long now) {
+        return !cacheControl.has("no-cache") && getCurrentAge(now) < freshnessLifetime;
+    }
+
+    /**
+     * Return true if the stale response can be served while it is revalidated in the background
+     * (stale-while-revalidate, RFC 5861)
+     *
+     * @param now the current time in milliseconds
+     * @return true if the stale response can be served
+     */
+    public boolean isServableWhileRevalidating(long now) {
+        long window = cacheControl.getSeconds("stale-while-revalidate");
+        if (window <= 0 || cacheControl.has("must-revalidate")
+                || cacheControl.has("proxy-revalidate") || cacheControl.has("no-cache")) {
+            return false;
+        }
+        return getCurrentAge(now) < freshnessLifetime + TimeUnit.SECONDS.toMillis(window);
+    }
+
+    /**
+     * Return true if the stored response has a validator (ETag or Last-Modified)
+     *
+     * @return true if the response can be validated with a conditional request
+     */
+    public boolean hasValidators() {
+        return headers.containsKey("etag") || headers.containsKey("last-modified");
+    }
+
+    /**
+     * Return true if the request headers nominated by Vary match the ones of the request that
+     * was answered by the stored response
+     *
+     * @param requestHeaders the headers of the request
+     * @return true if the stored response can be used for the request
+     */
+    public boolean matches(Map<String, String> requestHeaders) {
+        for (Map.Entry<String, String> entry : varyValues.entrySet()) {
+            String value = normalize(CacheControl.getHeader(requestHeaders, entry.getKey()));
+            if (value == null ? entry.getValue() != null : !value.equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create a response from this entry, with an Age header
+     *
+     * @param now the current time in milliseconds
+     * @return the response
+     */
+    public HttpResponse toResponse(long now) {
+        Map<String, String> responseHeaders = new LinkedHashMap<>(headers);
+        responseHeaders.remove("transfer-encoding");
+        if (body != null) {
+            responseHeaders.put("content-length", Integer.toString(body.length));
+        }
+        responseHeaders.put("age",
+                Long.toString(TimeUnit.MILLISECONDS.toSeconds(getCurrentAge(now))));
+        return new HttpResponse(httpVersion, status, responseHeaders,
+                body != null ? new HttpEntity(body, false, false) : null);
+    }
+
+    /**
+     * Create the entry updated by a 304 (Not Modified) response (RFC 7234 section 4.3.4)
+     *
+     * @param notModifiedHeaders the headers of the 304 response
+     * @param requestTime the time the conditional request was sent
+     * @param responseTime the time the 304 response was received
+     * @return the updated entry
+     */
+    CacheEntry revalidated(Map<String, String> notModifiedHeaders, long requestTime,
+            long responseTime) {
+        Map<String, String> updated = new LinkedHashMap<>(headers);
+        for (Map.Entry<String, String> entry : notModifiedHeaders.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.US);
+            if (!name.equals("content-length") && !name.equals("transfer-encoding")
+                    && !name.equals("connection")) {
+                updated.put(name, entry.getValue());
+            }
+        }
+        if (CacheControl.getHeader(notModifiedHeaders, "age") == null) {
+            updated.remove("age");
+        }
+        return new CacheEntry(httpVersion, status, updated, body, varyValues, requestTime,
+                responseTime);
+    }
+
+    /**
+     * Serialize this entry for the disk tier
+     */
+    byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(getSize());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(httpVersion + " " + status.getStatusCode() + " "
+                    + (status.getReasonPhrase() != null ? status.getReasonPhrase() : ""));
+            writeMap(out, headers);
+            writeMap(out, varyValues);
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            out.writeInt(body != null ? body.length : -1);
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deserialize an entry of the disk tier
+     */
+    static CacheEntry fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        StatusLine statusLine;
+        try {
+            statusLine = StatusLine.parse(in.readUTF());
+        }
+        catch (HttpResponseException e) {
+            throw new IOException("Corrupted cache entry", e);
+        }
+        Map<String, String> headers = readMap(in);
+        Map<String, String> varyValues = readMap(in);
+        long requestTime = in.readLong();
+        long responseTime = in.readLong();
+        int length = in.readInt();
+        byte[] body = null;
+        if (length >= 0) {
+            body = new byte[length];
+            in.readFully(body);
+        }
+        return new CacheEntry(statusLine.getHttpVersion(), statusLine.getStatus(), headers, body,
+                varyValues, requestTime, responseTime);
+    }
+
+    static String normalize(String headerValue) {
+        return headerValue != null ? headerValue.trim().replaceAll("\\s*,\\s*", ",") : null;
+    }
+
+    private long computeFreshnessLifetime() {
+        long sharedMaxAge = cacheControl.getSeconds("s-maxage");
+        if (sharedMaxAge >= 0) {
+            return TimeUnit.SECONDS.toMillis(sharedMaxAge);
+        }
+        long maxAge = cacheControl.getSeconds("max-age");
+        if (maxAge >= 0) {
+            return TimeUnit.SECONDS.toMillis(maxAge);
+        }
+        long date = CacheControl.getDate(headers, "date");
+        if (date < 0) {
+            date = responseTime;
+        }
+        if (headers.containsKey("expires")) {
+            // An invalid Expires value, e.g. "0", means already expired
+            long expires = CacheControl.getDate(headers, "expires");
+            return Math.max(0, expires - date);
+        }
+        long lastModified = CacheControl.getDate(headers, "last-modified");
+        if (lastModified >= 0 && lastModified < date
+                && HttpCache.isCacheableByDefault(status.getStatusCode())) {
+            return Math.min((date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+        }
+        return 0;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map)
+            throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeBoolean(entry.getValue() != null);
+            if (entry.getValue() != null) {
+                out.writeUTF(entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            map.put(key, in.readBoolean() ? in.readUTF() : null);
+        }
+        return map;
+    }
+}
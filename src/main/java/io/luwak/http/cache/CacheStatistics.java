@@ -0,0 +1,128 @@
+package io.luwak.http.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of an {@link HttpCache}
+ *
+ */
+public final class CacheStatistics {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong diskWrites = new AtomicLong();
+
+    /**
+     * Get the number of requests served from a fresh stored response
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests served from a stale response being revalidated in the
+     * background
+     *
+     * @return the number of stale hits
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * Get the number of stored responses validated with a 304 response
+     *
+     * @return the number of revalidations
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Get the number of cacheable requests which have been forwarded
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of body bytes which have not been transferred from the origin thanks to the
+     * cache, including the bodies of revalidated responses
+     *
+     * @return the number of bytes
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Get the number of entries evicted from the memory tier
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of entries written to the disk tier
+     *
+     * @return the number of entries
+     */
+    public long getDiskWrites() {
+        return diskWrites.get();
+    }
+
+    /**
+     * Get the ratio of requests served without a full response from the origin
+     *
+     * @return the hit ratio between 0 and 1
+     */
+    public double getHitRatio() {
+        long served = hits.get() + staleHits.get() + revalidations.get();
+        long total = served + misses.get();
+        return total > 0 ? (double) served / total : 0;
+    }
+
+    void hit(CacheEntry entry, boolean stale) {
+        (stale ? staleHits : hits).incrementAndGet();
+        saved(entry);
+    }
+
+    void revalidated(CacheEntry entry) {
+        revalidations.incrementAndGet();
+        saved(entry);
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    void evicted() {
+        evictions.incrementAndGet();
+    }
+
+    void diskWrite() {
+        diskWrites.incrementAndGet();
+    }
+
+    private void saved(CacheEntry entry) {
+        if (entry.getBody() != null) {
+            bytesSaved.addAndGet(entry.getBody().length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " staleHits=" + staleHits + " revalidations=" + revalidations
+                + " misses=" + misses + " bytesSaved=" + bytesSaved + " evictions=" + evictions;
+    }
+}
@@ -0,0 +1,282 @@
+package io.luwak.http.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.LuwakHttpClient;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+
+/**
+ * An HTTP client that answers GET requests from an {@link HttpCache} when it can. A fresh stored
+ * response is returned as is; a stale one is validated with a conditional request, or returned
+ * right away and revalidated in the background within its stale-while-revalidate window.
+ * Cacheable responses up to the maximum entry size of the cache are stored, other responses are
+ * streamed from the {@link LuwakHttpClient}. Unsafe requests invalidate the stored response of
+ * their URI.
+ *
+ * The body of a response may be streaming, it must always be released with
+ * {@link HttpEntity#release()}.
+ *
+ */
+public class CachingHttpClient implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingHttpClient.class);
+
+    private static final int REVALIDATION_THREADS = 2;
+
+    private final LuwakHttpClient httpClient;
+    private final HttpCache cache;
+    private final ExecutorService revalidator;
+    /** Keys being revalidated in the background, a key is only revalidated once at a time */
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs a CachingHttpClient
+     *
+     * @param httpClient the client sending the requests which can't be answered from the cache
+     * @param cache the cache
+     */
+    public CachingHttpClient(LuwakHttpClient httpClient, HttpCache cache) {
+        this.httpClient = httpClient;
+        this.cache = cache;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(REVALIDATION_THREADS,
+                REVALIDATION_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r,
+                            "luwak-cache-revalidate-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.revalidator = executor;
+    }
+
+    public HttpCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Send a request to the specified host, or answer it from the cache
+     *
+     * @param host the host to send the request to
+     * @param request the HTTP request
+     * @return the HTTP response, its body must be released
+     * @throws IOException when IO exception occurs while sending the request or reading the
+     *      response
+     * @throws HttpResponseException if the response is malformed
+     */
+    public HttpResponse execute(HttpHost host, HttpRequest request)
+            throws IOException, HttpResponseException {
+        return execute(host, request, HttpCache.key(host, request));
+    }
+
+    /**
+     * Send a request to the specified host, or answer it from the cache entry of the specified
+     * key. Requests sent to several hosts serving the same content share their entries under the
+     * same key.
+     *
+     * @param host the host to send the request to
+     * @param request the HTTP request
+     * @param key the cache key of the request
+     * @return the HTTP response, its body must be released
+     * @throws IOException when IO exception occurs while sending the request or reading the
+     *      response
+     * @throws HttpResponseException if the response is malformed
+     */
+    public HttpResponse execute(HttpHost host, HttpRequest request, String key)
+            throws IOException, HttpResponseException {
+        HttpMethod method = request.getMethod();
+        if (method != HttpMethod.GET) {
+            HttpResponse response = httpClient.executeStreaming(host, request);
+            if (!isSafe(method) && response.getStatus().getStatusCode() < 400) {
+                cache.invalidate(key);
+            }
+            return response;
+        }
+
+        CacheControl requestControl = CacheControl.of(request.getHeaders());
+        if (requestControl.has("no-store")) {
+            return httpClient.executeStreaming(host, request);
+        }
+        boolean noCache = requestControl.has("no-cache")
+                || "no-cache".equalsIgnoreCase(CacheControl.getHeader(request.getHeaders(),
+                        "pragma"));
+        CacheEntry entry = cache.get(key, request.getHeaders());
+        if (entry != null && !noCache) {
+            long now = cache.currentTimeMillis();
+            long maxAge = requestControl.getSeconds("max-age");
+            boolean acceptable = maxAge < 0
+                    || entry.getCurrentAge(now) <= TimeUnit.SECONDS.toMillis(maxAge);
+            if (entry.isFresh(now) && acceptable) {
+                cache.getStatistics().hit(entry, false);
+                return entry.toResponse(now);
+            }
+            if (maxAge < 0 && entry.isServableWhileRevalidating(now)) {
+                cache.getStatistics().hit(entry, true);
+                revalidateInBackground(host, request, key, entry);
+                return entry.toResponse(now);
+            }
+        }
+        return fetch(host, request, key, entry, true);
+    }
+
+    /**
+     * Shut down the background revalidation, the client and the cache are not closed
+     */
+    @Override
+    public void close() {
+        revalidator.shutdownNow();
+    }
+
+    private HttpResponse fetch(HttpHost host, HttpRequest request, String key, CacheEntry entry,
+            boolean countMiss) throws IOException, HttpResponseException {
+        HttpRequest forwarded = request;
+        if (entry != null && entry.hasValidators() && !isConditional(request)) {
+            forwarded = conditionalRequest(request, entry);
+        }
+        long requestTime = cache.currentTimeMillis();
+        HttpResponse response = httpClient.executeStreaming(host, forwarded);
+        long responseTime = cache.currentTimeMillis();
+
+        if (forwarded != request && response.getStatus().getStatusCode() == 304) {
+            release(response);
+            CacheEntry updated = entry.revalidated(response.getHeaders(), requestTime,
+                    responseTime);
+            cache.put(key, updated);
+            cache.getStatistics().revalidated(updated);
+            return updated.toResponse(responseTime);
+        }
+        if (countMiss) {
+            cache.getStatistics().miss();
+        }
+        if (!HttpCache.isCacheable(request, response)) {
+            return response;
+        }
+        return store(key, request, response, requestTime, responseTime);
+    }
+
+    /**
+     * Store a cacheable response whose body fits into the cache
+     */
+    private HttpResponse store(String key, HttpRequest request, HttpResponse response,
+            long requestTime, long responseTime) throws IOException {
+        HttpEntity body = response.getEntityBody();
+        if (body == null) {
+            cache.put(key, request, response, null, requestTime, responseTime);
+            return response;
+        }
+        int maxEntrySize = cache.getMaxEntrySize();
+        if (body.getLength() > maxEntrySize) {
+            return response;
+        }
+
+        InputStream in = body.getContent();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int rlen;
+            while ((rlen = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, rlen);
+                if (bytes.size() > maxEntrySize) {
+                    // Too large to be stored, the rest of the body is streamed after what has
+                    // been read
+                    HttpEntity rest = HttpEntity.fromStream(new SequenceInputStream(
+                            new ByteArrayInputStream(bytes.toByteArray()), in),
+                            body.getLength(), body.isChunked());
+                    return new HttpResponse(response.getHttpVersion(), response.getStatus(),
+                            response.getHeaders(), rest);
+                }
+            }
+        }
+        catch (IOException e) {
+            body.release();
+            throw e;
+        }
+        body.release();
+
+        byte[] content = bytes.toByteArray();
+        CacheEntry entry = cache.put(key, request, response, content, requestTime, responseTime);
+        if (entry == null) {
+            // The maximum entry size has been lowered meanwhile
+            return new HttpResponse(response.getHttpVersion(), response.getStatus(),
+                    response.getHeaders(), new HttpEntity(content, false, false));
+        }
+        return entry.toResponse(responseTime);
+    }
+
+    private void revalidateInBackground(HttpHost host, HttpRequest request, String key,
+            CacheEntry entry) {
+        if (!revalidating.add(key)) {
+            return;
+        }
+        try {
+            revalidator.execute(() -> {
+                try {
+                    release(fetch(host, request, key, entry, false));
+                }
+                catch (IOException | HttpResponseException e) {
+                    LOGGER.debug("Failed to revalidate {}", key, e);
+                }
+                finally {
+                    revalidating.remove(key);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Closed
+            revalidating.remove(key);
+        }
+    }
+
+    private static boolean isSafe(HttpMethod method) {
+        return method == HttpMethod.GET || method == HttpMethod.HEAD
+                || method == HttpMethod.OPTIONS || method == HttpMethod.TRACE;
+    }
+
+    private static boolean isConditional(HttpRequest request) {
+        return CacheControl.getHeader(request.getHeaders(), "if-none-match") != null
+                || CacheControl.getHeader(request.getHeaders(), "if-modified-since") != null;
+    }
+
+    private static HttpRequest conditionalRequest(HttpRequest request, CacheEntry entry) {
+        Map<String, String> headers = new LinkedHashMap<>(request.getHeaders());
+        String etag = entry.getHeaders().get("etag");
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        String lastModified = entry.getHeaders().get("last-modified");
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return new HttpRequest(request.getMethod(), request.getUriPath(), request.getQueries(),
+                request.getHttpVersion(), headers, null);
+    }
+
+    private static void release(HttpResponse response) {
+        if (response.getEntityBody() != null) {
+            response.getEntityBody().release();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package io.luwak.http.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The disk tier of {@link HttpCache}. Entries are appended to memory-mapped segment files of a
+ * fixed size, and the index of the entries is kept in memory. The tier is log-structured: an
+ * entry which is replaced or removed only disappears from the index, and when the maximum number
+ * of segments is reached the oldest segment is deleted together with all its entries. Segment
+ * files are deleted when the tier is closed, they do not survive a restart.
+ *
+ */
+final class DiskCacheTier implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskCacheTier.class);
+
+    private static final String FILE_PREFIX = "cache-";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Map<String, Location> index = new HashMap<>();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        final List<String> keys = new ArrayList<>();
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        void delete() {
+            try {
+                raf.close();
+            }
+            catch (IOException e) {
+                LOGGER.debug("Exception caught while closing cache segment {}", file, e);
+            }
+            // The mapping stays valid until the buffer is garbage collected, deleting the file may
+            // fail until then on some platforms
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Constructs a DiskCacheTier
+     *
+     * @param directory the directory of the segment files, created if needed
+     * @param maxSize the maximum size of all segment files
+     * @param segmentSize the size of a segment file, which is the maximum size of an entry
+     */
+    DiskCacheTier(File directory, long maxSize, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, maxSize / segmentSize);
+    }
+
+    /**
+     * Store the serialized entry of a key, replacing the previous one
+     *
+     * @return false if the entry is larger than a segment
+     */
+    synchronized boolean put(String key, byte[] data) throws IOException {
+        if (data.length > segmentSize) {
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.buffer.remaining() < data.length) {
+            segment = newSegment();
+        }
+        int offset = segment.buffer.position();
+        segment.buffer.put(data);
+        segment.keys.add(key);
+        index.put(key, new Location(segment, offset, data.length));
+        return true;
+    }
+
+    /**
+     * Get the serialized entry of a key
+     *
+     * @return the entry, or null if the key is not stored
+     */
+    synchronized byte[] get(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        byte[] data = new byte[location.length];
+        // The position of the segment buffer is the append position
+        ByteBuffer view = location.segment.buffer.duplicate();
+        view.position(location.offset);
+        view.get(data);
+        return data;
+    }
+
+    synchronized void remove(String key) {
+        index.remove(key);
+    }
+
+    synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    /**
+     * Get the size of the segment files
+     *
+     * @return the size in bytes
+     */
+    synchronized long getSize() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    @Override
+    public synchronized void close() {
+        index.clear();
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+    }
+
+    private Segment newSegment() throws IOException {
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.poll();
+            for (String key : oldest.keys) {
+                Location location = index.get(key);
+                if (location != null && location.segment == oldest) {
+                    index.remove(key);
+                }
+            }
+            LOGGER.debug("Evicted cache segment {}", oldest.file);
+            oldest.delete();
+        }
+        File file = File.createTempFile(FILE_PREFIX, ".seg", directory);
+        Segment segment;
+        try {
+            segment = new Segment(file, segmentSize);
+        }
+        catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        segments.add(segment);
+        return segment;
+    }
+}
@@ -0,0 +1,353 @@
+package io.luwak.http.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * A shared HTTP cache (RFC 7234) of GET responses. Entries are kept in a memory tier bounded by
+ * size in least recently used order. Entries evicted from the memory tier spill to an optional
+ * disk tier of memory-mapped segment files, and are promoted back to memory when they are used.
+ * Only one variant is stored per URI: a response with Vary is reused for requests with the same
+ * values of the nominated headers, another variant replaces it.
+ *
+ * The cache only stores and looks up entries, see {@link CachingHttpClient} for the request
+ * handling (freshness, validation and stale-while-revalidate).
+ *
+ */
+public class HttpCache implements Closeable {
+
+    public static final long DEFAULT_MAX_MEMORY_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpCache.class);
+
+    private final long maxMemorySize;
+    private final DiskCacheTier diskTier;
+    /** Memory tier, in access order */
+    private final LinkedHashMap<String, CacheEntry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memorySize;
+    private volatile int maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+    private final CacheStatistics statistics = new CacheStatistics();
+
+    /** Replaced by tests */
+    LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Constructs an HttpCache with a memory tier of the default size and no disk tier
+     */
+    public HttpCache() {
+        this(DEFAULT_MAX_MEMORY_SIZE);
+    }
+
+    /**
+     * Constructs an HttpCache without disk tier
+     *
+     * @param maxMemorySize the maximum size of the memory tier in bytes
+     */
+    public HttpCache(long maxMemorySize) {
+        this.maxMemorySize = maxMemorySize;
+        this.diskTier = null;
+    }
+
+    /**
+     * Constructs an HttpCache with a disk tier. The segment files of the disk tier are deleted
+     * when the cache is closed.
+     *
+     * @param maxMemorySize the maximum size of the memory tier in bytes
+     * @param directory the directory of the disk tier
+     * @param maxDiskSize the maximum size of the disk tier in bytes
+     * @throws IOException if the directory can't be created
+     */
+    public HttpCache(long maxMemorySize, File directory, long maxDiskSize) throws IOException {
+        this.maxMemorySize = maxMemorySize;
+        this.diskTier = new DiskCacheTier(directory, maxDiskSize,
+                (int) Math.min(DEFAULT_SEGMENT_SIZE, maxDiskSize));
+    }
+
+    /**
+     * Set the maximum size of a response body stored by the cache, larger responses are not
+     * stored
+     *
+     * @param maxEntrySize the maximum size in bytes
+     */
+    public void setMaxEntrySize(int maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get the cache key of a request, from its Host header or else from the host it is sent to
+     *
+     * @param host the host the request is sent to
+     * @param request the request
+     * @return the cache key
+     */
+    public static String key(HttpHost host, HttpRequest request) {
+        String hostHeader = CacheControl.getHeader(request.getHeaders(), "host");
+        return key(hostHeader != null ? hostHeader : host.toHostHeader(), request);
+    }
+
+    /**
+     * Get the cache key of a request for the specified authority, e.g. the Host requested by a
+     * client of a proxy whichever upstream server the request is sent to
+     *
+     * @param host the authority of the request, in the form of a Host header
+     * @param request the request
+     * @return the cache key
+     */
+    public static String key(String host, HttpRequest request) {
+        return host.trim().toLowerCase(Locale.US) + request.getRequestUri();
+    }
+
+    /**
+     * Return true if the response to a request may be stored by a shared cache (RFC 7234 section
+     * 3)
+     *
+     * @param request the request
+     * @param response the response to the request
+     * @return true if the response may be stored
+     */
+    public static boolean isCacheable(HttpRequest request, HttpResponse response) {
+        if (request.getMethod() != HttpMethod.GET) {
+            return false;
+        }
+        Map<String, String> headers = response.getHeaders();
+        CacheControl requestControl = CacheControl.of(request.getHeaders());
+        CacheControl responseControl = CacheControl.of(headers);
+        if (requestControl.has("no-store") || responseControl.has("no-store")
+                || responseControl.has("private")) {
+            return false;
+        }
+        if (CacheControl.getHeader(request.getHeaders(), "authorization") != null
+                && !responseControl.has("public") && !responseControl.has("s-maxage")
+                && !responseControl.has("must-revalidate")) {
+            return false;
+        }
+        String vary = CacheControl.getHeader(headers, "vary");
+        if (vary != null && vary.contains("*")) {
+            return false;
+        }
+
+        int statusCode = response.getStatus().getStatusCode();
+        if (statusCode < 200 || statusCode == 206 || statusCode == 304) {
+            return false;
+        }
+        boolean explicit = responseControl.getSeconds("s-maxage") >= 0
+                || responseControl.getSeconds("max-age") >= 0
+                || CacheControl.getHeader(headers, "expires") != null
+                || responseControl.has("public");
+        boolean validators = CacheControl.getHeader(headers, "etag") != null
+                || CacheControl.getHeader(headers, "last-modified") != null;
+        return explicit || (validators && isCacheableByDefault(statusCode));
+    }
+
+    /**
+     * Return true if responses with the status code are cacheable by default (RFC 7231 section
+     * 6.1, RFC 7538)
+     */
+    static boolean isCacheableByDefault(int statusCode) {
+        switch (statusCode) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 308:
+            case 404:
+            case 405:
+            case 410:
+            case 414:
+            case 501:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Look up the stored response for a request
+     *
+     * @param key the cache key of the request
+     * @param requestHeaders the request headers, matched against the Vary header of the entry
+     * @return the entry, or null if none matches
+     */
+    public synchronized CacheEntry get(String key, Map<String, String> requestHeaders) {
+        CacheEntry entry = memory.get(key);
+        if (entry == null && diskTier != null) {
+            byte[] data = diskTier.get(key);
+            if (data != null) {
+                diskTier.remove(key);
+                try {
+                    entry = CacheEntry.fromBytes(data);
+                    putInMemory(key, entry);
+                }
+                catch (IOException e) {
+                    LOGGER.warn("Dropping unreadable cache entry {}", key, e);
+                }
+            }
+        }
+        return entry != null && entry.matches(requestHeaders) ? entry : null;
+    }
+
+    /**
+     * Store a response, replacing the stored response of the same key
+     *
+     * @param key the cache key of the request
+     * @param request the request
+     * @param response the response, its body is not used
+     * @param body the response body, or null if the response has no body
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param responseTime the time the response was received, in milliseconds
+     * @return the new entry, or null if the body is larger than the maximum entry size
+     */
+    public CacheEntry put(String key, HttpRequest request, HttpResponse response, byte[] body,
+            long requestTime, long responseTime) {
+        if (body != null && body.length > maxEntrySize) {
+            return null;
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            headers.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+        }
+        Map<String, String> varyValues = new LinkedHashMap<>();
+        String vary = headers.get("vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                String headerName = name.trim().toLowerCase(Locale.US);
+                if (!headerName.isEmpty()) {
+                    varyValues.put(headerName, CacheEntry.normalize(
+                            CacheControl.getHeader(request.getHeaders(), headerName)));
+                }
+            }
+        }
+        CacheEntry entry = new CacheEntry(response.getHttpVersion(), response.getStatus(),
+                headers, body, varyValues, requestTime, responseTime);
+        put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Store an entry, replacing the stored entry of the same key
+     *
+     * @param key the cache key
+     * @param entry the entry
+     */
+    public synchronized void put(String key, CacheEntry entry) {
+        if (diskTier != null) {
+            diskTier.remove(key);
+        }
+        putInMemory(key, entry);
+    }
+
+    /**
+     * Remove the stored response of a key, e.g. after an unsafe request (RFC 7234 section 4.4)
+     *
+     * @param key the cache key
+     */
+    public synchronized void invalidate(String key) {
+        CacheEntry entry = memory.remove(key);
+        if (entry != null) {
+            memorySize -= entry.getSize();
+        }
+        if (diskTier != null) {
+            diskTier.remove(key);
+        }
+    }
+
+    /**
+     * Get the number of stored entries in both tiers
+     *
+     * @return the number of entries
+     */
+    public synchronized int getEntryCount() {
+        return memory.size() + (diskTier != null ? diskTier.getEntryCount() : 0);
+    }
+
+    /**
+     * Get the number of entries in the memory tier
+     *
+     * @return the number of entries
+     */
+    public synchronized int getMemoryEntryCount() {
+        return memory.size();
+    }
+
+    /**
+     * Get the size of the memory tier
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * Remove all entries and delete the files of the disk tier
+     */
+    @Override
+    public synchronized void close() {
+        memory.clear();
+        memorySize = 0;
+        if (diskTier != null) {
+            diskTier.close();
+        }
+    }
+
+    long currentTimeMillis() {
+        return clock.getAsLong();
+    }
+
+    private void putInMemory(String key, CacheEntry entry) {
+        CacheEntry previous = memory.put(key, entry);
+        if (previous != null) {
+            memorySize -= previous.getSize();
+        }
+        memorySize += entry.getSize();
+
+        // The new entry is the most recently used one, it is never evicted right away
+        Iterator<Map.Entry<String, CacheEntry>> eldest = memory.entrySet().iterator();
+        while (memorySize > maxMemorySize && memory.size() > 1) {
+            Map.Entry<String, CacheEntry> evicted = eldest.next();
+            eldest.remove();
+            memorySize -= evicted.getValue().getSize();
+            statistics.evicted();
+            spill(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    private void spill(String key, CacheEntry entry) {
+        if (diskTier == null) {
+            return;
+        }
+        try {
+            if (diskTier.put(key, entry.toBytes())) {
+                statistics.diskWrite();
+            }
+        }
+        catch (IOException e) {
+            LOGGER.warn("Failed to write cache entry {} to disk", key, e);
+        }
+    }
+}
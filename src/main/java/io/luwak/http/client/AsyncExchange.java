@@ -0,0 +1,47 @@
+package io.luwak.http.client;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * A request sent by {@link LuwakAsyncHttpClient} together with the future of its response. Apart
+ * from the future, the state of an exchange is only accessed on the loop thread of its host pool.
+ *
+ */
+final class AsyncExchange {
+
+    /** A request is sent at most twice */
+    static final int MAX_ATTEMPTS = 2;
+
+    final HttpRequest request;
+    final byte[] requestBytes;
+    final boolean idempotent;
+    final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+    /** The connection the request has been written to, null while it is waiting */
+    AsyncHttpConnection connection;
+    /** True once the first byte of the response has been received */
+    boolean responseStarted;
+    int attempts;
+
+    AsyncExchange(HttpRequest request, byte[] requestBytes) {
+        this.request = request;
+        this.requestBytes = requestBytes;
+        this.idempotent = HttpClientSupport.isIdempotent(request.getMethod());
+    }
+
+    /**
+     * Return true if the request can be sent again after the connection failed
+     */
+    boolean isRetriable() {
+        return idempotent && request.getEntityBody() == null && !responseStarted
+                && attempts < MAX_ATTEMPTS;
+    }
+
+    ByteBuffer newRequestBuffer() {
+        return ByteBuffer.wrap(requestBytes);
+    }
+}
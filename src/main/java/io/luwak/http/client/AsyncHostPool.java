@@ -0,0 +1,227 @@
+package io.luwak.http.client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.nio.SelectorLoop;
+
+/**
+ * The connections of {@link LuwakAsyncHttpClient} to one host. A host pool is bound to one
+ * {@link SelectorLoop} and all its state is only accessed on the loop thread, so no locking is
+ * needed. Requests wait in a queue until a connection is available: an idle connection is reused
+ * first, then a new connection is opened if the per-host limit allows it, and only then an
+ * idempotent request is pipelined behind the requests in flight on a connection.
+ *
+ */
+final class AsyncHostPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHostPool.class);
+
+    private final LuwakAsyncHttpClient client;
+    private final HttpHost host;
+    private final SelectorLoop loop;
+
+    private final List<AsyncHttpConnection> connections = new ArrayList<>();
+    /** Idle connections, the most recently used one last */
+    private final ArrayDeque<AsyncHttpConnection> idle = new ArrayDeque<>();
+    private final ArrayDeque<AsyncExchange> pending = new ArrayDeque<>();
+    private int connecting;
+
+    private boolean dispatching;
+    private boolean redispatch;
+    private boolean closed;
+
+    AsyncHostPool(LuwakAsyncHttpClient client, HttpHost host, SelectorLoop loop) {
+        this.client = client;
+        this.host = host;
+        this.loop = loop;
+    }
+
+    LuwakAsyncHttpClient getClient() {
+        return client;
+    }
+
+    HttpHost getHost() {
+        return host;
+    }
+
+    SelectorLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Queue an exchange and send it as soon as a connection is available
+     */
+    void submit(AsyncExchange exchange) {
+        if (closed) {
+            exchange.future.completeExceptionally(new IOException("Client has been closed"));
+            return;
+        }
+        pending.add(exchange);
+        dispatch();
+    }
+
+    /**
+     * Give up an exchange whose future has been completed by a timeout or cancelled. The
+     * connection of a request in flight is closed, as its response can't be skipped reliably.
+     */
+    void abandon(AsyncExchange exchange) {
+        if (!pending.remove(exchange) && exchange.connection != null
+                && exchange.connection.isInFlight(exchange)) {
+            LOGGER.debug("Closing connection to {} of an abandoned request", host);
+            exchange.connection.close(new IOException("Request abandoned"));
+        }
+    }
+
+    void connectionReady(AsyncHttpConnection connection) {
+        connecting--;
+        connectionIdle(connection);
+    }
+
+    void connectionIdle(AsyncHttpConnection connection) {
+        idle.addLast(connection);
+        dispatch();
+        if (idle.contains(connection)) {
+            connection.startIdleTimer(client.getIdleTimeout());
+        }
+    }
+
+    void connectionClosed(AsyncHttpConnection connection, List<AsyncExchange> exchanges,
+            Throwable cause) {
+        boolean wasConnecting = !connection.hasConnected();
+        connections.remove(connection);
+        idle.remove(connection);
+        if (wasConnecting) {
+            connecting--;
+        }
+
+        // Retried requests go back to the head of the queue, in their original order
+        for (int i = exchanges.size() - 1; i >= 0; i--) {
+            AsyncExchange exchange = exchanges.get(i);
+            exchange.connection = null;
+            if (exchange.future.isDone()) {
+                continue;
+            }
+            if (!closed && exchange.isRetriable()) {
+                LOGGER.debug("Retrying request on a new connection to {}", host, cause);
+                pending.addFirst(exchange);
+            }
+            else {
+                exchange.future.completeExceptionally(cause);
+            }
+        }
+
+        if (wasConnecting && connections.isEmpty()) {
+            // No connection can be established, fail the waiting requests instead of trying
+            // again for each of them
+            failPending(cause);
+        }
+        dispatch();
+    }
+
+    /**
+     * Close all connections and fail the waiting requests
+     */
+    void close() {
+        closed = true;
+        failPending(new IOException("Client has been closed"));
+        for (AsyncHttpConnection connection : new ArrayList<>(connections)) {
+            connection.close(new IOException("Client has been closed"));
+        }
+    }
+
+    private void dispatch() {
+        if (dispatching) {
+            // Called back by a connection while a request is being sent
+            redispatch = true;
+            return;
+        }
+        dispatching = true;
+        try {
+            do {
+                redispatch = false;
+                dispatchPending();
+            } while (redispatch);
+        }
+        finally {
+            dispatching = false;
+        }
+    }
+
+    private void dispatchPending() {
+        AsyncExchange exchange;
+        while ((exchange = pending.peek()) != null) {
+            if (exchange.future.isDone()) {
+                pending.poll();
+                continue;
+            }
+            AsyncHttpConnection connection = nextConnection(exchange);
+            if (connection == null) {
+                break;
+            }
+            pending.poll();
+            connection.send(exchange);
+        }
+
+        while (!closed && pending.size() > connecting
+                && connections.size() < client.getMaxPerHost()) {
+            if (!openConnection()) {
+                break;
+            }
+        }
+    }
+
+    private AsyncHttpConnection nextConnection(AsyncExchange exchange) {
+        AsyncHttpConnection connection = idle.pollLast();
+        if (connection != null) {
+            return connection;
+        }
+        int maxPipelinedRequests = client.getMaxPipelinedRequests();
+        if (connections.size() < client.getMaxPerHost() || maxPipelinedRequests <= 1
+                || !exchange.idempotent || exchange.request.getEntityBody() != null) {
+            return null;
+        }
+        AsyncHttpConnection best = null;
+        for (AsyncHttpConnection candidate : connections) {
+            if (candidate.canPipeline(maxPipelinedRequests)
+                    && (best == null || candidate.getInFlightCount() < best.getInFlightCount())) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Open a new connection
+     *
+     * @return false if the connection could not be started
+     */
+    private boolean openConnection() {
+        AsyncHttpConnection connection = new AsyncHttpConnection(this);
+        try {
+            connection.connect(client.getConnectTimeout());
+        }
+        catch (IOException e) {
+            LOGGER.debug("Failed to connect to {}", host, e);
+            if (connections.isEmpty()) {
+                failPending(e);
+            }
+            return false;
+        }
+        connections.add(connection);
+        connecting++;
+        return true;
+    }
+
+    private void failPending(Throwable cause) {
+        AsyncExchange exchange;
+        while ((exchange = pending.poll()) != null) {
+            exchange.future.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package io.luwak.http.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.HttpClientStreams;
+import io.luwak.http.HttpHeaderParser;
+import io.luwak.http.StatusLine;
+import io.luwak.http.io.PayloadTooLargeException;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpEntityLimits;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+import io.luwak.http.nio.HttpBodyDecoder;
+import io.luwak.http.nio.SelectorLoop;
+
+/**
+ * A non-blocking HTTP/1.1 connection of {@link LuwakAsyncHttpClient}. Requests are written in the
+ * order they are sent and their responses are matched in the same order, so several idempotent
+ * requests may be pipelined on one connection. All methods must be called on the loop thread of
+ * the host pool that owns the connection.
+ *
+ */
+final class AsyncHttpConnection implements SelectorLoop.Handler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpConnection.class);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final AsyncHostPool pool;
+    private final SelectorLoop loop;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected;
+    private boolean closed;
+    /** False once a request or a response asked for the connection to be closed */
+    private boolean keepAlive = true;
+    private int requestCount;
+    /** The connect timeout while connecting, the idle timeout while idle */
+    private SelectorLoop.Timer timer;
+
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final ArrayDeque<AsyncExchange> inFlight = new ArrayDeque<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final HttpHeaderParser headerParser = new HttpHeaderParser();
+    private StatusLine statusLine;
+    private HttpBodyDecoder bodyDecoder;
+    private ByteArrayOutputStream body;
+
+    AsyncHttpConnection(AsyncHostPool pool) {
+        this.pool = pool;
+        this.loop = pool.getLoop();
+    }
+
+    /**
+     * Start connecting to the host, the pool is notified once the connection is established
+     *
+     * @throws IOException if the connection can't be started
+     */
+    void connect(long connectTimeout) throws IOException {
+        HttpHost host = pool.getHost();
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean done = channel.connect(new InetSocketAddress(host.getHostName(),
+                    host.getPort()));
+            // A connected channel is immediately writable, so completion is handled the same way
+            key = loop.register(channel, done ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT,
+                    this);
+        }
+        catch (UnresolvedAddressException e) {
+            channel.close();
+            throw new UnknownHostException(host.getHostName());
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (connectTimeout > 0) {
+            timer = loop.schedule(() -> {
+                if (!connected) {
+                    close(new SocketTimeoutException("Connect to " + host + " timed out"));
+                }
+            }, connectTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean isConnected() {
+        return connected && !closed;
+    }
+
+    /**
+     * Return true if the connection has been established, even if it has been closed since
+     */
+    boolean hasConnected() {
+        return connected;
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Return true if another request can be pipelined behind the requests in flight
+     */
+    boolean canPipeline(int maxPipelinedRequests) {
+        if (!isConnected() || !keepAlive || inFlight.size() >= maxPipelinedRequests) {
+            return false;
+        }
+        for (AsyncExchange exchange : inFlight) {
+            if (!exchange.idempotent) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the request of an exchange
+     */
+    void send(AsyncExchange exchange) {
+        cancelTimer();
+        exchange.connection = this;
+        exchange.attempts++;
+        inFlight.add(exchange);
+        if (HttpClientSupport.hasToken(HttpClientSupport.getHeader(exchange.request.getHeaders(),
+                "connection"), "close")) {
+            keepAlive = false;
+        }
+        writeQueue.add(exchange.newRequestBuffer());
+        try {
+            flush();
+        }
+        catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Return true if the request of the exchange has been written to this connection and its
+     * response has not been received yet
+     */
+    boolean isInFlight(AsyncExchange exchange) {
+        return !closed && inFlight.contains(exchange);
+    }
+
+    /**
+     * Close the connection once it has been idle for the specified time
+     */
+    void startIdleTimer(long idleTimeout) {
+        cancelTimer();
+        if (idleTimeout > 0) {
+            timer = loop.schedule(() -> {
+                if (inFlight.isEmpty()) {
+                    close(null);
+                }
+            }, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close the connection. The requests in flight are handed back to the pool, which retries or
+     * fails them.
+     *
+     * @param cause the cause, or null if the connection is closed while idle
+     */
+    void close(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Exception caught while closing connection", e);
+        }
+        onClosed(cause);
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) throws IOException {
+        if (!connected) {
+            if (!channel.finishConnect()) {
+                return;
+            }
+            connected = true;
+            cancelTimer();
+            key.interestOps(SelectionKey.OP_READ);
+            pool.connectionReady(this);
+            return;
+        }
+        if (key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+    }
+
+    @Override
+    public void onClosed(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cancelTimer();
+        List<AsyncExchange> exchanges = new ArrayList<>(inFlight);
+        inFlight.clear();
+        writeQueue.clear();
+        pool.connectionClosed(this, exchanges, cause);
+    }
+
+    private void flush() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buffer = writeQueue.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            writeQueue.poll();
+        }
+        if (key.isValid()) {
+            key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            endOfStream();
+            return;
+        }
+        readBuffer.flip();
+        try {
+            processResponses();
+        }
+        catch (HttpResponseException e) {
+            close(e);
+        }
+        finally {
+            readBuffer.compact();
+        }
+    }
+
+    private void processResponses() throws IOException, HttpResponseException {
+        while (!closed) {
+            AsyncExchange exchange = inFlight.peek();
+            if (exchange == null) {
+                if (readBuffer.hasRemaining()) {
+                    throw new SocketException("Unexpected data received from " + pool.getHost());
+                }
+                return;
+            }
+            if (statusLine == null) {
+                if (!readBuffer.hasRemaining()) {
+                    return;
+                }
+                exchange.responseStarted = true;
+                if (!headerParser.parse(readBuffer)) {
+                    return;
+                }
+                if (!startResponse(exchange)) {
+                    continue;
+                }
+            }
+            while (!bodyDecoder.isComplete() && readBuffer.hasRemaining()) {
+                ByteBuffer content = bodyDecoder.decode(readBuffer);
+                if (body.size() + content.remaining() > pool.getClient().getMaxResponseSize()) {
+                    throw new PayloadTooLargeException("Response body exceeds the limit of "
+                            + pool.getClient().getMaxResponseSize() + " bytes");
+                }
+                body.write(content.array(), content.arrayOffset() + content.position(),
+                        content.remaining());
+            }
+            if (!bodyDecoder.isComplete()) {
+                return;
+            }
+            completeResponse(exchange);
+        }
+    }
+
+    /**
+     * Process the complete header of a response
+     *
+     * @return false if the response is an interim response, which is skipped
+     */
+    private boolean startResponse(AsyncExchange exchange)
+            throws IOException, HttpResponseException {
+        statusLine = StatusLine.parse(headerParser.getStartLine());
+        int statusCode = statusLine.getStatus().getStatusCode();
+        if (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+            headerParser.reset();
+            statusLine = null;
+            return false;
+        }
+        if (HttpClientStreams.hasBody(exchange.request.getMethod(), statusCode)) {
+            bodyDecoder = HttpBodyDecoder.forHeaders(headerParser.getHeaders(), false);
+            body = new ByteArrayOutputStream();
+        }
+        else {
+            bodyDecoder = new HttpBodyDecoder(HttpBodyDecoder.Framing.LENGTH, 0);
+            body = null;
+        }
+        return true;
+    }
+
+    private void completeResponse(AsyncExchange exchange) throws IOException {
+        inFlight.poll();
+        Map<String, String> headers = headerParser.getHeaders();
+        HttpResponse response = new HttpResponse(statusLine.getHttpVersion(),
+                statusLine.getStatus(), headers, body != null ? toEntity(headers) : null);
+        headerParser.reset();
+        statusLine = null;
+        bodyDecoder = null;
+        body = null;
+        requestCount++;
+        if (!HttpClientSupport.isReusable(exchange.request, response)) {
+            keepAlive = false;
+        }
+
+        exchange.future.complete(response);
+
+        if (!keepAlive) {
+            // Requests pipelined behind this one have not been answered and can be retried
+            close(new SocketException("Connection closed by " + pool.getHost()));
+        }
+        else if (inFlight.isEmpty()) {
+            pool.connectionIdle(this);
+        }
+    }
+
+    private HttpEntity toEntity(Map<String, String> headers) throws IOException {
+        byte[] bytes = body.toByteArray();
+        String contentEncoding = headers.get("content-encoding");
+        boolean chunked = bodyDecoder.getFraming() == HttpBodyDecoder.Framing.CHUNKED;
+        if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+            return new HttpEntity(bytes, chunked, false);
+        }
+        HttpEntityLimits limits = new HttpEntityLimits();
+        limits.setMaxInMemorySize(pool.getClient().getMaxResponseSize());
+        return HttpEntity.fromInputStream(new ByteArrayInputStream(bytes), bytes.length,
+                contentEncoding, limits, null, SpoolManager.getDefault());
+    }
+
+    private void endOfStream() throws IOException {
+        if (statusLine != null
+                && bodyDecoder.getFraming() == HttpBodyDecoder.Framing.UNTIL_CLOSE) {
+            bodyDecoder.endOfInput();
+            keepAlive = false;
+            completeResponse(inFlight.peek());
+        }
+        else if (statusLine != null) {
+            // Throws EOFException for a truncated body
+            bodyDecoder.endOfInput();
+        }
+        close(new SocketException("Connection closed by " + pool.getHost()
+                + (requestCount > 0 ? " after " + requestCount + " responses" : "")));
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.luwak.http.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when no connection could be leased from an {@link HttpConnectionPool} within the lease
+ * timeout
+ *
+ */
+public class ConnectionPoolTimeoutException extends IOException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = -6284165306519837522L;
+
+    /**
+     * Constructs a ConnectionPoolTimeoutException with the given message
+     *
+     * @param message error message
+     */
+    public ConnectionPoolTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,94 @@
+package io.luwak.http.client;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import io.luwak.http.HttpClientStreams;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * Connection management rules shared by the blocking and the non-blocking clients
+ *
+ */
+final class HttpClientSupport {
+
+    private HttpClientSupport() {
+    }
+
+    /**
+     * Return true if the connection can be reused after the specified response has been read
+     */
+    static boolean isReusable(HttpRequest request, HttpResponse response) {
+        if (hasToken(getHeader(request.getHeaders(), "connection"), "close")) {
+            return false;
+        }
+        Map<String, String> headers = response.getHeaders();
+        String connection = headers.get("connection");
+        if (hasToken(connection, "close")) {
+            return false;
+        }
+        if (!"HTTP/1.1".equals(response.getHttpVersion()) && !hasToken(connection, "keep-alive")) {
+            return false;
+        }
+        int statusCode = response.getStatus().getStatusCode();
+        if (statusCode == 101
+                || (request.getMethod() == HttpMethod.CONNECT && statusCode / 100 == 2)) {
+            // The connection has been taken over by another protocol
+            return false;
+        }
+        // A body without Content-Length and chunked encoding is delimited by closing the
+        // connection
+        return !HttpClientStreams.hasBody(request.getMethod(), statusCode)
+                || headers.containsKey("content-length") || headers.containsKey("transfer-encoding");
+    }
+
+    static boolean isIdempotent(HttpMethod method) {
+        switch (method) {
+        case GET:
+        case HEAD:
+        case PUT:
+        case DELETE:
+        case OPTIONS:
+        case TRACE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    static HttpRequest withHostHeader(HttpHost host, HttpRequest httpRequest) {
+        if (getHeader(httpRequest.getHeaders(), "host") != null) {
+            return httpRequest;
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Host", host.toHostHeader());
+        headers.putAll(httpRequest.getHeaders());
+        return new HttpRequest(httpRequest.getMethod(), httpRequest.getUriPath(),
+                httpRequest.getQueries(), httpRequest.getHttpVersion(), headers,
+                httpRequest.getEntityBody());
+    }
+
+    static String getHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String element : value.split(",")) {
+            if (element.trim().toLowerCase(Locale.US).equals(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
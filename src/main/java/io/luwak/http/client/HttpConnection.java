@@ -0,0 +1,151 @@
+package io.luwak.http.client;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import io.luwak.http.HttpClientStreams;
+
+/**
+ * A client connection to an HTTP server, managed by an {@link HttpConnectionPool}
+ *
+ */
+public class HttpConnection {
+
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+
+    private final HttpHost host;
+    private final Socket socket;
+    private final HttpClientStreams streams;
+    private final long createdAt;
+
+    private long lastUsedAt;
+    private int requestCount;
+
+    HttpConnection(HttpHost host, Socket socket) throws IOException {
+        this.host = host;
+        this.socket = socket;
+        // The request header and a small body are sent in a single segment
+        this.streams = new HttpClientStreams(socket.getInputStream(),
+                new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE));
+        this.createdAt = System.nanoTime();
+        this.lastUsedAt = createdAt;
+    }
+
+    /**
+     * Get the host this connection is connected to
+     *
+     * @return the host
+     */
+    public HttpHost getHost() {
+        return host;
+    }
+
+    /**
+     * Get the streams to send requests and read responses on this connection
+     *
+     * @return the HttpClientStreams of this connection
+     */
+    public HttpClientStreams getStreams() {
+        return streams;
+    }
+
+    /**
+     * Get the number of requests completed on this connection
+     *
+     * @return the number of requests completed on this connection
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Get the time this connection was created, as returned by {@link System#nanoTime()}
+     *
+     * @return the creation time of this connection
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Get the time this connection was last used, as returned by {@link System#nanoTime()}
+     *
+     * @return the time this connection was last used
+     */
+    public long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    /**
+     * Return true if this connection has not been closed
+     *
+     * @return true if this connection is open
+     */
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * Close this connection
+     */
+    public void close() {
+        try {
+            socket.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpConnection[" + host + ", local=" + socket.getLocalSocketAddress() + "]";
+    }
+
+    /**
+     * Record the completion of a request on this connection
+     */
+    void requestCompleted() {
+        requestCount++;
+        lastUsedAt = System.nanoTime();
+    }
+
+    /**
+     * Check whether the server has closed this idle connection. Nothing is expected to be
+     * received on an idle connection, so both end of stream and unexpected data (e.g. a 408
+     * response sent by the server before closing) mean the connection can't be used anymore.
+     *
+     * @return true if the connection is stale
+     */
+    boolean isStale() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return true;
+        }
+        int soTimeout = -1;
+        try {
+            soTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            // Whatever is read here is lost, which is fine as the connection is discarded
+            InputStream in = socket.getInputStream();
+            in.read();
+            return true;
+        }
+        catch (SocketTimeoutException e) {
+            return false;
+        }
+        catch (IOException e) {
+            return true;
+        }
+        finally {
+            if (soTimeout >= 0) {
+                try {
+                    socket.setSoTimeout(soTimeout);
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package io.luwak.http.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of keep-alive connections to HTTP servers. Connections are pooled per {@link HttpHost}
+ * and limited per host and in total. Idle connections are reused most recently used first, so
+ * that surplus connections become idle long enough to be evicted. A connection that has been idle
+ * for a while is validated before it is leased, to avoid sending a request on a connection the
+ * server has already closed.
+ *
+ * Leased connections must be given back with {@link #release(HttpConnection, boolean)}.
+ *
+ */
+public class HttpConnectionPool {
+
+    public static final int DEFAULT_MAX_PER_HOST = 20;
+    public static final int DEFAULT_MAX_TOTAL = 200;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    public static final long DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+    public static final long DEFAULT_LEASE_TIMEOUT = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+
+    /** Idle connections are checked for eviction at most this often */
+    private static final long EVICTION_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpConnectionPool.class);
+
+    private volatile int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private volatile int maxTotal = DEFAULT_MAX_TOTAL;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+    private volatile long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<HttpHost, HostPool> hostPools = new HashMap<>();
+    /** Number of connections that are leased, idle or being connected */
+    private int allocated;
+    private int idle;
+    private long nextEviction;
+    private boolean closed;
+
+    /** Connections of one host */
+    private static class HostPool {
+        /** Idle connections, most recently used first */
+        private final ArrayDeque<HttpConnection> idle = new ArrayDeque<>();
+        private int allocated;
+    }
+
+    /**
+     * Set the maximum number of connections per host
+     *
+     * @param maxPerHost the maximum number of connections per host
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Get the maximum number of connections per host
+     *
+     * @return the maximum number of connections per host
+     */
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * Set the maximum number of connections to all hosts
+     *
+     * @param maxTotal the maximum number of connections
+     */
+    public void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * Get the maximum number of connections to all hosts
+     *
+     * @return the maximum number of connections
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * Set the time in milliseconds after which an idle connection is closed
+     *
+     * @param idleTimeout the idle timeout in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set the time in milliseconds a connection may stay idle before it is validated on lease,
+     * negative to never validate
+     *
+     * @param validateAfterInactivity the inactivity time in milliseconds
+     */
+    public void setValidateAfterInactivity(long validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    /**
+     * Set the maximum time in milliseconds to wait for a connection when the pool is exhausted, 0
+     * to wait indefinitely
+     *
+     * @param leaseTimeout the lease timeout in milliseconds
+     */
+    public void setLeaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * Set the connect timeout in milliseconds of new connections, 0 for no timeout
+     *
+     * @param connectTimeout the connect timeout in milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Set the socket timeout (SO_TIMEOUT) in milliseconds of new connections, 0 for no timeout
+     *
+     * @param socketTimeout the socket timeout in milliseconds
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Lease a connection to the specified host. An idle connection is reused if there is one,
+     * otherwise a new connection is created if the limits allow it. If the pool is exhausted, this
+     * method waits until a connection is released or the lease timeout expires.
+     *
+     * @param host the host
+     * @return a connection to the host
+     * @throws ConnectionPoolTimeoutException if no connection became available within the lease
+     *      timeout
+     * @throws IOException if a new connection could not be established
+     */
+    public HttpConnection lease(HttpHost host) throws IOException {
+        long timeout = leaseTimeout;
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)
+                : 0;
+        while (true) {
+            HttpConnection connection = null;
+            List<HttpConnection> toClose = new ArrayList<>(0);
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Connection pool closed");
+                    }
+                    evictExpired(System.nanoTime(), toClose);
+
+                    HostPool hostPool = hostPools.get(host);
+                    connection = hostPool != null ? hostPool.idle.pollFirst() : null;
+                    if (connection != null) {
+                        idle--;
+                        break;
+                    }
+                    if ((hostPool == null || hostPool.allocated < maxPerHost)
+                            && (allocated < maxTotal || closeOldestIdle(toClose))) {
+                        if (hostPool == null) {
+                            hostPool = new HostPool();
+                            hostPools.put(host, hostPool);
+                        }
+                        hostPool.allocated++;
+                        allocated++;
+                        break;
+                    }
+                    awaitAvailable(deadline, host);
+                }
+            }
+            finally {
+                lock.unlock();
+                closeAll(toClose);
+            }
+
+            if (connection == null) {
+                return connect(host);
+            }
+            long validateAfter = validateAfterInactivity;
+            if (validateAfter >= 0 && System.nanoTime() - connection.getLastUsedAt()
+                    > TimeUnit.MILLISECONDS.toNanos(validateAfter) && connection.isStale()) {
+                LOGGER.debug("Discarding stale connection {}", connection);
+                release(connection, false);
+                continue;
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Give back a leased connection. A reusable connection is kept for subsequent requests to the
+     * same host, otherwise it is closed.
+     *
+     * @param connection the connection leased from this pool
+     * @param reusable true if the connection can be reused, i.e. the last response has been read
+     *      completely and neither side has asked for the connection to be closed
+     */
+    public void release(HttpConnection connection, boolean reusable) {
+        boolean keep = reusable && connection.isOpen();
+        List<HttpConnection> toClose = new ArrayList<>(0);
+        lock.lock();
+        try {
+            HostPool hostPool = hostPools.get(connection.getHost());
+            if (keep && !closed) {
+                hostPool.idle.addFirst(connection);
+                idle++;
+            }
+            else {
+                keep = false;
+                hostPool.allocated--;
+                allocated--;
+                if (hostPool.allocated == 0) {
+                    hostPools.remove(connection.getHost());
+                }
+            }
+            evictExpired(System.nanoTime(), toClose);
+            available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        if (!keep) {
+            connection.close();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Close the connections that have been idle longer than the specified time
+     *
+     * @param idleTime the idle time in milliseconds
+     */
+    public void closeIdleConnections(long idleTime) {
+        List<HttpConnection> toClose = new ArrayList<>();
+        lock.lock();
+        try {
+            closeIdle(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTime), toClose);
+            available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Close this pool and all idle connections. Leased connections are closed when they are
+     * released.
+     */
+    public void close() {
+        List<HttpConnection> toClose = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            closeIdle(Long.MAX_VALUE, toClose);
+            available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Get the number of connections that are leased or being connected
+     *
+     * @return the number of leased connections
+     */
+    public int getLeasedConnections() {
+        lock.lock();
+        try {
+            return allocated - idle;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of idle connections
+     *
+     * @return the number of idle connections
+     */
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private HttpConnection connect(HttpHost host) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(socketTimeout);
+            socket.connect(new InetSocketAddress(host.getHostName(), host.getPort()),
+                    connectTimeout);
+            HttpConnection connection = new HttpConnection(host, socket);
+            LOGGER.debug("Opened connection {}", connection);
+            return connection;
+        }
+        catch (IOException | RuntimeException e) {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+            lock.lock();
+            try {
+                HostPool hostPool = hostPools.get(host);
+                hostPool.allocated--;
+                allocated--;
+                if (hostPool.allocated == 0) {
+                    hostPools.remove(host);
+                }
+                available.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private void awaitAvailable(long deadline, HttpHost host) throws IOException {
+        try {
+            if (deadline == 0) {
+                available.await();
+            }
+            else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || available.awaitNanos(remaining) <= 0) {
+                    throw new ConnectionPoolTimeoutException("Timeout waiting for a connection to "
+                            + host);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + host, e);
+        }
+    }
+
+    /**
+     * Close the least recently used idle connection of any host to make room for a new one.
+     * Must be called with the lock held.
+     */
+    private boolean closeOldestIdle(List<HttpConnection> toClose) {
+        HttpHost oldestHost = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<HttpHost, HostPool> entry : hostPools.entrySet()) {
+            HttpConnection connection = entry.getValue().idle.peekLast();
+            if (connection != null && connection.getLastUsedAt() - oldest < 0) {
+                oldest = connection.getLastUsedAt();
+                oldestHost = entry.getKey();
+            }
+        }
+        if (oldestHost == null) {
+            return false;
+        }
+        HostPool hostPool = hostPools.get(oldestHost);
+        toClose.add(hostPool.idle.pollLast());
+        idle--;
+        hostPool.allocated--;
+        allocated--;
+        if (hostPool.allocated == 0) {
+            hostPools.remove(oldestHost);
+        }
+        return true;
+    }
+
+    /**
+     * Close the idle connections that have exceeded the idle timeout, at most once per eviction
+     * interval. Must be called with the lock held.
+     */
+    private void evictExpired(long now, List<HttpConnection> toClose) {
+        if (idle == 0 || now - nextEviction < 0) {
+            return;
+        }
+        nextEviction = now + EVICTION_INTERVAL;
+        closeIdle(now - TimeUnit.MILLISECONDS.toNanos(idleTimeout), toClose);
+    }
+
+    /**
+     * Close the idle connections last used before the specified time. Must be called with the
+     * lock held.
+     */
+    private void closeIdle(long usedBefore, List<HttpConnection> toClose) {
+        Iterator<Map.Entry<HttpHost, HostPool>> it = hostPools.entrySet().iterator();
+        while (it.hasNext()) {
+            HostPool hostPool = it.next().getValue();
+            HttpConnection connection;
+            // The least recently used connections are at the end of the queue
+            while ((connection = hostPool.idle.peekLast()) != null
+                    && (usedBefore == Long.MAX_VALUE
+                            || connection.getLastUsedAt() - usedBefore < 0)) {
+                toClose.add(hostPool.idle.pollLast());
+                idle--;
+                hostPool.allocated--;
+                allocated--;
+            }
+            if (hostPool.allocated == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void closeAll(List<HttpConnection> connections) {
+        for (HttpConnection connection : connections) {
+            LOGGER.debug("Closing idle connection {}", connection);
+            connection.close();
+        }
+    }
+}
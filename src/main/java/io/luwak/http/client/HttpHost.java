@@ -0,0 +1,127 @@
+package io.luwak.http.client;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * The host name and port of an HTTP server, connections are pooled per HttpHost
+ *
+ */
+public final class HttpHost {
+
+    public static final int DEFAULT_PORT = 80;
+
+    private final String hostName;
+    private final int port;
+
+    /**
+     * Constructs an HttpHost with the default port (80)
+     *
+     * @param hostName the host name or IP address
+     */
+    public HttpHost(String hostName) {
+        this(hostName, DEFAULT_PORT);
+    }
+
+    /**
+     * Constructs an HttpHost
+     *
+     * @param hostName the host name or IP address
+     * @param port the port
+     */
+    public HttpHost(String hostName, int port) {
+        if (hostName == null || hostName.isEmpty()) {
+            throw new IllegalArgumentException("Host name must not be empty");
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+        this.hostName = hostName.toLowerCase(Locale.US);
+        this.port = port;
+    }
+
+    /**
+     * Parse the value of a Host header (host, host:port, [ipv6] or [ipv6]:port)
+     *
+     * @param hostHeader the value of the Host header
+     * @return the HttpHost
+     */
+    public static HttpHost fromHostHeader(String hostHeader) {
+        String value = hostHeader.trim();
+        int portSeparator = value.lastIndexOf(':');
+        if (value.startsWith("[")) {
+            int end = value.indexOf(']');
+            if (end < 0) {
+                throw new IllegalArgumentException("Invalid host: " + hostHeader);
+            }
+            portSeparator = end + 1 < value.length() && value.charAt(end + 1) == ':' ? end + 1 : -1;
+            String hostName = value.substring(1, end);
+            return portSeparator < 0 ? new HttpHost(hostName)
+                    : new HttpHost(hostName, parsePort(value.substring(portSeparator + 1)));
+        }
+        if (portSeparator < 0) {
+            return new HttpHost(value);
+        }
+        return new HttpHost(value.substring(0, portSeparator),
+                parsePort(value.substring(portSeparator + 1)));
+    }
+
+    private static int parsePort(String port) {
+        try {
+            return Integer.parseInt(port);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+    }
+
+    /**
+     * Get the host name
+     *
+     * @return the host name
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * Get the port
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the value of the Host header for requests sent to this host
+     *
+     * @return the value of the Host header
+     */
+    public String toHostHeader() {
+        String host = hostName.indexOf(':') >= 0 ? "[" + hostName + "]" : hostName;
+        return port == DEFAULT_PORT ? host : host + ":" + port;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof HttpHost)) {
+            return false;
+        }
+        HttpHost other = (HttpHost) obj;
+        return port == other.port && hostName.equals(other.hostName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hostName, port);
+    }
+
+    @Override
+    public String toString() {
+        return toHostHeader();
+    }
+}
@@ -0,0 +1,292 @@
+package io.luwak.http.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.luwak.http.HttpClientStreams;
+import io.luwak.http.nio.SelectorLoop;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * A non-blocking HTTP/1.1 client. Requests return a {@link CompletableFuture} immediately, the
+ * connections of all hosts are multiplexed over a small number of selector threads, so a large
+ * number of concurrent requests does not need a thread each. Each host is served by one selector
+ * thread, connections are kept alive and reused like in {@link LuwakHttpClient}.
+ *
+ * Idempotent requests can optionally be pipelined ({@link #setMaxPipelinedRequests(int)}): once
+ * all connections to a host are busy, further requests are written on a connection before the
+ * previous responses have arrived. Requests are never pipelined behind a non-idempotent request.
+ *
+ * The futures are completed on the selector threads, dependent actions that block or take long
+ * should therefore be run with the async methods of CompletableFuture on another executor.
+ * Completing a future exceptionally or cancelling it, directly or by the request timeout, aborts
+ * the request: a waiting request is dropped, the connection of a request in flight is closed.
+ *
+ */
+public class LuwakAsyncHttpClient {
+
+    public static final int DEFAULT_MAX_PER_HOST = 20;
+    public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 1;
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    public static final long DEFAULT_MAX_RESPONSE_SIZE = 64L * 1024 * 1024;
+
+    private static final AtomicInteger CLIENT_COUNT = new AtomicInteger();
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ConcurrentMap<HttpHost, AsyncHostPool> hostPools = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private volatile int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private volatile int maxPipelinedRequests = DEFAULT_MAX_PIPELINED_REQUESTS;
+    private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+    /**
+     * Constructs an async HTTP client with one selector thread per available processor, up to 4
+     *
+     * @throws IOException if the selectors can't be opened
+     */
+    public LuwakAsyncHttpClient() throws IOException {
+        this(Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    }
+
+    /**
+     * Constructs an async HTTP client
+     *
+     * @param selectorThreads the number of selector threads
+     * @throws IOException if the selectors can't be opened
+     */
+    public LuwakAsyncHttpClient(int selectorThreads) throws IOException {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("selectorThreads must be positive");
+        }
+        int id = CLIENT_COUNT.incrementAndGet();
+        loops = new SelectorLoop[selectorThreads];
+        try {
+            for (int i = 0; i < selectorThreads; i++) {
+                loops[i] = new SelectorLoop("luwak-async-client-" + id + "-" + i);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set the maximum number of connections per host
+     *
+     * @param maxPerHost the maximum number of connections per host
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Get the maximum number of connections per host
+     *
+     * @return the maximum number of connections per host
+     */
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * Set the maximum number of requests in flight on one connection. Values greater than 1
+     * enable pipelining of idempotent requests once the connection limit of a host is reached.
+     *
+     * @param maxPipelinedRequests the maximum number of requests in flight per connection
+     */
+    public void setMaxPipelinedRequests(int maxPipelinedRequests) {
+        this.maxPipelinedRequests = maxPipelinedRequests;
+    }
+
+    /**
+     * Get the maximum number of requests in flight on one connection
+     *
+     * @return the maximum number of requests in flight per connection
+     */
+    public int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    /**
+     * Set the connect timeout in milliseconds of new connections, 0 for no timeout
+     *
+     * @param connectTimeout the connect timeout in milliseconds
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Get the connect timeout in milliseconds
+     *
+     * @return the connect timeout in milliseconds
+     */
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the default timeout in milliseconds of a request, from the time it is executed until
+     * the complete response has been received, 0 for no timeout
+     *
+     * @param requestTimeout the request timeout in milliseconds
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Get the default request timeout in milliseconds
+     *
+     * @return the request timeout in milliseconds
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Set the time in milliseconds after which an idle connection is closed
+     *
+     * @param idleTimeout the idle timeout in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Get the idle timeout in milliseconds
+     *
+     * @return the idle timeout in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the maximum size in bytes of a response body, which is held in memory while it is
+     * received
+     *
+     * @param maxResponseSize the maximum response body size in bytes
+     */
+    public void setMaxResponseSize(long maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * Get the maximum size in bytes of a response body
+     *
+     * @return the maximum response body size in bytes
+     */
+    public long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Send an HTTP request to the host specified by its Host header
+     *
+     * @param httpRequest the HTTP request, must have a Host header
+     * @return the future of the HTTP response
+     */
+    public CompletableFuture<HttpResponse> execute(HttpRequest httpRequest) {
+        String hostHeader = HttpClientSupport.getHeader(httpRequest.getHeaders(), "host");
+        if (hostHeader == null) {
+            throw new IllegalArgumentException("Request has no Host header");
+        }
+        return execute(HttpHost.fromHostHeader(hostHeader), httpRequest);
+    }
+
+    /**
+     * Send an HTTP request to the specified host with the default request timeout
+     *
+     * @param host the host to send the request to
+     * @param httpRequest the HTTP request
+     * @return the future of the HTTP response
+     */
+    public CompletableFuture<HttpResponse> execute(HttpHost host, HttpRequest httpRequest) {
+        return execute(host, httpRequest, requestTimeout);
+    }
+
+    /**
+     * Send an HTTP request to the specified host. A Host header is added to the request if it has
+     * none. The future is completed with the response once its body has been received
+     * completely, or exceptionally with an IOException or an
+     * {@link io.luwak.http.message.HttpResponseException} if the request fails, or with a
+     * {@link TimeoutException} if the timeout expires.
+     *
+     * @param host the host to send the request to
+     * @param httpRequest the HTTP request
+     * @param timeout the timeout in milliseconds, 0 for no timeout
+     * @return the future of the HTTP response
+     */
+    public CompletableFuture<HttpResponse> execute(HttpHost host, HttpRequest httpRequest,
+            long timeout) {
+        HttpRequest request = HttpClientSupport.withHostHeader(host, httpRequest);
+
+        // The request is serialized on the calling thread, the selector thread only copies bytes
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            HttpClientStreams.writeRequest(request, out);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        AsyncExchange exchange = new AsyncExchange(request, out.toByteArray());
+        if (closed) {
+            exchange.future.completeExceptionally(new IOException("Client has been closed"));
+            return exchange.future;
+        }
+
+        AsyncHostPool hostPool = hostPools.computeIfAbsent(host, h -> new AsyncHostPool(this, h,
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)]));
+        SelectorLoop loop = hostPool.getLoop();
+        SelectorLoop.Timer timer = null;
+        if (timeout > 0) {
+            timer = loop.schedule(() -> exchange.future.completeExceptionally(
+                    new TimeoutException("Request to " + host + " timed out after " + timeout
+                            + " ms")), timeout, TimeUnit.MILLISECONDS);
+        }
+        SelectorLoop.Timer timeoutTimer = timer;
+        exchange.future.whenComplete((response, e) -> {
+            if (timeoutTimer != null) {
+                timeoutTimer.cancel();
+            }
+            if (e != null) {
+                loop.execute(() -> hostPool.abandon(exchange));
+            }
+        });
+        loop.execute(() -> hostPool.submit(exchange));
+        return exchange.future;
+    }
+
+    /**
+     * Close all connections and stop the selector threads. Requests that have not completed yet
+     * fail with an IOException.
+     */
+    public void close() {
+        closed = true;
+        for (AsyncHostPool hostPool : hostPools.values()) {
+            hostPool.getLoop().execute(hostPool::close);
+        }
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package io.luwak.http.client;
+
+import java.io.IOException;
+import java.net.SocketException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.HttpClientStreams;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+
+/**
+ * A blocking HTTP/1.1 client that sends requests on keep-alive connections from an
+ * {@link HttpConnectionPool}. A connection is only reused once the previous response has been read
+ * completely and neither the request nor the response asked for the connection to be closed.
+ *
+ * A request that fails on a reused connection before any response has been received (the server
+ * may have closed the connection in the meantime) is retried once on a new connection, as long as
+ * the request is idempotent and has no body.
+ *
+ */
+public class LuwakHttpClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LuwakHttpClient.class);
+
+    private final HttpConnectionPool connectionPool;
+
+    /**
+     * Constructs an HTTP client with a connection pool using the default settings
+     */
+    public LuwakHttpClient() {
+        this(new HttpConnectionPool());
+    }
+
+    /**
+     * Constructs an HTTP client that uses the specified connection pool
+     *
+     * @param connectionPool the connection pool
+     */
+    public LuwakHttpClient(HttpConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Get the connection pool of this client
+     *
+     * @return the connection pool
+     */
+    public HttpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Send an HTTP request to the host specified by its Host header and read the response
+     *
+     * @param httpRequest the HTTP request, must have a Host header
+     * @return the HTTP response
+     * @throws IOException when IO exception occurs while sending the request or reading the
+     *      response
+     * @throws HttpResponseException if the response is malformed
+     */
+    public HttpResponse execute(HttpRequest httpRequest) throws IOException, HttpResponseException {
+        String hostHeader = HttpClientSupport.getHeader(httpRequest.getHeaders(), "host");
+        if (hostHeader == null) {
+            throw new IllegalArgumentException("Request has no Host header");
+        }
+        return execute(HttpHost.fromHostHeader(hostHeader), httpRequest);
+    }
+
+    /**
+     * Send an HTTP request to the specified host and read the response. A Host header is added to
+     * the request if it has none. The response body has been read completely when this method
+     * returns, it should be released with {@link io.luwak.http.message.HttpEntity#release()}
+     * once it is no longer needed.
+     *
+     * @param host the host to send the request to
+     * @param httpRequest the HTTP request
+     * @return the HTTP response
+     * @throws IOException when IO exception occurs while sending the request or reading the
+     *      response
+     * @throws HttpResponseException if the response is malformed
+     */
+    public HttpResponse execute(HttpHost host, HttpRequest httpRequest)
+            throws IOException, HttpResponseException {
+        HttpRequest request = HttpClientSupport.withHostHeader(host, httpRequest);
+        boolean retriable = HttpClientSupport.isIdempotent(request.getMethod())
+                && request.getEntityBody() == null;
+
+        while (true) {
+            HttpConnection connection = connectionPool.lease(host);
+            boolean reused = connection.getRequestCount() > 0;
+            boolean reusable = false;
+            try {
+                HttpClientStreams streams = connection.getStreams();
+                streams.send(request);
+                HttpResponse response = streams.read(request.getMethod());
+                connection.requestCompleted();
+                reusable = HttpClientSupport.isReusable(request, response);
+                return response;
+            }
+            catch (SocketException e) {
+                // The server may have closed the idle connection while the request was sent
+                if (reused && retriable) {
+                    LOGGER.debug("Retrying request on a new connection to {}", host, e);
+                    retriable = false;
+                    continue;
+                }
+                throw e;
+            }
+            finally {
+                connectionPool.release(connection, reusable);
+            }
+        }
+    }
+
+    /**
+     * Send an HTTP request to the specified host and read the response header only. The response
+     * body is streamed from the connection (see
+     * {@link io.luwak.http.message.HttpEntity#fromStream(java.io.InputStream, long, boolean)}),
+     * its content encoding is not decoded. The connection is given back to the pool once the end
+     * of the body has been read, it is closed if the body is released before. The response body
+     * must therefore always be released with {@link io.luwak.http.message.HttpEntity#release()}.
+     * The request body may be a streaming entity as well, it is written as it is read.
+     *
+     * @param host the host to send the request to
+     * @param httpRequest the HTTP request
+     * @return the HTTP response, with a streaming body
+     * @throws IOException when IO exception occurs while sending the request or reading the
+     *      response header
+     * @throws HttpResponseException if the response is malformed
+     */
+    public HttpResponse executeStreaming(HttpHost host, HttpRequest httpRequest)
+            throws IOException, HttpResponseException {
+        HttpRequest request = HttpClientSupport.withHostHeader(host, httpRequest);
+        boolean retriable = HttpClientSupport.isIdempotent(request.getMethod())
+                && request.getEntityBody() == null;
+
+        while (true) {
+            HttpConnection connection = connectionPool.lease(host);
+            boolean reused = connection.getRequestCount() > 0;
+            boolean released = false;
+            try {
+                HttpClientStreams streams = connection.getStreams();
+                streams.send(request);
+                HttpResponse response = streams.read(request.getMethod(), true);
+                boolean reusable = HttpClientSupport.isReusable(request, response);
+                HttpEntity body = response.getEntityBody();
+                if (body == null) {
+                    connection.requestCompleted();
+                    connectionPool.release(connection, reusable);
+                    released = true;
+                    return response;
+                }
+                HttpEntity releasingBody = HttpEntity.fromStream(new ReleasingInputStream(
+                        body.getContent(), connectionPool, connection, reusable),
+                        body.getLength(), body.isChunked());
+                released = true;
+                return new HttpResponse(response.getHttpVersion(), response.getStatus(),
+                        response.getHeaders(), releasingBody);
+            }
+            catch (SocketException e) {
+                if (reused && retriable) {
+                    LOGGER.debug("Retrying request on a new connection to {}", host, e);
+                    retriable = false;
+                    continue;
+                }
+                throw e;
+            }
+            finally {
+                if (!released) {
+                    connectionPool.release(connection, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the connection pool of this client
+     */
+    public void close() {
+        connectionPool.close();
+    }
+}
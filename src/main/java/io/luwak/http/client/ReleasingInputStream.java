@@ -0,0 +1,85 @@
+package io.luwak.http.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body stream of a response streamed by {@link LuwakHttpClient#executeStreaming(HttpHost,
+ * io.luwak.http.message.HttpRequest)}. The connection is given back to the pool as soon as the
+ * end of the body has been reached, or closed if the stream is closed before, as draining the
+ * rest of a large body would cost more than a new connection.
+ *
+ */
+final class ReleasingInputStream extends FilterInputStream {
+
+    private final HttpConnectionPool connectionPool;
+    private final HttpConnection connection;
+    private final boolean reusable;
+
+    private boolean released;
+
+    ReleasingInputStream(InputStream in, HttpConnectionPool connectionPool,
+            HttpConnection connection, boolean reusable) {
+        super(in);
+        this.connectionPool = connectionPool;
+        this.connection = connection;
+        this.reusable = reusable;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (released) {
+            return -1;
+        }
+        try {
+            int b = in.read();
+            if (b == -1) {
+                release(true);
+            }
+            return b;
+        }
+        catch (IOException e) {
+            release(false);
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (released) {
+            return -1;
+        }
+        try {
+            int rlen = in.read(b, off, len);
+            if (rlen == -1) {
+                release(true);
+            }
+            return rlen;
+        }
+        catch (IOException e) {
+            release(false);
+            throw e;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return released ? 0 : in.available();
+    }
+
+    @Override
+    public void close() {
+        release(false);
+    }
+
+    private void release(boolean complete) {
+        if (!released) {
+            released = true;
+            if (complete) {
+                connection.requestCompleted();
+            }
+            connectionPool.release(connection, complete && reusable);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package io.luwak.http.client.balancer;
+
+/**
+ * The circuit breaker of an {@link Upstream}. The breaker opens when the upstream is ejected as an
+ * outlier and stays open for the ejection time. Then it lets one trial request through (half
+ * open): the breaker closes if the trial succeeds, otherwise it opens again for a longer time.
+ *
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private State state = State.CLOSED;
+    private long openUntil;
+    private boolean trialInFlight;
+    /** Number of consecutive ejections, the ejection time grows with it */
+    private int ejections;
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Get the number of consecutive times the breaker has been opened
+     *
+     * @return the number of ejections
+     */
+    public synchronized int getEjections() {
+        return ejections;
+    }
+
+    /**
+     * Return true if the breaker lets a request through, without changing its state
+     *
+     * @param now the current time in milliseconds
+     * @return true if a request is allowed
+     */
+    public synchronized boolean isAvailable(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return now >= openUntil;
+            default:
+                return !trialInFlight;
+        }
+    }
+
+    /**
+     * Acquire the permission to send a request, an open breaker whose ejection time has elapsed
+     * becomes half open and lets the request through as the trial
+     *
+     * @param now the current time in milliseconds
+     * @return false if the request is not allowed
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (!isAvailable(now)) {
+            return false;
+        }
+        if (state != State.CLOSED) {
+            state = State.HALF_OPEN;
+            trialInFlight = true;
+        }
+        return true;
+    }
+
+    /**
+     * Open the breaker
+     *
+     * @param now the current time in milliseconds
+     * @param baseEjectionTime the ejection time of the first ejection, multiplied by the number
+     *      of consecutive ejections
+     * @param maxEjectionTime the maximum ejection time
+     */
+    synchronized void open(long now, long baseEjectionTime, long maxEjectionTime) {
+        ejections++;
+        state = State.OPEN;
+        trialInFlight = false;
+        openUntil = now + Math.min(baseEjectionTime * ejections, maxEjectionTime);
+    }
+
+    /**
+     * Record the success of a request
+     */
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            trialInFlight = false;
+            ejections = 0;
+        }
+    }
+
+    /**
+     * Return true if the failure of a request should open the breaker again, i.e. if the request
+     * was the trial of a half open breaker
+     */
+    synchronized boolean isTrial() {
+        return state == State.HALF_OPEN;
+    }
+}
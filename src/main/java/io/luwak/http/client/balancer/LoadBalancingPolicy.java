@@ -0,0 +1,81 @@
+package io.luwak.http.client.balancer;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Policy choosing the upstream of a request among the available upstreams of an
+ * {@link UpstreamGroup}
+ *
+ */
+public interface LoadBalancingPolicy {
+
+    /**
+     * Choose an upstream
+     *
+     * @param candidates the available upstreams, never empty
+     * @return the chosen upstream
+     */
+    public Upstream select(List<Upstream> candidates);
+
+    /**
+     * Create a policy choosing the upstreams in turn
+     *
+     * @return a new round-robin policy
+     */
+    public static LoadBalancingPolicy roundRobin() {
+        AtomicInteger next = new AtomicInteger();
+        return candidates -> candidates.get(
+                Math.abs(next.getAndIncrement() % candidates.size()));
+    }
+
+    /**
+     * Create a policy choosing the upstream with the fewest outstanding requests, ties are broken
+     * randomly
+     *
+     * @return a new least-outstanding-requests policy
+     */
+    public static LoadBalancingPolicy leastOutstanding() {
+        return candidates -> {
+            int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+            Upstream best = null;
+            for (int i = 0; i < candidates.size(); i++) {
+                Upstream candidate = candidates.get((offset + i) % candidates.size());
+                if (best == null || candidate.getOutstanding() < best.getOutstanding()) {
+                    best = candidate;
+                }
+            }
+            return best;
+        };
+    }
+
+    /**
+     * Create a policy choosing the upstream with the fewest outstanding requests out of two
+     * random upstreams ("power of two choices"), which avoids herding on the least loaded
+     * upstream
+     *
+     * @return a new power-of-two-choices policy
+     */
+    public static LoadBalancingPolicy powerOfTwoChoices() {
+        return candidates -> {
+            int size = candidates.size();
+            if (size == 1) {
+                return candidates.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if (second >= first) {
+                second++;
+            }
+            Upstream a = candidates.get(first);
+            Upstream b = candidates.get(second);
+            if (a.getOutstanding() != b.getOutstanding()) {
+                return a.getOutstanding() < b.getOutstanding() ? a : b;
+            }
+            // Same load, prefer the faster one
+            return b.getLatency() >= 0 && b.getLatency() < a.getLatency() ? b : a;
+        };
+    }
+}
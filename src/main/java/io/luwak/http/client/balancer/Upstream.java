@@ -0,0 +1,145 @@
+package io.luwak.http.client.balancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.luwak.http.client.HttpHost;
+
+/**
+ * A host of an {@link UpstreamGroup} together with the state used to balance the load: the number
+ * of outstanding requests, the moving average of the latency, the result of the active health
+ * checks and the circuit breaker.
+ *
+ */
+public final class Upstream {
+
+    /** Weight of the latest sample in the moving average of the latency */
+    private static final double LATENCY_ALPHA = 0.3;
+
+    private final HttpHost host;
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean healthy = true;
+    /** Only accessed by the health check of this upstream */
+    private int healthCheckSuccesses;
+    private int healthCheckFailures;
+
+    /** Guarded by this */
+    private int consecutiveFailures;
+    private double latency = -1;
+
+    Upstream(HttpHost host) {
+        this.host = host;
+    }
+
+    public HttpHost getHost() {
+        return host;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Get the number of requests sent to the upstream which have not completed yet
+     *
+     * @return the number of outstanding requests
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Get the number of requests sent to the upstream
+     *
+     * @return the number of requests
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of failed requests
+     *
+     * @return the number of failures
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Return false if the active health checks have found the upstream unhealthy
+     *
+     * @return true if the upstream is healthy
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Get the exponential moving average of the latency of the requests
+     *
+     * @return the latency in milliseconds, or -1 if no request has completed yet
+     */
+    public synchronized double getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return host.toString();
+    }
+
+    void started() {
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Record the completion of a request
+     *
+     * @return the number of consecutive failures
+     */
+    synchronized int completed(long latencyNanos, boolean success) {
+        outstanding.decrementAndGet();
+        double millis = latencyNanos / 1e6;
+        latency = latency < 0 ? millis : LATENCY_ALPHA * millis + (1 - LATENCY_ALPHA) * latency;
+        if (success) {
+            consecutiveFailures = 0;
+        }
+        else {
+            failures.incrementAndGet();
+            consecutiveFailures++;
+        }
+        return consecutiveFailures;
+    }
+
+    /**
+     * Forget the failures and the latency, the trial request after the ejection starts afresh
+     */
+    synchronized void ejected() {
+        consecutiveFailures = 0;
+        latency = -1;
+    }
+
+    /**
+     * Record the result of a health check
+     */
+    void healthCheckResult(boolean success, int healthyThreshold, int unhealthyThreshold) {
+        if (success) {
+            healthCheckFailures = 0;
+            if (++healthCheckSuccesses >= healthyThreshold) {
+                healthy = true;
+            }
+        }
+        else {
+            healthCheckSuccesses = 0;
+            if (++healthCheckFailures >= unhealthyThreshold) {
+                healthy = false;
+            }
+        }
+    }
+}
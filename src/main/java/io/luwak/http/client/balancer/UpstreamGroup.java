@@ -0,0 +1,363 @@
+package io.luwak.http.client.balancer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.LuwakHttpClient;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+
+/**
+ * A group of upstream hosts serving the same content. Each request is sent to an upstream chosen
+ * by the {@link LoadBalancingPolicy} among the available ones: upstreams found unhealthy by the
+ * active health checks and upstreams ejected as outliers are skipped. An upstream is ejected
+ * (its {@link CircuitBreaker} opens) after a number of consecutive failures (connection errors
+ * and 5xx responses), or when its average latency is a multiple of the median latency of the
+ * group. At most a percentage of the upstreams is ejected at the same time, and if no upstream
+ * is available the request is sent to any of them.
+ *
+ */
+public class UpstreamGroup implements Closeable {
+
+    public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+    public static final long DEFAULT_BASE_EJECTION_TIME = 30000;
+    public static final long DEFAULT_MAX_EJECTION_TIME = 300000;
+    public static final int DEFAULT_MAX_EJECTION_PERCENT = 50;
+    public static final double DEFAULT_LATENCY_OUTLIER_FACTOR = 5;
+    public static final long DEFAULT_MIN_OUTLIER_LATENCY = 500;
+    public static final int DEFAULT_HEALTHY_THRESHOLD = 2;
+    public static final int DEFAULT_UNHEALTHY_THRESHOLD = 3;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamGroup.class);
+
+    /**
+     * Sends a request to the upstream host chosen by the group
+     */
+    public interface RequestExecutor {
+
+        /**
+         * Send the request to the host
+         *
+         * @param host the chosen upstream host
+         * @return the response
+         * @throws IOException if an I/O error occurs
+         * @throws HttpResponseException if the response is malformed
+         */
+        public HttpResponse execute(HttpHost host) throws IOException, HttpResponseException;
+    }
+
+    private final List<Upstream> upstreams;
+
+    private volatile LoadBalancingPolicy policy = LoadBalancingPolicy.powerOfTwoChoices();
+    private volatile int consecutiveFailures = DEFAULT_CONSECUTIVE_FAILURES;
+    private volatile long baseEjectionTime = DEFAULT_BASE_EJECTION_TIME;
+    private volatile long maxEjectionTime = DEFAULT_MAX_EJECTION_TIME;
+    private volatile int maxEjectionPercent = DEFAULT_MAX_EJECTION_PERCENT;
+    private volatile double latencyOutlierFactor = DEFAULT_LATENCY_OUTLIER_FACTOR;
+    private volatile long minOutlierLatency = DEFAULT_MIN_OUTLIER_LATENCY;
+    private volatile int healthyThreshold = DEFAULT_HEALTHY_THRESHOLD;
+    private volatile int unhealthyThreshold = DEFAULT_UNHEALTHY_THRESHOLD;
+
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * Constructs an UpstreamGroup
+     *
+     * @param hosts the upstream hosts
+     */
+    public UpstreamGroup(HttpHost... hosts) {
+        this(Arrays.asList(hosts));
+    }
+
+    /**
+     * Constructs an UpstreamGroup
+     *
+     * @param hosts the upstream hosts
+     */
+    public UpstreamGroup(Collection<HttpHost> hosts) {
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("Upstream group has no host");
+        }
+        List<Upstream> list = new ArrayList<>();
+        for (HttpHost host : hosts) {
+            list.add(new Upstream(host));
+        }
+        this.upstreams = Collections.unmodifiableList(list);
+    }
+
+    public List<Upstream> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * Set the load balancing policy, power of two choices by default
+     *
+     * @param policy the policy
+     */
+    public void setPolicy(LoadBalancingPolicy policy) {
+        this.policy = policy;
+    }
+
+    public LoadBalancingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Set the number of consecutive failures after which an upstream is ejected
+     *
+     * @param consecutiveFailures the number of failures
+     */
+    public void setConsecutiveFailures(int consecutiveFailures) {
+        this.consecutiveFailures = consecutiveFailures;
+    }
+
+    /**
+     * Set the ejection time of an upstream, which is multiplied by the number of consecutive
+     * ejections of the upstream up to the maximum ejection time
+     *
+     * @param baseEjectionTime the ejection time in milliseconds
+     * @param maxEjectionTime the maximum ejection time in milliseconds
+     */
+    public void setEjectionTime(long baseEjectionTime, long maxEjectionTime) {
+        this.baseEjectionTime = baseEjectionTime;
+        this.maxEjectionTime = maxEjectionTime;
+    }
+
+    /**
+     * Set the maximum percentage of upstreams ejected at the same time, one upstream can always be
+     * ejected
+     *
+     * @param maxEjectionPercent the percentage
+     */
+    public void setMaxEjectionPercent(int maxEjectionPercent) {
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    /**
+     * Set the latency outlier detection: an upstream is ejected when its average latency is
+     * above the minimum and more than factor times the median latency of the other upstreams
+     *
+     * @param factor the factor, 0 to disable the latency outlier detection
+     * @param minOutlierLatency the minimum latency of an outlier in milliseconds
+     */
+    public void setLatencyOutlierDetection(double factor, long minOutlierLatency) {
+        this.latencyOutlierFactor = factor;
+        this.minOutlierLatency = minOutlierLatency;
+    }
+
+    /**
+     * Set the number of consecutive health checks after which an upstream changes state
+     *
+     * @param healthyThreshold the number of successful checks to become healthy
+     * @param unhealthyThreshold the number of failed checks to become unhealthy
+     */
+    public void setHealthCheckThresholds(int healthyThreshold, int unhealthyThreshold) {
+        this.healthyThreshold = healthyThreshold;
+        this.unhealthyThreshold = unhealthyThreshold;
+    }
+
+    /**
+     * Start checking the health of the upstreams with a GET request for the specified path. An
+     * upstream is healthy if it answers with a 2xx or 3xx status.
+     *
+     * @param httpClient the client sending the health checks, its connection pool timeouts apply
+     * @param path the path of the health check
+     * @param interval the interval between two checks of an upstream in milliseconds
+     */
+    public synchronized void startHealthChecks(LuwakHttpClient httpClient, String path,
+            long interval) {
+        if (healthChecker != null) {
+            throw new IllegalStateException("Health checks already started");
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        healthChecker = Executors.newScheduledThreadPool(Math.min(upstreams.size(), 4), r -> {
+            Thread thread = new Thread(r, "luwak-health-check-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Upstream upstream : upstreams) {
+            healthChecker.scheduleWithFixedDelay(() -> checkHealth(httpClient, upstream, path),
+                    0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the health checks
+     */
+    @Override
+    public synchronized void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+    }
+
+    /**
+     * Send a request to an upstream. If the connection to the upstream fails, the request is sent
+     * to another upstream since it has not been sent yet.
+     *
+     * @param executor sends the request to the chosen host
+     * @return the response
+     * @throws IOException if an I/O error occurs
+     * @throws HttpResponseException if the response is malformed
+     */
+    public HttpResponse execute(RequestExecutor executor)
+            throws IOException, HttpResponseException {
+        Set<Upstream> tried = new HashSet<>();
+        while (true) {
+            Upstream upstream = select(tried);
+            tried.add(upstream);
+            upstream.started();
+            long start = System.nanoTime();
+            try {
+                HttpResponse response = executor.execute(upstream.getHost());
+                completed(upstream, System.nanoTime() - start,
+                        response.getStatus().getStatusCode() < 500);
+                return response;
+            }
+            catch (ConnectException | UnknownHostException e) {
+                completed(upstream, System.nanoTime() - start, false);
+                if (tried.size() >= upstreams.size()) {
+                    throw e;
+                }
+                LOGGER.debug("Failed to connect to {}, trying another upstream", upstream, e);
+            }
+            catch (IOException | HttpResponseException | RuntimeException e) {
+                completed(upstream, System.nanoTime() - start, false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Choose an upstream for a request
+     *
+     * @return the upstream
+     */
+    public Upstream select() {
+        return select(Collections.emptySet());
+    }
+
+    private Upstream select(Set<Upstream> excluded) {
+        long now = System.currentTimeMillis();
+        List<Upstream> candidates = new ArrayList<>(upstreams.size());
+        for (Upstream upstream : upstreams) {
+            if (!excluded.contains(upstream) && upstream.isHealthy()
+                    && upstream.getCircuitBreaker().isAvailable(now)) {
+                candidates.add(upstream);
+            }
+        }
+        LoadBalancingPolicy currentPolicy = policy;
+        while (!candidates.isEmpty()) {
+            Upstream upstream = currentPolicy.select(candidates);
+            if (upstream.getCircuitBreaker().tryAcquire(now)) {
+                return upstream;
+            }
+            // Another request took the trial of a half open breaker
+            candidates.remove(upstream);
+        }
+
+        // No upstream is available, failing over to an unavailable one is better than failing
+        List<Upstream> all = new ArrayList<>(upstreams);
+        all.removeAll(excluded);
+        return currentPolicy.select(all.isEmpty() ? upstreams : all);
+    }
+
+    private void completed(Upstream upstream, long latencyNanos, boolean success) {
+        int failures = upstream.completed(latencyNanos, success);
+        CircuitBreaker breaker = upstream.getCircuitBreaker();
+        if (success) {
+            if (isLatencyOutlier(upstream)) {
+                eject(upstream, "latency " + Math.round(upstream.getLatency()) + " ms");
+            }
+            else {
+                breaker.onSuccess();
+            }
+        }
+        else if (breaker.isTrial() || failures >= consecutiveFailures) {
+            eject(upstream, failures + " consecutive failures");
+        }
+    }
+
+    private boolean isLatencyOutlier(Upstream upstream) {
+        double factor = latencyOutlierFactor;
+        double latency = upstream.getLatency();
+        if (factor <= 0 || latency < minOutlierLatency) {
+            return false;
+        }
+        List<Double> others = new ArrayList<>();
+        for (Upstream other : upstreams) {
+            if (other != upstream && other.getLatency() >= 0
+                    && other.getCircuitBreaker().getState() == CircuitBreaker.State.CLOSED) {
+                others.add(other.getLatency());
+            }
+        }
+        if (others.isEmpty()) {
+            return false;
+        }
+        Collections.sort(others);
+        return latency > factor * others.get(others.size() / 2);
+    }
+
+    private synchronized void eject(Upstream upstream, String reason) {
+        CircuitBreaker breaker = upstream.getCircuitBreaker();
+        int ejected = 0;
+        for (Upstream other : upstreams) {
+            if (other != upstream && other.getCircuitBreaker().getState()
+                    != CircuitBreaker.State.CLOSED) {
+                ejected++;
+            }
+        }
+        if (ejected > 0 && (ejected + 1) * 100 > maxEjectionPercent * upstreams.size()) {
+            LOGGER.debug("Not ejecting {} ({}), {} upstreams already ejected", upstream, reason,
+                    ejected);
+            return;
+        }
+        breaker.open(System.currentTimeMillis(), baseEjectionTime, maxEjectionTime);
+        upstream.ejected();
+        LOGGER.warn("Ejected upstream {} ({}), ejection #{}", upstream, reason,
+                breaker.getEjections());
+    }
+
+    private void checkHealth(LuwakHttpClient httpClient, Upstream upstream, String path) {
+        boolean success;
+        try {
+            HttpResponse response = httpClient.execute(upstream.getHost(),
+                    new HttpRequest(HttpMethod.GET, path, Collections.emptyMap(),
+                            HttpRequest.DEFAULT_HTTP_VERSION, Collections.emptyMap(), null));
+            if (response.getEntityBody() != null) {
+                response.getEntityBody().release();
+            }
+            int statusCode = response.getStatus().getStatusCode();
+            success = statusCode >= 200 && statusCode < 400;
+        }
+        catch (IOException | HttpResponseException | RuntimeException e) {
+            LOGGER.debug("Health check of {} failed", upstream, e);
+            success = false;
+        }
+        boolean wasHealthy = upstream.isHealthy();
+        upstream.healthCheckResult(success, healthyThreshold, unhealthyThreshold);
+        if (wasHealthy != upstream.isHealthy()) {
+            LOGGER.warn("Upstream {} is now {}", upstream,
+                    upstream.isHealthy() ? "healthy" : "unhealthy");
+        }
+    }
+}
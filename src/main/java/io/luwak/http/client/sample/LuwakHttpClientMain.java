@@ -0,0 +1,111 @@
+package io.luwak.http.client.sample;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.LuwakHttpClient;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * A main method that compares pooled keep-alive connections against a new connection per request.
+ * A Luwak HTTP server that answers every request with a small body is started on a free local
+ * port, and the same number of GET requests is sent by a number of threads with both modes.
+ *
+ * Usage: LuwakHttpClientMain [threads] [requests per thread]
+ *
+ */
+public class LuwakHttpClientMain {
+
+    private static final byte[] BODY = "Hello, World!".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+        httpdContext.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET), acceptSocket ->
+                new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        Map<String, String> headers = new HashMap<>();
+                        headers.put("Content-Length", Integer.toString(BODY.length));
+                        return new HttpResponse(DefaultHttpStatus.OK, headers,
+                                new HttpEntity(BODY, false, false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        LuwakHttpd httpd = new LuwakHttpd("localhost", 0, threads * 2, httpdContext);
+        httpd.startInBackground();
+        HttpHost host = new HttpHost("localhost", httpd.getLocalPort());
+
+        try {
+            // Warm up both code paths before measuring
+            run(host, threads, requests / 10, true);
+            run(host, threads, requests / 10, false);
+
+            double perRequest = run(host, threads, requests, false);
+            double pooled = run(host, threads, requests, true);
+            System.out.printf("connect per request: %,.0f requests/s%n", perRequest);
+            System.out.printf("pooled keep-alive:   %,.0f requests/s (%.1fx)%n", pooled,
+                    pooled / perRequest);
+        }
+        finally {
+            httpd.stop();
+        }
+    }
+
+    /**
+     * Send the requests and return the throughput in requests per second
+     */
+    private static double run(HttpHost host, int threads, int requests, boolean keepAlive)
+            throws Exception {
+        LuwakHttpClient client = new LuwakHttpClient();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        Map<String, String> headers = new HashMap<>();
+        if (!keepAlive) {
+            headers.put("Connection", "close");
+        }
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/", Collections.emptyMap(),
+                HttpRequest.DEFAULT_HTTP_VERSION, headers, null);
+
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executorService.submit(() -> {
+                for (int j = 0; j < requests; j++) {
+                    HttpResponse response = client.execute(host, request);
+                    response.getEntityBody().release();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        executorService.shutdown();
+        client.close();
+        return (double) threads * requests * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
@@ -3,6 +3,11 @@ package io.luwak.http.io;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +30,9 @@ public class ChunkedInputStream extends FilterInputStream {
      */
     private int chunkLeft;
 
+    /** Trailer fields received after the last chunk, if any */
+    private Map<String, String> trailers = Collections.emptyMap();
+
     /**
      * Creates a ChunkedInputStream from an underlying input stream.
      *
@@ -52,8 +60,12 @@ public class ChunkedInputStream extends FilterInputStream {
         if (chunkLeft == 0) {
             chunkLeft = findChunkSize(in);
             LOGGER.debug("new chunk size: {}", chunkLeft);
+            if (chunkLeft == 0) {
+                readTrailers(in);
+                chunkLeft = -1;
+            }
         }
-        else if (chunkLeft == -1) {
+        if (chunkLeft == -1) {
             return -1;
         }
         int rlen = 0;
@@ -79,7 +91,7 @@ public class ChunkedInputStream extends FilterInputStream {
                 ensureChunkTermination(in);
                 int chunkSize = chunkLeft = findChunkSize(in);
                 if (chunkSize == 0) {
-                    ensureChunkTermination(in);
+                    readTrailers(in);
                     chunkLeft = -1;
                     break;
                 }
@@ -89,6 +101,78 @@ public class ChunkedInputStream extends FilterInputStream {
         return rlen > 0 ? rlen : -1;
     }
 
+    /**
+     * Read and discard the rest of the chunked content (including trailer fields), leaving the
+     * underlying input stream positioned right after the chunked message body.
+     *
+     * @return the number of content bytes discarded
+     * @throws IOException if an I/O error occurs
+     */
+    public long drain() throws IOException {
+        long drained = 0;
+        byte[] buffer = new byte[READ_BUFFER];
+        int rlen;
+        while ((rlen = read(buffer, 0, buffer.length)) != -1) {
+            drained += rlen;
+        }
+        return drained;
+    }
+
+    /**
+     * Drain the rest of the chunked content. The underlying input stream is not closed, so that
+     * the connection can be reused for the next message.
+     */
+    @Override
+    public void close() throws IOException {
+        drain();
+    }
+
+    /**
+     * Get the trailer fields sent after the last chunk. Field names are in lower case. The
+     * returned map is empty until the last chunk has been read.
+     *
+     * @return the trailer fields
+     */
+    public Map<String, String> getTrailers() {
+        return trailers;
+    }
+
+    /**
+     * Consume the (optional) trailer fields that follow the last chunk, up to and including the
+     * terminating empty line.
+     *
+     * @param in InputStream positioned right after the last chunk's size line
+     * @throws IOException if the stream ends before the terminating empty line
+     */
+    private void readTrailers(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Chunk is not terminated properly");
+            }
+            if (b == '\r') {
+                continue;
+            }
+            if (b != '\n') {
+                line.append((char) b);
+                continue;
+            }
+            if (line.length() == 0) {
+                return;
+            }
+            int p = line.indexOf(":");
+            if (p > 0) {
+                if (trailers.isEmpty()) {
+                    trailers = new LinkedHashMap<>();
+                }
+                trailers.put(line.substring(0, p).trim().toLowerCase(Locale.US),
+                        line.substring(p + 1).trim());
+            }
+            line.setLength(0);
+        }
+    }
+
     /**
      * Consume InputStream and make sure the first two bytes are CR + LF.
      *
@@ -113,6 +197,9 @@ public class ChunkedInputStream extends FilterInputStream {
 
         int b = -1;
         while ((b = in.read()) != -1) {
+            if (rlen == buf.length) {
+                throw new IOException("Chunk size line too long");
+            }
             buf[rlen++] = (byte) b;
             if (b == pattern[index]) {
                 if (index == pattern.length - 1) {
@@ -127,18 +214,49 @@ public class ChunkedInputStream extends FilterInputStream {
         }
 
         if (found) {
-            // Doesn't support extension yet
-            byte[] size = new byte[rlen - 2];
-            System.arraycopy(buf, 0, size, 0, size.length);
-            try {
-                return Integer.parseInt(new String(size), 16);
-            }
-            catch (NumberFormatException e) {
-                throw new IOException("Invalid hexadecimal chunk size: \"" + new String(size) + "\"",
-                        e);
+            // Chunk extensions (if any) are ignored
+            int sizeLen = rlen - 2;
+            for (int i = 0; i < sizeLen; i++) {
+                if (buf[i] == ';') {
+                    sizeLen = i;
+                    break;
+                }
             }
+            return parseChunkSize(buf, sizeLen);
         }
         return -1;
     }
 
+    /**
+     * Parse a chunk size, which must be a non-empty string of hexadecimal digits. A signed size
+     * would leave the stream unable to make progress or end the body early.
+     */
+    private static int parseChunkSize(byte[] buf, int len) throws IOException {
+        int start = 0;
+        int end = len;
+        while (start < end && (buf[start] == ' ' || buf[start] == '\t')) {
+            start++;
+        }
+        while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '\t')) {
+            end--;
+        }
+        long size = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(buf[i], 16);
+            if (digit < 0) {
+                break;
+            }
+            size = size * 16 + digit;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Chunk size too large: \""
+                        + new String(buf, 0, len, StandardCharsets.US_ASCII) + "\"");
+            }
+            if (i == end - 1) {
+                return (int) size;
+            }
+        }
+        throw new IOException("Invalid hexadecimal chunk size: \""
+                + new String(buf, 0, len, StandardCharsets.US_ASCII) + "\"");
+    }
+
 }
@@ -3,24 +3,101 @@ package io.luwak.http.io;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 /**
- * Output stream that will automatically send every write to the wrapped OutputStream according to
+ * Output stream that will send everything written to it to the wrapped OutputStream according to
  * chunked transfer:
  * http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6.1
  *
+ * Written data is accumulated in an internal buffer until a full chunk (see
+ * {@link #ChunkedOutputStream(OutputStream, int)}) is available or the stream is flushed. Every
+ * chunk (size line, data and the terminating CRLF) is handed to the wrapped OutputStream in a
+ * single write.
+ *
+ * Trailer fields can be sent with {@link #finish(Map)}, e.g. a checksum of the content that is
+ * computed while it is being streamed:
+ *
+ * <pre>
+ * CRC32 crc = new CRC32();
+ * ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out);
+ * OutputStream os = new CheckedOutputStream(chunkedOut, crc);
+ * ... write content to os ...
+ * chunkedOut.finish(Collections.singletonMap("X-Checksum", Long.toHexString(crc.getValue())));
+ * </pre>
+ *
  * Adapted from ChunkedOutputStream in NanoHTTPD project.
  */
 public class ChunkedOutputStream extends FilterOutputStream {
 
+    /** Default maximum size of a chunk's data */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK_CRLF = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** Space reserved in front of the chunk data: 8 hex digits (max int) + CRLF */
+    private static final int SIZE_LINE_LEN = 10;
+
+    private final int chunkSize;
+
+    /** Size line of a full chunk, precomputed as it is used for every full chunk */
+    private final byte[] fullSizeLine;
+
+    /** Size line reserve + chunk data + CRLF */
+    private final byte[] buffer;
+
+    /** Number of bytes of chunk data currently in the buffer */
+    private int count;
+
+    private boolean finished;
+
+    /**
+     * Creates a ChunkedOutputStream with the default chunk size
+     *
+     * @param out the underlying output stream
+     */
     public ChunkedOutputStream(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a ChunkedOutputStream that sends chunks of at most the specified size
+     *
+     * @param out the underlying output stream
+     * @param chunkSize maximum size of a chunk's data
+     */
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
         super(out);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[SIZE_LINE_LEN + chunkSize + 2];
+
+        int start = writeSizeLine(chunkSize);
+        this.fullSizeLine = new byte[SIZE_LINE_LEN - start];
+        System.arraycopy(buffer, start, fullSizeLine, 0, fullSizeLine.length);
+    }
+
+    /**
+     * Get the maximum size of a chunk's data
+     *
+     * @return the maximum chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
     }
 
     @Override
     public void write(int b) throws IOException {
-        byte[] data = { (byte) b };
-        write(data, 0, 1);
+        ensureNotFinished();
+        buffer[SIZE_LINE_LEN + count++] = (byte) b;
+        if (count == chunkSize) {
+            writeChunk();
+        }
     }
 
     @Override
@@ -30,17 +107,111 @@ public class ChunkedOutputStream extends FilterOutputStream {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (len == 0) {
-            return;
+        ensureNotFinished();
+        while (len > 0) {
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, SIZE_LINE_LEN + count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == chunkSize) {
+                writeChunk();
+            }
         }
+    }
 
-        out.write(String.format("%x\r\n", len).getBytes());
-        out.write(b, off, len);
-        out.write("\r\n".getBytes());
+    /**
+     * Send the buffered data (if any) as a chunk and flush the underlying output stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk();
+        }
+        out.flush();
     }
 
+    /**
+     * Send the buffered data (if any) followed by the last chunk. The underlying output stream is
+     * not flushed nor closed.
+     *
+     * @throws IOException if an I/O error occurs
+     */
     public void finish() throws IOException {
-        out.write("0\r\n\r\n".getBytes());
+        finish(null);
+    }
+
+    /**
+     * Send the buffered data (if any) followed by the last chunk and the specified trailer
+     * fields. The underlying output stream is not flushed nor closed.
+     *
+     * @param trailers trailer fields to be sent after the last chunk, may be null
+     * @throws IOException if an I/O error occurs
+     */
+    public void finish(Map<String, String> trailers) throws IOException {
+        if (finished) {
+            return;
+        }
+        if (count > 0) {
+            writeChunk();
+        }
+        finished = true;
+
+        if (trailers == null || trailers.isEmpty()) {
+            out.write(LAST_CHUNK_CRLF);
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : trailers.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        sb.append("\r\n");
+        byte[] fields = sb.toString().getBytes(StandardCharsets.US_ASCII);
+
+        byte[] last = new byte[LAST_CHUNK.length + fields.length];
+        System.arraycopy(LAST_CHUNK, 0, last, 0, LAST_CHUNK.length);
+        System.arraycopy(fields, 0, last, LAST_CHUNK.length, fields.length);
+        out.write(last);
+    }
+
+    private void writeChunk() throws IOException {
+        int start;
+        if (count == chunkSize) {
+            start = SIZE_LINE_LEN - fullSizeLine.length;
+            System.arraycopy(fullSizeLine, 0, buffer, start, fullSizeLine.length);
+        }
+        else {
+            start = writeSizeLine(count);
+        }
+        int end = SIZE_LINE_LEN + count;
+        buffer[end] = '\r';
+        buffer[end + 1] = '\n';
+        out.write(buffer, start, end + 2 - start);
+        count = 0;
+    }
+
+    /**
+     * Write the size line (hex size + CRLF) right-aligned into the reserved space in front of the
+     * chunk data
+     *
+     * @return the start index of the size line in the buffer
+     */
+    private int writeSizeLine(int size) {
+        int pos = SIZE_LINE_LEN;
+        buffer[--pos] = '\n';
+        buffer[--pos] = '\r';
+        do {
+            buffer[--pos] = HEX_DIGITS[size & 0xF];
+            size >>>= 4;
+        } while (size != 0);
+        return pos;
+    }
+
+    private void ensureNotFinished() throws IOException {
+        if (finished) {
+            throw new IOException("Chunked stream already finished");
+        }
     }
 
 }
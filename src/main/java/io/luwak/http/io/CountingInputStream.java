@@ -0,0 +1,54 @@
+package io.luwak.http.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Input stream reporting the number of bytes read from the underlying input stream, e.g. to a
+ * metrics counter. Each read is reported as it happens, nothing is allocated.
+ *
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private final LongConsumer counter;
+
+    /**
+     * Create a CountingInputStream
+     *
+     * @param in the underlying input stream
+     * @param counter receives the number of bytes of each read
+     */
+    public CountingInputStream(InputStream in, LongConsumer counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            counter.accept(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            counter.accept(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        if (skipped > 0) {
+            counter.accept(skipped);
+        }
+        return skipped;
+    }
+}
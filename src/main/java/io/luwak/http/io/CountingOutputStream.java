@@ -0,0 +1,40 @@
+package io.luwak.http.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Output stream reporting the number of bytes written to the underlying output stream, e.g. to a
+ * metrics counter. Each write is reported as it happens, nothing is allocated.
+ *
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private final LongConsumer counter;
+
+    /**
+     * Create a CountingOutputStream
+     *
+     * @param out the underlying output stream
+     * @param counter receives the number of bytes of each write
+     */
+    public CountingOutputStream(OutputStream out, LongConsumer counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.accept(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream writes the bytes one by one
+        out.write(b, off, len);
+        counter.accept(len);
+    }
+}
@@ -1,35 +1,66 @@
 package io.luwak.http.io;
 
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Input stream to read fixed sized message body, once the full message is read, this input stream
  * will stop reading the underlying input stream.
- * 
+ *
+ * Closing this input stream does not close the underlying input stream, instead the rest of the
+ * message body (if any) is drained so that the underlying connection can be reused for the next
+ * message.
+ *
  * @author Fredy Yanardi
  *
  */
 public class FixedSizeInputStream extends FilterInputStream {
 
-    private long size;
+    private static final int TRANSFER_BUFFER_SIZE = 8 * 1024;
+
+    private long remaining;
+    private boolean closed;
 
     /**
      * Create a FixedSizeInputStream from an underlying input stream.
      *
      * @param in an input stream that streams contents in a fixed size byte array
+     * @param size the size of the content in bytes
      */
     public FixedSizeInputStream(InputStream in, long size) {
         super(in);
-        this.size = size;
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative: " + size);
+        }
+        this.remaining = size;
+    }
+
+    /**
+     * Get the number of bytes of the content that have not been read yet
+     *
+     * @return the number of remaining bytes
+     */
+    public long getRemaining() {
+        return remaining;
     }
 
     @Override
     public int read() throws IOException {
-        byte[] b = new byte[1];
-        int rlen = read(b);
-        return rlen != -1 ? (((int) b[0]) & 0xFF) : -1;
+        ensureOpen();
+        if (remaining == 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw prematureEnd();
+        }
+        remaining--;
+        return b;
     }
 
     @Override
@@ -39,20 +70,150 @@ public class FixedSizeInputStream extends FilterInputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if (size < 0) {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (remaining == 0) {
             return -1;
         }
-        int rlen = in.read(b, 0, (int) Math.min(size, b.length));
-        if (rlen > 0) {
-            size -= rlen;
-            byte[] buffer = new byte[rlen];
-            System.arraycopy(b, 0, buffer, 0, rlen);
-            return rlen;
+        if (len == 0) {
+            return 0;
         }
-        else {
-            size = -1;
-            return -1;
+        int rlen = in.read(b, off, (int) Math.min(len, remaining));
+        if (rlen == -1) {
+            throw prematureEnd();
+        }
+        remaining -= rlen;
+        return rlen;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0 || remaining == 0) {
+            return 0;
+        }
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed || remaining == 0) {
+            return 0;
+        }
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Transfer the rest of the content to the specified output stream.
+     *
+     * @param out the output stream to write to
+     * @return the number of bytes transferred
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        ensureOpen();
+        long transferred = 0;
+        byte[] buffer = new byte[(int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(remaining, 1))];
+        int rlen;
+        while ((rlen = read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, rlen);
+            transferred += rlen;
         }
+        return transferred;
+    }
+
+    /**
+     * Transfer the rest of the content to the specified channel.
+     *
+     * @param channel the channel to write to
+     * @return the number of bytes transferred
+     * @throws IOException if an I/O error occurs while reading or writing
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        ensureOpen();
+        long transferred = 0;
+        byte[] buffer = new byte[(int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(remaining, 1))];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        int rlen;
+        while ((rlen = read(buffer, 0, buffer.length)) != -1) {
+            byteBuffer.clear().limit(rlen);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+            transferred += rlen;
+        }
+        return transferred;
+    }
+
+    /**
+     * Read and discard the rest of the content, leaving the underlying input stream positioned
+     * right after the content.
+     *
+     * @return the number of bytes discarded
+     * @throws IOException if an I/O error occurs or the underlying stream ends prematurely
+     */
+    public long drain() throws IOException {
+        long drained = 0;
+        byte[] buffer = null;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+                drained += skipped;
+                continue;
+            }
+            // skip() may return 0 without reaching the end of the stream, fall back to read()
+            if (buffer == null) {
+                buffer = new byte[(int) Math.min(TRANSFER_BUFFER_SIZE, remaining)];
+            }
+            int rlen = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (rlen == -1) {
+                throw prematureEnd();
+            }
+            remaining -= rlen;
+            drained += rlen;
+        }
+        return drained;
+    }
+
+    /**
+     * Drain the rest of the content and close this stream. The underlying input stream is not
+     * closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            drain();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private EOFException prematureEnd() {
+        return new EOFException("Premature end of content, " + remaining + " bytes missing");
     }
 
 }
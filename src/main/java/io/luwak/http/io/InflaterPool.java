@@ -0,0 +1,89 @@
+package io.luwak.http.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of {@link Inflater} instances. Creating an Inflater allocates native zlib state,
+ * which is relatively expensive to do for every compressed message body.
+ *
+ */
+public class InflaterPool {
+
+    public static final int DEFAULT_MAX_POOLED = 64;
+
+    private static final InflaterPool DEFAULT_INSTANCE = new InflaterPool(DEFAULT_MAX_POOLED);
+
+    private final int maxPooled;
+
+    /** Inflaters for raw deflate data (nowrap), as used by gzip */
+    private final ConcurrentLinkedQueue<Inflater> rawInflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger rawCount = new AtomicInteger();
+
+    /** Inflaters for zlib wrapped deflate data */
+    private final ConcurrentLinkedQueue<Inflater> zlibInflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger zlibCount = new AtomicInteger();
+
+    /**
+     * Constructs an InflaterPool
+     *
+     * @param maxPooled maximum number of idle inflaters kept per kind (raw/zlib)
+     */
+    public InflaterPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get the default InflaterPool
+     *
+     * @return the default InflaterPool
+     */
+    public static InflaterPool getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * Get the number of idle inflaters kept by this pool
+     *
+     * @param nowrap true for the inflaters of raw deflate data, false for zlib wrapped data
+     * @return the number of idle inflaters
+     */
+    public int getIdleCount(boolean nowrap) {
+        return (nowrap ? rawCount : zlibCount).get();
+    }
+
+    /**
+     * Borrow an inflater from this pool, a new inflater is created if the pool is empty
+     *
+     * @param nowrap true for raw deflate data, false for zlib wrapped deflate data
+     * @return an inflater in its initial state
+     */
+    public Inflater borrow(boolean nowrap) {
+        Inflater inflater = (nowrap ? rawInflaters : zlibInflaters).poll();
+        if (inflater == null) {
+            return new Inflater(nowrap);
+        }
+        (nowrap ? rawCount : zlibCount).decrementAndGet();
+        return inflater;
+    }
+
+    /**
+     * Return an inflater obtained with {@link #borrow(boolean)} to this pool. The inflater must
+     * not be used by the caller anymore.
+     *
+     * @param inflater the inflater
+     * @param nowrap the same nowrap value used to borrow the inflater
+     */
+    public void giveBack(Inflater inflater, boolean nowrap) {
+        AtomicInteger count = nowrap ? rawCount : zlibCount;
+        if (count.incrementAndGet() <= maxPooled) {
+            inflater.reset();
+            (nowrap ? rawInflaters : zlibInflaters).offer(inflater);
+        }
+        else {
+            count.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package io.luwak.http.io;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Input stream that decodes gzip (RFC 1952) or deflate (RFC 1950/1951) encoded content while it
+ * is being read. Unlike {@link java.util.zip.GZIPInputStream}, the {@link Inflater} is borrowed
+ * from an {@link InflaterPool}, and the size and compression ratio of the inflated content can be
+ * limited to protect against decompression bombs. Reading fails with
+ * {@link PayloadTooLargeException} as soon as a limit is crossed.
+ *
+ * The underlying input stream must end at the end of the encoded content (e.g. a
+ * {@link FixedSizeInputStream} or a {@link ChunkedInputStream}).
+ *
+ */
+public class InflatingInputStream extends FilterInputStream {
+
+    /**
+     * Content encodings supported by InflatingInputStream
+     */
+    public enum Format {
+        GZIP,
+        DEFLATE
+    }
+
+    /** The compression ratio limit is only enforced once this many bytes have been inflated */
+    public static final long RATIO_CHECK_THRESHOLD = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final Format format;
+    private final long maxInflatedSize;
+    private final double maxRatio;
+    private final InflaterPool inflaterPool;
+
+    private Inflater inflater;
+    private boolean nowrap;
+
+    /** Compressed input, bytes between pos and lim have not been consumed yet */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos;
+    private int lim;
+    /** Whether the bytes between pos and lim have been handed to the inflater */
+    private boolean inputSet;
+
+    private final CRC32 crc = new CRC32();
+    private long memberSize;
+
+    private long inflated;
+    private long compressed;
+
+    private boolean eof;
+    private boolean closed;
+
+    /**
+     * Creates an InflatingInputStream without size and ratio limits
+     *
+     * @param in the underlying input stream with the encoded content
+     * @param format the content encoding
+     */
+    public InflatingInputStream(InputStream in, Format format) {
+        this(in, format, -1, 0, InflaterPool.getDefault());
+    }
+
+    /**
+     * Creates an InflatingInputStream
+     *
+     * @param in the underlying input stream with the encoded content
+     * @param format the content encoding
+     * @param maxInflatedSize maximum size of the inflated content, -1 for no limit
+     * @param maxRatio maximum ratio of inflated to compressed size, enforced once
+     *      {@link #RATIO_CHECK_THRESHOLD} bytes have been inflated, 0 for no limit
+     * @param inflaterPool the pool to borrow the inflater from
+     */
+    public InflatingInputStream(InputStream in, Format format, long maxInflatedSize,
+            double maxRatio, InflaterPool inflaterPool) {
+        super(in);
+        this.format = format;
+        this.maxInflatedSize = maxInflatedSize;
+        this.maxRatio = maxRatio;
+        this.inflaterPool = inflaterPool;
+    }
+
+    /**
+     * Get the number of inflated bytes returned so far
+     *
+     * @return the number of inflated bytes
+     */
+    public long getInflatedSize() {
+        return inflated;
+    }
+
+    /**
+     * Get the number of compressed bytes consumed so far
+     *
+     * @return the number of compressed bytes
+     */
+    public long getCompressedSize() {
+        return compressed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int rlen = read(b, 0, 1);
+        return rlen != -1 ? (((int) b[0]) & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (eof) {
+            return -1;
+        }
+        if (inflater == null) {
+            start();
+        }
+        if (maxInflatedSize >= 0) {
+            // Never inflate more than one byte beyond the limit
+            len = (int) Math.min(len, maxInflatedSize - inflated + 1);
+        }
+
+        while (true) {
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            }
+            catch (DataFormatException e) {
+                String message = e.getMessage();
+                throw new ZipException(message != null ? message : "Invalid deflate data format");
+            }
+            consumeInput();
+
+            if (n > 0) {
+                if (format == Format.GZIP) {
+                    crc.update(b, off, n);
+                    memberSize += n;
+                }
+                inflated += n;
+                checkLimits();
+                return n;
+            }
+            if (inflater.finished()) {
+                if (!nextMember()) {
+                    eof = true;
+                    return -1;
+                }
+                continue;
+            }
+            if (inflater.needsDictionary()) {
+                throw new ZipException("Deflate dictionary is not supported");
+            }
+            if (inflater.needsInput()) {
+                if (pos == lim && !fill()) {
+                    throw new EOFException("Unexpected end of compressed content");
+                }
+                inflater.setInput(buffer, pos, lim - pos);
+                inputSet = true;
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        return eof ? 0 : 1;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (inflater != null) {
+                inflaterPool.giveBack(inflater, nowrap);
+                inflater = null;
+            }
+            in.close();
+        }
+    }
+
+    private void start() throws IOException {
+        if (format == Format.GZIP) {
+            readGzipHeader();
+            nowrap = true;
+        }
+        else {
+            // RFC 7230 specifies zlib wrapped data, but some clients send raw deflate data
+            if (!ensureBuffered(2)) {
+                throw new EOFException("Unexpected end of compressed content");
+            }
+            int cmf = buffer[pos] & 0xFF;
+            int flg = buffer[pos + 1] & 0xFF;
+            nowrap = !((cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0);
+        }
+        inflater = inflaterPool.borrow(nowrap);
+    }
+
+    /**
+     * Update the position of the compressed input after the inflater has consumed some of it
+     */
+    private void consumeInput() {
+        if (inputSet) {
+            int newPos = lim - inflater.getRemaining();
+            compressed += newPos - pos;
+            pos = newPos;
+            if (pos == lim || inflater.finished()) {
+                inputSet = false;
+            }
+        }
+    }
+
+    /**
+     * Called when the inflater has finished a deflate stream. For gzip, reads the member trailer
+     * and the header of the next member (if any).
+     *
+     * @return true if another gzip member follows
+     */
+    private boolean nextMember() throws IOException {
+        if (format != Format.GZIP) {
+            return false;
+        }
+        long expectedCrc = readInt();
+        long expectedSize = readInt();
+        if (expectedCrc != crc.getValue() || expectedSize != (memberSize & 0xFFFFFFFFL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+
+        // Concatenated gzip members, trailing garbage is ignored as GZIPInputStream does
+        if (!ensureBuffered(2) || (buffer[pos] & 0xFF) != 0x1F
+                || (buffer[pos + 1] & 0xFF) != 0x8B) {
+            return false;
+        }
+        readGzipHeader();
+        inflater.reset();
+        crc.reset();
+        memberSize = 0;
+        return true;
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (readUnsignedByte() != 0x1F || readUnsignedByte() != 0x8B) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readUnsignedByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flg = readUnsignedByte();
+        // MTIME, XFL and OS
+        skipBytes(6);
+        if ((flg & FEXTRA) != 0) {
+            int xlen = readUnsignedByte() | (readUnsignedByte() << 8);
+            skipBytes(xlen);
+        }
+        if ((flg & FNAME) != 0) {
+            while (readUnsignedByte() != 0) {
+            }
+        }
+        if ((flg & FCOMMENT) != 0) {
+            while (readUnsignedByte() != 0) {
+            }
+        }
+        if ((flg & FHCRC) != 0) {
+            skipBytes(2);
+        }
+    }
+
+    private long readInt() throws IOException {
+        long b0 = readUnsignedByte();
+        long b1 = readUnsignedByte();
+        long b2 = readUnsignedByte();
+        long b3 = readUnsignedByte();
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private void skipBytes(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readUnsignedByte();
+        }
+    }
+
+    private int readUnsignedByte() throws IOException {
+        if (pos == lim && !fill()) {
+            throw new EOFException("Unexpected end of compressed content");
+        }
+        compressed++;
+        return buffer[pos++] & 0xFF;
+    }
+
+    /**
+     * Make sure at least n unconsumed bytes are buffered
+     *
+     * @return false if the underlying stream ends before n bytes are available
+     */
+    private boolean ensureBuffered(int n) throws IOException {
+        while (lim - pos < n) {
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, lim - pos);
+                lim -= pos;
+                pos = 0;
+            }
+            int rlen = in.read(buffer, lim, buffer.length - lim);
+            if (rlen == -1) {
+                return false;
+            }
+            lim += rlen;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int rlen = in.read(buffer, 0, buffer.length);
+        if (rlen == -1) {
+            pos = lim = 0;
+            return false;
+        }
+        pos = 0;
+        lim = rlen;
+        return true;
+    }
+
+    private void checkLimits() throws PayloadTooLargeException {
+        if (maxInflatedSize >= 0 && inflated > maxInflatedSize) {
+            throw new PayloadTooLargeException("Inflated content exceeds the limit of "
+                    + maxInflatedSize + " bytes");
+        }
+        if (maxRatio > 0 && inflated > RATIO_CHECK_THRESHOLD
+                && inflated > maxRatio * Math.max(compressed, 1)) {
+            throw new PayloadTooLargeException("Compression ratio exceeds the limit of "
+                    + maxRatio);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.luwak.http.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message body cannot be stored because the storage quota for message bodies is
+ * exhausted
+ *
+ */
+public class InsufficientStorageException extends IOException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = -3468226153744210876L;
+
+    /**
+     * Constructs an InsufficientStorageException with the given message
+     *
+     * @param message error message
+     */
+    public InsufficientStorageException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,98 @@
+package io.luwak.http.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server-wide budget of heap memory that can be used to keep message bodies in memory. Bodies
+ * reserve memory from the budget before they are buffered and release it once they are no longer
+ * needed; a body that cannot get a reservation is spooled to disk instead (see
+ * {@link SpoolingOutputStream}).
+ *
+ * Reservations are lock-free.
+ *
+ */
+public class MemoryBudget {
+
+    public static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+    private static volatile MemoryBudget defaultInstance = new MemoryBudget(DEFAULT_LIMIT);
+
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * Constructs a MemoryBudget with the specified limit
+     *
+     * @param limit maximum number of bytes that can be reserved at the same time
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Get the default (server-wide) MemoryBudget
+     *
+     * @return the default MemoryBudget
+     */
+    public static MemoryBudget getDefault() {
+        return defaultInstance;
+    }
+
+    /**
+     * Replace the default (server-wide) MemoryBudget
+     *
+     * @param memoryBudget the new default MemoryBudget
+     */
+    public static void setDefault(MemoryBudget memoryBudget) {
+        if (memoryBudget == null) {
+            throw new NullPointerException("memoryBudget is null");
+        }
+        defaultInstance = memoryBudget;
+    }
+
+    /**
+     * Try to reserve the specified number of bytes
+     *
+     * @param bytes number of bytes to be reserved
+     * @return true if the bytes have been reserved, false if the budget is exhausted
+     */
+    public boolean tryReserve(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Release bytes previously reserved with {@link #tryReserve(long)}
+     *
+     * @param bytes number of bytes to be released
+     */
+    public void release(long bytes) {
+        if (bytes > 0) {
+            used.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * Get the number of bytes currently reserved
+     *
+     * @return the number of bytes currently reserved
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Get the maximum number of bytes that can be reserved at the same time
+     *
+     * @return the limit of this budget
+     */
+    public long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,24 @@
+package io.luwak.http.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message body exceeds a configured size limit
+ *
+ */
+public class PayloadTooLargeException extends IOException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 2594372283409751462L;
+
+    /**
+     * Constructs a PayloadTooLargeException with the given message
+     *
+     * @param message error message
+     */
+    public PayloadTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,121 @@
+package io.luwak.http.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A temporary file obtained from a {@link SpoolManager}. Everything written to the file through
+ * {@link #getOutputStream()} is accounted against the disk quota of the SpoolManager. The file must
+ * be released with {@link #release()} once it is no longer needed.
+ *
+ */
+public class SpoolFile {
+
+    private final SpoolManager spoolManager;
+    private final File file;
+    private final long maxFileSize;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private volatile long length;
+
+    SpoolFile(SpoolManager spoolManager, File file, long maxFileSize) {
+        this.spoolManager = spoolManager;
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Get the underlying file
+     *
+     * @return the underlying file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the number of bytes written to this spool file
+     *
+     * @return the length of this spool file
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Open an output stream to write to this spool file. Writes that exceed the maximum file size
+     * fail with {@link PayloadTooLargeException}, writes that exceed the disk quota of the
+     * SpoolManager fail with {@link InsufficientStorageException}.
+     *
+     * @return an output stream to write to this spool file
+     * @throws IOException if the file cannot be opened
+     */
+    public OutputStream getOutputStream() throws IOException {
+        ensureNotReleased();
+        return new FilterOutputStream(new FileOutputStream(file, true)) {
+
+            @Override
+            public void write(int b) throws IOException {
+                reserve(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                reserve(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Open an input stream to read this spool file
+     *
+     * @return an input stream to read this spool file
+     * @throws IOException if the file cannot be opened
+     */
+    public InputStream getInputStream() throws IOException {
+        ensureNotReleased();
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Return true if this spool file has been released
+     *
+     * @return true if this spool file has been released
+     */
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * Release this spool file. Calling this method more than once has no effect.
+     */
+    public synchronized void release() {
+        if (released.compareAndSet(false, true)) {
+            spoolManager.release(file, length);
+        }
+    }
+
+    private synchronized void reserve(long bytes) throws IOException {
+        ensureNotReleased();
+        if (length + bytes > maxFileSize) {
+            throw new PayloadTooLargeException("Spool file size limit of " + maxFileSize
+                    + " bytes exceeded");
+        }
+        spoolManager.reserve(bytes);
+        length += bytes;
+    }
+
+    private void ensureNotReleased() throws IOException {
+        if (released.get()) {
+            throw new IOException("Spool file " + file + " already released");
+        }
+    }
+}
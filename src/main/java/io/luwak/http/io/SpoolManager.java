@@ -0,0 +1,224 @@
+package io.luwak.http.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.jfr.LuwakEvents;
+
+/**
+ * Manages the temporary files (spool files) used to store message bodies that are too big to be
+ * kept in memory. All spool files are created in a dedicated directory and the total size of all
+ * spool files is limited by a global disk quota.
+ *
+ * Spool files are obtained with {@link #create()} and must be released with
+ * {@link SpoolFile#release()} once the message body is no longer needed. Released files are kept
+ * (truncated) in a bounded pool and reused for subsequent spool files, to avoid creating and
+ * deleting a file for every message body.
+ *
+ */
+public class SpoolManager {
+
+    public static final String DEFAULT_DIRECTORY_NAME = "luwak-spool";
+    public static final long DEFAULT_QUOTA = 1024L * 1024 * 1024;
+    public static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024 * 1024;
+    public static final int DEFAULT_MAX_POOLED_FILES = 16;
+
+    private static final String FILE_PREFIX = "spool-";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpoolManager.class);
+
+    private static volatile SpoolManager defaultInstance;
+
+    private final File directory;
+    private final long quota;
+    private final long maxFileSize;
+    private final int maxPooledFiles;
+
+    private final AtomicLong usage = new AtomicLong();
+    private final AtomicInteger activeFiles = new AtomicInteger();
+    private final ConcurrentLinkedQueue<File> pooledFiles = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    /**
+     * Constructs a SpoolManager with the default quota, maximum file size and pool size under the
+     * specified directory.
+     *
+     * @param directory the directory where the spool files are created
+     */
+    public SpoolManager(File directory) {
+        this(directory, DEFAULT_QUOTA, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_POOLED_FILES);
+    }
+
+    /**
+     * Constructs a SpoolManager
+     *
+     * @param directory the directory where the spool files are created
+     * @param quota maximum total size (in bytes) of all spool files
+     * @param maxFileSize maximum size (in bytes) of a single spool file
+     * @param maxPooledFiles maximum number of released spool files kept for reuse, 0 to disable
+     *      reuse
+     */
+    public SpoolManager(File directory, long quota, long maxFileSize, int maxPooledFiles) {
+        if (directory == null) {
+            throw new NullPointerException("directory is null");
+        }
+        this.directory = directory;
+        this.quota = quota;
+        this.maxFileSize = maxFileSize;
+        this.maxPooledFiles = maxPooledFiles;
+    }
+
+    /**
+     * Get the default SpoolManager, which uses a "luwak-spool" directory under java.io.tmpdir
+     *
+     * @return the default SpoolManager
+     */
+    public static SpoolManager getDefault() {
+        SpoolManager spoolManager = defaultInstance;
+        if (spoolManager == null) {
+            synchronized (SpoolManager.class) {
+                spoolManager = defaultInstance;
+                if (spoolManager == null) {
+                    spoolManager = new SpoolManager(new File(System.getProperty("java.io.tmpdir"),
+                            DEFAULT_DIRECTORY_NAME));
+                    defaultInstance = spoolManager;
+                }
+            }
+        }
+        return spoolManager;
+    }
+
+    /**
+     * Replace the default SpoolManager
+     *
+     * @param spoolManager the new default SpoolManager
+     */
+    public static void setDefault(SpoolManager spoolManager) {
+        if (spoolManager == null) {
+            throw new NullPointerException("spoolManager is null");
+        }
+        defaultInstance = spoolManager;
+    }
+
+    /**
+     * Create (or reuse) an empty spool file
+     *
+     * @return an empty spool file
+     * @throws IOException if the spool file cannot be created
+     */
+    public SpoolFile create() throws IOException {
+        File file = pooledFiles.poll();
+        if (file != null) {
+            pooledCount.decrementAndGet();
+        }
+        else {
+            if (!directory.exists() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Failed to create spool directory " + directory);
+            }
+            Object event = LuwakEvents.beginSpoolFile();
+            file = File.createTempFile(FILE_PREFIX, null, directory);
+            LuwakEvents.endSpoolFile(event, file);
+            LOGGER.debug("Spool file {} created", file);
+        }
+        activeFiles.incrementAndGet();
+        return new SpoolFile(this, file, maxFileSize);
+    }
+
+    /**
+     * Get the directory where the spool files are created
+     *
+     * @return the spool directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the maximum total size of all spool files
+     *
+     * @return the disk quota in bytes
+     */
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Get the maximum size of a single spool file
+     *
+     * @return the maximum spool file size in bytes
+     */
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Get the total size of all spool files currently in use
+     *
+     * @return the disk usage in bytes
+     */
+    public long getUsage() {
+        return usage.get();
+    }
+
+    /**
+     * Get the number of spool files currently in use
+     *
+     * @return the number of active spool files
+     */
+    public int getActiveFiles() {
+        return activeFiles.get();
+    }
+
+    /**
+     * Reserve disk space for the specified number of bytes
+     *
+     * @param bytes number of bytes to be reserved
+     * @throws InsufficientStorageException if the reservation exceeds the disk quota
+     */
+    void reserve(long bytes) throws InsufficientStorageException {
+        long current;
+        do {
+            current = usage.get();
+            if (current + bytes > quota) {
+                throw new InsufficientStorageException("Spool quota of " + quota
+                        + " bytes exceeded");
+            }
+        } while (!usage.compareAndSet(current, current + bytes));
+    }
+
+    /**
+     * Release a spool file, returning its reserved disk space. The file is either kept for reuse
+     * or deleted.
+     */
+    void release(File file, long reserved) {
+        usage.addAndGet(-reserved);
+        activeFiles.decrementAndGet();
+
+        if (pooledCount.incrementAndGet() <= maxPooledFiles && truncate(file)) {
+            pooledFiles.offer(file);
+            return;
+        }
+        pooledCount.decrementAndGet();
+        if (!file.delete() && file.exists()) {
+            LOGGER.warn("Failed to delete spool file {}", file);
+        }
+    }
+
+    private boolean truncate(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            return true;
+        }
+        catch (IOException e) {
+            LOGGER.warn("Failed to truncate spool file {}", file, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package io.luwak.http.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import io.luwak.jfr.LuwakEvents;
+
+/**
+ * Output stream that keeps the written content in memory as long as the content is not bigger than
+ * a configured size and the {@link MemoryBudget} has room for it. Otherwise the content is spilled
+ * to a spool file obtained from a {@link SpoolManager} and everything written afterwards goes
+ * straight to the spool file.
+ *
+ * The memory reserved for the in-memory content stays reserved after the stream has been closed;
+ * it is handed over to the owner of the content (see {@link #getReserved()}) or released with
+ * {@link #discard()}.
+ *
+ */
+public class SpoolingOutputStream extends OutputStream {
+
+    private static final int MIN_CAPACITY = 256;
+
+    private final long maxInMemorySize;
+    private final long maxSize;
+    private final MemoryBudget memoryBudget;
+    private final SpoolManager spoolManager;
+
+    private byte[] buffer;
+    private int count;
+    private long reserved;
+
+    private SpoolFile spoolFile;
+    private OutputStream spoolOut;
+    private long size;
+
+    /**
+     * Constructs a SpoolingOutputStream
+     *
+     * @param expectedSize the expected size of the content, or -1 if unknown
+     * @param maxInMemorySize maximum size of the content to be kept in memory
+     * @param maxSize maximum size of the content, or -1 for no limit
+     * @param memoryBudget the budget the in-memory content is accounted against, or null if the
+     *      in-memory content does not need to be accounted
+     * @param spoolManager the SpoolManager that provides the spool file
+     */
+    public SpoolingOutputStream(long expectedSize, long maxInMemorySize, long maxSize,
+            MemoryBudget memoryBudget, SpoolManager spoolManager) {
+        this.maxInMemorySize = maxInMemorySize;
+        this.maxSize = maxSize;
+        this.memoryBudget = memoryBudget;
+        this.spoolManager = spoolManager;
+
+        if (expectedSize > maxInMemorySize) {
+            // Will not fit in memory anyway
+            this.buffer = new byte[0];
+        }
+        else {
+            int capacity = (int) (expectedSize >= 0 ? expectedSize
+                    : Math.min(MIN_CAPACITY, maxInMemorySize));
+            this.buffer = reserve(capacity) ? new byte[capacity] : new byte[0];
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (maxSize >= 0 && size + len > maxSize) {
+            throw new PayloadTooLargeException("Content exceeds the limit of " + maxSize
+                    + " bytes");
+        }
+        size += len;
+
+        if (spoolOut == null && count + len > buffer.length && !grow(count + len)) {
+            spill();
+        }
+        if (spoolOut != null) {
+            spoolOut.write(b, off, len);
+        }
+        else {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (spoolOut != null) {
+            spoolOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spoolOut != null) {
+            spoolOut.close();
+        }
+    }
+
+    /**
+     * Return true if the content is kept in memory, false if it has been spilled to a spool file
+     *
+     * @return true if the content is kept in memory
+     */
+    public boolean isInMemory() {
+        return spoolFile == null;
+    }
+
+    /**
+     * Get the total number of bytes written to this stream
+     *
+     * @return the size of the content
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the in-memory content. The reservation is trimmed to the size of the content.
+     *
+     * @return the in-memory content, or null if the content has been spilled to a spool file
+     */
+    public byte[] toByteArray() {
+        if (spoolFile != null) {
+            return null;
+        }
+        if (buffer.length != count) {
+            buffer = Arrays.copyOf(buffer, count);
+            if (memoryBudget != null) {
+                memoryBudget.release(reserved - count);
+            }
+            reserved = count;
+        }
+        return buffer;
+    }
+
+    /**
+     * Get the spool file holding the content
+     *
+     * @return the spool file, or null if the content is kept in memory
+     */
+    public SpoolFile getSpoolFile() {
+        return spoolFile;
+    }
+
+    /**
+     * Get the number of bytes reserved from the memory budget for the in-memory content
+     *
+     * @return the number of reserved bytes
+     */
+    public long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Discard the content, releasing the memory reservation and the spool file (if any)
+     */
+    public void discard() {
+        if (spoolOut != null) {
+            try {
+                spoolOut.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+        if (spoolFile != null) {
+            spoolFile.release();
+        }
+        releaseReservation();
+        buffer = new byte[0];
+        count = 0;
+    }
+
+    private boolean grow(int minCapacity) {
+        if (minCapacity > maxInMemorySize) {
+            return false;
+        }
+        int newCapacity = (int) Math.min(maxInMemorySize,
+                Math.max(minCapacity, (long) buffer.length * 2));
+        if (!reserve(newCapacity - buffer.length)) {
+            return false;
+        }
+        buffer = Arrays.copyOf(buffer, newCapacity);
+        return true;
+    }
+
+    private boolean reserve(long bytes) {
+        if (memoryBudget != null && !memoryBudget.tryReserve(bytes)) {
+            return false;
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    private void spill() throws IOException {
+        Object event = LuwakEvents.beginSpill();
+        spoolFile = spoolManager.create();
+        spoolOut = spoolFile.getOutputStream();
+        spoolOut.write(buffer, 0, count);
+        LuwakEvents.endSpill(event, spoolFile.getFile(), count);
+        releaseReservation();
+        buffer = null;
+        count = 0;
+    }
+
+    private void releaseReservation() {
+        if (memoryBudget != null) {
+            memoryBudget.release(reserved);
+        }
+        reserved = 0;
+    }
+}
@@ -0,0 +1,111 @@
+package io.luwak.http.message;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A map of a guarded recyclable message, which runs the guard of the message before every use so
+ * that a reference to the map kept beyond the lifetime of the message fails as well
+ *
+ */
+final class GuardedMap extends AbstractMap<String, String> {
+
+    private final Map<String, String> map = new LinkedHashMap<>();
+    private final Runnable guard;
+    private final Set<Map.Entry<String, String>> entrySet = new EntrySet();
+
+    /**
+     * Constructs a GuardedMap
+     *
+     * @param guard throws an IllegalStateException once the message has been recycled
+     */
+    GuardedMap(Runnable guard) {
+        this.guard = guard;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        guard.run();
+        return entrySet;
+    }
+
+    @Override
+    public int size() {
+        guard.run();
+        return map.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        guard.run();
+        return map.containsKey(key);
+    }
+
+    @Override
+    public String get(Object key) {
+        guard.run();
+        return map.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        guard.run();
+        return map.put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        guard.run();
+        return map.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        guard.run();
+        map.clear();
+    }
+
+    /** The entries, whose iterators run the guard as well */
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            guard.run();
+            Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+            return new Iterator<Map.Entry<String, String>>() {
+
+                @Override
+                public boolean hasNext() {
+                    guard.run();
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    guard.run();
+                    return iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    guard.run();
+                    iterator.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return GuardedMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            GuardedMap.this.clear();
+        }
+    }
+}
@@ -1,16 +1,13 @@
 package io.luwak.http.message;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
@@ -19,6 +16,13 @@ import org.slf4j.LoggerFactory;
 import io.luwak.http.io.ChunkedInputStream;
 import io.luwak.http.io.ChunkedOutputStream;
 import io.luwak.http.io.FixedSizeInputStream;
+import io.luwak.http.io.InflaterPool;
+import io.luwak.http.io.InflatingInputStream;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.PayloadTooLargeException;
+import io.luwak.http.io.SpoolFile;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.io.SpoolingOutputStream;
 
 /**
  * A representation of an HTTP Entity (body) message. The body message may come from either a fixed
@@ -30,20 +34,45 @@ import io.luwak.http.io.FixedSizeInputStream;
  */
 public class HttpEntity {
 
-    private static final int BUFFER_SIZE = 2 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
     private static final int MEMORY_CACHE_LIMIT = 100 * 1024;
     private static final int REQUEST_BUFFER_LEN = 1024;
 
+    private static final String GZIP = "gzip";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpEntity.class);
 
+    /** Limits for entities read without explicit limits */
+    private static final HttpEntityLimits DEFAULT_LIMITS = new HttpEntityLimits();
+    static {
+        DEFAULT_LIMITS.setMaxInMemorySize(MEMORY_CACHE_LIMIT);
+    }
+
     private final boolean chunked;
     private boolean gzip;
+    private int chunkSize = ChunkedOutputStream.DEFAULT_CHUNK_SIZE;
 
     private byte[] outBytes;
     private File outFile;
+    private SpoolFile outSpool;
 
     private File contentFile;
     private byte[] contentBytes;
+    private SpoolFile contentSpool;
+
+    /** Content streamed from a connection, it can only be read once */
+    private InputStream contentStream;
+    private long contentStreamLength = -1;
+
+    private SpoolManager spoolManager;
+
+    private MemoryBudget memoryBudget;
+    private long reservedMemory;
+
+    /** The entity whose content is shared by this entity, see {@link #share()} */
+    private HttpEntity sharedEntity;
+    /** Number of holders of this entity, the content is released when the last one releases it */
+    private int references = 1;
 
     /**
      * Create a new HttpEntity from the given file. The file contains un-compressed and un-chunked
@@ -86,6 +115,141 @@ public class HttpEntity {
         this.gzip = gzip;
     }
 
+    /**
+     * Create a new HttpEntity from a byte array whose memory is accounted against the specified
+     * memory budget. The reservation is released together with this entity (see
+     * {@link #release()}).
+     */
+    private HttpEntity(byte[] buffer, MemoryBudget memoryBudget, long reservedMemory,
+            boolean chunked, boolean gzip) {
+        this(buffer, chunked, gzip);
+        this.memoryBudget = memoryBudget;
+        this.reservedMemory = reservedMemory;
+    }
+
+    /**
+     * Create a new HttpEntity from a spool file owned by this entity. The spool file is released
+     * together with this entity (see {@link #release()}).
+     */
+    private HttpEntity(SpoolFile spoolFile, SpoolManager spoolManager, boolean chunked,
+            boolean gzip) {
+        this.contentSpool = spoolFile;
+        this.contentFile = spoolFile.getFile();
+        this.spoolManager = spoolManager;
+        this.chunked = chunked;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Create a new HttpEntity sharing the content of the specified entity.
+     */
+    private HttpEntity(HttpEntity sharedEntity) {
+        this.sharedEntity = sharedEntity;
+        this.chunked = sharedEntity.chunked;
+        this.gzip = sharedEntity.gzip;
+    }
+
+    /**
+     * Create a new HttpEntity whose content is streamed from an input stream.
+     */
+    private HttpEntity(InputStream contentStream, long length, boolean chunked) {
+        this.contentStream = contentStream;
+        this.contentStreamLength = length;
+        this.chunked = chunked;
+    }
+
+    /**
+     * Create a new HttpEntity whose content is streamed from the specified input stream, e.g. the
+     * body of a message that is still being received. The content is neither buffered nor
+     * transformed: {@link #writeTo(OutputStream)} copies it through a bounded buffer, flushing
+     * whenever it has to wait for more input, so that it is forwarded as soon as it arrives. The
+     * content can only be read once, the input stream is closed when the entity is released.
+     *
+     * @param in the input stream of the (un-chunked) content
+     * @param length the length of the content, or -1 if unknown
+     * @param chunked whether the content is to be chunked
+     * @return a new streaming HttpEntity
+     */
+    public static HttpEntity fromStream(InputStream in, long length, boolean chunked) {
+        if (in == null) {
+            throw new NullPointerException("in is null");
+        }
+        return new HttpEntity(in, length, chunked);
+    }
+
+    /**
+     * Return true if the content of this entity is streamed from an input stream, see
+     * {@link #fromStream(InputStream, long, boolean)}
+     *
+     * @return true if this entity is streamed
+     */
+    public boolean isStreaming() {
+        return contentStream != null;
+    }
+
+    /**
+     * Create an entity sharing the content of this entity, so that the same content can be sent
+     * in several responses without being copied. The content (and its transformed cache) is
+     * released once this entity and all the entities sharing it have been released. A streaming
+     * entity can't be shared, see {@link #toReplayable()}.
+     *
+     * @return a new HttpEntity sharing the content of this entity
+     */
+    public HttpEntity share() {
+        if (sharedEntity != null) {
+            return sharedEntity.share();
+        }
+        synchronized (this) {
+            if (contentStream != null) {
+                throw new IllegalStateException("A streaming entity can't be shared");
+            }
+            if (references <= 0) {
+                throw new IllegalStateException("The entity has been released");
+            }
+            references++;
+        }
+        return new HttpEntity(this);
+    }
+
+    /**
+     * Return an entity whose content can be read and sent several times, with the default limits,
+     * memory budget and SpoolManager. See
+     * {@link #toReplayable(HttpEntityLimits, MemoryBudget, SpoolManager)}.
+     *
+     * @return this entity, or a new HttpEntity holding the content of this streaming entity
+     * @throws IOException if IOException occurs while reading the streamed content
+     */
+    public HttpEntity toReplayable() throws IOException {
+        return toReplayable(DEFAULT_LIMITS, MemoryBudget.getDefault(), SpoolManager.getDefault());
+    }
+
+    /**
+     * Return an entity whose content can be read and sent several times. A streaming entity is
+     * read into memory within the limits and the memory budget, or into a spool file if it is
+     * large, and released; any other entity is returned as is.
+     *
+     * @param limits the limits applied to the content, see {@link HttpEntityLimits}
+     * @param memoryBudget the memory budget for in-memory content, or null if it does not need to
+     *      be accounted
+     * @param spoolManager the SpoolManager that provides the spool file
+     * @return this entity, or a new HttpEntity holding the content of this streaming entity
+     * @throws IOException if IOException occurs while reading the streamed content, or
+     *      {@link io.luwak.http.io.PayloadTooLargeException} if it exceeds the limits
+     */
+    public HttpEntity toReplayable(HttpEntityLimits limits, MemoryBudget memoryBudget,
+            SpoolManager spoolManager) throws IOException {
+        if (contentStream == null) {
+            return this;
+        }
+        try {
+            return readEntity(contentStream, contentStreamLength, chunked, false, limits,
+                    memoryBudget, spoolManager);
+        }
+        finally {
+            release();
+        }
+    }
+
     /**
      * Return true if this HTTP Entity is chunked, false otherwise.
      * 
@@ -95,6 +259,18 @@ public class HttpEntity {
         return chunked;
     }
 
+    /**
+     * Set the maximum chunk size used when this entity is written in chunked encoding.
+     *
+     * @param chunkSize maximum size of a chunk's data
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
     /**
      * Return true if this HTTP Entity is gzip compressed, false otherwise.
      * 
@@ -107,11 +283,18 @@ public class HttpEntity {
     /**
      * Get the content of the entity. It is the responsibility of the caller to close the returned
      * input stream once the content has been read successfully. This method will always return a
-     * new input stream based on the underlying message (byte array or file).
+     * new input stream based on the underlying message (byte array or file), except for a
+     * streaming entity, whose single input stream is returned.
      *
      * @return content input stream
      */
     public InputStream getContent() {
+        if (sharedEntity != null) {
+            return sharedEntity.getContent();
+        }
+        if (contentStream != null) {
+            return contentStream;
+        }
         try {
             return contentBytes != null ?
                     new ByteArrayInputStream(contentBytes) : new FileInputStream(contentFile);
@@ -124,14 +307,48 @@ public class HttpEntity {
     /**
      * Clear any temporary file cache associated with this entity. 
      */
-    public void clearTempCache() {
-        if (outFile != null) {
+    public synchronized void clearTempCache() {
+        if (outSpool != null) {
+            outSpool.release();
+            outSpool = null;
+            outFile = null;
+        }
+    }
+
+    /**
+     * Release all temporary files associated with this entity, including the temporary file
+     * holding the content of an entity read with {@link #fromInputStream(InputStream, long, boolean)}
+     * or {@link #fromChunkedInputStream(InputStream, boolean)}, and return the memory held by this
+     * entity to its memory budget. The entity must not be used after it has been released. The
+     * content of a shared entity is only released by the last of its holders.
+     */
+    public synchronized void release() {
+        if (--references > 0) {
+            return;
+        }
+        if (sharedEntity != null) {
+            if (references == 0) {
+                sharedEntity.release();
+            }
+            return;
+        }
+        clearTempCache();
+        if (contentStream != null) {
             try {
-                outFile.delete();
+                contentStream.close();
             }
-            catch (Exception e) {
+            catch (IOException e) {
+                LOGGER.debug("Exception caught while closing content stream", e);
             }
-            outFile = null;
+        }
+        if (contentSpool != null) {
+            contentSpool.release();
+            contentSpool = null;
+        }
+        if (memoryBudget != null) {
+            memoryBudget.release(reservedMemory);
+            memoryBudget = null;
+            reservedMemory = 0;
         }
     }
 
@@ -149,6 +366,12 @@ public class HttpEntity {
         if (chunked) {
             return -1;
         }
+        if (sharedEntity != null) {
+            return sharedEntity.getLength();
+        }
+        if (contentStream != null) {
+            return contentStreamLength;
+        }
 
         ensureCache();
 
@@ -162,24 +385,30 @@ public class HttpEntity {
         return -1;
     }
 
-    private void ensureCache() throws IOException {
+    private synchronized void ensureCache() throws IOException {
         if (outBytes == null && outFile == null) {
             InputStream in = null;
             OutputStream out = null;
             ByteArrayOutputStream baos = null;
 
             if (contentBytes != null) {
+                if (!gzip) {
+                    // Nothing to transform, the content is sent as it is
+                    outBytes = contentBytes;
+                    return;
+                }
                 in = new ByteArrayInputStream(contentBytes);
-                baos = new ByteArrayOutputStream(MEMORY_CACHE_LIMIT);
-                out = gzip ? new GZIPOutputStream(baos) : baos;
+                baos = new ByteArrayOutputStream(Math.min(contentBytes.length + 32,
+                        MEMORY_CACHE_LIMIT));
+                out = new GZIPOutputStream(baos);
             }
             else {
                 if (gzip) {
                     in = new FileInputStream(contentFile);
 
-                    outFile = getTmpFile(); 
-                    FileOutputStream fout = new FileOutputStream(outFile);
-                    out = gzip ? new GZIPOutputStream(fout) : fout;
+                    outSpool = getSpoolManager().create();
+                    outFile = outSpool.getFile();
+                    out = new GZIPOutputStream(outSpool.getOutputStream());
                 }
                 else {
                     outFile = contentFile;
@@ -187,19 +416,28 @@ public class HttpEntity {
             }
 
             if (in != null) {
-                byte[] buffer = new byte[REQUEST_BUFFER_LEN];
-                int n = 0;
-                while (-1 != (n = in.read(buffer))) {
-                    out.write(buffer, 0, n);
+                try {
+                    byte[] buffer = new byte[REQUEST_BUFFER_LEN];
+                    int n = 0;
+                    while (-1 != (n = in.read(buffer))) {
+                        out.write(buffer, 0, n);
+                    }
+
+                    out.flush();
+                    out.close();
+
+                    if (baos != null) {
+                        outBytes = baos.toByteArray();
+                    }
                 }
-
-                if (baos != null) {
-                    outBytes = baos.toByteArray();
+                catch (IOException e) {
+                    // Do not keep a partially written cache
+                    clearTempCache();
+                    throw e;
+                }
+                finally {
+                    in.close();
                 }
-
-                out.flush();
-                out.close();
-                in.close();
             }
         }
     }
@@ -213,27 +451,46 @@ public class HttpEntity {
      * @throws IOException
      */
     public void writeTo(OutputStream out) throws IOException {
-        try {
-            LOGGER.debug("Write to {} chunked={} gzip={}", out, chunked, gzip);
+        writeTo(out, chunked);
+    }
 
-            ensureCache();
+    /**
+     * Write the content of this entity, compressed if needed but without the chunked transfer
+     * coding, for protocols which frame the content themselves such as HTTP/2
+     *
+     * @param out the output stream to write the content to
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeContentTo(OutputStream out) throws IOException {
+        writeTo(out, false);
+    }
 
-            InputStream in = null;
-            if (outBytes != null) {
-                in = new ByteArrayInputStream(outBytes);
-            }
-            else if (outFile != null) {
-                in = new FileInputStream(outFile);
-            }
+    private void writeTo(OutputStream out, boolean chunked) throws IOException {
+        if (sharedEntity != null) {
+            sharedEntity.writeTo(out, chunked);
+            return;
+        }
+        if (contentStream != null) {
+            writeStreamTo(out, chunked);
+            return;
+        }
+        LOGGER.debug("Write to {} chunked={} gzip={}", out, chunked, gzip);
+
+        ensureCache();
 
-            OutputStream os = chunked ? new ChunkedOutputStream(out) : out;
+        // Errors are propagated, a message cut short must not be followed by another one on the
+        // same connection
+        try (InputStream in = outBytes != null ? new ByteArrayInputStream(outBytes)
+                : new FileInputStream(outFile)) {
+            // Chunks are coalesced by the ChunkedOutputStream, flushing is left to the end so
+            // that the content is not split into tiny chunks
+            OutputStream os = chunked ? new ChunkedOutputStream(out, chunkSize) : out;
 
             byte[] buff = new byte[BUFFER_SIZE];
 
             int read = -1;
             while ((read = in.read(buff)) != -1) {
                 os.write(buff, 0, read);
-                os.flush();
             }
 
             if (chunked) {
@@ -241,13 +498,27 @@ public class HttpEntity {
             }
 
             os.flush();
-            in.close();
+        }
+    }
 
-            // clearTempCache();
+    private void writeStreamTo(OutputStream out, boolean chunked) throws IOException {
+        OutputStream os = chunked ? new ChunkedOutputStream(out, chunkSize) : out;
+        byte[] buff = new byte[BUFFER_SIZE];
+        while (true) {
+            if (contentStream.available() == 0) {
+                // Forward what has been received so far before blocking for more
+                os.flush();
+            }
+            int read = contentStream.read(buff);
+            if (read == -1) {
+                break;
+            }
+            os.write(buff, 0, read);
         }
-        catch (Exception e) {
-            e.printStackTrace();
+        if (chunked) {
+            ((ChunkedOutputStream) os).finish();
         }
+        os.flush();
     }
 
     /**
@@ -261,83 +532,196 @@ public class HttpEntity {
      */
     public static HttpEntity fromChunkedInputStream(InputStream in, boolean gzip)
             throws IOException {
-        ChunkedInputStream chunkedIn = new ChunkedInputStream(in);
-
-        File tmpFile = getTmpFile();
+        return fromChunkedInputStream(in, gzip, SpoolManager.getDefault());
+    }
 
-        InputStream contentIn = gzip ? new GZIPInputStream(chunkedIn) : chunkedIn;
-        FileOutputStream fout = new FileOutputStream(tmpFile);
+    /**
+     * Read a chunked HTTP entity and return a new HttpEntity instance which contains the entity in
+     * non-chunked and non-gzipped format. Large entities are stored in a spool file obtained from
+     * the specified SpoolManager.
+     * 
+     * @param in the InputStream that is holding the HTTP Entity
+     * @param gzip whether the InputStream contains gzipped chunked entity
+     * @param spoolManager the SpoolManager that provides the spool file
+     * @return a new HttpEntity instance that contains the non-chunked message
+     * @throws IOException if IOException occurs during reading of the entity
+     */
+    public static HttpEntity fromChunkedInputStream(InputStream in, boolean gzip,
+            SpoolManager spoolManager) throws IOException {
+        return fromChunkedInputStream(in, gzip ? GZIP : null, DEFAULT_LIMITS, null, spoolManager);
+    }
 
-        int rlen = 0;
-        byte[] buf = new byte[REQUEST_BUFFER_LEN];
-        while (rlen >= 0) {
-            rlen = contentIn.read(buf);
-            if (rlen > 0) {
-                fout.write(buf, 0, rlen);
-            }
-        }
+    /**
+     * Read a chunked HTTP entity and return a new HttpEntity instance which contains the entity in
+     * non-chunked and decoded format. A gzip or deflate encoded entity is decoded while it is
+     * being read. The entity is kept in memory if it is within the in-memory size limit and the
+     * memory budget has room for it, otherwise it is stored in a spool file obtained from the
+     * specified SpoolManager.
+     * 
+     * @param in the InputStream that is holding the HTTP Entity
+     * @param contentEncoding the content encoding of the entity (gzip, deflate), or null
+     * @param limits the limits applied to the entity
+     * @param memoryBudget the memory budget for in-memory entities, or null if in-memory entities
+     *      do not need to be accounted
+     * @param spoolManager the SpoolManager that provides the spool file
+     * @return a new HttpEntity instance that contains the non-chunked message
+     * @throws IOException if IOException occurs during reading of the entity
+     */
+    public static HttpEntity fromChunkedInputStream(InputStream in, String contentEncoding,
+            HttpEntityLimits limits, MemoryBudget memoryBudget, SpoolManager spoolManager)
+            throws IOException {
+        ChunkedInputStream chunkedIn = new ChunkedInputStream(in);
+        InputStream contentIn = decode(chunkedIn, contentEncoding, limits);
+        return readEntity(contentIn, -1, true, GZIP.equalsIgnoreCase(contentEncoding), limits,
+                memoryBudget, spoolManager);
+    }
 
-        contentIn.close();
-        fout.close();
+    /**
+     * Read a fixed size HTTP entity and return a new HttpEntity instance which contains the entity
+     * in non-gzipped format.
+     *
+     * @param in the InputStream that is holding the HTTP Entity
+     * @param size the size of the HTTP entity (Content-Length)
+     * @param gzip whether the InputStream contains gzipped entity
+     * @return a new HttpEntity instance that contains the message
+     * @throws IOException if IOException occurs during reading of the entity
+     */
+    public static HttpEntity fromInputStream(InputStream in, long size, boolean gzip)
+            throws IOException {
+        return fromInputStream(in, size, gzip, SpoolManager.getDefault());
+    }
 
-        return new HttpEntity(new File(tmpFile.getAbsolutePath()), true, gzip);
+    /**
+     * Read a fixed size HTTP entity and return a new HttpEntity instance which contains the entity
+     * in non-gzipped format. Large entities are stored in a spool file obtained from the specified
+     * SpoolManager.
+     *
+     * @param in the InputStream that is holding the HTTP Entity
+     * @param size the size of the HTTP entity (Content-Length)
+     * @param gzip whether the InputStream contains gzipped entity
+     * @param spoolManager the SpoolManager that provides the spool file
+     * @return a new HttpEntity instance that contains the message
+     * @throws IOException if IOException occurs during reading of the entity
+     */
+    public static HttpEntity fromInputStream(InputStream in, long size, boolean gzip,
+            SpoolManager spoolManager) throws IOException {
+        return fromInputStream(in, size, gzip ? GZIP : null, DEFAULT_LIMITS, null, spoolManager);
     }
 
-    public static HttpEntity fromInputStream(InputStream in, long size, boolean gzip)
+    /**
+     * Read a fixed size HTTP entity and return a new HttpEntity instance which contains the entity
+     * in decoded format. A gzip or deflate encoded entity is decoded while it is being read. The
+     * entity is kept in memory if it is within the in-memory size limit and the memory budget has
+     * room for it, otherwise it is stored in a spool file obtained from the specified
+     * SpoolManager.
+     *
+     * @param in the InputStream that is holding the HTTP Entity
+     * @param size the size of the HTTP entity (Content-Length), or -1 if the entity ends at the
+     *      end of the input stream (a response without Content-Length that is delimited by closing
+     *      the connection)
+     * @param contentEncoding the content encoding of the entity (gzip, deflate), or null
+     * @param limits the limits applied to the entity
+     * @param memoryBudget the memory budget for in-memory entities, or null if in-memory entities
+     *      do not need to be accounted
+     * @param spoolManager the SpoolManager that provides the spool file
+     * @return a new HttpEntity instance that contains the message
+     * @throws IOException if IOException occurs during reading of the entity
+     */
+    public static HttpEntity fromInputStream(InputStream in, long size, String contentEncoding,
+            HttpEntityLimits limits, MemoryBudget memoryBudget, SpoolManager spoolManager)
             throws IOException {
-        File tmpFile = null;
-        OutputStream out = null;
-
-        // If the content is gzipped, the FixedSizeInputStream must be enclosed in another
-        // BufferedInputStream, Otherwise GZIPInputStream will fail with this exception:
-        // java.util.zip.ZipException: invalid block type
-        //     at java.util.zip.InflaterInputStream.read(InflaterInputStream.java:164)
-        //     at java.util.zip.GZIPInputStream.read(GZIPInputStream.java:117)
-        //     at com.ibm.taiss.http.messages.entity.HttpEntity.fromInputStream(HttpEntity.java:301)
-        FixedSizeInputStream fixedIn = new FixedSizeInputStream(in, size);
-        InputStream contentIn = gzip ?
-                new GZIPInputStream(new BufferedInputStream(fixedIn)) : fixedIn;
-
-        // Store the request in memory or a file, depending on size.
-        // For gzip, force into file (as depending on the content, gzipped content might achieve
-        // very high compression ratio
-        if (size < MEMORY_CACHE_LIMIT && !gzip) {
-            out = new ByteArrayOutputStream();
+        // Closing the FixedSizeInputStream drains the rest of the body but leaves the underlying
+        // input stream open, so the connection can be reused
+        InputStream bodyIn = size >= 0 ? new FixedSizeInputStream(in, size) : in;
+        InputStream contentIn = decode(bodyIn, contentEncoding, limits);
+        boolean encoded = contentIn != bodyIn;
+
+        if (!encoded && limits.getMaxBodySize() >= 0 && size > limits.getMaxBodySize()) {
+            throw new PayloadTooLargeException("Content-Length " + size
+                    + " exceeds the limit of " + limits.getMaxBodySize() + " bytes");
         }
-        else {
-            tmpFile = getTmpFile();
-            out = new FileOutputStream(tmpFile);
+        return readEntity(contentIn, encoded ? -1 : size, false,
+                GZIP.equalsIgnoreCase(contentEncoding), limits, memoryBudget, spoolManager);
+    }
+
+    /**
+     * Wrap the input stream with a decoder for the specified content encoding. Content encodings
+     * other than gzip and deflate are not decoded.
+     */
+    private static InputStream decode(InputStream in, String contentEncoding,
+            HttpEntityLimits limits) {
+        InflatingInputStream.Format format = null;
+        if (GZIP.equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            format = InflatingInputStream.Format.GZIP;
+        }
+        else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            format = InflatingInputStream.Format.DEFLATE;
+        }
+        if (format == null) {
+            return in;
         }
+        return new InflatingInputStream(in, format, limits.getMaxInflatedSize(),
+                limits.getMaxInflationRatio(), InflaterPool.getDefault());
+    }
 
-        // Read all the body and write it to request_data_output
-        int rlen = 0;
-        byte[] buf = new byte[REQUEST_BUFFER_LEN];
-        while (rlen >= 0) {
-            rlen = contentIn.read(buf, 0, REQUEST_BUFFER_LEN);
-            if (rlen > 0) {
-                out.write(buf, 0, rlen);
+    /**
+     * Read the (decoded) content into memory or a spool file and create an HttpEntity from it
+     */
+    private static HttpEntity readEntity(InputStream contentIn, long expectedSize,
+            boolean chunked, boolean gzip, HttpEntityLimits limits, MemoryBudget memoryBudget,
+            SpoolManager spoolManager) throws IOException {
+        SpoolingOutputStream out = new SpoolingOutputStream(expectedSize,
+                limits.getMaxInMemorySize(), limits.getMaxBodySize(), memoryBudget, spoolManager);
+        try {
+            int rlen = 0;
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (rlen >= 0) {
+                rlen = contentIn.read(buf, 0, buf.length);
+                if (rlen > 0) {
+                    out.write(buf, 0, rlen);
+                }
             }
-        }
 
-        contentIn.close();
-        out.close();
+            contentIn.close();
+            out.close();
+        }
+        catch (IOException | RuntimeException e) {
+            out.discard();
+            // A decoder gives its inflater back to the pool when it is closed
+            try {
+                contentIn.close();
+            }
+            catch (IOException | RuntimeException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
+        return fromSpooled(out, chunked, gzip, memoryBudget, spoolManager);
+    }
 
-        if (out instanceof ByteArrayOutputStream) {
-            byte[] content = ((ByteArrayOutputStream) out).toByteArray();
-            return new HttpEntity(content, false, gzip);
+    /**
+     * Create a new HttpEntity taking over the content of a closed SpoolingOutputStream, together
+     * with its memory reservation or its spool file
+     *
+     * @param out the closed SpoolingOutputStream holding the content
+     * @param chunked whether the content is to be chunked
+     * @param gzip whether the content is to be gzip compressed
+     * @param memoryBudget the memory budget the stream reserved the in-memory content from
+     * @param spoolManager the SpoolManager that provided the spool file of the stream
+     * @return the HttpEntity
+     */
+    public static HttpEntity fromSpooled(SpoolingOutputStream out, boolean chunked, boolean gzip,
+            MemoryBudget memoryBudget, SpoolManager spoolManager) {
+        if (out.isInMemory()) {
+            byte[] content = out.toByteArray();
+            return new HttpEntity(content, memoryBudget, out.getReserved(), chunked, gzip);
         }
         else {
-            // randomAccessFile.close();
-            return new HttpEntity(new File(tmpFile.getAbsolutePath()), false, gzip);
+            return new HttpEntity(out.getSpoolFile(), spoolManager, chunked, gzip);
         }
     }
 
-    private static File getTmpFile() throws IOException {
-        File tmpdir = new File(System.getProperty("java.io.tmpdir"));
-        if (!tmpdir.exists()) {
-            tmpdir.mkdirs();
-        }
-        File tmpFile = File.createTempFile(HttpEntity.class.getSimpleName(), null, tmpdir);
-        return tmpFile;
+    private SpoolManager getSpoolManager() {
+        return spoolManager != null ? spoolManager : SpoolManager.getDefault();
     }
 }
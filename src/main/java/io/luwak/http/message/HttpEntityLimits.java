@@ -0,0 +1,122 @@
+package io.luwak.http.message;
+
+/**
+ * Limits applied when an HTTP entity (body) is read from an input stream
+ *
+ */
+public class HttpEntityLimits {
+
+    public static final long DEFAULT_MAX_IN_MEMORY_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_INFLATED_SIZE = 100L * 1024 * 1024;
+    public static final double DEFAULT_MAX_INFLATION_RATIO = 100;
+
+    private long maxInMemorySize = DEFAULT_MAX_IN_MEMORY_SIZE;
+    private long maxBodySize = -1;
+    private long maxInflatedSize = DEFAULT_MAX_INFLATED_SIZE;
+    private double maxInflationRatio = DEFAULT_MAX_INFLATION_RATIO;
+    private boolean streaming;
+
+    /**
+     * Get the maximum size of a body that is kept in memory (as long as the memory budget allows),
+     * bigger bodies are stored in a spool file
+     *
+     * @return the maximum size of a body kept in memory
+     */
+    public long getMaxInMemorySize() {
+        return maxInMemorySize;
+    }
+
+    /**
+     * Set the maximum size of a body that is kept in memory (as long as the memory budget allows),
+     * bigger bodies are stored in a spool file
+     *
+     * @param maxInMemorySize the maximum size of a body kept in memory
+     */
+    public void setMaxInMemorySize(long maxInMemorySize) {
+        this.maxInMemorySize = Math.min(maxInMemorySize, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Get the maximum size of a body, -1 if there is no limit other than the spool file size
+     *
+     * @return the maximum size of a body
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Set the maximum size of a body, -1 if there is no limit other than the spool file size.
+     * Bigger bodies are rejected with 413 (Payload Too Large).
+     *
+     * @param maxBodySize the maximum size of a body
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Get the maximum size of a gzip or deflate encoded body once it is decoded, -1 if there is no
+     * limit
+     *
+     * @return the maximum inflated size of a body
+     */
+    public long getMaxInflatedSize() {
+        return maxInflatedSize;
+    }
+
+    /**
+     * Set the maximum size of a gzip or deflate encoded body once it is decoded, -1 if there is no
+     * limit. Bodies that inflate beyond the limit are rejected with 413 (Payload Too Large) as
+     * soon as the limit is crossed.
+     *
+     * @param maxInflatedSize the maximum inflated size of a body
+     */
+    public void setMaxInflatedSize(long maxInflatedSize) {
+        this.maxInflatedSize = maxInflatedSize;
+    }
+
+    /**
+     * Get the maximum ratio of decoded to encoded size of a gzip or deflate encoded body, 0 if
+     * there is no limit
+     *
+     * @return the maximum inflation ratio
+     */
+    public double getMaxInflationRatio() {
+        return maxInflationRatio;
+    }
+
+    /**
+     * Set the maximum ratio of decoded to encoded size of a gzip or deflate encoded body, 0 if
+     * there is no limit. The ratio is only enforced once the body has inflated beyond
+     * {@link io.luwak.http.io.InflatingInputStream#RATIO_CHECK_THRESHOLD} bytes, bodies that
+     * exceed the ratio are rejected with 413 (Payload Too Large).
+     *
+     * @param maxInflationRatio the maximum inflation ratio
+     */
+    public void setMaxInflationRatio(double maxInflationRatio) {
+        this.maxInflationRatio = maxInflationRatio;
+    }
+
+    /**
+     * Return true if bodies are streamed instead of being read before the request is served
+     *
+     * @return true if bodies are streamed
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Set whether bodies are streamed instead of being read before the request is served. A
+     * streamed body (see {@link HttpEntity#fromStream(java.io.InputStream, long, boolean)}) is
+     * read from the connection while the request is being served, e.g. by a proxy, and can only
+     * be read once. Content encodings are not decoded and the maximum body size is only checked
+     * against the Content-Length, the other limits do not apply.
+     *
+     * @param streaming true to stream bodies
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+}
@@ -53,6 +53,14 @@ public class HttpRequest {
      */
     public HttpRequest(HttpMethod method, String uriPath, Map<String, String> queries,
             String httpVersion, Map<String, String> headers, HttpEntity body) {
+        set(method, uriPath, queries, httpVersion, headers, body);
+    }
+
+    /**
+     * Replace the content of this request, for subclasses reusing a request object
+     */
+    protected void set(HttpMethod method, String uriPath, Map<String, String> queries,
+            String httpVersion, Map<String, String> headers, HttpEntity body) {
         this.method = method;
         this.uriPath = uriPath;
         this.queries = queries;
@@ -60,7 +68,7 @@ public class HttpRequest {
         this.headers = headers;
         this.body = body;
 
-        this.requestUri = getRequestUri(uriPath, queries);
+        this.requestUri = uriPath != null ? getRequestUri(uriPath, queries) : null;
     }
 
     /**
@@ -38,6 +38,14 @@ public class HttpResponse {
      */
     public HttpResponse(String httpVersion, HttpStatus status, Map<String, String> headers,
             HttpEntity body) {
+        set(httpVersion, status, headers, body);
+    }
+
+    /**
+     * Replace the content of this response, for subclasses reusing a response object
+     */
+    protected void set(String httpVersion, HttpStatus status, Map<String, String> headers,
+            HttpEntity body) {
         this.httpVersion = httpVersion;
         this.status = status;
         this.headers = headers;
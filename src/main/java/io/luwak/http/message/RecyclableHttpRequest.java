@@ -0,0 +1,152 @@
+package io.luwak.http.message;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request object reused for the requests of a connection when the server recycles
+ * requests. The request, its query and header maps, and the response obtained with
+ * {@link #newResponse(HttpStatus, HttpEntity)} are only valid until the response has been sent:
+ * sessions must not keep references to them, nor to the maps, beyond
+ * {@code HttpSession.onResponseSent}.
+ *
+ * A guarded request is not reused: once recycled, any use of it, of its maps or of its response
+ * throws an IllegalStateException, which finds the sessions keeping references too long.
+ *
+ */
+public class RecyclableHttpRequest extends HttpRequest {
+
+    private final Map<String, String> queryMap;
+    private final Map<String, String> headerMap;
+    private final RecyclableHttpResponse response;
+    private final boolean guarded;
+    private volatile boolean recycled;
+
+    /**
+     * Constructs a RecyclableHttpRequest
+     *
+     * @param guarded true to fail any use of the request after it has been recycled, instead of
+     *      reusing it
+     */
+    public RecyclableHttpRequest(boolean guarded) {
+        super(null, null, null, null, null, null);
+        this.guarded = guarded;
+        this.queryMap = guarded ? new GuardedMap(this::checkNotRecycled) : new LinkedHashMap<>();
+        this.headerMap = guarded ? new GuardedMap(this::checkNotRecycled) : new LinkedHashMap<>();
+        this.response = new RecyclableHttpResponse(guarded);
+    }
+
+    /**
+     * Get the query map of the next request, cleared
+     *
+     * @return the query map
+     */
+    public Map<String, String> nextQueries() {
+        checkNotRecycled();
+        queryMap.clear();
+        return queryMap;
+    }
+
+    /**
+     * Get the header map of the next request, cleared
+     *
+     * @return the header map
+     */
+    public Map<String, String> nextHeaders() {
+        checkNotRecycled();
+        headerMap.clear();
+        return headerMap;
+    }
+
+    /**
+     * Fill this request with the next request read from the connection
+     *
+     * @param method the HTTP method
+     * @param uriPath the URI path of the request
+     * @param httpVersion HTTP version
+     * @param body HTTP Entity (body)
+     */
+    public void reset(HttpMethod method, String uriPath, String httpVersion, HttpEntity body) {
+        checkNotRecycled();
+        set(method, uriPath, queryMap, httpVersion, headerMap, body);
+    }
+
+    /**
+     * Get the response object of this request, with the specified status and body and an empty
+     * header map. Sessions can use it instead of creating a new HttpResponse.
+     *
+     * @param status the HTTP status
+     * @param body the response body
+     * @return the response of this request
+     */
+    public HttpResponse newResponse(HttpStatus status, HttpEntity body) {
+        checkNotRecycled();
+        response.reset(status, body);
+        return response;
+    }
+
+    /**
+     * End the lifetime of the current request and of its response, once the response has been
+     * sent and the bodies released
+     */
+    public void recycle() {
+        response.recycle();
+        if (guarded) {
+            recycled = true;
+        }
+        else {
+            queryMap.clear();
+            headerMap.clear();
+            set(null, null, queryMap, null, headerMap, null);
+        }
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        checkNotRecycled();
+        return super.getMethod();
+    }
+
+    @Override
+    public String getUriPath() {
+        checkNotRecycled();
+        return super.getUriPath();
+    }
+
+    @Override
+    public Map<String, String> getQueries() {
+        checkNotRecycled();
+        return super.getQueries();
+    }
+
+    @Override
+    public String getRequestUri() {
+        checkNotRecycled();
+        return super.getRequestUri();
+    }
+
+    @Override
+    public String getHttpVersion() {
+        checkNotRecycled();
+        return super.getHttpVersion();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        checkNotRecycled();
+        return super.getHeaders();
+    }
+
+    @Override
+    public HttpEntity getEntityBody() {
+        checkNotRecycled();
+        return super.getEntityBody();
+    }
+
+    private void checkNotRecycled() {
+        if (recycled) {
+            throw new IllegalStateException(
+                    "HttpRequest used after its response has been sent, it has been recycled");
+        }
+    }
+}
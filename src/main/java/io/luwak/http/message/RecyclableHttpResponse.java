@@ -0,0 +1,82 @@
+package io.luwak.http.message;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP response object reused for the responses of a connection, see
+ * {@link RecyclableHttpRequest#newResponse(HttpStatus, HttpEntity)}. Its header map is cleared
+ * and reused as well.
+ *
+ */
+public class RecyclableHttpResponse extends HttpResponse {
+
+    private final Map<String, String> headerMap;
+    private final boolean guarded;
+    private volatile boolean recycled;
+
+    /**
+     * Constructs a RecyclableHttpResponse
+     *
+     * @param guarded true to fail any use of the response after it has been recycled, instead of
+     *      reusing it
+     */
+    RecyclableHttpResponse(boolean guarded) {
+        super(DEFAULT_HTTP_VERSION, null, null, null);
+        this.guarded = guarded;
+        this.headerMap = guarded ? new GuardedMap(this::checkNotRecycled) : new LinkedHashMap<>();
+    }
+
+    /**
+     * Prepare the response of the current request
+     */
+    void reset(HttpStatus status, HttpEntity body) {
+        checkNotRecycled();
+        headerMap.clear();
+        set(DEFAULT_HTTP_VERSION, status, headerMap, body);
+    }
+
+    /**
+     * End the lifetime of the current response
+     */
+    void recycle() {
+        if (guarded) {
+            recycled = true;
+        }
+        else {
+            headerMap.clear();
+            set(DEFAULT_HTTP_VERSION, null, headerMap, null);
+        }
+    }
+
+    @Override
+    public String getHttpVersion() {
+        checkNotRecycled();
+        return super.getHttpVersion();
+    }
+
+    @Override
+    public HttpStatus getStatus() {
+        checkNotRecycled();
+        return super.getStatus();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        checkNotRecycled();
+        return super.getHeaders();
+    }
+
+    @Override
+    public HttpEntity getEntityBody() {
+        checkNotRecycled();
+        return super.getEntityBody();
+    }
+
+    private void checkNotRecycled() {
+        if (recycled) {
+            throw new IllegalStateException(
+                    "HttpResponse used after it has been sent, it has been recycled");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.luwak.http.message;
+
+import java.util.Map;
+
+/**
+ * An HTTP response held as the bytes sent on the wire: the status line, the headers and the
+ * (possibly chunked or compressed) body. It is sent with a single write, and can be sent any
+ * number of times since the bytes are never modified. The status and headers are kept for
+ * inspection only, the body is part of the message.
+ *
+ */
+public class SerializedHttpResponse extends HttpResponse {
+
+    private final byte[] message;
+    private final int headLength;
+
+    /**
+     * Constructs a SerializedHttpResponse
+     *
+     * @param httpVersion the HTTP version
+     * @param status the HTTP status
+     * @param headers HTTP response headers, as encoded in the message
+     * @param message the encoded response
+     * @param headLength the length of the status line and headers in the message, the rest is the
+     *      body
+     */
+    public SerializedHttpResponse(String httpVersion, HttpStatus status,
+            Map<String, String> headers, byte[] message, int headLength) {
+        super(httpVersion, status, headers, null);
+        if (headLength > message.length) {
+            throw new IllegalArgumentException("headLength exceeds the message length");
+        }
+        this.message = message;
+        this.headLength = headLength;
+    }
+
+    /**
+     * Get the encoded response, it must not be modified
+     *
+     * @return the encoded response
+     */
+    public byte[] getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the length of the status line and headers in the message
+     *
+     * @return the length of the head
+     */
+    public int getHeadLength() {
+        return headLength;
+    }
+
+    /**
+     * Get the length of the encoded body
+     *
+     * @return the length of the body
+     */
+    public int getBodyLength() {
+        return message.length - headLength;
+    }
+}
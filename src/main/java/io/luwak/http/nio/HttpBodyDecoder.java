@@ -0,0 +1,262 @@
+package io.luwak.http.nio;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import io.luwak.http.HttpParseException;
+
+/**
+ * Incremental decoder of the framing of an HTTP message body (RFC 7230 section 3.3.3). The body
+ * can be fed in pieces of any size as they arrive on a non-blocking connection, the decoder
+ * returns the body content without the framing (chunk sizes and trailers) as slices of the input
+ * buffer, so the content is not copied.
+ *
+ */
+public class HttpBodyDecoder {
+
+    /**
+     * How the end of the body is determined
+     */
+    public enum Framing {
+        /** The body has a known length (Content-Length) */
+        LENGTH,
+        /** The body uses the chunked transfer coding */
+        CHUNKED,
+        /** The body ends when the connection is closed */
+        UNTIL_CLOSE
+    }
+
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private enum State {
+        SIZE,
+        DATA,
+        DATA_END,
+        TRAILER,
+        DONE
+    }
+
+    private final Framing framing;
+    private long remaining;
+    private State state;
+
+    private final StringBuilder line = new StringBuilder();
+    private Map<String, String> trailers = Collections.emptyMap();
+
+    /**
+     * Constructs an HttpBodyDecoder
+     *
+     * @param framing the framing of the body
+     * @param length the length of the body for {@link Framing#LENGTH}, ignored otherwise
+     */
+    public HttpBodyDecoder(Framing framing, long length) {
+        this.framing = framing;
+        switch (framing) {
+        case LENGTH:
+            this.remaining = length;
+            this.state = length > 0 ? State.DATA : State.DONE;
+            break;
+        case CHUNKED:
+            this.state = State.SIZE;
+            break;
+        default:
+            this.state = State.DATA;
+            this.remaining = -1;
+        }
+    }
+
+    /**
+     * Create a decoder for the body of a message with the specified headers (lower case names)
+     *
+     * @param headers the headers of the message
+     * @param request true for a request, whose body is empty if it has neither Content-Length nor
+     *      chunked Transfer-Encoding, false for a response, whose body then ends when the
+     *      connection is closed
+     * @return the body decoder
+     * @throws HttpParseException if the Content-Length is invalid
+     */
+    public static HttpBodyDecoder forHeaders(Map<String, String> headers, boolean request)
+            throws HttpParseException {
+        String transferEncoding = headers.get("transfer-encoding");
+        if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.US).endsWith("chunked")) {
+            return new HttpBodyDecoder(Framing.CHUNKED, -1);
+        }
+        String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            }
+            catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0) {
+                throw new HttpParseException("Invalid Content-Length: " + contentLength);
+            }
+            return new HttpBodyDecoder(Framing.LENGTH, length);
+        }
+        return request ? new HttpBodyDecoder(Framing.LENGTH, 0)
+                : new HttpBodyDecoder(Framing.UNTIL_CLOSE, -1);
+    }
+
+    /**
+     * Get the framing of the body
+     *
+     * @return the framing
+     */
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * Return true if the complete body has been decoded
+     *
+     * @return true if the body is complete
+     */
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Get the trailer fields of a chunked body, with lower case names
+     *
+     * @return the trailer fields
+     */
+    public Map<String, String> getTrailers() {
+        return trailers;
+    }
+
+    /**
+     * Decode the next part of the body. At least one byte of the input buffer is consumed if it
+     * has remaining bytes and the body is not complete yet.
+     *
+     * @param in the input buffer, its position is advanced past the consumed bytes
+     * @return the body content found in the consumed bytes, a slice of the input buffer which may
+     *      be empty
+     * @throws HttpParseException if the chunked framing is malformed
+     */
+    public ByteBuffer decode(ByteBuffer in) throws HttpParseException {
+        switch (state) {
+        case DATA:
+            int n = remaining >= 0 ? (int) Math.min(remaining, in.remaining()) : in.remaining();
+            ByteBuffer content = in.slice();
+            content.limit(n);
+            in.position(in.position() + n);
+            if (remaining >= 0) {
+                remaining -= n;
+                if (remaining == 0) {
+                    state = framing == Framing.CHUNKED ? State.DATA_END : State.DONE;
+                }
+            }
+            return content;
+        case SIZE:
+            if (readLine(in)) {
+                startChunk();
+            }
+            break;
+        case DATA_END:
+            if (readLine(in)) {
+                if (line.length() != 0) {
+                    throw new HttpParseException("Missing CRLF after chunk data");
+                }
+                state = State.SIZE;
+            }
+            break;
+        case TRAILER:
+            if (readLine(in)) {
+                addTrailer();
+            }
+            break;
+        default:
+            break;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Signal the end of input (the connection has been closed)
+     *
+     * @throws EOFException if the body is not complete and it is not delimited by closing the
+     *      connection
+     */
+    public void endOfInput() throws EOFException {
+        if (framing == Framing.UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        else if (state != State.DONE) {
+            throw new EOFException("Connection closed before the end of the body");
+        }
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Read the input into the line buffer until LF, the line buffer is cleared before a new line is
+     * started
+     *
+     * @return true if the line is complete (without CRLF)
+     */
+    private boolean readLine(ByteBuffer in) throws HttpParseException {
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xFF);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return true;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new HttpParseException("Chunk line too long");
+            }
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void startChunk() throws HttpParseException {
+        String sizeLine = line.toString();
+        line.setLength(0);
+        int extension = sizeLine.indexOf(';');
+        String size = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+        long chunkSize;
+        try {
+            chunkSize = Long.parseLong(size, 16);
+        }
+        catch (NumberFormatException e) {
+            chunkSize = -1;
+        }
+        if (chunkSize < 0) {
+            throw new HttpParseException("Invalid chunk size: " + sizeLine);
+        }
+        if (chunkSize == 0) {
+            state = State.TRAILER;
+        }
+        else {
+            remaining = chunkSize;
+            state = State.DATA;
+        }
+    }
+
+    private void addTrailer() {
+        String trailerLine = line.toString();
+        line.setLength(0);
+        if (trailerLine.isEmpty()) {
+            state = State.DONE;
+            return;
+        }
+        int p = trailerLine.indexOf(':');
+        if (p > 0) {
+            if (trailers.isEmpty()) {
+                trailers = new LinkedHashMap<>();
+            }
+            trailers.put(trailerLine.substring(0, p).trim().toLowerCase(Locale.US),
+                    trailerLine.substring(p + 1).trim());
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package io.luwak.http.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread that multiplexes non-blocking channels on a {@link Selector}. Besides dispatching
+ * ready channels to their {@link Handler}, the loop runs tasks submitted from other threads and
+ * timers. All state owned by a loop (channels, handlers, timers) is only touched on the loop
+ * thread, so handlers do not need any synchronization.
+ *
+ */
+public class SelectorLoop implements Closeable {
+
+    /**
+     * Handler of a channel registered with a SelectorLoop
+     */
+    public interface Handler {
+
+        /**
+         * Called on the loop thread when the channel is ready for one of its interest operations
+         *
+         * @param key the selection key of the channel
+         * @throws IOException if an I/O error occurs, the channel is closed by the loop
+         */
+        public void onSelected(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when {@link #onSelected(SelectionKey)} has failed or the loop
+         * has been closed. The channel has already been closed.
+         *
+         * @param cause the cause of the failure
+         */
+        public void onClosed(Throwable cause);
+    }
+
+    /**
+     * A task scheduled with {@link SelectorLoop#schedule(Runnable, long, TimeUnit)}
+     */
+    public static final class Timer implements Comparable<Timer> {
+
+        private final SelectorLoop loop;
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Timer(SelectorLoop loop, Runnable task, long deadline) {
+            this.loop = loop;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel this timer. It has no effect if the timer has already fired.
+         */
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                loop.cancelledTimers.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SelectorLoop.class);
+
+    private static final int PURGE_THRESHOLD = 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /** Cancelled timers are removed lazily, unless they pile up */
+    private final AtomicInteger cancelledTimers = new AtomicInteger();
+    /** Only accessed on the loop thread */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Create and start a SelectorLoop running in a daemon thread
+     *
+     * @param name the name of the loop thread
+     * @throws IOException if the selector can't be opened
+     */
+    public SelectorLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Return true if the calling thread is the loop thread
+     *
+     * @return true if called on the loop thread
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread. The task is run directly if this method is called on the
+     * loop thread.
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        }
+        else {
+            tasks.add(task);
+            wakeup();
+        }
+    }
+
+    /**
+     * Schedule a task to run on the loop thread after the specified delay
+     *
+     * @param task the task
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the timer, which can be cancelled from any thread
+     */
+    public Timer schedule(Runnable task, long delay, TimeUnit unit) {
+        Timer timer = new Timer(this, task, System.nanoTime() + unit.toNanos(delay));
+        execute(() -> timers.add(timer));
+        return timer;
+    }
+
+    /**
+     * Register a channel with this loop. Must be called on the loop thread.
+     *
+     * @param channel the non-blocking channel
+     * @param ops the interest operations
+     * @param handler the handler of the channel
+     * @return the selection key of the channel
+     * @throws ClosedChannelException if the channel is closed
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Close this loop and all channels registered with it. The handlers of the channels are
+     * notified with {@link Handler#onClosed(Throwable)} on the loop thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                long timeout = runTimers();
+                wakeupPending.set(false);
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                }
+                else if (timeout > 0) {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+                }
+                else {
+                    selector.select();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    dispatch(key);
+                }
+                selector.selectedKeys().clear();
+                runTasks();
+            }
+            catch (IOException | RuntimeException e) {
+                LOGGER.error("Exception caught in selector loop", e);
+            }
+        }
+
+        IOException cause = new IOException("Selector loop closed");
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.isValid()) {
+                closeChannel(key, cause);
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Exception caught while closing selector", e);
+        }
+        runTasks();
+    }
+
+    private void dispatch(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        try {
+            if (key.isValid()) {
+                handler.onSelected(key);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            LOGGER.debug("Closing channel {} after exception", key.channel(), e);
+            closeChannel(key, e);
+        }
+    }
+
+    private void closeChannel(SelectionKey key, Throwable cause) {
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Exception caught while closing channel", e);
+        }
+        try {
+            ((Handler) key.attachment()).onClosed(cause);
+        }
+        catch (RuntimeException e) {
+            LOGGER.error("Exception caught while closing channel", e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                LOGGER.error("Exception caught while running task", e);
+            }
+        }
+    }
+
+    /**
+     * Run the timers that are due
+     *
+     * @return the time in nanoseconds until the next timer is due, 0 if there is none
+     */
+    private long runTimers() {
+        if (cancelledTimers.get() > PURGE_THRESHOLD
+                && cancelledTimers.get() > timers.size() / 2) {
+            // Timeouts are usually cancelled long before they are due
+            timers.removeIf(t -> t.cancelled);
+            cancelledTimers.set(0);
+        }
+        Timer timer;
+        while ((timer = timers.peek()) != null) {
+            if (timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            long remaining = timer.deadline - System.nanoTime();
+            if (remaining > 0) {
+                return remaining;
+            }
+            timers.poll();
+            try {
+                timer.task.run();
+            }
+            catch (RuntimeException e) {
+                LOGGER.error("Exception caught while running timer", e);
+            }
+        }
+        return 0;
+    }
+}
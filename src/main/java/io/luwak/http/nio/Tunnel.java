@@ -0,0 +1,273 @@
+package io.luwak.http.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tunnel of {@link TunnelManager} relaying bytes between a client and an upstream connection in
+ * both directions. Bytes are read into a direct buffer per direction and written from it, so they
+ * are never copied to the heap. When one side shuts down its output, the output of the other side
+ * is shut down once the pending bytes have been written; the tunnel is closed when both
+ * directions are done, on the first error or after the idle timeout.
+ *
+ */
+public final class Tunnel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Tunnel.class);
+
+    private final TunnelManager manager;
+    private final SelectorLoop loop;
+    private final Endpoint client;
+    private final Endpoint upstream;
+    private final SocketAddress clientAddress;
+    private final SocketAddress upstreamAddress;
+    private final long idleTimeout;
+
+    private volatile long bytesUpstream;
+    private volatile long bytesDownstream;
+    private volatile boolean closed;
+    /** Only accessed on the loop thread */
+    private long lastActivity;
+    private SelectorLoop.Timer idleTimer;
+
+    Tunnel(TunnelManager manager, SelectorLoop loop, SocketChannel clientChannel,
+            SocketChannel upstreamChannel, ByteBuffer clientInput, int bufferSize,
+            long idleTimeout) {
+        this.manager = manager;
+        this.loop = loop;
+        this.idleTimeout = idleTimeout;
+        this.clientAddress = clientChannel.socket().getRemoteSocketAddress();
+        this.upstreamAddress = upstreamChannel.socket().getRemoteSocketAddress();
+        this.client = new Endpoint(clientChannel,
+                ByteBuffer.allocateDirect(Math.max(bufferSize, clientInput.remaining())), true);
+        this.upstream = new Endpoint(upstreamChannel, ByteBuffer.allocateDirect(bufferSize),
+                false);
+        this.client.peer = upstream;
+        this.upstream.peer = client;
+        this.client.buffer.put(clientInput);
+    }
+
+    /**
+     * Start relaying, must be called on the loop thread
+     */
+    void start() {
+        try {
+            client.register();
+            upstream.register();
+            // Forward the bytes the client has sent along with the CONNECT request
+            bytesUpstream += client.buffer.position();
+            client.flushToPeer();
+            update();
+        }
+        catch (IOException | RuntimeException e) {
+            // The loop may have been closed in the meantime
+            closeInLoop(e);
+            return;
+        }
+        lastActivity = System.nanoTime();
+        if (idleTimeout > 0) {
+            scheduleIdleTimer(idleTimeout);
+        }
+    }
+
+    /**
+     * Get the number of bytes relayed from the client to the upstream host
+     *
+     * @return the number of bytes
+     */
+    public long getBytesUpstream() {
+        return bytesUpstream;
+    }
+
+    /**
+     * Get the number of bytes relayed from the upstream host to the client
+     *
+     * @return the number of bytes
+     */
+    public long getBytesDownstream() {
+        return bytesDownstream;
+    }
+
+    public SocketAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    public SocketAddress getUpstreamAddress() {
+        return upstreamAddress;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Close both connections of the tunnel
+     */
+    public void close() {
+        loop.execute(() -> closeInLoop(null));
+    }
+
+    @Override
+    public String toString() {
+        return "Tunnel " + clientAddress + " -> " + upstreamAddress;
+    }
+
+    private void scheduleIdleTimer(long delay) {
+        idleTimer = loop.schedule(() -> {
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+            if (idle >= idleTimeout) {
+                closeInLoop(new SocketTimeoutException(this + " idle for " + idle + " ms"));
+            }
+            else if (!closed) {
+                scheduleIdleTimer(idleTimeout - idle);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void update() {
+        client.updateInterest();
+        upstream.updateInterest();
+        if (client.isDone() && upstream.isDone()) {
+            LOGGER.debug("{} done, {} bytes upstream, {} bytes downstream", this, bytesUpstream,
+                    bytesDownstream);
+            closeInLoop(null);
+        }
+    }
+
+    private void closeInLoop(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cause != null) {
+            LOGGER.debug("Closing {} after exception", this, cause);
+        }
+        if (idleTimer != null) {
+            idleTimer.cancel();
+        }
+        client.close();
+        upstream.close();
+        manager.tunnelClosed(this);
+    }
+
+    /**
+     * One side of the tunnel
+     */
+    private final class Endpoint implements SelectorLoop.Handler {
+
+        private final SocketChannel channel;
+        /** Bytes read from this endpoint to be written to the peer, in fill mode */
+        private final ByteBuffer buffer;
+        private final boolean fromClient;
+        private Endpoint peer;
+        private SelectionKey key;
+        /** True once the end of input has been read from this endpoint */
+        private boolean inputClosed;
+        /** True once the output to this endpoint has been shut down */
+        private boolean outputClosed;
+
+        Endpoint(SocketChannel channel, ByteBuffer buffer, boolean fromClient) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.fromClient = fromClient;
+        }
+
+        void register() throws IOException {
+            channel.configureBlocking(false);
+            key = loop.register(channel, 0, this);
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                peer.flushToPeer();
+            }
+            update();
+        }
+
+        @Override
+        public void onClosed(Throwable cause) {
+            closeInLoop(cause);
+        }
+
+        boolean isDone() {
+            return inputClosed && outputClosed;
+        }
+
+        void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!inputClosed && buffer.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (peer.buffer.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void read() throws IOException {
+            int n = channel.read(buffer);
+            if (n < 0) {
+                inputClosed = true;
+            }
+            else if (n > 0) {
+                lastActivity = System.nanoTime();
+                if (fromClient) {
+                    bytesUpstream += n;
+                }
+                else {
+                    bytesDownstream += n;
+                }
+            }
+            flushToPeer();
+        }
+
+        /**
+         * Write the bytes read from this endpoint to the peer, and propagate the end of input
+         * once they have all been written
+         */
+        void flushToPeer() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                try {
+                    if (peer.channel.write(buffer) > 0) {
+                        lastActivity = System.nanoTime();
+                    }
+                }
+                finally {
+                    buffer.compact();
+                }
+            }
+            if (inputClosed && buffer.position() == 0 && !peer.outputClosed) {
+                peer.outputClosed = true;
+                peer.channel.shutdownOutput();
+            }
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                LOGGER.debug("Exception caught while closing tunnel connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package io.luwak.http.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays {@link Tunnel}s on a few {@link SelectorLoop}s, so that an open tunnel does not hold any
+ * thread. The number of concurrent tunnels is capped: a slot must be reserved with
+ * {@link #reserve()} before the upstream connection is opened, and it is released when the tunnel
+ * is closed or with {@link #cancelReservation()} if the tunnel is not opened.
+ *
+ */
+public class TunnelManager implements Closeable {
+
+    public static final int DEFAULT_MAX_TUNNELS = 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TunnelManager.class);
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final Set<Tunnel> tunnels = ConcurrentHashMap.newKeySet();
+    private final AtomicLong totalBytesUpstream = new AtomicLong();
+    private final AtomicLong totalBytesDownstream = new AtomicLong();
+
+    private volatile int maxTunnels = DEFAULT_MAX_TUNNELS;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    private volatile boolean closed;
+
+    /**
+     * Create a TunnelManager with one selector loop
+     *
+     * @throws IOException if the selector can't be opened
+     */
+    public TunnelManager() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Create a TunnelManager with the specified number of selector loops
+     *
+     * @param loopCount the number of selector loops
+     * @throws IOException if a selector can't be opened
+     */
+    public TunnelManager(int loopCount) throws IOException {
+        loops = new SelectorLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new SelectorLoop("luwak-tunnel-" + i);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getMaxTunnels() {
+        return maxTunnels;
+    }
+
+    /**
+     * Set the maximum number of concurrent tunnels
+     *
+     * @param maxTunnels the maximum number of tunnels
+     */
+    public void setMaxTunnels(int maxTunnels) {
+        this.maxTunnels = maxTunnels;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the time after which a tunnel without any traffic is closed
+     *
+     * @param idleTimeout the idle timeout in milliseconds, 0 to disable
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the size of the direct buffer used for each direction of a tunnel
+     *
+     * @param bufferSize the buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Reserve a slot for a new tunnel
+     *
+     * @return false if the maximum number of tunnels has been reached
+     */
+    public boolean reserve() {
+        while (true) {
+            int count = reserved.get();
+            if (closed || count >= maxTunnels) {
+                return false;
+            }
+            if (reserved.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a slot reserved with {@link #reserve()} for a tunnel which is not opened
+     */
+    public void cancelReservation() {
+        reserved.decrementAndGet();
+    }
+
+    /**
+     * Open a tunnel in a slot reserved with {@link #reserve()}. The channels are switched to
+     * non-blocking mode and owned by the tunnel from now on.
+     *
+     * @param clientChannel the connection of the client
+     * @param upstreamChannel the connection to the upstream host
+     * @param clientInput bytes already received from the client, to be sent upstream first
+     * @return the tunnel
+     * @throws IOException if the manager has been closed, the channels are closed then
+     */
+    public Tunnel open(SocketChannel clientChannel, SocketChannel upstreamChannel,
+            ByteBuffer clientInput) throws IOException {
+        if (closed) {
+            cancelReservation();
+            clientChannel.close();
+            upstreamChannel.close();
+            throw new IOException("Tunnel manager has been closed");
+        }
+        SelectorLoop loop = loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+        Tunnel tunnel = new Tunnel(this, loop, clientChannel, upstreamChannel, clientInput,
+                bufferSize, idleTimeout);
+        tunnels.add(tunnel);
+        LOGGER.debug("Opening {}", tunnel);
+        loop.execute(tunnel::start);
+        return tunnel;
+    }
+
+    /**
+     * Get the number of open tunnels
+     *
+     * @return the number of tunnels
+     */
+    public int getActiveTunnels() {
+        return tunnels.size();
+    }
+
+    /**
+     * Get the open tunnels
+     *
+     * @return an unmodifiable snapshot of the open tunnels
+     */
+    public Collection<Tunnel> getTunnels() {
+        return Collections.unmodifiableList(new ArrayList<>(tunnels));
+    }
+
+    /**
+     * Get the number of bytes relayed from clients to upstream hosts by the closed tunnels
+     *
+     * @return the number of bytes
+     */
+    public long getTotalBytesUpstream() {
+        return totalBytesUpstream.get();
+    }
+
+    /**
+     * Get the number of bytes relayed from upstream hosts to clients by the closed tunnels
+     *
+     * @return the number of bytes
+     */
+    public long getTotalBytesDownstream() {
+        return totalBytesDownstream.get();
+    }
+
+    /**
+     * Close all tunnels and the selector loops
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+
+    void tunnelClosed(Tunnel tunnel) {
+        if (tunnels.remove(tunnel)) {
+            reserved.decrementAndGet();
+            totalBytesUpstream.addAndGet(tunnel.getBytesUpstream());
+            totalBytesDownstream.addAndGet(tunnel.getBytesDownstream());
+        }
+    }
+}
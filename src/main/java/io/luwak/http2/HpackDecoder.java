@@ -0,0 +1,166 @@
+package io.luwak.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * Decoder of HPACK header blocks (RFC 7541). A decoder keeps the dynamic table of one direction
+ * of a connection, so the header blocks must be decoded in the order they are received.
+ *
+ */
+public class HpackDecoder {
+
+    private final HpackTable table;
+    /** Maximum dynamic table size allowed by our SETTINGS_HEADER_TABLE_SIZE */
+    private int maxTableSizeLimit;
+
+    /**
+     * Constructs a decoder
+     *
+     * @param maxTableSize the maximum dynamic table size announced to the peer
+     */
+    public HpackDecoder(int maxTableSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSizeLimit = maxTableSize;
+    }
+
+    /**
+     * Decode a header block
+     *
+     * @param block the buffer holding the header block
+     * @param offset the offset of the header block
+     * @param length the length of the header block
+     * @param listener receives the name and value of each header field, in order
+     * @throws Http2Exception COMPRESSION_ERROR if the header block is malformed, the connection
+     *      can't be used anymore
+     */
+    public void decode(byte[] block, int offset, int length, BiConsumer<String, String> listener)
+            throws Http2Exception {
+        int[] position = { offset };
+        int end = offset + length;
+        boolean fieldSeen = false;
+        while (position[0] < end) {
+            int b = block[position[0]] & 0xff;
+            if ((b & 0x80) != 0) {
+                // Indexed header field
+                int index = decodeInt(block, position, end, 7);
+                if (index == 0) {
+                    throw new Http2Exception(Http2Error.COMPRESSION_ERROR, "Index 0");
+                }
+                String[] entry = table.get(index);
+                listener.accept(entry[0], entry[1]);
+                fieldSeen = true;
+            }
+            else if ((b & 0x40) != 0) {
+                // Literal header field with incremental indexing
+                literal(block, position, end, 6, true, listener);
+                fieldSeen = true;
+            }
+            else if ((b & 0x20) != 0) {
+                // Dynamic table size update, only allowed at the beginning of a block
+                int maxSize = decodeInt(block, position, end, 5);
+                if (fieldSeen || maxSize > maxTableSizeLimit) {
+                    throw new Http2Exception(Http2Error.COMPRESSION_ERROR,
+                            "Invalid dynamic table size update " + maxSize);
+                }
+                table.setMaxSize(maxSize);
+            }
+            else {
+                // Literal header field without indexing or never indexed
+                literal(block, position, end, 4, false, listener);
+                fieldSeen = true;
+            }
+        }
+    }
+
+    /**
+     * Change the maximum dynamic table size allowed, once the peer has acknowledged the new
+     * SETTINGS_HEADER_TABLE_SIZE. The table itself is resized by the size update the peer sends
+     * at the beginning of its next header block.
+     *
+     * @param maxTableSize the maximum size
+     */
+    public void setMaxTableSizeLimit(int maxTableSize) {
+        this.maxTableSizeLimit = maxTableSize;
+    }
+
+    int getTableLength() {
+        return table.getLength();
+    }
+
+    int getTableSize() {
+        return table.getSize();
+    }
+
+    private void literal(byte[] block, int[] position, int end, int prefix, boolean indexing,
+            BiConsumer<String, String> listener) throws Http2Exception {
+        int index = decodeInt(block, position, end, prefix);
+        String name;
+        int nameLength;
+        if (index == 0) {
+            byte[] octets = decodeString(block, position, end);
+            name = new String(octets, StandardCharsets.UTF_8);
+            nameLength = octets.length;
+        }
+        else {
+            name = table.get(index)[0];
+            nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        byte[] value = decodeString(block, position, end);
+        String valueString = new String(value, StandardCharsets.UTF_8);
+        if (indexing) {
+            table.add(name, valueString, nameLength + value.length + HpackTable.ENTRY_OVERHEAD);
+        }
+        listener.accept(name, valueString);
+    }
+
+    private static byte[] decodeString(byte[] block, int[] position, int end)
+            throws Http2Exception {
+        if (position[0] >= end) {
+            throw new Http2Exception(Http2Error.COMPRESSION_ERROR, "Truncated header block");
+        }
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int length = decodeInt(block, position, end, 7);
+        if (length > end - position[0]) {
+            throw new Http2Exception(Http2Error.COMPRESSION_ERROR, "Truncated string literal");
+        }
+        int start = position[0];
+        position[0] += length;
+        if (huffman) {
+            return Huffman.decode(block, start, length);
+        }
+        byte[] octets = new byte[length];
+        System.arraycopy(block, start, octets, 0, length);
+        return octets;
+    }
+
+    /**
+     * Decode an integer with an N-bit prefix (RFC 7541 section 5.1)
+     */
+    static int decodeInt(byte[] block, int[] position, int end, int prefix)
+            throws Http2Exception {
+        int max = (1 << prefix) - 1;
+        int value = block[position[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (position[0] >= end) {
+                throw new Http2Exception(Http2Error.COMPRESSION_ERROR, "Truncated integer");
+            }
+            int b = block[position[0]++] & 0xff;
+            if (shift > 21 && (b & 0x7f) > 0) {
+                throw new Http2Exception(Http2Error.COMPRESSION_ERROR, "Integer overflow");
+            }
+            value += (b & 0x7f) << shift;
+            if (value < 0) {
+                throw new Http2Exception(Http2Error.COMPRESSION_ERROR, "Integer overflow");
+            }
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
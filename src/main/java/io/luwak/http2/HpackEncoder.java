@@ -0,0 +1,132 @@
+package io.luwak.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encoder of HPACK header blocks (RFC 7541). An encoder keeps the dynamic table of one direction
+ * of a connection, so the header blocks must be sent in the order they are encoded. String
+ * literals are Huffman encoded when it makes them shorter.
+ *
+ */
+public class HpackEncoder {
+
+    /** Fields whose value changes with nearly every message, indexing them would churn the table */
+    private static final Set<String> NOT_INDEXED = new HashSet<>(Arrays.asList(
+            "content-length", "date", "etag", "last-modified", "age", ":path"));
+    /** Fields which must not be indexed by intermediaries either (RFC 7541 section 7.1.3) */
+    private static final Set<String> NEVER_INDEXED = new HashSet<>(Arrays.asList(
+            "authorization", "cookie", "set-cookie", "proxy-authorization"));
+
+    private final HpackTable table;
+    private final int maxTableSizeCap;
+    /** Smallest table size since the last block, -1 if the size has not changed */
+    private int minPendingSize = -1;
+
+    /**
+     * Constructs an encoder
+     *
+     * @param maxTableSizeCap the maximum dynamic table size used even if the peer allows more
+     */
+    public HpackEncoder(int maxTableSizeCap) {
+        this.maxTableSizeCap = maxTableSizeCap;
+        // The initial size is 4096 until the peer's settings have been received
+        this.table = new HpackTable(Math.min(4096, maxTableSizeCap));
+    }
+
+    /**
+     * Apply the SETTINGS_HEADER_TABLE_SIZE of the peer, the change is signalled at the beginning
+     * of the next header block
+     *
+     * @param maxTableSize the maximum dynamic table size allowed by the peer
+     */
+    public void setMaxTableSize(int maxTableSize) {
+        int newSize = Math.min(maxTableSize, maxTableSizeCap);
+        if (newSize == table.getMaxSize() && minPendingSize == -1) {
+            return;
+        }
+        minPendingSize = minPendingSize == -1 ? newSize : Math.min(minPendingSize, newSize);
+        table.setMaxSize(newSize);
+    }
+
+    /**
+     * Start a new header block, with the pending dynamic table size updates
+     *
+     * @param out the header block
+     */
+    public void beginBlock(ByteArrayOutputStream out) {
+        if (minPendingSize != -1) {
+            if (minPendingSize < table.getMaxSize()) {
+                encodeInt(out, 0x20, 5, minPendingSize);
+            }
+            encodeInt(out, 0x20, 5, table.getMaxSize());
+            minPendingSize = -1;
+        }
+    }
+
+    /**
+     * Encode a header field
+     *
+     * @param out the header block
+     * @param name the name, in lower case
+     * @param value the value
+     */
+    public void encode(ByteArrayOutputStream out, String name, String value) {
+        int index = table.find(name, value);
+        if (index > 0) {
+            encodeInt(out, 0x80, 7, index);
+            return;
+        }
+        int nameIndex = -index;
+        byte[] valueOctets = value.getBytes(StandardCharsets.UTF_8);
+        if (NEVER_INDEXED.contains(name) || NOT_INDEXED.contains(name)) {
+            encodeInt(out, NEVER_INDEXED.contains(name) ? 0x10 : 0x00, 4, nameIndex);
+            if (nameIndex == 0) {
+                encodeString(out, name.getBytes(StandardCharsets.UTF_8));
+            }
+            encodeString(out, valueOctets);
+            return;
+        }
+        byte[] nameOctets = name.getBytes(StandardCharsets.UTF_8);
+        encodeInt(out, 0x40, 6, nameIndex);
+        if (nameIndex == 0) {
+            encodeString(out, nameOctets);
+        }
+        encodeString(out, valueOctets);
+        table.add(name, value, nameOctets.length + valueOctets.length
+                + HpackTable.ENTRY_OVERHEAD);
+    }
+
+    private static void encodeString(ByteArrayOutputStream out, byte[] octets) {
+        int huffmanLength = Huffman.encodedLength(octets);
+        if (huffmanLength < octets.length) {
+            encodeInt(out, 0x80, 7, huffmanLength);
+            Huffman.encode(octets, out);
+        }
+        else {
+            encodeInt(out, 0x00, 7, octets.length);
+            out.write(octets, 0, octets.length);
+        }
+    }
+
+    /**
+     * Encode an integer with an N-bit prefix (RFC 7541 section 5.1)
+     */
+    static void encodeInt(ByteArrayOutputStream out, int pattern, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
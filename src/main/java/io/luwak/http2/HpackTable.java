@@ -0,0 +1,219 @@
+package io.luwak.http2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HPACK index address space (RFC 7541 section 2.3): the static table followed by the dynamic
+ * table, whose newest entry has the lowest index. The size of an entry is the length of its name
+ * and value plus 32.
+ *
+ */
+final class HpackTable {
+
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final String[][] STATIC_TABLE = {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" }
+    };
+
+    /** Lowest static index of each name, and of each name and value pair as name + '\0' + value */
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_INDEX.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_INDEX.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    /** Ring buffer of the dynamic entries, the newest at head */
+    private String[][] entries = new String[16][];
+    private int[] sizes = new int[16];
+    private int head;
+    private int length;
+    private int size;
+    private int maxSize;
+
+    /**
+     * Constructs a table
+     *
+     * @param maxSize the maximum size of the dynamic table
+     */
+    HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the entry at an index of the address space
+     *
+     * @param index the index, starting at 1
+     * @return the name and value of the entry
+     * @throws Http2Exception COMPRESSION_ERROR if there is no such entry
+     */
+    String[] get(int index) throws Http2Exception {
+        if (index >= 1 && index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1];
+        }
+        int dynamicIndex = index - STATIC_TABLE.length - 1;
+        if (index < 1 || dynamicIndex >= length) {
+            throw new Http2Exception(Http2Error.COMPRESSION_ERROR, "Invalid index " + index);
+        }
+        return entries[(head + dynamicIndex) % entries.length];
+    }
+
+    /**
+     * Find the index of an entry with the specified name and, if possible, the same value
+     *
+     * @param name the name
+     * @param value the value
+     * @return the index of an entry with the same name and value, the negated index of an entry
+     *      with the same name, or 0 if there is none
+     */
+    int find(String name, String value) {
+        Integer index = STATIC_INDEX.get(name + '\0' + value);
+        if (index != null) {
+            return index;
+        }
+        int nameIndex = 0;
+        for (int i = 0; i < length; i++) {
+            String[] entry = entries[(head + i) % entries.length];
+            if (entry[0].equals(name)) {
+                if (entry[1].equals(value)) {
+                    return STATIC_TABLE.length + 1 + i;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = STATIC_TABLE.length + 1 + i;
+                }
+            }
+        }
+        if (nameIndex == 0) {
+            index = STATIC_INDEX.get(name);
+            nameIndex = index != null ? index : 0;
+        }
+        return -nameIndex;
+    }
+
+    /**
+     * Add an entry to the dynamic table, evicting the oldest entries to make room. An entry larger
+     * than the maximum size empties the table.
+     *
+     * @param name the name
+     * @param value the value
+     * @param entrySize the size of the entry, from the length of the encoded name and value
+     */
+    void add(String name, String value, int entrySize) {
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+        if (length == entries.length) {
+            String[][] grown = new String[entries.length * 2][];
+            int[] grownSizes = new int[entries.length * 2];
+            for (int i = 0; i < length; i++) {
+                grown[i] = entries[(head + i) % entries.length];
+                grownSizes[i] = sizes[(head + i) % entries.length];
+            }
+            entries = grown;
+            sizes = grownSizes;
+            head = 0;
+        }
+        head = (head - 1 + entries.length) % entries.length;
+        entries[head] = new String[] { name, value };
+        sizes[head] = entrySize;
+        length++;
+        size += entrySize;
+    }
+
+    /**
+     * Change the maximum size of the dynamic table, evicting entries if needed
+     *
+     * @param maxSize the new maximum size
+     */
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /** Evict the oldest entries until the size is at most the specified size */
+    private void evict(int targetSize) {
+        while (length > 0 && size > targetSize) {
+            int oldest = (head + length - 1) % entries.length;
+            size -= sizes[oldest];
+            entries[oldest] = null;
+            length--;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package io.luwak.http2;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/2 configuration of a server, see {@code LuwakHttpd.setHttp2Config}. The settings are
+ * announced to the clients in the SETTINGS frame which starts every connection.
+ *
+ */
+public class Http2Config {
+
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_INITIAL_WINDOW_SIZE = 65535;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    public static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+    public static final int DEFAULT_MAX_HEADER_LIST_SIZE = 8192;
+    public static final int DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+
+    private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int initialWindowSize = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int headerTableSize = DEFAULT_HEADER_TABLE_SIZE;
+    private int maxHeaderListSize = DEFAULT_MAX_HEADER_LIST_SIZE;
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private ExecutorService streamExecutor;
+
+    /**
+     * Set the maximum number of streams a client can open concurrently on a connection
+     *
+     * @param maxConcurrentStreams the maximum number of streams
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Set the flow control window of the request bodies, for each stream and for the connection
+     *
+     * @param initialWindowSize the window size in bytes
+     */
+    public void setInitialWindowSize(int initialWindowSize) {
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * Set the largest frame payload accepted from the clients
+     *
+     * @param maxFrameSize the size in bytes, between 16384 and 16777215
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Set the maximum size of the HPACK dynamic tables, of the requests and of the responses
+     *
+     * @param headerTableSize the size in bytes
+     */
+    public void setHeaderTableSize(int headerTableSize) {
+        this.headerTableSize = headerTableSize;
+    }
+
+    public int getHeaderTableSize() {
+        return headerTableSize;
+    }
+
+    /**
+     * Set the maximum size of the header fields of a request, counted as in HPACK
+     *
+     * @param maxHeaderListSize the size in bytes
+     */
+    public void setMaxHeaderListSize(int maxHeaderListSize) {
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    public int getMaxHeaderListSize() {
+        return maxHeaderListSize;
+    }
+
+    /**
+     * Set the maximum size of a request body, for the routes without entity limits. Request
+     * bodies are kept in memory.
+     *
+     * @param maxBodySize the size in bytes
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Set the executor serving the streams. By default a cached pool of daemon threads shared by
+     * all the connections is used.
+     *
+     * @param streamExecutor the executor
+     */
+    public void setStreamExecutor(ExecutorService streamExecutor) {
+        this.streamExecutor = streamExecutor;
+    }
+
+    /**
+     * Get the executor serving the streams
+     *
+     * @return the executor
+     */
+    public synchronized ExecutorService getStreamExecutor() {
+        if (streamExecutor == null) {
+            AtomicInteger threads = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "luwak-h2-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            streamExecutor = Executors.newCachedThreadPool(threadFactory);
+        }
+        return streamExecutor;
+    }
+}
@@ -0,0 +1,1063 @@
+package io.luwak.http2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.accesslog.AccessLog;
+import io.luwak.http.HttpServerStreams;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpEntityLimits;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpStatus;
+import io.luwak.http.message.SerializedHttpResponse;
+import io.luwak.httpd.ConnectionHandler;
+import io.luwak.httpd.HttpRoute;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.HttpSessionFactory;
+import io.luwak.httpd.HttpdContext;
+import io.luwak.metrics.HttpMetrics;
+
+/**
+ * Serves an HTTP/2 cleartext (h2c) connection taken over from the HTTP/1.1 server, after an
+ * {@code Upgrade: h2c} request or when the client has started with the HTTP/2 connection preface
+ * (prior knowledge). The thread taking over the connection reads the frames until the connection
+ * ends, the streams are served concurrently by the stream executor of the {@link Http2Config}, so
+ * a slow response does not hold up the other requests of the connection.
+ *
+ * The requests are routed with the {@link HttpdContext} of the server and served by the same
+ * {@link HttpSession}s as HTTP/1.1 requests. Request bodies are buffered within the memory
+ * budget of the server or spooled to disk, response bodies are sent in DATA frames within the
+ * flow control windows of the client.
+ *
+ */
+public class Http2ConnectionHandler implements ConnectionHandler {
+
+    /** The connection preface sent by the clients (RFC 7540 section 3.5) */
+    public static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    /** Length of the part of the preface consumed by the HTTP/1.1 header parser */
+    private static final int PREFACE_REQUEST_LENGTH = 18;
+
+    public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    public static final int SETTINGS_ENABLE_PUSH = 0x2;
+    public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MIN_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+
+    /** Header fields of HTTP/1.1 which must not appear in HTTP/2 (RFC 7540 section 8.1.2.2) */
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2ConnectionHandler.class);
+
+    private final Http2Config config;
+    private final HttpdContext httpdContext;
+    private final Function<HttpSessionFactory, HttpSession> sessions;
+    private final HpackDecoder decoder;
+    private final HpackEncoder encoder;
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+
+    private boolean priorKnowledge;
+    private HttpRequest upgradeRequest;
+    private String upgradeSettings;
+    private HttpMetrics metrics;
+    private AccessLog accessLog;
+    private MemoryBudget memoryBudget = MemoryBudget.getDefault();
+    private SpoolManager spoolManager = SpoolManager.getDefault();
+    private InetAddress remoteAddress;
+
+    /** Guards the output stream and the encoder, whose state follows the order of the blocks */
+    private final Object writeLock = new Object();
+    private OutputStream out;
+
+    // Guarded by this
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private boolean closed;
+
+    private volatile int peerMaxFrameSize = MIN_FRAME_SIZE;
+
+    // Used by the reading thread only
+    private int lastStreamId;
+    private int receiveUnacked;
+    private int headerBlockStreamId;
+    private int headerBlockFlags;
+    private ByteArrayOutputStream headerBlock;
+
+    /**
+     * Constructs a handler for a connection
+     *
+     * @param config the HTTP/2 configuration
+     * @param httpdContext the context routing the requests
+     * @param sessions returns the session serving a request routed to a factory, it is called
+     *      concurrently by the streams
+     */
+    public Http2ConnectionHandler(Http2Config config, HttpdContext httpdContext,
+            Function<HttpSessionFactory, HttpSession> sessions) {
+        this.config = config;
+        this.httpdContext = httpdContext;
+        this.sessions = sessions;
+        // The client may use the default table size until it has acknowledged our settings
+        this.decoder = new HpackDecoder(Math.max(config.getHeaderTableSize(),
+                Http2Config.DEFAULT_HEADER_TABLE_SIZE));
+        this.encoder = new HpackEncoder(config.getHeaderTableSize());
+    }
+
+    /**
+     * Serve a connection whose client has sent the connection preface instead of an HTTP/1.1
+     * request, see {@link io.luwak.http.Http2PrefaceException}. The {@code PRI * HTTP/2.0} part
+     * of the preface has already been read.
+     */
+    public void setPriorKnowledge() {
+        this.priorKnowledge = true;
+    }
+
+    /**
+     * Record the latency of the streams per route and status code
+     *
+     * @param metrics the metrics registry, null to record nothing
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Log the requests of the streams
+     *
+     * @param accessLog the access log, null to log nothing
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Set the memory budget the request bodies are buffered within
+     *
+     * @param memoryBudget the memory budget, null to use {@link MemoryBudget#getDefault()}
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget != null ? memoryBudget : MemoryBudget.getDefault();
+    }
+
+    /**
+     * Set the SpoolManager providing the spool files of request bodies too large for memory
+     *
+     * @param spoolManager the SpoolManager, null to use {@link SpoolManager#getDefault()}
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        this.spoolManager = spoolManager != null ? spoolManager : SpoolManager.getDefault();
+    }
+
+    /**
+     * Serve a connection upgraded from HTTP/1.1, the upgrade request is served as stream 1 once
+     * the 101 response has been sent
+     *
+     * @param upgradeRequest the request with the {@code Upgrade: h2c} header
+     */
+    public void setUpgradeRequest(HttpRequest upgradeRequest) {
+        // The request object may be recycled once the connection has been taken over
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : upgradeRequest.getHeaders().entrySet()) {
+            if (!CONNECTION_HEADERS.contains(entry.getKey())
+                    && !entry.getKey().equals("http2-settings")) {
+                headers.put(entry.getKey(), entry.getValue());
+            }
+        }
+        this.upgradeSettings = upgradeRequest.getHeaders().get("http2-settings");
+        this.upgradeRequest = new HttpRequest(upgradeRequest.getMethod(),
+                upgradeRequest.getUriPath(), new LinkedHashMap<>(upgradeRequest.getQueries()),
+                Http2Stream.HTTP_VERSION, headers, null);
+    }
+
+    /**
+     * Return true if a request asks to upgrade the connection to h2c. Requests with a body are
+     * not upgraded, they are served with HTTP/1.1.
+     *
+     * @param httpRequest the HTTP/1.1 request
+     * @return true if the connection can be upgraded
+     */
+    public static boolean isUpgradeRequest(HttpRequest httpRequest) {
+        Map<String, String> headers = httpRequest.getHeaders();
+        String upgrade = headers.get("upgrade");
+        if (upgrade == null || headers.get("http2-settings") == null
+                || httpRequest.getEntityBody() != null) {
+            return false;
+        }
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create the 101 response accepting an upgrade to h2c
+     *
+     * @return the response
+     */
+    public static HttpResponse newSwitchingProtocolsResponse() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Connection", "Upgrade");
+        headers.put("Upgrade", "h2c");
+        return new HttpResponse(DefaultHttpStatus.SWITCHING_PROTOCOLS, headers, null);
+    }
+
+    /**
+     * Serve the connection until it is closed, the calling thread reads the frames
+     */
+    @Override
+    public void takeOver(Socket acceptSocket, ByteBuffer bufferedInput) throws IOException {
+        remoteAddress = acceptSocket.getInetAddress();
+        InputStream in = new BufferedInputStream(new SequenceInputStream(
+                new ByteArrayInputStream(bufferedInput.array(),
+                        bufferedInput.arrayOffset() + bufferedInput.position(),
+                        bufferedInput.remaining()),
+                acceptSocket.getInputStream()), MIN_FRAME_SIZE);
+        out = new BufferedOutputStream(acceptSocket.getOutputStream(),
+                MIN_FRAME_SIZE + Http2Frame.HEADER_LENGTH);
+        try {
+            sendSettings();
+            if (upgradeRequest != null) {
+                applySettings(decodeUpgradeSettings(upgradeSettings));
+                openUpgradeStream();
+            }
+            readPreface(in);
+            Http2Frame frame = Http2Frame.read(in, config.getMaxFrameSize());
+            if (frame == null || frame.getType() != Http2Frame.SETTINGS
+                    || frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR,
+                        "The preface must be followed by SETTINGS");
+            }
+            do {
+                try {
+                    handle(frame);
+                }
+                catch (Http2Exception e) {
+                    if (!e.isStreamError()) {
+                        throw e;
+                    }
+                    LOGGER.debug("Stream {} reset: {}", e.getStreamId(), e.getMessage());
+                    resetStream(e.getStreamId(), e.getError());
+                }
+            } while ((frame = Http2Frame.read(in, config.getMaxFrameSize())) != null);
+            LOGGER.debug("HTTP/2 connection {} closed by the client",
+                    acceptSocket.getRemoteSocketAddress());
+        }
+        catch (Http2Exception e) {
+            LOGGER.debug("HTTP/2 connection error: {}", e.getMessage());
+            goAway(e.getError(), e.getMessage());
+        }
+        catch (IOException e) {
+            LOGGER.debug("HTTP/2 connection {} ended", acceptSocket.getRemoteSocketAddress(), e);
+        }
+        finally {
+            synchronized (this) {
+                closed = true;
+                for (Http2Stream stream : streams.values()) {
+                    stream.reset = true;
+                    stream.discard();
+                }
+                notifyAll();
+            }
+            try {
+                acceptSocket.close();
+            }
+            catch (IOException e) {
+                LOGGER.debug("Exception caught while closing accept socket", e);
+            }
+        }
+    }
+
+    @Override
+    public void abort() {
+    }
+
+    private void readPreface(InputStream in) throws IOException {
+        int offset = priorKnowledge ? PREFACE_REQUEST_LENGTH : 0;
+        for (int i = offset; i < PREFACE.length; i++) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed within the preface");
+            }
+            if (b != PREFACE[i]) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+
+    private void handle(Http2Frame frame) throws IOException {
+        if (headerBlock != null && frame.getType() != Http2Frame.CONTINUATION) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Header block interrupted");
+        }
+        switch (frame.getType()) {
+            case Http2Frame.DATA:
+                onData(frame);
+                break;
+            case Http2Frame.HEADERS:
+                onHeaders(frame);
+                break;
+            case Http2Frame.CONTINUATION:
+                onContinuation(frame);
+                break;
+            case Http2Frame.PRIORITY:
+                if (frame.getPayload().length != 5) {
+                    throw new Http2Exception(Http2Error.FRAME_SIZE_ERROR, frame.getStreamId(),
+                            "Invalid PRIORITY frame");
+                }
+                break;
+            case Http2Frame.RST_STREAM:
+                onRstStream(frame);
+                break;
+            case Http2Frame.SETTINGS:
+                onSettings(frame);
+                break;
+            case Http2Frame.PING:
+                onPing(frame);
+                break;
+            case Http2Frame.GOAWAY:
+                // The streams in progress are completed, the client closes the connection
+                LOGGER.debug("GOAWAY received");
+                break;
+            case Http2Frame.WINDOW_UPDATE:
+                onWindowUpdate(frame);
+                break;
+            case Http2Frame.PUSH_PROMISE:
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            default:
+                // Unknown frame types are ignored
+                break;
+        }
+    }
+
+    private void onData(Http2Frame frame) throws IOException {
+        int streamId = frame.getStreamId();
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        byte[] payload = frame.getPayload();
+        // Padding counts in the flow control windows
+        receiveUnacked += payload.length;
+        if (receiveUnacked > config.getInitialWindowSize()) {
+            throw new Http2Exception(Http2Error.FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        if (receiveUnacked >= config.getInitialWindowSize() / 2) {
+            sendWindowUpdate(0, receiveUnacked);
+            receiveUnacked = 0;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "DATA on idle stream");
+            }
+            throw new Http2Exception(Http2Error.STREAM_CLOSED, streamId, "DATA on closed stream");
+        }
+        int padding = 0;
+        int offset = 0;
+        if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+            if (payload.length == 0 || (padding = payload[0] & 0xff) >= payload.length) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid padding");
+            }
+            offset = 1;
+        }
+        stream.receive(payload, offset, payload.length - offset - padding);
+        if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+            return;
+        }
+        stream.receiveUnacked += payload.length;
+        if (stream.receiveUnacked > config.getInitialWindowSize()) {
+            throw new Http2Exception(Http2Error.FLOW_CONTROL_ERROR, streamId,
+                    "Stream window exceeded");
+        }
+        if (stream.receiveUnacked >= config.getInitialWindowSize() / 2) {
+            sendWindowUpdate(streamId, stream.receiveUnacked);
+            stream.receiveUnacked = 0;
+        }
+    }
+
+    private void onHeaders(Http2Frame frame) throws IOException {
+        int streamId = frame.getStreamId();
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid stream " + streamId);
+        }
+        byte[] payload = frame.getPayload();
+        int offset = 0;
+        int padding = 0;
+        if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+            if (payload.length == 0) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid padding");
+            }
+            padding = payload[0] & 0xff;
+            offset = 1;
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_PRIORITY)) {
+            offset += 5;
+        }
+        int length = payload.length - offset - padding;
+        if (length < 0) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid padding");
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+            onHeaderBlock(streamId, frame.getFlags(), payload, offset, length);
+            return;
+        }
+        headerBlockStreamId = streamId;
+        headerBlockFlags = frame.getFlags();
+        headerBlock = new ByteArrayOutputStream(length * 2);
+        headerBlock.write(payload, offset, length);
+    }
+
+    private void onContinuation(Http2Frame frame) throws IOException {
+        if (headerBlock == null || frame.getStreamId() != headerBlockStreamId) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        headerBlock.write(frame.getPayload(), 0, frame.getPayload().length);
+        // Bound the memory used by a block which is never ended
+        if (headerBlock.size() > 4 * config.getMaxHeaderListSize()) {
+            throw new Http2Exception(Http2Error.ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+            byte[] block = headerBlock.toByteArray();
+            headerBlock = null;
+            onHeaderBlock(headerBlockStreamId, headerBlockFlags, block, 0, block.length);
+        }
+    }
+
+    private void onHeaderBlock(int streamId, int flags, byte[] block, int offset, int length)
+            throws IOException {
+        // The block is always decoded, to keep the dynamic table in sync
+        List<String[]> fields = new ArrayList<>();
+        int[] listSize = { 0 };
+        decoder.decode(block, offset, length, (name, value) -> {
+            listSize[0] += name.length() + value.length() + HpackTable.ENTRY_OVERHEAD;
+            if (listSize[0] <= config.getMaxHeaderListSize()) {
+                fields.add(new String[] { name, value });
+            }
+        });
+        boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            // Trailers, which are ignored
+            if (stream.remoteClosed || !endStream) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, streamId,
+                        "Unexpected HEADERS");
+            }
+            stream.remoteClosed = true;
+            dispatch(stream);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Stream " + streamId + " reused");
+        }
+        lastStreamId = streamId;
+        if (streams.size() >= config.getMaxConcurrentStreams()) {
+            throw new Http2Exception(Http2Error.REFUSED_STREAM, streamId,
+                    "Too many concurrent streams");
+        }
+        stream = newStream(streamId, fields);
+        if (listSize[0] > config.getMaxHeaderListSize()) {
+            stream.errorStatus = DefaultHttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE;
+        }
+        streams.put(streamId, stream);
+        if (endStream) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        }
+    }
+
+    /**
+     * Create a stream from the fields of its request header block
+     */
+    private Http2Stream newStream(int streamId, List<String[]> fields) throws Http2Exception {
+        String method = null;
+        String path = null;
+        String authority = null;
+        Map<String, String> headers = new LinkedHashMap<>();
+        boolean regularSeen = false;
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    throw new Http2Exception(Http2Error.PROTOCOL_ERROR, streamId,
+                            "Pseudo-header after regular header");
+                }
+                if (name.equals(":method")) {
+                    method = value;
+                }
+                else if (name.equals(":path")) {
+                    path = value;
+                }
+                else if (name.equals(":authority")) {
+                    authority = value;
+                }
+                else if (!name.equals(":scheme")) {
+                    throw new Http2Exception(Http2Error.PROTOCOL_ERROR, streamId,
+                            "Unknown pseudo-header " + name);
+                }
+                continue;
+            }
+            regularSeen = true;
+            if (CONNECTION_HEADERS.contains(name) || !name.equals(name.toLowerCase(Locale.US))
+                    || name.equals("te") && !value.equals("trailers")) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, streamId,
+                        "Invalid header " + name);
+            }
+            String previous = headers.get(name);
+            if (previous != null) {
+                // Cookies may be split into several fields (RFC 7540 section 8.1.2.5)
+                value = previous + (name.equals("cookie") ? "; " : ", ") + value;
+            }
+            headers.put(name, value);
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, streamId,
+                    "Missing :method or :path");
+        }
+        if (authority != null && !headers.containsKey("host")) {
+            headers.put("host", authority);
+        }
+
+        Map<String, String> queries = new LinkedHashMap<>();
+        String uriPath = path;
+        int qmi = path.indexOf('?');
+        if (qmi >= 0) {
+            HttpServerStreams.decodeParms(path.substring(qmi + 1), queries);
+            uriPath = path.substring(0, qmi);
+        }
+        HttpMethod httpMethod = HttpMethod.fromString(method);
+        HttpRoute route = httpMethod != null ? httpdContext.getHttpRoute(uriPath, httpMethod)
+                : null;
+        long maxBodySize = config.getMaxBodySize();
+        long maxInMemorySize = HttpEntityLimits.DEFAULT_MAX_IN_MEMORY_SIZE;
+        HttpEntityLimits limits = route != null ? route.getConfig().getEntityLimits() : null;
+        if (limits != null) {
+            maxInMemorySize = limits.getMaxInMemorySize();
+            if (limits.getMaxBodySize() >= 0) {
+                maxBodySize = Math.min(maxBodySize, limits.getMaxBodySize());
+            }
+        }
+        Http2Stream stream;
+        synchronized (this) {
+            stream = new Http2Stream(streamId, httpMethod, uriPath, queries, headers, route,
+                    maxInMemorySize, maxBodySize, memoryBudget, spoolManager,
+                    peerInitialWindowSize);
+        }
+        if (httpMethod == null) {
+            stream.errorStatus = DefaultHttpStatus.NOT_IMPLEMENTED;
+        }
+        else if (route == null) {
+            stream.errorStatus = DefaultHttpStatus.NOT_FOUND;
+        }
+        return stream;
+    }
+
+    private void openUpgradeStream() {
+        HttpRoute route = httpdContext.getHttpRoute(upgradeRequest.getUriPath(),
+                upgradeRequest.getMethod());
+        Http2Stream stream;
+        synchronized (this) {
+            stream = new Http2Stream(1, upgradeRequest.getMethod(), upgradeRequest.getUriPath(),
+                    upgradeRequest.getQueries(), upgradeRequest.getHeaders(), route, 0, 0,
+                    memoryBudget, spoolManager, peerInitialWindowSize);
+        }
+        if (route == null) {
+            stream.errorStatus = DefaultHttpStatus.NOT_FOUND;
+        }
+        stream.remoteClosed = true;
+        lastStreamId = 1;
+        streams.put(1, stream);
+        dispatch(stream);
+    }
+
+    private void onRstStream(Http2Frame frame) throws Http2Exception {
+        if (frame.getStreamId() == 0 || frame.getPayload().length != 4) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid RST_STREAM");
+        }
+        Http2Stream stream = streams.remove(frame.getStreamId());
+        if (stream != null) {
+            LOGGER.debug("Stream {} reset by the client: {}", stream.id,
+                    Http2Error.fromCode(Http2Frame.getInt(frame.getPayload(), 0)));
+            stream.discard();
+            synchronized (this) {
+                stream.reset = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void onSettings(Http2Frame frame) throws IOException {
+        if (frame.getStreamId() != 0) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_ACK)) {
+            if (frame.getPayload().length != 0) {
+                throw new Http2Exception(Http2Error.FRAME_SIZE_ERROR, "Invalid SETTINGS ACK");
+            }
+            decoder.setMaxTableSizeLimit(config.getHeaderTableSize());
+            return;
+        }
+        if (frame.getPayload().length % 6 != 0) {
+            throw new Http2Exception(Http2Error.FRAME_SIZE_ERROR, "Invalid SETTINGS");
+        }
+        applySettings(frame.getPayload());
+        writeFrame(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void applySettings(byte[] payload) throws Http2Exception {
+        for (int i = 0; i + 6 <= payload.length; i += 6) {
+            int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+            int value = Http2Frame.getInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value);
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Error.FLOW_CONTROL_ERROR,
+                                "Invalid INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        int delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > Integer.MAX_VALUE) {
+                                throw new Http2Exception(Http2Error.FLOW_CONTROL_ERROR,
+                                        "Window overflow");
+                            }
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MIN_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new Http2Exception(Http2Error.PROTOCOL_ERROR,
+                                "Invalid MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS and MAX_HEADER_LIST_SIZE limit what we don't send,
+                    // unknown settings are ignored
+                    break;
+            }
+        }
+    }
+
+    private static byte[] decodeUpgradeSettings(String settings) throws Http2Exception {
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            if (payload.length % 6 != 0) {
+                throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+            }
+            return payload;
+        }
+        catch (IllegalArgumentException e) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+        }
+    }
+
+    private void onPing(Http2Frame frame) throws IOException {
+        if (frame.getStreamId() != 0 || frame.getPayload().length != 8) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, "Invalid PING");
+        }
+        if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+            writeFrame(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.getPayload());
+        }
+    }
+
+    private void onWindowUpdate(Http2Frame frame) throws Http2Exception {
+        if (frame.getPayload().length != 4) {
+            throw new Http2Exception(Http2Error.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+        }
+        int increment = Http2Frame.getInt(frame.getPayload(), 0) & 0x7fffffff;
+        int streamId = frame.getStreamId();
+        if (increment == 0) {
+            throw new Http2Exception(Http2Error.PROTOCOL_ERROR, streamId, "Zero increment");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Error.FLOW_CONTROL_ERROR, "Window overflow");
+                }
+            }
+            else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Error.FLOW_CONTROL_ERROR, streamId,
+                            "Window overflow");
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Serve a stream whose request has been received completely
+     */
+    private void dispatch(Http2Stream stream) {
+        try {
+            config.getStreamExecutor().execute(() -> serve(stream));
+        }
+        catch (RejectedExecutionException e) {
+            streams.remove(stream.id);
+            stream.discard();
+            try {
+                resetStream(stream.id, Http2Error.REFUSED_STREAM);
+            }
+            catch (IOException e1) {
+                LOGGER.debug("Failed to reset stream {}", stream.id, e1);
+            }
+        }
+    }
+
+    private void serve(Http2Stream stream) {
+        HttpRequest httpRequest = null;
+        HttpResponse httpResponse = null;
+        try {
+            HttpSession httpSession = null;
+            if (stream.errorStatus != null) {
+                stream.discard();
+                httpResponse = errorResponse(stream.errorStatus);
+            }
+            else {
+                httpRequest = stream.toRequest();
+                httpSession = sessions.apply(stream.route.getHttpSessionFactory());
+                httpResponse = httpSession.serve(httpRequest);
+                ConnectionHandler connectionHandler =
+                        httpSession.getConnectionHandler(httpResponse);
+                if (connectionHandler != null) {
+                    // A stream can't be taken over
+                    connectionHandler.abort();
+                }
+            }
+            sendResponse(stream, httpResponse, stream.method != HttpMethod.HEAD);
+            if (httpSession != null) {
+                httpSession.onResponseSent(httpResponse);
+            }
+            long duration = System.nanoTime() - stream.startNanos;
+            if (metrics != null) {
+                metrics.recordRequest(stream.route, httpResponse.getStatus().getStatusCode(),
+                        duration);
+            }
+            if (accessLog != null && httpRequest != null) {
+                accessLog.log(remoteAddress, httpRequest, httpResponse, duration);
+            }
+        }
+        catch (IOException e) {
+            LOGGER.debug("Failed to send the response of stream {}", stream.id, e);
+            resetQuietly(stream);
+        }
+        catch (RuntimeException e) {
+            LOGGER.error("Exception caught while serving stream {}", stream.id, e);
+            resetQuietly(stream);
+        }
+        finally {
+            streams.remove(stream.id);
+            if (httpRequest != null && httpRequest.getEntityBody() != null) {
+                httpRequest.getEntityBody().release();
+            }
+            if (httpResponse != null && httpResponse.getEntityBody() != null) {
+                httpResponse.getEntityBody().release();
+            }
+        }
+    }
+
+    private static HttpResponse errorResponse(HttpStatus status) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Length", "0");
+        return new HttpResponse(status, headers, null);
+    }
+
+    private void resetQuietly(Http2Stream stream) {
+        if (stream.reset) {
+            return;
+        }
+        try {
+            resetStream(stream.id, Http2Error.INTERNAL_ERROR);
+        }
+        catch (IOException e) {
+            LOGGER.debug("Failed to reset stream {}", stream.id, e);
+        }
+    }
+
+    private void sendResponse(Http2Stream stream, HttpResponse httpResponse, boolean sendBody)
+            throws IOException {
+        HttpEntity body = httpResponse.getEntityBody();
+        byte[] serialized = null;
+        int serializedOffset = 0;
+        if (httpResponse instanceof SerializedHttpResponse) {
+            serialized = ((SerializedHttpResponse) httpResponse).getMessage();
+            serializedOffset = ((SerializedHttpResponse) httpResponse).getHeadLength();
+        }
+        boolean hasBody = sendBody
+                && (body != null || serialized != null && serialized.length > serializedOffset);
+
+        synchronized (writeLock) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            encoder.beginBlock(block);
+            encoder.encode(block, ":status",
+                    Integer.toString(httpResponse.getStatus().getStatusCode()));
+            for (Map.Entry<String, String> entry : httpResponse.getHeaders().entrySet()) {
+                String name = entry.getKey().toLowerCase(Locale.US);
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    encoder.encode(block, name, entry.getValue());
+                }
+            }
+            writeHeaderBlock(stream.id, block.toByteArray(), !hasBody);
+        }
+        if (!hasBody) {
+            return;
+        }
+        try (OutputStream data = new DataOutputStream(stream)) {
+            if (serialized != null) {
+                data.write(serialized, serializedOffset, serialized.length - serializedOffset);
+            }
+            else {
+                body.writeContentTo(data);
+            }
+        }
+    }
+
+    /**
+     * Write a header block in a HEADERS frame and CONTINUATION frames if it is larger than the
+     * maximum frame size of the client, with the write lock held
+     */
+    private void writeHeaderBlock(int streamId, byte[] block, boolean endStream)
+            throws IOException {
+        int maxFrameSize = peerMaxFrameSize;
+        int offset = 0;
+        int type = Http2Frame.HEADERS;
+        do {
+            int length = Math.min(maxFrameSize, block.length - offset);
+            int flags = offset + length == block.length ? Http2Frame.FLAG_END_HEADERS : 0;
+            if (type == Http2Frame.HEADERS && endStream) {
+                flags |= Http2Frame.FLAG_END_STREAM;
+            }
+            Http2Frame.write(out, type, flags, streamId, block, offset, length);
+            offset += length;
+            type = Http2Frame.CONTINUATION;
+        } while (offset < block.length);
+        out.flush();
+    }
+
+    /**
+     * Wait until the flow control windows of the connection and of a stream allow to send data
+     *
+     * @return the number of bytes which can be sent, at most the specified length
+     */
+    private synchronized int acquireWindow(Http2Stream stream, int length) throws IOException {
+        while (!closed && !stream.reset && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the flow control window");
+            }
+        }
+        if (closed || stream.reset) {
+            throw new IOException("Stream " + stream.id + " closed");
+        }
+        int granted = (int) Math.min(length, Math.min(sendWindow, stream.sendWindow));
+        sendWindow -= granted;
+        stream.sendWindow -= granted;
+        return granted;
+    }
+
+    private void writeData(int streamId, byte[] data, int offset, int length, boolean endStream)
+            throws IOException {
+        synchronized (writeLock) {
+            Http2Frame.write(out, Http2Frame.DATA, endStream ? Http2Frame.FLAG_END_STREAM : 0,
+                    streamId, data, offset, length);
+            out.flush();
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        synchronized (writeLock) {
+            Http2Frame.write(out, type, flags, streamId, payload);
+            out.flush();
+        }
+    }
+
+    private void sendSettings() throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(36);
+        putSetting(payload, SETTINGS_ENABLE_PUSH, 0);
+        putSetting(payload, SETTINGS_MAX_CONCURRENT_STREAMS, config.getMaxConcurrentStreams());
+        putSetting(payload, SETTINGS_MAX_HEADER_LIST_SIZE, config.getMaxHeaderListSize());
+        if (config.getHeaderTableSize() != Http2Config.DEFAULT_HEADER_TABLE_SIZE) {
+            putSetting(payload, SETTINGS_HEADER_TABLE_SIZE, config.getHeaderTableSize());
+        }
+        if (config.getInitialWindowSize() != DEFAULT_WINDOW_SIZE) {
+            putSetting(payload, SETTINGS_INITIAL_WINDOW_SIZE, config.getInitialWindowSize());
+        }
+        if (config.getMaxFrameSize() != MIN_FRAME_SIZE) {
+            putSetting(payload, SETTINGS_MAX_FRAME_SIZE, config.getMaxFrameSize());
+        }
+        writeFrame(Http2Frame.SETTINGS, 0, 0, payload.toByteArray());
+        // The connection window can only be changed with a WINDOW_UPDATE
+        if (config.getInitialWindowSize() > DEFAULT_WINDOW_SIZE) {
+            sendWindowUpdate(0, config.getInitialWindowSize() - DEFAULT_WINDOW_SIZE);
+        }
+    }
+
+    private static void putSetting(ByteArrayOutputStream payload, int id, int value) {
+        payload.write(id >>> 8);
+        payload.write(id);
+        byte[] buffer = new byte[4];
+        Http2Frame.putInt(buffer, 0, value);
+        payload.write(buffer, 0, 4);
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        Http2Frame.putInt(payload, 0, increment);
+        writeFrame(Http2Frame.WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+    private void resetStream(int streamId, Http2Error error) throws IOException {
+        Http2Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.discard();
+            synchronized (this) {
+                stream.reset = true;
+                notifyAll();
+            }
+        }
+        byte[] payload = new byte[4];
+        Http2Frame.putInt(payload, 0, error.getCode());
+        writeFrame(Http2Frame.RST_STREAM, 0, streamId, payload);
+    }
+
+    private void goAway(Http2Error error, String message) {
+        byte[] debugData = message != null ? message.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] payload = new byte[8 + debugData.length];
+        Http2Frame.putInt(payload, 0, lastStreamId);
+        Http2Frame.putInt(payload, 4, error.getCode());
+        System.arraycopy(debugData, 0, payload, 8, debugData.length);
+        try {
+            writeFrame(Http2Frame.GOAWAY, 0, 0, payload);
+        }
+        catch (IOException e) {
+            LOGGER.debug("Failed to send GOAWAY", e);
+        }
+    }
+
+    /**
+     * Output stream sending the response body of a stream in DATA frames, closing it ends the
+     * stream
+     */
+    private final class DataOutputStream extends OutputStream {
+
+        private final Http2Stream stream;
+        private final byte[] buffer;
+        private int count;
+
+        DataOutputStream(Http2Stream stream) {
+            this.stream = stream;
+            this.buffer = new byte[peerMaxFrameSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                send(false);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    send(false);
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                send(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            send(true);
+        }
+
+        private void send(boolean endStream) throws IOException {
+            int offset = 0;
+            do {
+                int length = count - offset;
+                if (length > 0) {
+                    length = acquireWindow(stream, length);
+                }
+                offset += length;
+                writeData(stream.id, buffer, offset - length, length,
+                        endStream && offset == count);
+            } while (offset < count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.luwak.http2;
+
+/**
+ * HTTP/2 error codes, sent in RST_STREAM and GOAWAY frames (RFC 7540 section 7)
+ *
+ */
+public enum Http2Error {
+    NO_ERROR(0x0),
+    PROTOCOL_ERROR(0x1),
+    INTERNAL_ERROR(0x2),
+    FLOW_CONTROL_ERROR(0x3),
+    SETTINGS_TIMEOUT(0x4),
+    STREAM_CLOSED(0x5),
+    FRAME_SIZE_ERROR(0x6),
+    REFUSED_STREAM(0x7),
+    CANCEL(0x8),
+    COMPRESSION_ERROR(0x9),
+    CONNECT_ERROR(0xa),
+    ENHANCE_YOUR_CALM(0xb),
+    INADEQUATE_SECURITY(0xc),
+    HTTP_1_1_REQUIRED(0xd);
+
+    private final int code;
+
+    private Http2Error(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the error with the specified code
+     *
+     * @param code the error code
+     * @return the error, INTERNAL_ERROR for an unknown code
+     */
+    public static Http2Error fromCode(int code) {
+        for (Http2Error error : values()) {
+            if (error.code == code) {
+                return error;
+            }
+        }
+        return INTERNAL_ERROR;
+    }
+}
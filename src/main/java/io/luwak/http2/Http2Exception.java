@@ -0,0 +1,59 @@
+package io.luwak.http2;
+
+import java.io.IOException;
+
+/**
+ * Thrown on an HTTP/2 protocol error. A stream error only resets the stream, a connection error
+ * (stream identifier 0) ends the connection with a GOAWAY frame.
+ *
+ */
+public class Http2Exception extends IOException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 2790526405624963128L;
+
+    private final Http2Error error;
+    private final int streamId;
+
+    /**
+     * Constructs a connection error
+     *
+     * @param error the error code
+     * @param message error message
+     */
+    public Http2Exception(Http2Error error, String message) {
+        this(error, 0, message);
+    }
+
+    /**
+     * Constructs a stream error, or a connection error if the stream identifier is 0
+     *
+     * @param error the error code
+     * @param streamId the stream in error
+     * @param message error message
+     */
+    public Http2Exception(Http2Error error, int streamId, String message) {
+        super(message);
+        this.error = error;
+        this.streamId = streamId;
+    }
+
+    public Http2Error getError() {
+        return error;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Return true if the error only affects one stream
+     *
+     * @return true for a stream error, false for a connection error
+     */
+    public boolean isStreamError() {
+        return streamId != 0;
+    }
+}
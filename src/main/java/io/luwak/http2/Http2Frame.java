@@ -0,0 +1,174 @@
+package io.luwak.http2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An HTTP/2 frame: a 9 bytes header (length, type, flags and stream identifier) followed by the
+ * payload (RFC 7540 section 4.1)
+ *
+ */
+public final class Http2Frame {
+
+    public static final int HEADER_LENGTH = 9;
+
+    public static final int DATA = 0x0;
+    public static final int HEADERS = 0x1;
+    public static final int PRIORITY = 0x2;
+    public static final int RST_STREAM = 0x3;
+    public static final int SETTINGS = 0x4;
+    public static final int PUSH_PROMISE = 0x5;
+    public static final int PING = 0x6;
+    public static final int GOAWAY = 0x7;
+    public static final int WINDOW_UPDATE = 0x8;
+    public static final int CONTINUATION = 0x9;
+
+    public static final int FLAG_END_STREAM = 0x1;
+    public static final int FLAG_ACK = 0x1;
+    public static final int FLAG_END_HEADERS = 0x4;
+    public static final int FLAG_PADDED = 0x8;
+    public static final int FLAG_PRIORITY = 0x20;
+
+    private final int type;
+    private final int flags;
+    private final int streamId;
+    private final byte[] payload;
+
+    /**
+     * Constructs a frame
+     *
+     * @param type the frame type
+     * @param flags the flags
+     * @param streamId the stream identifier, 0 for the frames of the connection
+     * @param payload the payload
+     */
+    public Http2Frame(int type, int flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Read the next frame
+     *
+     * @param in the input stream
+     * @param maxFrameSize the maximum payload length accepted
+     * @return the frame, or null if the stream ends before a new frame
+     * @throws Http2Exception FRAME_SIZE_ERROR if the frame is larger than the maximum size
+     * @throws IOException if an I/O error occurs or the stream ends within the frame
+     */
+    public static Http2Frame read(InputStream in, int maxFrameSize) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        header[0] = (byte) first;
+        readFully(in, header, 1, HEADER_LENGTH - 1);
+        int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+        if (length > maxFrameSize) {
+            throw new Http2Exception(Http2Error.FRAME_SIZE_ERROR,
+                    "Frame of " + length + " bytes larger than " + maxFrameSize);
+        }
+        // The reserved bit is ignored
+        int streamId = getInt(header, 5) & 0x7fffffff;
+        byte[] payload = new byte[length];
+        readFully(in, payload, 0, length);
+        return new Http2Frame(header[3] & 0xff, header[4] & 0xff, streamId, payload);
+    }
+
+    /**
+     * Write a frame, the output stream is not flushed
+     *
+     * @param out the output stream
+     * @param type the frame type
+     * @param flags the flags
+     * @param streamId the stream identifier
+     * @param payload the buffer holding the payload
+     * @param offset the offset of the payload in the buffer
+     * @param length the payload length
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(OutputStream out, int type, int flags, int streamId, byte[] payload,
+            int offset, int length) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        out.write(header);
+        if (length > 0) {
+            out.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Write a frame with a whole payload, the output stream is not flushed
+     *
+     * @param out the output stream
+     * @param type the frame type
+     * @param flags the flags
+     * @param streamId the stream identifier
+     * @param payload the payload
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(OutputStream out, int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        write(out, type, flags, streamId, payload, 0, payload.length);
+    }
+
+    static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read == -1) {
+                throw new EOFException("Connection closed within a frame");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Http2Frame type=" + type + " flags=" + flags + " streamId=" + streamId
+                + " length=" + payload.length;
+    }
+}
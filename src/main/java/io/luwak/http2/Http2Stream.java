@@ -0,0 +1,140 @@
+package io.luwak.http2;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.io.InsufficientStorageException;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.PayloadTooLargeException;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.io.SpoolingOutputStream;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpStatus;
+import io.luwak.httpd.HttpRoute;
+
+/**
+ * A stream of an HTTP/2 connection carrying one request and its response. The request is
+ * received by the thread reading the connection, the response is sent by the thread serving the
+ * stream.
+ *
+ * The request body is buffered like the bodies of HTTP/1.1 requests, in memory within the memory
+ * budget of the server or in a spool file. The body is either handed over to the request or
+ * discarded when the stream ends without being served.
+ *
+ */
+final class Http2Stream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2Stream.class);
+
+    static final String HTTP_VERSION = "HTTP/2.0";
+
+    final int id;
+    final HttpMethod method;
+    final String uriPath;
+    final Map<String, String> queries;
+    final Map<String, String> headers;
+    /** The route serving the request, null if there is none */
+    final HttpRoute route;
+    /** The status of the error response if the request can't be served, null otherwise */
+    HttpStatus errorStatus;
+    /** When the request headers were received, in nanoseconds */
+    final long startNanos = System.nanoTime();
+
+    private final long maxInMemorySize;
+    private final long maxBodySize;
+    private final MemoryBudget memoryBudget;
+    private final SpoolManager spoolManager;
+    // Guarded by this, the body is received by the reader and taken by the serving thread
+    private SpoolingOutputStream body;
+
+    /** Received DATA bytes not acknowledged with a WINDOW_UPDATE yet, read by the reader only */
+    int receiveUnacked;
+    /** Set once the client has ended the stream, read by the reader only */
+    boolean remoteClosed;
+
+    /** Flow control window of the response, guarded by the connection */
+    long sendWindow;
+    /** Set when the stream is reset or the connection closed, the response is abandoned */
+    volatile boolean reset;
+
+    Http2Stream(int id, HttpMethod method, String uriPath, Map<String, String> queries,
+            Map<String, String> headers, HttpRoute route, long maxInMemorySize, long maxBodySize,
+            MemoryBudget memoryBudget, SpoolManager spoolManager, long sendWindow) {
+        this.id = id;
+        this.method = method;
+        this.uriPath = uriPath;
+        this.queries = queries;
+        this.headers = headers;
+        this.route = route;
+        this.maxInMemorySize = maxInMemorySize;
+        this.maxBodySize = maxBodySize;
+        this.memoryBudget = memoryBudget;
+        this.spoolManager = spoolManager;
+        this.sendWindow = sendWindow;
+    }
+
+    /**
+     * Append a DATA payload to the request body
+     */
+    synchronized void receive(byte[] data, int offset, int length) {
+        if (errorStatus != null || length == 0) {
+            return;
+        }
+        if (body == null) {
+            body = new SpoolingOutputStream(-1, maxInMemorySize, maxBodySize, memoryBudget,
+                    spoolManager);
+        }
+        try {
+            body.write(data, offset, length);
+        }
+        catch (PayloadTooLargeException e) {
+            errorStatus = DefaultHttpStatus.PAYLOAD_TOO_LARGE;
+            discard();
+        }
+        catch (InsufficientStorageException e) {
+            errorStatus = DefaultHttpStatus.INSUFFICIENT_STORAGE;
+            discard();
+        }
+        catch (IOException e) {
+            LOGGER.warn("Failed to spool the body of stream {}", id, e);
+            errorStatus = DefaultHttpStatus.INTERNAL_SERVER_ERROR;
+            discard();
+        }
+    }
+
+    /**
+     * Build the request once the client has ended the stream, the request takes over the body
+     */
+    synchronized HttpRequest toRequest() throws IOException {
+        HttpEntity entity = null;
+        if (body != null) {
+            SpoolingOutputStream out = body;
+            body = null;
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                out.discard();
+                throw e;
+            }
+            entity = HttpEntity.fromSpooled(out, false, false, memoryBudget, spoolManager);
+        }
+        return new HttpRequest(method, uriPath, queries, HTTP_VERSION, headers, entity);
+    }
+
+    /**
+     * Release the body of a stream ending without being served
+     */
+    synchronized void discard() {
+        if (body != null) {
+            body.discard();
+            body = null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.luwak.http2;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The static Huffman code of HPACK (RFC 7541 appendix B). The code is canonical, so the codes are
+ * derived from the code lengths of the 256 octets and of EOS.
+ *
+ */
+final class Huffman {
+
+    private static final int EOS = 256;
+    private static final int MAX_LENGTH = 30;
+
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+    private static final int[] CODES = new int[LENGTHS.length];
+    /** Symbols sorted by code */
+    private static final int[] SYMBOLS = new int[LENGTHS.length];
+    private static final int[] FIRST_CODE = new int[MAX_LENGTH + 1];
+    private static final int[] FIRST_INDEX = new int[MAX_LENGTH + 1];
+    private static final int[] COUNT = new int[MAX_LENGTH + 1];
+
+    static {
+        int index = 0;
+        int code = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_INDEX[length] = index;
+            for (int symbol = 0; symbol < LENGTHS.length; symbol++) {
+                if (LENGTHS[symbol] == length) {
+                    CODES[symbol] = code++;
+                    SYMBOLS[index++] = symbol;
+                }
+            }
+            COUNT[length] = index - FIRST_INDEX[length];
+            code <<= 1;
+        }
+    }
+
+    private Huffman() {
+    }
+
+    /**
+     * Return the length of the encoded form of a string
+     *
+     * @param data the octets of the string
+     * @return the encoded length in bytes
+     */
+    static int encodedLength(byte[] data) {
+        long bits = 0;
+        for (byte b : data) {
+            bits += LENGTHS[b & 0xff];
+        }
+        return (int) ((bits + 7) / 8);
+    }
+
+    /**
+     * Encode a string, the last byte is padded with the most significant bits of EOS
+     *
+     * @param data the octets of the string
+     * @param out the output receiving the encoded string
+     */
+    static void encode(byte[] data, ByteArrayOutputStream out) {
+        long bits = 0;
+        int count = 0;
+        for (byte b : data) {
+            int symbol = b & 0xff;
+            bits = bits << LENGTHS[symbol] | CODES[symbol];
+            count += LENGTHS[symbol];
+            while (count >= 8) {
+                count -= 8;
+                out.write((int) (bits >>> count));
+            }
+        }
+        if (count > 0) {
+            out.write((int) (bits << (8 - count) | 0xff >>> count));
+        }
+    }
+
+    /**
+     * Decode a string
+     *
+     * @param data the buffer holding the encoded string
+     * @param offset the offset of the encoded string
+     * @param length the length of the encoded string
+     * @return the octets of the string
+     * @throws Http2Exception COMPRESSION_ERROR if the string is not a valid encoding
+     */
+    static byte[] decode(byte[] data, int offset, int length) throws Http2Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                code = code << 1 | (data[i] >>> bit & 1);
+                codeLength++;
+                int index = code - FIRST_CODE[codeLength];
+                if (index >= 0 && index < COUNT[codeLength]) {
+                    int symbol = SYMBOLS[FIRST_INDEX[codeLength] + index];
+                    if (symbol == EOS) {
+                        throw new Http2Exception(Http2Error.COMPRESSION_ERROR,
+                                "EOS in Huffman encoded string");
+                    }
+                    out.write(symbol);
+                    code = 0;
+                    codeLength = 0;
+                }
+                else if (codeLength == MAX_LENGTH) {
+                    throw new Http2Exception(Http2Error.COMPRESSION_ERROR,
+                            "Invalid Huffman code");
+                }
+            }
+        }
+        // The padding is shorter than a byte and made of the first bits of EOS, all ones
+        if (codeLength > 7 || code != (1 << codeLength) - 1) {
+            throw new Http2Exception(Http2Error.COMPRESSION_ERROR,
+                    "Invalid Huffman padding");
+        }
+        return out.toByteArray();
+    }
+}
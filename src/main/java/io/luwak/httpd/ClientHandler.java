@@ -1,17 +1,42 @@
 package io.luwak.httpd;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.luwak.accesslog.AccessLog;
+import io.luwak.http.Http2PrefaceException;
 import io.luwak.http.HttpServerStreams;
+import io.luwak.http.io.CountingInputStream;
+import io.luwak.http.io.CountingOutputStream;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntityLimits;
+import io.luwak.http.message.HttpMethod;
 import io.luwak.http.message.HttpRequest;
 import io.luwak.http.message.HttpRequestException;
 import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpStatus;
+import io.luwak.http.message.RecyclableHttpRequest;
+import io.luwak.http2.Http2Config;
+import io.luwak.http2.Http2ConnectionHandler;
+import io.luwak.jfr.LuwakEvents;
+import io.luwak.metrics.HttpMetrics;
+import io.luwak.metrics.RequestPhase;
+import io.luwak.metrics.RequestTrace;
+import io.luwak.metrics.RequestTracer;
 
 /**
  * Client handler that handles one incoming connection from a client. Every instance of this class
@@ -25,9 +50,42 @@ public class ClientHandler implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ClientHandler.class);
 
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+
     private Socket acceptSocket;
     private Socket clientSocket;
     private HttpdContext httpdContext;
+    private final HttpSessionProvider sessionProvider;
+    private RecyclingMode recyclingMode = RecyclingMode.OFF;
+    private Http2Config http2Config;
+    private HttpMetrics metrics;
+    private RequestTracer tracer;
+    private AccessLog accessLog;
+    private MemoryBudget memoryBudget;
+    private SpoolManager spoolManager;
+    private long acceptedNanos;
+    /** The JFR event of the connection, null if not recorded */
+    private Object connectionEvent;
+
+    /** The trace of the request being served, null if it is not timed */
+    private RequestTrace trace;
+    /** The trace reused for every request of the connection */
+    private RequestTrace reusableTrace;
+    /** The JFR event of the request being served, null if not recorded */
+    private Object requestEvent;
+    /** The QUEUE phase of the first request, 0 once it has been timed */
+    private long queueNanos;
+    private int requestCount;
+    /** The bytes received and sent on the connection, counted if the connection is recorded */
+    private long bytesReceived;
+    private long bytesSent;
+    private long requestStartReceived;
+    private long requestStartSent;
+
+    /** The route of the request currently being read/served */
+    private HttpRoute httpRoute;
+    /** When the header of the request currently being served was read, in nanoseconds */
+    private long requestStart;
 
     /**
      * Create a client handler from an accept socket and an HTTPD Context
@@ -36,8 +94,21 @@ public class ClientHandler implements Runnable {
      * @param httpdContext the HTTPD Context object
      */
     public ClientHandler(Socket acceptSocket, HttpdContext httpdContext) {
+        this(acceptSocket, httpdContext, new HttpSessionProvider());
+    }
+
+    /**
+     * Create a client handler sharing the thread-confined and singleton sessions of a server
+     *
+     * @param acceptSocket accept socket
+     * @param httpdContext the HTTPD Context object
+     * @param sessionProvider the session provider of the server
+     */
+    ClientHandler(Socket acceptSocket, HttpdContext httpdContext,
+            HttpSessionProvider sessionProvider) {
         this.acceptSocket = acceptSocket;
         this.httpdContext = httpdContext;
+        this.sessionProvider = sessionProvider;
     }
 
     /**
@@ -49,80 +120,369 @@ public class ClientHandler implements Runnable {
     public ClientHandler(Socket acceptSocket, Socket clientSocket) {
         this.acceptSocket = acceptSocket;
         this.clientSocket = clientSocket;
+        this.sessionProvider = new HttpSessionProvider();
+    }
+
+    /**
+     * Set whether the request and response objects of the connection are reused
+     *
+     * @param recyclingMode the recycling mode, {@link RecyclingMode#OFF} by default
+     */
+    public void setRecyclingMode(RecyclingMode recyclingMode) {
+        this.recyclingMode = recyclingMode;
+    }
+
+    /**
+     * Enable HTTP/2 cleartext (h2c) on the connection, with prior knowledge or an
+     * {@code Upgrade: h2c} request
+     *
+     * @param http2Config the HTTP/2 configuration, null to serve HTTP/1.1 only
+     */
+    public void setHttp2Config(Http2Config http2Config) {
+        this.http2Config = http2Config;
+    }
+
+    /**
+     * Record the metrics of the connection: bytes received and sent, latency of the requests per
+     * route and status code, and parse errors
+     *
+     * @param metrics the metrics registry, null to record nothing
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Time the phases of the requests on the connection
+     *
+     * @param tracer the tracer, null to time nothing
+     */
+    public void setRequestTracer(RequestTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Log the requests served on the connection
+     *
+     * @param accessLog the access log, null to log nothing
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Set the budget of heap memory reserved by the request bodies kept in memory
+     *
+     * @param memoryBudget the memory budget, null to use {@link MemoryBudget#getDefault()}
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the SpoolManager providing the spool files of the request bodies not kept in memory
+     *
+     * @param spoolManager the SpoolManager, null to use {@link SpoolManager#getDefault()}
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        this.spoolManager = spoolManager;
+    }
+
+    /**
+     * Set when the connection was accepted, to time the QUEUE phase of its first request
+     *
+     * @param acceptedNanos the time from {@link System#nanoTime()}, 0 if unknown
+     */
+    public void setAcceptedNanos(long acceptedNanos) {
+        this.acceptedNanos = acceptedNanos;
+    }
+
+    /**
+     * Set the JFR event of the connection, committed once the connection is closed or taken
+     * over
+     *
+     * @param connectionEvent the event returned by {@link LuwakEvents#beginConnection()}, null if
+     *      not recorded
+     */
+    public void setConnectionEvent(Object connectionEvent) {
+        this.connectionEvent = connectionEvent;
     }
 
     @Override
     public void run() {
-        try (InputStream inputStream = acceptSocket.getInputStream();
-                OutputStream outputStream = acceptSocket.getOutputStream()) {
+        queueNanos = acceptedNanos != 0 ? System.nanoTime() - acceptedNanos : 0;
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        // Set once the connection has been taken over by a session, it must not be closed then
+        boolean takenOver = false;
+        HttpSessionProvider.Connection sessions = sessionProvider.connection(acceptSocket);
+        RecyclableHttpRequest recyclable = recyclingMode == RecyclingMode.ON
+                ? new RecyclableHttpRequest(false) : null;
+        try {
+            inputStream = acceptSocket.getInputStream();
+            outputStream = acceptSocket.getOutputStream();
+            if (metrics != null) {
+                inputStream = new CountingInputStream(inputStream, metrics::addReceivedBytes);
+                outputStream = new CountingOutputStream(outputStream, metrics::addSentBytes);
+            }
+            if (connectionEvent != null) {
+                inputStream = new CountingInputStream(inputStream, n -> bytesReceived += n);
+                outputStream = new CountingOutputStream(outputStream, n -> bytesSent += n);
+            }
+            outputStream = new BufferedOutputStream(outputStream, OUTPUT_BUFFER_SIZE);
             HttpServerStreams httpServerStreams = new HttpServerStreams(inputStream, outputStream);
+            httpServerStreams.setEntityLimitsResolver(this::resolveEntityLimits);
+            httpServerStreams.setMemoryBudget(memoryBudget);
+            httpServerStreams.setSpoolManager(spoolManager);
             // TODO: honour keep alive
-            while (!acceptSocket.isClosed()) {
+            while (!acceptSocket.isClosed() && !takenOver) {
                 HttpRequest httpRequest = null;
+                HttpResponse httpResponse = null;
+                httpRoute = null;
+                requestEvent = LuwakEvents.newRequest();
+                trace = nextTrace();
+                httpServerStreams.setTiming(trace != null);
+                requestStartReceived = bytesReceived;
+                requestStartSent = bytesSent;
+                if (recyclingMode == RecyclingMode.DEBUG) {
+                    // Never reused, so that stale references fail
+                    recyclable = new RecyclableHttpRequest(true);
+                }
                 try {
-                    httpRequest = httpServerStreams.read();
+                    httpRequest = httpServerStreams.read(recyclable);
+                    if (httpRequest == null) {
+                        // Empty request header
+                        break;
+                    }
+                    if (trace != null && trace.isStarted()) {
+                        trace.setDuration(RequestPhase.PARSE,
+                                requestStart - httpServerStreams.getHeaderStartNanos());
+                        trace.end(RequestPhase.BODY);
+                    }
+                    if (http2Config != null
+                            && Http2ConnectionHandler.isUpgradeRequest(httpRequest)) {
+                        Http2ConnectionHandler http2Handler = newHttp2Handler(sessions);
+                        http2Handler.setUpgradeRequest(httpRequest);
+                        httpServerStreams.send(
+                                Http2ConnectionHandler.newSwitchingProtocolsResponse());
+                        takenOver = true;
+                        http2Handler.takeOver(acceptSocket,
+                                httpServerStreams.takeBufferedInput());
+                        continue;
+                    }
+                    if (httpRoute == null) {
+                        LOGGER.debug("No route for {} {}", httpRequest.getMethod(),
+                                httpRequest.getUriPath());
+                        endPhase(RequestPhase.SERVE);
+                        sendError(httpServerStreams, DefaultHttpStatus.NOT_FOUND, false);
+                        endPhase(RequestPhase.WRITE);
+                        recordRequest(httpRequest, null);
+                        continue;
+                    }
 
-                    HttpSessionFactory httpSessionFactory = httpdContext.getHttpSessionFactory(
-                            httpRequest.getUriPath(), httpRequest.getMethod());
-                    HttpSession httpSession = httpSessionFactory.newInstance(acceptSocket);
-                    HttpResponse httpResponse = httpSession.serve(httpRequest);
-                    httpServerStreams.send(httpResponse);
+                    HttpSessionFactory httpSessionFactory = httpRoute.getHttpSessionFactory();
+                    HttpSession httpSession = sessions.get(httpSessionFactory);
+                    httpResponse = httpSession.serve(httpRequest);
+                    ConnectionHandler connectionHandler =
+                            httpSession.getConnectionHandler(httpResponse);
+                    endPhase(RequestPhase.SERVE);
+                    try {
+                        httpServerStreams.send(httpResponse,
+                                httpRequest.getMethod() != HttpMethod.HEAD);
+                    }
+                    catch (IOException e) {
+                        if (connectionHandler != null) {
+                            connectionHandler.abort();
+                        }
+                        throw e;
+                    }
+                    endPhase(RequestPhase.WRITE);
                     httpSession.onResponseSent(httpResponse);
+                    recordRequest(httpRequest, httpResponse);
+                    if (connectionHandler != null) {
+                        connectionHandler.takeOver(acceptSocket,
+                                httpServerStreams.takeBufferedInput());
+                        takenOver = true;
+                    }
+                }
+                catch (Http2PrefaceException e) {
+                    if (http2Config == null) {
+                        LOGGER.debug("HTTP/2 connection preface received, HTTP/2 is disabled");
+                        sendError(httpServerStreams, DefaultHttpStatus.HTTP_VERSION_NOT_SUPPORTED,
+                                true);
+                        break;
+                    }
+                    Http2ConnectionHandler http2Handler = newHttp2Handler(sessions);
+                    http2Handler.setPriorKnowledge();
+                    takenOver = true;
+                    http2Handler.takeOver(acceptSocket, httpServerStreams.takeBufferedInput());
                 }
-                catch (IOException | HttpRequestException e) {
+                catch (HttpRequestException e) {
+                    // The request could not be read completely, the connection can't be reused
                     LOGGER.error("Exception caught while reading streams", e);
+                    if (metrics != null) {
+                        metrics.parseError();
+                    }
+                    sendError(httpServerStreams, e.getStatus(), true);
+                    break;
                 }
+                catch (IOException e) {
+                    LOGGER.error("Exception caught while reading streams", e);
+                    break;
+                }
+                finally {
+                    // Spool files of the request and response are not needed anymore
+                    release(httpRequest, httpResponse);
+                    if (recyclable != null) {
+                        recyclable.recycle();
+                    }
+                }
+            }
+            if (takenOver) {
+                LOGGER.debug("Accept socket {} taken over", acceptSocket.getRemoteSocketAddress());
             }
-            LOGGER.debug("Accept socket {} closed", acceptSocket.getRemoteSocketAddress());
-        } catch (IOException e1) {
+            else {
+                LOGGER.debug("Accept socket {} closed", acceptSocket.getRemoteSocketAddress());
+            }
+        }
+        catch (IOException e1) {
             LOGGER.error("Exception caught while reading server streams", e1);
+        }
+        finally {
+            sessions.closed();
+            LuwakEvents.endConnection(connectionEvent, acceptSocket.getRemoteSocketAddress(),
+                    acceptSocket instanceof SSLSocket, requestCount,
+                    connectionEvent != null ? bytesReceived : -1,
+                    connectionEvent != null ? bytesSent : -1);
+            if (!takenOver) {
+                closeQuietly(outputStream);
+                closeQuietly(inputStream);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
             return;
         }
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Exception caught while closing stream", e);
+        }
     }
 
-    // TODO
-    // To be used if we need to set up a transparent HTTPS tunnel, i.e. we are not intercepting the
-    // HTTPS traffic
-    /*private void setupTunnel(HttpRequest httpRequest, InputStream clientIs, OutputStream clientOs) {
-        String hostHeader  = httpRequest.getHeaders().get("Host".toLowerCase());
-        System.out.println("----- Host header: " + hostHeader);
-        String[] fragments = hostHeader.split(":");
-        String host = fragments[0];
-        int port = Integer.parseInt(fragments[1]);
-        
-        PipedStreams streamToHttp = null;
-        PipedStreams streamToEndpoint = null;
-        System.out.println(String.format("[%s] Connecting to remote host %s:%d", Thread.currentThread().getName(), host, port));
-
-        try (Socket endpoint = SocketFactory.getDefault().createSocket(host, port)) {
-            System.out.println("Connection established");
-
-            CountDownLatch latch = new CountDownLatch(1);
-
-            streamToHttp = new PipedStreams(endpoint.getInputStream(), clientOs, latch);
-            streamToEndpoint = new PipedStreams(clientIs, endpoint.getOutputStream(), latch);
-
-            new Thread(streamToHttp, "endpoint-read -> http-write    ").start();
-            new Thread(streamToEndpoint, "http-read     -> endpoint-write").start();
-
-            latch.await();
-
-            System.out.println(String.format("[%s] Safely shut down servlet-to-%s:%d proxy.",
-                    Thread.currentThread().getName(), host, port));
-        } catch (IOException e) {
-            System.out.println(String.format("[%s] IO Exception, shutting down servlet-to-%s:%d proxy.",
-                    Thread.currentThread().getName(), host, port));
-        } catch (InterruptedException e) {
-            System.out.println(String.format("[%s] Interrupted, shutting down servlet-to-%s:%d proxy.",
-                    host, port));
-        } finally {
-            if (streamToHttp != null) {
-                streamToHttp.close();
+    private Http2ConnectionHandler newHttp2Handler(HttpSessionProvider.Connection sessions) {
+        Http2ConnectionHandler handler = new Http2ConnectionHandler(http2Config, httpdContext,
+                sessions::getConcurrent);
+        handler.setMetrics(metrics);
+        handler.setAccessLog(accessLog);
+        handler.setMemoryBudget(memoryBudget);
+        handler.setSpoolManager(spoolManager);
+        return handler;
+    }
+
+    /**
+     * Get the trace of the next request, if it is timed by the tracer or recorded by JFR
+     */
+    private RequestTrace nextTrace() {
+        if (tracer == null && requestEvent == null) {
+            return null;
+        }
+        if (reusableTrace == null) {
+            reusableTrace = new RequestTrace();
+        }
+        reusableTrace.clear();
+        return reusableTrace;
+    }
+
+    private void endPhase(RequestPhase phase) {
+        if (trace != null) {
+            trace.end(phase);
+        }
+    }
+
+    /**
+     * Record a request which has been served
+     *
+     * @param httpResponse the response, null if an error without body has been sent because the
+     *      request has no route
+     */
+    private void recordRequest(HttpRequest httpRequest, HttpResponse httpResponse) {
+        requestCount++;
+        int statusCode = httpResponse != null ? httpResponse.getStatus().getStatusCode()
+                : DefaultHttpStatus.NOT_FOUND.getStatusCode();
+        if (metrics != null || accessLog != null) {
+            long duration = System.nanoTime() - requestStart;
+            if (metrics != null) {
+                metrics.recordRequest(httpRoute, statusCode, duration);
             }
-            if (streamToEndpoint != null) {
-                streamToEndpoint.close();
+            if (accessLog != null) {
+                InetAddress remoteAddress = acceptSocket.getInetAddress();
+                if (httpResponse != null) {
+                    accessLog.log(remoteAddress, httpRequest, httpResponse, duration);
+                }
+                else {
+                    accessLog.log(remoteAddress, httpRequest, statusCode, 0, duration);
+                }
+            }
+        }
+        if (trace != null && trace.isStarted()) {
+            trace.end(RequestPhase.COMPLETE);
+            trace.describe(httpRequest.getMethod(), httpRequest.getUriPath(),
+                    httpRoute != null ? httpRoute.getUriPattern() : null, statusCode);
+            if (tracer != null) {
+                tracer.complete(trace);
             }
+            boolean counted = connectionEvent != null;
+            LuwakEvents.endRequest(requestEvent, trace,
+                    counted ? bytesReceived - requestStartReceived : -1,
+                    counted ? bytesSent - requestStartSent : -1);
+            requestEvent = null;
+            trace.clear();
+        }
+    }
+
+    /**
+     * Look up the route of the request whose header has just been read, and return the limits for
+     * reading the request body
+     */
+    private HttpEntityLimits resolveEntityLimits(String uriPath, HttpMethod method) {
+        requestStart = System.nanoTime();
+        if (trace != null) {
+            trace.begin(requestStart);
+            trace.setDuration(RequestPhase.QUEUE, queueNanos);
+        }
+        queueNanos = 0;
+        LuwakEvents.beginRequest(requestEvent);
+        httpRoute = httpdContext.getHttpRoute(uriPath, method);
+        endPhase(RequestPhase.ROUTE);
+        return httpRoute != null ? httpRoute.getConfig().getEntityLimits() : null;
+    }
+
+    private void sendError(HttpServerStreams httpServerStreams, HttpStatus status,
+            boolean closeConnection) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Length", "0");
+        if (closeConnection) {
+            headers.put("Connection", "close");
+        }
+        try {
+            httpServerStreams.send(new HttpResponse(status, headers, null));
         }
-    }*/
+        catch (IOException e) {
+            LOGGER.debug("Failed to send error response {}", status.getStatusCode(), e);
+        }
+    }
+
+    private void release(HttpRequest httpRequest, HttpResponse httpResponse) {
+        if (httpRequest != null && httpRequest.getEntityBody() != null) {
+            httpRequest.getEntityBody().release();
+        }
+        if (httpResponse != null && httpResponse.getEntityBody() != null) {
+            httpResponse.getEntityBody().release();
+        }
+    }
 
 }
@@ -0,0 +1,297 @@
+package io.luwak.httpd;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpEntityLimits;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.SerializedHttpResponse;
+
+/**
+ * HTTP Session Factory that coalesces concurrent identical GET and HEAD requests ("single
+ * flight"): the first request is served by a session of the wrapped factory, and the requests
+ * arriving while it is being served wait for its response instead of being served again. Requests
+ * are identical if they have the same method, URI and values of the configured headers.
+ *
+ * The waiting requests get a copy of the response header, and an entity sharing the content of
+ * the response (see {@link HttpEntity#share()}), so the body is not copied for each of them. A
+ * streaming body is read once so that it can be sent several times, within the entity limits of
+ * the route and the memory budget of the server, or into a spool file. If the first request
+ * fails, the waiting requests are served on their own.
+ *
+ * Enable it per route with {@link HttpRouteConfig#setCoalescing(boolean, String...)}.
+ *
+ */
+public class CoalescingHttpSessionFactory implements HttpSessionFactory {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(CoalescingHttpSessionFactory.class);
+
+    /**
+     * A request being served, and the requests waiting for its response
+     */
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        /** Guarded by this */
+        private int waiters;
+        private boolean completed;
+        private Queue<HttpResponse> responses;
+
+        synchronized boolean join() {
+            if (completed) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        HttpResponse await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    // A response is reserved for this waiter, it must be taken to be released
+                    done.await();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                return responses != null ? responses.poll() : null;
+            }
+        }
+    }
+
+    private final HttpSessionFactory httpSessionFactory;
+    private final Collection<String> keyHeaders;
+    private final HttpEntityLimits entityLimits;
+    private volatile MemoryBudget memoryBudget;
+    private volatile SpoolManager spoolManager;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    /**
+     * Constructs a CoalescingHttpSessionFactory
+     *
+     * @param httpSessionFactory the factory of the sessions serving the requests
+     * @param keyHeaders the lower case names of the request headers which are part of the key
+     *      identifying identical requests
+     */
+    public CoalescingHttpSessionFactory(HttpSessionFactory httpSessionFactory,
+            Collection<String> keyHeaders) {
+        this(httpSessionFactory, keyHeaders, new HttpEntityLimits());
+    }
+
+    /**
+     * Constructs a CoalescingHttpSessionFactory
+     *
+     * @param httpSessionFactory the factory of the sessions serving the requests
+     * @param keyHeaders the lower case names of the request headers which are part of the key
+     *      identifying identical requests
+     * @param entityLimits the limits applied when a streaming response body is read to be shared
+     */
+    public CoalescingHttpSessionFactory(HttpSessionFactory httpSessionFactory,
+            Collection<String> keyHeaders, HttpEntityLimits entityLimits) {
+        this.httpSessionFactory = httpSessionFactory;
+        this.keyHeaders = new TreeSet<>(keyHeaders);
+        this.entityLimits = entityLimits;
+    }
+
+    /**
+     * Set the memory budget of the streaming response bodies read to be shared
+     *
+     * @param memoryBudget the memory budget, or null to use {@link MemoryBudget#getDefault()}
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the SpoolManager of the streaming response bodies read to be shared
+     *
+     * @param spoolManager the SpoolManager, or null to use {@link SpoolManager#getDefault()}
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        this.spoolManager = spoolManager;
+    }
+
+    /**
+     * Get the number of requests which have been answered with the response of another request
+     *
+     * @return the number of coalesced requests
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    /**
+     * Get the number of requests being served for which identical requests may wait
+     *
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    @Override
+    public HttpSession newInstance(Socket acceptSocket) {
+        return new CoalescingHttpSession(acceptSocket);
+    }
+
+    /**
+     * Return the key of a request which may be coalesced, or null
+     */
+    private String key(HttpRequest httpRequest) {
+        HttpMethod method = httpRequest.getMethod();
+        Map<String, String> headers = httpRequest.getHeaders();
+        if ((method != HttpMethod.GET && method != HttpMethod.HEAD)
+                || httpRequest.getEntityBody() != null || headers.containsKey("upgrade")) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(method.name()).append(' ')
+                .append(httpRequest.getRequestUri());
+        for (String name : keyHeaders) {
+            String value = headers.get(name);
+            if (value != null) {
+                key.append('\n').append(name).append(": ").append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    private class CoalescingHttpSession implements HttpSession {
+
+        private final Socket acceptSocket;
+        /** The session which has served the request, null if another request has */
+        private HttpSession httpSession;
+
+        CoalescingHttpSession(Socket acceptSocket) {
+            this.acceptSocket = acceptSocket;
+        }
+
+        @Override
+        public HttpResponse serve(HttpRequest httpRequest) {
+            String key = key(httpRequest);
+            if (key == null) {
+                return serveAlone(httpRequest);
+            }
+            while (true) {
+                Flight flight = new Flight();
+                Flight current = flights.putIfAbsent(key, flight);
+                if (current == null) {
+                    return lead(key, flight, httpRequest);
+                }
+                if (current.join()) {
+                    HttpResponse response = current.await();
+                    if (response == null) {
+                        // The first request failed
+                        return serveAlone(httpRequest);
+                    }
+                    coalescedRequests.incrementAndGet();
+                    return response;
+                }
+                // Completed meanwhile, try again
+            }
+        }
+
+        @Override
+        public void onResponseSent(HttpResponse httpResponse) {
+            if (httpSession != null) {
+                httpSession.onResponseSent(httpResponse);
+            }
+        }
+
+        @Override
+        public ConnectionHandler getConnectionHandler(HttpResponse httpResponse) {
+            return httpSession != null ? httpSession.getConnectionHandler(httpResponse) : null;
+        }
+
+        private HttpResponse serveAlone(HttpRequest httpRequest) {
+            httpSession = httpSessionFactory.newInstance(acceptSocket);
+            return httpSession.serve(httpRequest);
+        }
+
+        private HttpResponse lead(String key, Flight flight, HttpRequest httpRequest) {
+            HttpResponse response = null;
+            try {
+                response = serveAlone(httpRequest);
+            }
+            finally {
+                response = complete(key, flight, response);
+            }
+            return response;
+        }
+
+        /**
+         * Hand the response over to the waiting requests
+         */
+        private HttpResponse complete(String key, Flight flight, HttpResponse response) {
+            try {
+                synchronized (flight) {
+                    flights.remove(key, flight);
+                    flight.completed = true;
+                    if (response == null || flight.waiters == 0) {
+                        return response;
+                    }
+                    if (response instanceof SerializedHttpResponse) {
+                        // Immutable, the same response is sent to all
+                        flight.responses = new ArrayDeque<>(
+                                Collections.nCopies(flight.waiters, response));
+                        return response;
+                    }
+                    HttpEntity body = response.getEntityBody();
+                    if (body != null) {
+                        try {
+                            MemoryBudget budget = memoryBudget;
+                            SpoolManager spool = spoolManager;
+                            body = body.toReplayable(entityLimits,
+                                    budget != null ? budget : MemoryBudget.getDefault(),
+                                    spool != null ? spool : SpoolManager.getDefault());
+                        }
+                        catch (IOException e) {
+                            LOGGER.warn("Failed to read the response of {}", key, e);
+                            Map<String, String> headers = new LinkedHashMap<>();
+                            headers.put("Content-Length", "0");
+                            return new HttpResponse(DefaultHttpStatus.INTERNAL_SERVER_ERROR,
+                                    headers, null);
+                        }
+                    }
+                    flight.responses = new ArrayDeque<>(flight.waiters);
+                    for (int i = 0; i < flight.waiters; i++) {
+                        flight.responses.add(new HttpResponse(response.getHttpVersion(),
+                                response.getStatus(), new LinkedHashMap<>(response.getHeaders()),
+                                body != null ? body.share() : null));
+                    }
+                    return new HttpResponse(response.getHttpVersion(), response.getStatus(),
+                            response.getHeaders(), body);
+                }
+            }
+            finally {
+                flight.done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.luwak.httpd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpStatus;
+import io.luwak.http.nio.TunnelManager;
+
+/**
+ * HTTP Session that serves a CONNECT request by opening a tunnel to the requested host:port. The
+ * upstream connection is established before the 200 response is sent, then the client connection
+ * is handed over to the {@link TunnelManager} of the factory, which relays the bytes in both
+ * directions without holding the server thread. Failures are reported with 400 (malformed
+ * target), 403 (port not allowed), 503 (too many tunnels), 502 (connect failed) or 504 (connect
+ * timed out).
+ *
+ */
+public class ConnectHttpSession implements HttpSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectHttpSession.class);
+
+    private static final HttpStatus CONNECTION_ESTABLISHED = new HttpStatus() {
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return "Connection Established";
+        }
+    };
+
+    private final ConnectHttpSessionFactory factory;
+
+    /** The upstream connection, until it has been handed over to a tunnel */
+    private SocketChannel upstreamChannel;
+
+    /**
+     * Constructs a ConnectHttpSession
+     *
+     * @param factory the factory holding the tunnel configuration
+     */
+    public ConnectHttpSession(ConnectHttpSessionFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public HttpResponse serve(HttpRequest httpRequest) {
+        if (httpRequest.getMethod() != HttpMethod.CONNECT) {
+            return errorResponse(DefaultHttpStatus.METHOD_NOT_ALLOWED);
+        }
+        HttpHost target = parseTarget(httpRequest.getUriPath());
+        if (target == null) {
+            return errorResponse(DefaultHttpStatus.BAD_REQUEST);
+        }
+        if (!factory.isAllowedPort(target.getPort())) {
+            LOGGER.debug("CONNECT to {} forbidden", target);
+            return errorResponse(DefaultHttpStatus.FORBIDDEN);
+        }
+        TunnelManager tunnelManager = factory.getTunnelManager();
+        if (!tunnelManager.reserve()) {
+            LOGGER.warn("CONNECT to {} rejected, {} tunnels open", target,
+                    tunnelManager.getActiveTunnels());
+            return errorResponse(DefaultHttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(target.getHostName(),
+                    target.getPort()), factory.getConnectTimeout());
+        }
+        catch (IOException e) {
+            tunnelManager.cancelReservation();
+            closeQuietly(channel);
+            LOGGER.warn("Failed to connect to {}: {}", target, e.toString());
+            return errorResponse(e instanceof SocketTimeoutException ?
+                    DefaultHttpStatus.GATEWAY_TIMEOUT : DefaultHttpStatus.BAD_GATEWAY);
+        }
+        upstreamChannel = channel;
+        // A 2xx response to CONNECT has no body and no framing headers (RFC 7231 section 4.3.6)
+        return new HttpResponse(CONNECTION_ESTABLISHED, new LinkedHashMap<>(), null);
+    }
+
+    @Override
+    public void onResponseSent(HttpResponse httpResponse) {
+    }
+
+    @Override
+    public ConnectionHandler getConnectionHandler(HttpResponse httpResponse) {
+        if (upstreamChannel == null) {
+            return null;
+        }
+        return new ConnectionHandler() {
+
+            @Override
+            public void takeOver(Socket acceptSocket, ByteBuffer bufferedInput)
+                    throws IOException {
+                SocketChannel clientChannel = acceptSocket.getChannel();
+                if (clientChannel == null) {
+                    abort();
+                    throw new IOException("Tunnels need a server socket created from a channel");
+                }
+                acceptSocket.setSoTimeout(0);
+                SocketChannel channel = upstreamChannel;
+                upstreamChannel = null;
+                factory.getTunnelManager().open(clientChannel, channel, bufferedInput);
+            }
+
+            @Override
+            public void abort() {
+                if (upstreamChannel != null) {
+                    factory.getTunnelManager().cancelReservation();
+                    closeQuietly(upstreamChannel);
+                    upstreamChannel = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Parse the authority-form target of a CONNECT request, which must include the port
+     *
+     * @return the target host, or null if it is malformed
+     */
+    private static HttpHost parseTarget(String authority) {
+        if (authority == null || authority.lastIndexOf(':') <= authority.lastIndexOf(']')) {
+            return null;
+        }
+        try {
+            HttpHost host = HttpHost.fromHostHeader(authority);
+            return host.getHostName().isEmpty() || host.getPort() <= 0 || host.getPort() > 65535
+                    ? null : host;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Exception caught while closing upstream connection", e);
+        }
+    }
+
+    private static HttpResponse errorResponse(HttpStatus status) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Length", "0");
+        return new HttpResponse(status, headers, null);
+    }
+}
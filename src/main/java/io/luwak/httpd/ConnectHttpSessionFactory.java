@@ -0,0 +1,85 @@
+package io.luwak.httpd;
+
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import io.luwak.http.nio.TunnelManager;
+
+/**
+ * HTTP Session Factory that creates {@link ConnectHttpSession} instances, which open tunnels for
+ * CONNECT requests (forward proxy for HTTPS). The factory is registered for the CONNECT method,
+ * and the URI pattern of its route is matched against the requested host:port. Only port 443 is
+ * allowed by default.
+ *
+ */
+public class ConnectHttpSessionFactory implements HttpSessionFactory {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    private final TunnelManager tunnelManager;
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile Set<Integer> allowedPorts = Collections.singleton(443);
+
+    /**
+     * Constructs a ConnectHttpSessionFactory
+     *
+     * @param tunnelManager the manager relaying the tunnels, which caps their number
+     */
+    public ConnectHttpSessionFactory(TunnelManager tunnelManager) {
+        this.tunnelManager = tunnelManager;
+    }
+
+    /**
+     * Get the manager relaying the tunnels
+     *
+     * @return the tunnel manager
+     */
+    public TunnelManager getTunnelManager() {
+        return tunnelManager;
+    }
+
+    /**
+     * Set the timeout for connecting to the upstream host
+     *
+     * @param connectTimeout the timeout in milliseconds, 0 for no timeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the ports that may be tunnelled to, requests for other ports are forbidden
+     *
+     * @param allowedPorts the allowed ports, or null to allow all ports
+     */
+    public void setAllowedPorts(Set<Integer> allowedPorts) {
+        this.allowedPorts = allowedPorts != null ?
+                Collections.unmodifiableSet(new HashSet<>(allowedPorts)) : null;
+    }
+
+    /**
+     * Get the ports that may be tunnelled to
+     *
+     * @return the allowed ports, or null if all ports are allowed
+     */
+    public Set<Integer> getAllowedPorts() {
+        return allowedPorts;
+    }
+
+    boolean isAllowedPort(int port) {
+        Set<Integer> ports = allowedPorts;
+        return ports == null || ports.contains(port);
+    }
+
+    @Override
+    public HttpSession newInstance(Socket acceptSocket) {
+        return new ConnectHttpSession(this);
+    }
+}
@@ -0,0 +1,33 @@
+package io.luwak.httpd;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Handler that takes over a client connection from the HTTP server once a response has been sent,
+ * e.g. to relay a CONNECT tunnel or to switch to another protocol. See
+ * {@link HttpSession#getConnectionHandler(io.luwak.http.message.HttpResponse)}.
+ *
+ */
+public interface ConnectionHandler {
+
+    /**
+     * Take over the connection. The server does not read nor close the connection anymore, the
+     * handler is responsible for closing it.
+     *
+     * @param acceptSocket the socket of the connection, its channel is available if the server
+     *      accepts connections with a ServerSocketChannel (the default)
+     * @param bufferedInput the bytes received after the request which have already been read
+     *      from the socket by the server
+     * @throws IOException if the connection can't be taken over, the server closes it
+     */
+    public void takeOver(Socket acceptSocket, ByteBuffer bufferedInput) throws IOException;
+
+    /**
+     * Called instead of {@link #takeOver(Socket, ByteBuffer)} if the response could not be sent,
+     * to release the resources held by the handler
+     */
+    public void abort();
+
+}
@@ -53,7 +53,7 @@ public class DefaultHttpSession implements HttpSession {
     @Override
     public HttpResponse serve(HttpRequest httpRequest) {
         String uri = httpRequest.getRequestUri();
-        LOGGER.info("Serve URI={}", uri);
+        LOGGER.debug("Serve URI={}", uri);
 
         if (uri == null) {
             return new HttpResponse(HttpResponse.DEFAULT_HTTP_VERSION, DefaultHttpStatus.BAD_REQUEST,
@@ -17,4 +17,12 @@ public class DefaultHttpSessionFactory implements HttpSessionFactory {
     public HttpSession newInstance(Socket acceptSocket) {
         return new DefaultHttpSession();
     }
+
+    /**
+     * The default session is stateless, one instance serves all requests
+     */
+    @Override
+    public HttpSessionScope getScope() {
+        return HttpSessionScope.SINGLETON;
+    }
 }
@@ -6,6 +6,8 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
 import io.luwak.http.message.HttpMethod;
 
 /**
@@ -18,18 +20,19 @@ public class DefaultHttpdContext implements HttpdContext {
 
     static class HttpSessionFactoryInfo {
         Pattern uriPattern;
-        EnumSet<HttpMethod> httpMethods;
-        HttpSessionFactory httpSessionFactory;
+        HttpRoute httpRoute;
 
-        public HttpSessionFactoryInfo(Pattern uriPattern, EnumSet<HttpMethod> httpMethods,
-                HttpSessionFactory httpSessionFactory) {
+        public HttpSessionFactoryInfo(Pattern uriPattern, HttpRoute httpRoute) {
             this.uriPattern = uriPattern;
-            this.httpMethods = httpMethods;
-            this.httpSessionFactory = httpSessionFactory;
+            this.httpRoute = httpRoute;
         }
     }
 
     private final List<HttpSessionFactoryInfo> httpSessionFactoryList = new LinkedList<>();
+    /** The coalescing factories of the routes, which buffer the shared response bodies */
+    private final List<CoalescingHttpSessionFactory> coalescingFactories = new LinkedList<>();
+    private MemoryBudget memoryBudget;
+    private SpoolManager spoolManager;
 
     /**
      * Add an implementation of HttpSessionFactory based on URI pattern and HTTP methods that can be
@@ -42,17 +45,77 @@ public class DefaultHttpdContext implements HttpdContext {
      */
     public void addHttpSessionFactory(String uriPattern, EnumSet<HttpMethod> httpMethods,
             HttpSessionFactory httpSessionFactory) {
+        addHttpSessionFactory(uriPattern, httpMethods, httpSessionFactory, new HttpRouteConfig());
+    }
+
+    /**
+     * Add an implementation of HttpSessionFactory based on URI pattern and HTTP methods that can be
+     * handled by the specified HttpSessionFactory, with a route specific configuration
+     *
+     * @param uriPattern URI pattern
+     * @param httpMethods a set of HTTP methods
+     * @param httpSessionFactory an instance of HttpSessionFactory that handles the specified URI
+     *      pattern
+     * @param config the configuration for this route, e.g. whether concurrent identical requests
+     *      are coalesced or responses are micro-cached
+     */
+    public void addHttpSessionFactory(String uriPattern, EnumSet<HttpMethod> httpMethods,
+            HttpSessionFactory httpSessionFactory, HttpRouteConfig config) {
         Pattern pattern = Pattern.compile(wildcardToRegex(uriPattern));
-        httpSessionFactoryList.add(new HttpSessionFactoryInfo(pattern, httpMethods, httpSessionFactory));
+        if (config.getMicroCache() != null) {
+            httpSessionFactory = new MicroCachingHttpSessionFactory(httpSessionFactory,
+                    config.getMicroCache(), config.getMicroCacheTtl());
+        }
+        // Outermost, so that concurrent misses of the micro-cache are coalesced
+        if (config.isCoalescing()) {
+            CoalescingHttpSessionFactory coalescingFactory = new CoalescingHttpSessionFactory(
+                    httpSessionFactory, config.getCoalescingHeaders(), config.getEntityLimits());
+            coalescingFactory.setMemoryBudget(memoryBudget);
+            coalescingFactory.setSpoolManager(spoolManager);
+            coalescingFactories.add(coalescingFactory);
+            httpSessionFactory = coalescingFactory;
+        }
+        HttpRoute httpRoute = new HttpRoute(uriPattern, httpMethods, httpSessionFactory, config);
+        httpSessionFactoryList.add(new HttpSessionFactoryInfo(pattern, httpRoute));
+    }
+
+    /**
+     * Set the memory budget of the server, used by the coalescing routes to keep the shared
+     * response bodies in memory
+     */
+    @Override
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        for (CoalescingHttpSessionFactory coalescingFactory : coalescingFactories) {
+            coalescingFactory.setMemoryBudget(memoryBudget);
+        }
+    }
+
+    /**
+     * Set the SpoolManager of the server, used by the coalescing routes to spool the shared
+     * response bodies
+     */
+    @Override
+    public void setSpoolManager(SpoolManager spoolManager) {
+        this.spoolManager = spoolManager;
+        for (CoalescingHttpSessionFactory coalescingFactory : coalescingFactories) {
+            coalescingFactory.setSpoolManager(spoolManager);
+        }
     }
 
     @Override
     public HttpSessionFactory getHttpSessionFactory(String uri, HttpMethod httpMethod) {
+        HttpRoute httpRoute = getHttpRoute(uri, httpMethod);
+        return httpRoute != null ? httpRoute.getHttpSessionFactory() : null;
+    }
+
+    @Override
+    public HttpRoute getHttpRoute(String uri, HttpMethod httpMethod) {
         for (HttpSessionFactoryInfo httpSessionFactory : httpSessionFactoryList) {
             Matcher matcher = httpSessionFactory.uriPattern.matcher(uri);
             if (matcher.matches()) {
-                if (httpSessionFactory.httpMethods.contains(httpMethod)) {
-                    return httpSessionFactory.httpSessionFactory;
+                if (httpSessionFactory.httpRoute.getHttpMethods().contains(httpMethod)) {
+                    return httpSessionFactory.httpRoute;
                 }
             }
         }
@@ -0,0 +1,101 @@
+package io.luwak.httpd;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate access frequency of keys (count-min sketch with 4-bit counters), used by the
+ * TinyLFU admission of the {@link MicroCache}. The counters are halved periodically so that the
+ * frequencies reflect recent accesses.
+ *
+ * The sketch is lock-free: sixteen counters are packed in each long and updated by compare and
+ * set, so that concurrent cache lookups don't contend on a lock.
+ *
+ */
+final class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0x5bd1e995, 0x2f1b3e6d, 0x8a3c1f65 };
+    /** Clears the bit shifted from the next counter when the counters of a long are halved */
+    private static final long HALF_MASK = 0x7777777777777777L;
+
+    /** 4-bit counters, sixteen per long */
+    private final AtomicLongArray table;
+    private final int mask;
+    /** Number of increments after which the counters are halved */
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * Constructs a FrequencySketch
+     *
+     * @param capacity the expected number of distinct keys
+     */
+    FrequencySketch(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        // One long of counters per key, so that the counters don't saturate before being halved
+        this.table = new AtomicLongArray(size);
+        this.mask = size * 16 - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    void increment(Object key) {
+        int hash = key.hashCode();
+        boolean added = false;
+        for (int seed : SEEDS) {
+            added |= incrementCounter(index(hash, seed));
+        }
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(Object key) {
+        int hash = key.hashCode();
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS) {
+            frequency = Math.min(frequency, counter(index(hash, seed)));
+        }
+        return frequency;
+    }
+
+    private int index(int hash, int seed) {
+        int h = (hash ^ seed) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int counter(int index) {
+        return (int) (table.get(index >>> 4) >>> shift(index)) & MAX_COUNT;
+    }
+
+    private boolean incrementCounter(int index) {
+        int i = index >>> 4;
+        int shift = shift(index);
+        while (true) {
+            long value = table.get(i);
+            if (((value >>> shift) & MAX_COUNT) == MAX_COUNT) {
+                return false;
+            }
+            if (table.compareAndSet(i, value, value + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+
+    private static int shift(int index) {
+        return (index & 15) << 2;
+    }
+
+    /**
+     * Halve all counters, only called by the increment reaching the sample size
+     */
+    private void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (!table.compareAndSet(i, value, (value >>> 1) & HALF_MASK));
+        }
+        additions.addAndGet(-sampleSize / 2);
+    }
+}
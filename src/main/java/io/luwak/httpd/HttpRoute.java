@@ -0,0 +1,70 @@
+package io.luwak.httpd;
+
+import java.util.EnumSet;
+
+import io.luwak.http.message.HttpMethod;
+
+/**
+ * A route of the HTTP server: the URI pattern and HTTP methods handled by an HttpSessionFactory,
+ * together with the configuration of the route.
+ *
+ */
+public class HttpRoute {
+
+    private final String uriPattern;
+    private final EnumSet<HttpMethod> httpMethods;
+    private final HttpSessionFactory httpSessionFactory;
+    private final HttpRouteConfig config;
+
+    /**
+     * Constructs an HttpRoute
+     *
+     * @param uriPattern URI pattern
+     * @param httpMethods a set of HTTP methods
+     * @param httpSessionFactory the HttpSessionFactory that handles the route
+     * @param config the route configuration
+     */
+    public HttpRoute(String uriPattern, EnumSet<HttpMethod> httpMethods,
+            HttpSessionFactory httpSessionFactory, HttpRouteConfig config) {
+        this.uriPattern = uriPattern;
+        this.httpMethods = httpMethods;
+        this.httpSessionFactory = httpSessionFactory;
+        this.config = config;
+    }
+
+    /**
+     * Get the URI pattern of this route
+     *
+     * @return the URI pattern
+     */
+    public String getUriPattern() {
+        return uriPattern;
+    }
+
+    /**
+     * Get the HTTP methods handled by this route
+     *
+     * @return the HTTP methods
+     */
+    public EnumSet<HttpMethod> getHttpMethods() {
+        return httpMethods;
+    }
+
+    /**
+     * Get the HttpSessionFactory that handles this route
+     *
+     * @return the HttpSessionFactory
+     */
+    public HttpSessionFactory getHttpSessionFactory() {
+        return httpSessionFactory;
+    }
+
+    /**
+     * Get the configuration of this route
+     *
+     * @return the route configuration
+     */
+    public HttpRouteConfig getConfig() {
+        return config;
+    }
+}
@@ -0,0 +1,113 @@
+package io.luwak.httpd;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import io.luwak.http.message.HttpEntityLimits;
+
+/**
+ * Per-route configuration of the HTTP server, see
+ * {@link DefaultHttpdContext#addHttpSessionFactory(String, java.util.EnumSet, HttpSessionFactory, HttpRouteConfig)}
+ *
+ */
+public class HttpRouteConfig {
+
+    private HttpEntityLimits entityLimits = new HttpEntityLimits();
+    private boolean coalescing;
+    private Set<String> coalescingHeaders = Collections.emptySet();
+    private MicroCache microCache;
+    private long microCacheTtl;
+
+    /**
+     * Get the limits applied when reading request bodies of this route
+     *
+     * @return the request entity limits
+     */
+    public HttpEntityLimits getEntityLimits() {
+        return entityLimits;
+    }
+
+    /**
+     * Set the limits applied when reading request bodies of this route
+     *
+     * @param entityLimits the request entity limits
+     */
+    public void setEntityLimits(HttpEntityLimits entityLimits) {
+        if (entityLimits == null) {
+            throw new NullPointerException("entityLimits is null");
+        }
+        this.entityLimits = entityLimits;
+    }
+
+    /**
+     * Return true if concurrent identical GET and HEAD requests of this route are served by a
+     * single call of the session, see {@link CoalescingHttpSessionFactory}
+     *
+     * @return true if requests are coalesced
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Set whether concurrent identical GET and HEAD requests of this route are served by a single
+     * call of the session. It must be set before the route is added to the context.
+     *
+     * @param coalescing true to coalesce requests
+     * @param headers the request headers which, besides the method and the URI, tell whether two
+     *      requests are identical, e.g. Accept-Encoding or Authorization
+     */
+    public void setCoalescing(boolean coalescing, String... headers) {
+        Set<String> names = new LinkedHashSet<>();
+        for (String header : headers) {
+            names.add(header.toLowerCase(Locale.US));
+        }
+        this.coalescing = coalescing;
+        this.coalescingHeaders = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Get the request headers that are part of the coalescing key
+     *
+     * @return the lower case header names
+     */
+    public Set<String> getCoalescingHeaders() {
+        return coalescingHeaders;
+    }
+
+    /**
+     * Set the cache keeping the responses of this route for a short time, see
+     * {@link MicroCachingHttpSessionFactory}. It must be set before the route is added to the
+     * context.
+     *
+     * @param microCache the cache, which may be shared by several routes, or null to disable it
+     * @param ttl the time responses are kept for, in milliseconds
+     */
+    public void setMicroCache(MicroCache microCache, long ttl) {
+        if (microCache != null && ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive: " + ttl);
+        }
+        this.microCache = microCache;
+        this.microCacheTtl = ttl;
+    }
+
+    /**
+     * Get the cache keeping the responses of this route for a short time
+     *
+     * @return the cache, or null if responses are not cached
+     */
+    public MicroCache getMicroCache() {
+        return microCache;
+    }
+
+    /**
+     * Get the time the responses of this route are kept in the micro-cache
+     *
+     * @return the time to live in milliseconds
+     */
+    public long getMicroCacheTtl() {
+        return microCacheTtl;
+    }
+}
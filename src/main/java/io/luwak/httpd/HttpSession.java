@@ -27,4 +27,24 @@ public interface HttpSession {
      */
     public void onResponseSent(HttpResponse httpResponse);
 
+    /**
+     * Return the handler that takes over the connection once the specified response has been
+     * sent, e.g. to relay a CONNECT tunnel. The server stops serving HTTP requests on a connection
+     * that has been taken over.
+     *
+     * @param httpResponse the HTTP response returned by {@link #serve(HttpRequest)}
+     * @return the connection handler, or null (the default) to keep serving requests
+     */
+    public default ConnectionHandler getConnectionHandler(HttpResponse httpResponse) {
+        return null;
+    }
+
+    /**
+     * This method will be called when a connection on which this session has served requests is
+     * closed or taken over, unless the session has the {@link HttpSessionScope#REQUEST} scope. A
+     * session shared by several connections is called once for each of them.
+     */
+    public default void onConnectionClosed() {
+    }
+
 }
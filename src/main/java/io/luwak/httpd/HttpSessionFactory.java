@@ -19,4 +19,14 @@ public interface HttpSessionFactory {
      */
     public HttpSession newInstance(Socket acceptSocket);
 
+    /**
+     * Return the lifetime of the sessions created by this factory. Sessions with expensive setup
+     * can be reused across requests by declaring a wider scope.
+     *
+     * @return the scope of the sessions, {@link HttpSessionScope#REQUEST} by default
+     */
+    public default HttpSessionScope getScope() {
+        return HttpSessionScope.REQUEST;
+    }
+
 }
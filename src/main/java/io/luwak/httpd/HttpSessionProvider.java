@@ -0,0 +1,109 @@
+package io.luwak.httpd;
+
+import java.net.Socket;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the sessions serving the requests of a server according to the scope declared by
+ * their factory (see {@link HttpSessionScope}). The thread-confined and singleton sessions are
+ * shared by all the connections of the server.
+ *
+ */
+final class HttpSessionProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpSessionProvider.class);
+
+    private final Map<HttpSessionFactory, HttpSession> singletons = new ConcurrentHashMap<>();
+    private final ThreadLocal<Map<HttpSessionFactory, HttpSession>> threadSessions =
+            ThreadLocal.withInitial(IdentityHashMap::new);
+
+    /**
+     * The sessions used on one connection
+     */
+    final class Connection {
+
+        private final Socket acceptSocket;
+        /** Sessions which have served requests on this connection, in a scope wider than REQUEST */
+        private final Map<HttpSession, Boolean> used = new IdentityHashMap<>();
+        private final Map<HttpSessionFactory, HttpSession> connectionSessions =
+                new IdentityHashMap<>();
+
+        Connection(Socket acceptSocket) {
+            this.acceptSocket = acceptSocket;
+        }
+
+        /**
+         * Get the session serving a request routed to the specified factory
+         *
+         * @param factory the factory of the route
+         * @return the session
+         */
+        HttpSession get(HttpSessionFactory factory) {
+            HttpSession httpSession;
+            switch (factory.getScope()) {
+                case CONNECTION:
+                    httpSession = connectionSessions.computeIfAbsent(factory,
+                            f -> f.newInstance(acceptSocket));
+                    break;
+                case THREAD:
+                    httpSession = threadSessions.get().computeIfAbsent(factory,
+                            f -> f.newInstance(null));
+                    break;
+                case SINGLETON:
+                    httpSession = singletons.computeIfAbsent(factory, f -> f.newInstance(null));
+                    break;
+                default:
+                    return factory.newInstance(acceptSocket);
+            }
+            used.put(httpSession, Boolean.TRUE);
+            return httpSession;
+        }
+
+        /**
+         * Get the session serving a request routed to the specified factory, on a connection
+         * whose requests are served concurrently such as an HTTP/2 connection. A session of the
+         * CONNECTION scope can't be shared by concurrent requests, a new one serves each request.
+         *
+         * @param factory the factory of the route
+         * @return the session
+         */
+        synchronized HttpSession getConcurrent(HttpSessionFactory factory) {
+            if (factory.getScope() == HttpSessionScope.CONNECTION) {
+                return factory.newInstance(acceptSocket);
+            }
+            return get(factory);
+        }
+
+        /**
+         * Notify the sessions used on this connection that it is closed
+         */
+        synchronized void closed() {
+            for (HttpSession httpSession : used.keySet()) {
+                try {
+                    httpSession.onConnectionClosed();
+                }
+                catch (RuntimeException e) {
+                    LOGGER.warn("Exception caught while notifying {} of the connection closure",
+                            httpSession, e);
+                }
+            }
+            used.clear();
+            connectionSessions.clear();
+        }
+    }
+
+    /**
+     * Start providing the sessions of a connection
+     *
+     * @param acceptSocket the socket of the connection
+     * @return the sessions of the connection
+     */
+    Connection connection(Socket acceptSocket) {
+        return new Connection(acceptSocket);
+    }
+}
@@ -0,0 +1,28 @@
+package io.luwak.httpd;
+
+/**
+ * Lifetime of the sessions created by an {@link HttpSessionFactory}, see
+ * {@link HttpSessionFactory#getScope()}. A session is only ever used by one thread at a time,
+ * except a {@link #SINGLETON} session.
+ *
+ */
+public enum HttpSessionScope {
+
+    /** A new session serves each request */
+    REQUEST,
+
+    /** A session serves all the requests of a connection routed to its factory */
+    CONNECTION,
+
+    /**
+     * A session per server thread serves the requests routed to its factory on all the
+     * connections handled by the thread, it is created without accept socket
+     */
+    THREAD,
+
+    /**
+     * A single session serves the requests routed to its factory on all the connections
+     * concurrently, it is created without accept socket and must be thread-safe
+     */
+    SINGLETON
+}
@@ -1,5 +1,9 @@
 package io.luwak.httpd;
 
+import java.util.EnumSet;
+
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
 import io.luwak.http.message.HttpMethod;
 
 /**
@@ -20,4 +24,39 @@ public interface HttpdContext {
      */
     public HttpSessionFactory getHttpSessionFactory(String uri, HttpMethod method);
 
+    /**
+     * Return the route that handles the specified request URI and HTTP method. The default
+     * implementation returns a route with the default configuration for the HttpSessionFactory
+     * returned by {@link #getHttpSessionFactory(String, HttpMethod)}.
+     *
+     * @param uri the request URI
+     * @param method the HTTP method
+     * @return the route, or null if no route handles the request
+     */
+    public default HttpRoute getHttpRoute(String uri, HttpMethod method) {
+        HttpSessionFactory httpSessionFactory = getHttpSessionFactory(uri, method);
+        return httpSessionFactory != null ? new HttpRoute(uri, EnumSet.of(method),
+                httpSessionFactory, new HttpRouteConfig()) : null;
+    }
+
+    /**
+     * Set the memory budget of the server serving this context, for the routes which keep
+     * response bodies in memory. It is called by the server before it is started; the default
+     * implementation does nothing.
+     *
+     * @param memoryBudget the memory budget, or null to use {@link MemoryBudget#getDefault()}
+     */
+    public default void setMemoryBudget(MemoryBudget memoryBudget) {
+    }
+
+    /**
+     * Set the SpoolManager of the server serving this context, for the routes which spool
+     * response bodies. It is called by the server before it is started; the default
+     * implementation does nothing.
+     *
+     * @param spoolManager the SpoolManager, or null to use {@link SpoolManager#getDefault()}
+     */
+    public default void setSpoolManager(SpoolManager spoolManager) {
+    }
+
 }
@@ -2,10 +2,18 @@ package io.luwak.httpd;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.luwak.accesslog.AccessLog;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http2.Http2Config;
+import io.luwak.metrics.HttpMetrics;
+import io.luwak.metrics.RequestTracer;
+
 /**
  * Main class for the Luwak HTTP server
  *
@@ -22,11 +30,20 @@ public class LuwakHttpd {
     private int port = DEFAULT_PORT;
     private int maxThreads = DEFAULT_MAX_THREADS;
     private final HttpdContext httpdContext;
+    private volatile RecyclingMode recyclingMode = RecyclingMode.OFF;
+    private volatile TlsConfig tlsConfig;
+    private volatile Http2Config http2Config;
+    private volatile HttpMetrics metrics;
+    private volatile RequestTracer requestTracer;
+    private volatile AccessLog accessLog;
+    private volatile MemoryBudget memoryBudget;
+    private volatile SpoolManager spoolManager;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(LuwakHttpd.class);
 
     private ServerRunnable serverRunnable;
     private Thread httpdThread;
+    private ServerSocket serverSocket;
 
     /**
      * Construct the HTTP server with the specified hostname, port, maximum number of threads and
@@ -44,17 +61,150 @@ public class LuwakHttpd {
         this.httpdContext = httpdContext;
     }
 
+    /**
+     * Set the SpoolManager that manages the temporary files used for large request bodies of this
+     * server. It must be set before the server is started. By default the spool files are
+     * obtained from {@link SpoolManager#getDefault()}, created under java.io.tmpdir.
+     *
+     * @param spoolManager the SpoolManager, or null to use the default one
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        this.spoolManager = spoolManager;
+    }
+
+    public SpoolManager getSpoolManager() {
+        return spoolManager;
+    }
+
+    /**
+     * Set the budget of heap memory used to keep the request bodies of this server in memory.
+     * Bodies that do not fit into the budget are stored in spool files. It must be set before the
+     * server is started. By default the budget is {@link MemoryBudget#getDefault()}, shared by the
+     * servers of the JVM.
+     *
+     * @param memoryBudget the memory budget, or null to use the default one
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set whether the request and response objects of a connection are reused, which saves
+     * allocations at high request rates. Sessions must not keep references to the request, the
+     * response or their maps once the response has been sent. It must be set before the server is
+     * started.
+     *
+     * @param recyclingMode the recycling mode, {@link RecyclingMode#OFF} by default
+     */
+    public void setRecyclingMode(RecyclingMode recyclingMode) {
+        this.recyclingMode = recyclingMode;
+    }
+
+    public RecyclingMode getRecyclingMode() {
+        return recyclingMode;
+    }
+
+    /**
+     * Serve HTTPS: the accepted connections are secured with the specified TLS configuration. It
+     * must be set before the server is started. Connections secured with TLS can't be taken over
+     * by a {@link ConnectionHandler} which needs the socket channel, such as CONNECT tunnels.
+     *
+     * @param tlsConfig the TLS configuration, or null to serve plain HTTP (the default)
+     */
+    public void setTlsConfig(TlsConfig tlsConfig) {
+        this.tlsConfig = tlsConfig;
+    }
+
+    public TlsConfig getTlsConfig() {
+        return tlsConfig;
+    }
+
+    /**
+     * Serve HTTP/2 in cleartext (h2c) besides HTTP/1.1, to the clients sending the HTTP/2
+     * connection preface and to the requests with an {@code Upgrade: h2c} header. The requests
+     * of a connection are served concurrently by the streams. It must be set before the server
+     * is started, and has no effect on the connections secured with TLS.
+     *
+     * @param http2Config the HTTP/2 configuration, or null to serve HTTP/1.1 only (the default)
+     */
+    public void setHttp2Config(Http2Config http2Config) {
+        this.http2Config = http2Config;
+    }
+
+    public Http2Config getHttp2Config() {
+        return http2Config;
+    }
+
+    /**
+     * Record the metrics of the server, which can be exposed with a
+     * {@link io.luwak.metrics.MetricsHttpSessionFactory} route. It must be set before the server
+     * is started.
+     *
+     * @param metrics the metrics registry, or null to record nothing (the default)
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Time the phases of the HTTP/1.1 requests: queue, parse, route, body, serve, write and
+     * complete. Slow requests are logged with their breakdown, see {@link RequestTracer}. It must
+     * be set before the server is started.
+     *
+     * @param requestTracer the tracer, or null to time nothing (the default)
+     */
+    public void setRequestTracer(RequestTracer requestTracer) {
+        this.requestTracer = requestTracer;
+    }
+
+    public RequestTracer getRequestTracer() {
+        return requestTracer;
+    }
+
+    /**
+     * Log the requests, HTTP/1.1 and HTTP/2, to an access log written by a background thread. It
+     * must be set before the server is started, and closed by the caller after the server is
+     * stopped.
+     *
+     * @param accessLog the access log, or null to log nothing (the default)
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
     /**
      * Start the webserver by binding to the specified port and listening for incoming connection
      * request
      */
     public void start() {
         LOGGER.info("Starting Luwak HTTP server");
-        try (ServerSocket serverSocket = new ServerSocket()) {
+        try (ServerSocket serverSocket = newServerSocket()) {
             serverSocket.setReuseAddress(true);
 
             serverRunnable = new ServerRunnable(serverSocket, hostname, port, 0, maxThreads,
                     httpdContext);
+            serverRunnable.setRecyclingMode(recyclingMode);
+            serverRunnable.setTlsConfig(tlsConfig);
+            serverRunnable.setHttp2Config(http2Config);
+            serverRunnable.setMetrics(metrics);
+            serverRunnable.setRequestTracer(requestTracer);
+            serverRunnable.setAccessLog(accessLog);
+            serverRunnable.setMemoryBudget(memoryBudget);
+            httpdContext.setMemoryBudget(memoryBudget);
+            httpdContext.setSpoolManager(spoolManager);
+            serverRunnable.setSpoolManager(spoolManager);
             httpdThread = new Thread(serverRunnable);
             httpdThread.start();
             httpdThread.join();
@@ -66,4 +216,70 @@ public class LuwakHttpd {
         }
     }
 
+    /**
+     * Start the webserver in a background thread. This method returns as soon as the server
+     * socket is bound, the server runs until {@link #stop()} is called.
+     *
+     * @throws IOException if the server socket can't be bound
+     */
+    public void startInBackground() throws IOException {
+        LOGGER.info("Starting Luwak HTTP server in background");
+        serverSocket = newServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverRunnable = new ServerRunnable(serverSocket, hostname, port, 0, maxThreads,
+                httpdContext);
+        serverRunnable.setRecyclingMode(recyclingMode);
+        serverRunnable.setTlsConfig(tlsConfig);
+        serverRunnable.setHttp2Config(http2Config);
+        serverRunnable.setMetrics(metrics);
+        serverRunnable.setRequestTracer(requestTracer);
+        serverRunnable.setAccessLog(accessLog);
+        serverRunnable.setMemoryBudget(memoryBudget);
+        httpdContext.setMemoryBudget(memoryBudget);
+        httpdContext.setSpoolManager(spoolManager);
+        serverRunnable.setSpoolManager(spoolManager);
+        try {
+            serverRunnable.bind();
+        }
+        catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        httpdThread = new Thread(serverRunnable, "luwak-httpd-" + serverSocket.getLocalPort());
+        httpdThread.start();
+    }
+
+    /**
+     * Create the server socket from a ServerSocketChannel, so that the accepted sockets have a
+     * channel which a {@link ConnectionHandler} can switch to non-blocking mode
+     */
+    private static ServerSocket newServerSocket() throws IOException {
+        return ServerSocketChannel.open().socket();
+    }
+
+    /**
+     * Get the port the server is listening on, which is useful when the server has been
+     * constructed with port 0 (any free port)
+     *
+     * @return the local port, or -1 if the server has not been started in background
+     */
+    public int getLocalPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    /**
+     * Stop a server started with {@link #startInBackground()}
+     */
+    public void stop() {
+        if (serverRunnable != null) {
+            LOGGER.info("Stopping Luwak HTTP server");
+            serverRunnable.shutdown();
+            try {
+                httpdThread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
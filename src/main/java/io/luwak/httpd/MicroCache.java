@@ -0,0 +1,407 @@
+package io.luwak.httpd;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import io.luwak.http.message.SerializedHttpResponse;
+
+/**
+ * A byte-bounded store of serialized responses for the {@link MicroCachingHttpSessionFactory},
+ * kept for a short time. Responses are stored per request URI, with one variant per value of the
+ * request headers listed in their Vary header. Lookups are lock-free, stores and evictions are
+ * serialized.
+ *
+ * The eviction follows W-TinyLFU: a new response enters a small window in insertion order; when
+ * it leaves the window it is only admitted into the main space if its URI is requested more often
+ * than the URI of the response it would evict, according to a frequency sketch. One-hit wonders
+ * thus don't push frequently requested responses out. Expired responses are evicted first.
+ *
+ */
+public class MicroCache {
+
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    /** Share of the size given to the admission window */
+    private static final int WINDOW_PERCENT = 1;
+    /** Average entry size assumed to size the frequency sketch */
+    private static final int AVERAGE_ENTRY_SIZE = 4096;
+
+    /**
+     * A stored response variant
+     */
+    private static final class Entry {
+        final String uri;
+        final String[] varyNames;
+        final String[] varyValues;
+        final SerializedHttpResponse response;
+        final long expiresAt;
+
+        Entry(String uri, String[] varyNames, String[] varyValues,
+                SerializedHttpResponse response, long expiresAt) {
+            this.uri = uri;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+
+        int size() {
+            return response.getMessage().length;
+        }
+
+        boolean matches(Map<String, String> requestHeaders) {
+            for (int i = 0; i < varyNames.length; i++) {
+                String value = requestHeaders.get(varyNames[i]);
+                if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final long maxSize;
+    private final long windowMaxSize;
+    private final int maxEntrySize;
+    private final FrequencySketch sketch;
+
+    private final Map<String, Entry[]> variants = new ConcurrentHashMap<>();
+    /** Guarded by this */
+    private final LinkedHashSet<Entry> window = new LinkedHashSet<>();
+    private final LinkedHashSet<Entry> main = new LinkedHashSet<>();
+    private long windowSize;
+    private long mainSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong admissions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Constructs a MicroCache with the default sizes
+     */
+    public MicroCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_ENTRY_SIZE);
+    }
+
+    /**
+     * Constructs a MicroCache
+     *
+     * @param maxSize the maximum total size of the stored responses in bytes
+     * @param maxEntrySize the maximum size of a stored response in bytes
+     */
+    public MicroCache(long maxSize, int maxEntrySize) {
+        if (maxEntrySize > maxSize) {
+            throw new IllegalArgumentException("maxEntrySize exceeds maxSize");
+        }
+        this.maxSize = maxSize;
+        this.windowMaxSize = maxSize * WINDOW_PERCENT / 100;
+        this.maxEntrySize = maxEntrySize;
+        this.sketch = new FrequencySketch(
+                (int) Math.min(maxSize / AVERAGE_ENTRY_SIZE, 1 << 20));
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * Get the stored response of a request
+     *
+     * @param uri the request URI, including the query
+     * @param requestHeaders the request headers, with lower case names
+     * @return the response, or null if none is stored or it has expired
+     */
+    public SerializedHttpResponse get(String uri, Map<String, String> requestHeaders) {
+        sketch.increment(uri);
+        Entry[] entries = variants.get(uri);
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (entry.matches(requestHeaders)) {
+                    if (entry.expiresAt > clock.getAsLong()) {
+                        hits.incrementAndGet();
+                        return entry.response;
+                    }
+                    synchronized (this) {
+                        if (remove(entry)) {
+                            expirations.incrementAndGet();
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store the response of a request. The response may not be admitted if the cache is full of
+     * responses requested more often.
+     *
+     * @param uri the request URI, including the query
+     * @param requestHeaders the request headers, with lower case names
+     * @param varyNames the lower case names of the headers listed in the Vary header of the
+     *      response
+     * @param response the response
+     * @param ttl the time to live of the response in milliseconds
+     */
+    public synchronized void put(String uri, Map<String, String> requestHeaders,
+            String[] varyNames, SerializedHttpResponse response, long ttl) {
+        if (response.getMessage().length > maxEntrySize) {
+            return;
+        }
+        long now = clock.getAsLong();
+        String[] names = varyNames.clone();
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].toLowerCase(Locale.US);
+        }
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = requestHeaders.get(names[i]);
+        }
+        Entry entry = new Entry(uri, names, values, response, now + ttl);
+
+        Entry[] current = variants.get(uri);
+        if (current != null) {
+            for (Entry other : current) {
+                if (Arrays.equals(other.varyNames, names) && other.matches(requestHeaders)) {
+                    remove(other);
+                    break;
+                }
+            }
+        }
+        purgeExpired(now);
+
+        Entry[] updated = variants.get(uri);
+        if (updated == null) {
+            updated = new Entry[] { entry };
+        }
+        else {
+            updated = Arrays.copyOf(updated, updated.length + 1);
+            updated[updated.length - 1] = entry;
+        }
+        variants.put(uri, updated);
+        window.add(entry);
+        windowSize += entry.size();
+
+        while (windowSize > windowMaxSize && !window.isEmpty()) {
+            Entry candidate = window.iterator().next();
+            window.remove(candidate);
+            windowSize -= candidate.size();
+            admit(candidate, now);
+        }
+    }
+
+    /**
+     * Remove the stored responses of a URI
+     *
+     * @param uri the request URI, including the query
+     */
+    public synchronized void invalidate(String uri) {
+        Entry[] entries = variants.get(uri);
+        if (entries != null) {
+            for (Entry entry : entries) {
+                remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Get the number of requests answered from the cache
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of cacheable requests not answered from the cache
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of hits among the cacheable requests
+     *
+     * @return the hit ratio between 0 and 1
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    /**
+     * Get the number of responses admitted into the main space
+     *
+     * @return the number of admissions
+     */
+    public long getAdmissions() {
+        return admissions.get();
+    }
+
+    /**
+     * Get the number of responses not admitted because they are requested less often than the
+     * responses they would evict
+     *
+     * @return the number of rejections
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Get the number of unexpired responses evicted to make room for others
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of responses removed because they have expired
+     *
+     * @return the number of expirations
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Get the total size of the stored responses
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return windowSize + mainSize;
+    }
+
+    /**
+     * Get the number of stored responses
+     *
+     * @return the number of responses
+     */
+    public synchronized int getEntryCount() {
+        return window.size() + main.size();
+    }
+
+    /**
+     * Admit a candidate leaving the window into the main space if it is requested more often
+     * than the responses it evicts
+     */
+    private void admit(Entry candidate, long now) {
+        long mainMaxSize = maxSize - windowMaxSize;
+        int candidateFrequency = -1;
+        while (mainSize + candidate.size() > mainMaxSize) {
+            if (main.isEmpty()) {
+                rejectCandidate(candidate);
+                return;
+            }
+            Entry victim = main.iterator().next();
+            if (victim.expiresAt <= now) {
+                remove(victim);
+                expirations.incrementAndGet();
+                continue;
+            }
+            if (candidateFrequency < 0) {
+                candidateFrequency = sketch.frequency(candidate.uri);
+            }
+            if (candidateFrequency <= sketch.frequency(victim.uri)) {
+                rejectCandidate(candidate);
+                return;
+            }
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+        main.add(candidate);
+        mainSize += candidate.size();
+        admissions.incrementAndGet();
+    }
+
+    private void rejectCandidate(Entry candidate) {
+        removeVariant(candidate);
+        rejections.incrementAndGet();
+    }
+
+    /**
+     * Remove the expired responses at the head of the window and of the main space
+     */
+    private void purgeExpired(long now) {
+        for (LinkedHashSet<Entry> entries : Arrays.asList(window, main)) {
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.expiresAt > now) {
+                    break;
+                }
+                iterator.remove();
+                if (entries == window) {
+                    windowSize -= entry.size();
+                }
+                else {
+                    mainSize -= entry.size();
+                }
+                removeVariant(entry);
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove a stored response, return false if it has already been removed
+     */
+    private boolean remove(Entry entry) {
+        if (window.remove(entry)) {
+            windowSize -= entry.size();
+        }
+        else if (main.remove(entry)) {
+            mainSize -= entry.size();
+        }
+        else {
+            return false;
+        }
+        removeVariant(entry);
+        return true;
+    }
+
+    private void removeVariant(Entry entry) {
+        Entry[] entries = variants.get(entry.uri);
+        if (entries == null) {
+            return;
+        }
+        Entry[] updated = new Entry[entries.length];
+        int count = 0;
+        for (Entry other : entries) {
+            if (other != entry) {
+                updated[count++] = other;
+            }
+        }
+        if (count == 0) {
+            variants.remove(entry.uri);
+        }
+        else if (count < entries.length) {
+            variants.put(entry.uri, Arrays.copyOf(updated, count));
+        }
+    }
+}
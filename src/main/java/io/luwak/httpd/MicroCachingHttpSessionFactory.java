@@ -0,0 +1,268 @@
+package io.luwak.httpd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.HttpServerStreams;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.SerializedHttpResponse;
+
+/**
+ * HTTP Session Factory that keeps the responses of the wrapped factory in a {@link MicroCache}
+ * for a short time, so that a dynamic resource requested many times per second is only built
+ * once in a while. Responses are stored serialized (status line, headers and body as sent on the
+ * wire), a hit is sent with a single write.
+ *
+ * Only responses to GET requests without Authorization header are stored; HEAD requests are
+ * answered from the stored GET responses. A response is not stored if its status is not
+ * cacheable by default (RFC 7231 section 6.1), if it sets a cookie, if its Cache-Control has
+ * no-store, no-cache or private, if it varies on all headers, or if its body is too large.
+ * Responses that depend on a request header must list it in Vary.
+ *
+ * Enable it per route with {@link HttpRouteConfig#setMicroCache(MicroCache, long)}.
+ *
+ */
+public class MicroCachingHttpSessionFactory implements HttpSessionFactory {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(MicroCachingHttpSessionFactory.class);
+
+    private final HttpSessionFactory httpSessionFactory;
+    private final MicroCache cache;
+    private final long ttl;
+
+    /**
+     * Constructs a MicroCachingHttpSessionFactory
+     *
+     * @param httpSessionFactory the factory of the sessions building the responses
+     * @param cache the store of the responses, which may be shared by several routes
+     * @param ttl the time responses are stored for, in milliseconds
+     */
+    public MicroCachingHttpSessionFactory(HttpSessionFactory httpSessionFactory,
+            MicroCache cache, long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive: " + ttl);
+        }
+        this.httpSessionFactory = httpSessionFactory;
+        this.cache = cache;
+        this.ttl = ttl;
+    }
+
+    public MicroCache getCache() {
+        return cache;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    @Override
+    public HttpSession newInstance(Socket acceptSocket) {
+        return new MicroCachingHttpSession(acceptSocket);
+    }
+
+    private static boolean isCacheableStatus(int statusCode) {
+        switch (statusCode) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 404:
+            case 405:
+            case 410:
+            case 414:
+            case 501:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the names of the headers the response varies on, or null if it can't be stored
+     */
+    private static String[] varyNames(HttpResponse response) {
+        Map<String, String> headers = response.getHeaders();
+        if (!isCacheableStatus(response.getStatus().getStatusCode())
+                || getHeader(headers, "set-cookie") != null) {
+            return null;
+        }
+        String cacheControl = getHeader(headers, "cache-control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                String name = directive.trim().toLowerCase(Locale.US);
+                if (name.startsWith("no-store") || name.startsWith("no-cache")
+                        || name.startsWith("private")) {
+                    return null;
+                }
+            }
+        }
+        String vary = getHeader(headers, "vary");
+        if (vary == null || vary.trim().isEmpty()) {
+            return new String[0];
+        }
+        String[] names = vary.split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim().toLowerCase(Locale.US);
+            if (names[i].equals("*")) {
+                return null;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Output stream keeping up to a maximum number of bytes, the rest is dropped
+     */
+    private static class BoundedOutputStream extends ByteArrayOutputStream {
+
+        private final int maxSize;
+        private boolean overflow;
+
+        BoundedOutputStream(int maxSize) {
+            super(Math.min(maxSize, 8192));
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (overflow || count + len > maxSize) {
+                overflow = true;
+                return;
+            }
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+    }
+
+    private class MicroCachingHttpSession implements HttpSession {
+
+        private final Socket acceptSocket;
+        /** The session which has served the request, null if it has been served from the cache */
+        private HttpSession httpSession;
+
+        MicroCachingHttpSession(Socket acceptSocket) {
+            this.acceptSocket = acceptSocket;
+        }
+
+        @Override
+        public HttpResponse serve(HttpRequest httpRequest) {
+            HttpMethod method = httpRequest.getMethod();
+            Map<String, String> headers = httpRequest.getHeaders();
+            if ((method != HttpMethod.GET && method != HttpMethod.HEAD)
+                    || httpRequest.getEntityBody() != null || headers.containsKey("authorization")
+                    || headers.containsKey("upgrade")) {
+                return serveAlone(httpRequest);
+            }
+            String uri = httpRequest.getRequestUri();
+            SerializedHttpResponse cached = cache.get(uri, headers);
+            if (cached != null) {
+                return cached;
+            }
+
+            HttpResponse response = serveAlone(httpRequest);
+            String[] varyNames = method == HttpMethod.GET && response != null
+                    ? varyNames(response) : null;
+            if (varyNames == null) {
+                return response;
+            }
+            try {
+                SerializedHttpResponse serialized = serialize(response);
+                if (serialized == null) {
+                    return response;
+                }
+                cache.put(uri, headers, varyNames, serialized, ttl);
+                return serialized;
+            }
+            catch (IOException e) {
+                LOGGER.warn("Failed to read the response of {}", uri, e);
+                Map<String, String> errorHeaders = new LinkedHashMap<>();
+                errorHeaders.put("Content-Length", "0");
+                return new HttpResponse(DefaultHttpStatus.INTERNAL_SERVER_ERROR, errorHeaders,
+                        null);
+            }
+        }
+
+        @Override
+        public void onResponseSent(HttpResponse httpResponse) {
+            if (httpSession != null) {
+                httpSession.onResponseSent(httpResponse);
+            }
+        }
+
+        @Override
+        public ConnectionHandler getConnectionHandler(HttpResponse httpResponse) {
+            return httpSession != null ? httpSession.getConnectionHandler(httpResponse) : null;
+        }
+
+        private HttpResponse serveAlone(HttpRequest httpRequest) {
+            httpSession = httpSessionFactory.newInstance(acceptSocket);
+            return httpSession.serve(httpRequest);
+        }
+
+        /**
+         * Serialize the response, or return null if it is too large to be stored. The body of the
+         * response is released once it has been serialized.
+         */
+        private SerializedHttpResponse serialize(HttpResponse response) throws IOException {
+            if (response instanceof SerializedHttpResponse) {
+                return (SerializedHttpResponse) response;
+            }
+            byte[] head = HttpServerStreams.encodeHead(response);
+            int maxEntrySize = cache.getMaxEntrySize();
+            BoundedOutputStream out = new BoundedOutputStream(maxEntrySize);
+            out.write(head, 0, head.length);
+            HttpEntity body = response.getEntityBody();
+            if (body != null && !out.overflow) {
+                // A streamed body can only be read once, its length must be known to be stored
+                long length = body.getLength();
+                if (body.isStreaming() && (length < 0 || head.length + length > maxEntrySize)) {
+                    return null;
+                }
+                try {
+                    body.writeTo(out);
+                }
+                finally {
+                    if (!out.overflow || body.isStreaming()) {
+                        body.release();
+                    }
+                }
+                if (out.overflow && body.isStreaming()) {
+                    throw new IOException("Body longer than its length " + length);
+                }
+            }
+            if (out.overflow) {
+                // The entity can be sent again
+                return null;
+            }
+            // Copied, the header map of a recycled response is reused by the next request
+            return new SerializedHttpResponse(response.getHttpVersion(), response.getStatus(),
+                    new LinkedHashMap<>(response.getHeaders()), out.toByteArray(), head.length);
+        }
+    }
+}
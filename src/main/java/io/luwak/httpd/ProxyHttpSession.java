@@ -0,0 +1,222 @@
+package io.luwak.httpd;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.cache.CachingHttpClient;
+import io.luwak.http.cache.HttpCache;
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.balancer.UpstreamGroup;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+import io.luwak.http.message.HttpStatus;
+
+/**
+ * HTTP Session that forwards requests to an upstream server (reverse proxy). Request and response
+ * bodies are streamed in both directions through bounded buffers: the response header is sent to
+ * the client as soon as it has been received from upstream, and the body follows as it arrives.
+ * A body is forwarded with Content-Length if its length is known, otherwise it is chunked.
+ *
+ * Hop-by-hop headers (RFC 7230 section 6.1) are removed in both directions, Via is appended and
+ * the client is identified upstream with X-Forwarded-For, X-Forwarded-Host and
+ * X-Forwarded-Proto. Upstream connections are pooled by the client of the
+ * {@link ProxyHttpSessionFactory}. Request bodies are only streamed on routes configured with
+ * {@link ProxyHttpSessionFactory#newRouteConfig()}, otherwise they are read before the request
+ * is forwarded. GET requests are answered from the cache of the factory if it has one. When the
+ * factory has an {@link UpstreamGroup}, each request is sent to the server chosen by the group.
+ *
+ */
+public class ProxyHttpSession implements HttpSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProxyHttpSession.class);
+
+    private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>();
+    static {
+        HOP_BY_HOP_HEADERS.add("connection");
+        HOP_BY_HOP_HEADERS.add("keep-alive");
+        HOP_BY_HOP_HEADERS.add("proxy-connection");
+        HOP_BY_HOP_HEADERS.add("proxy-authenticate");
+        HOP_BY_HOP_HEADERS.add("proxy-authorization");
+        HOP_BY_HOP_HEADERS.add("te");
+        HOP_BY_HOP_HEADERS.add("trailer");
+        HOP_BY_HOP_HEADERS.add("transfer-encoding");
+        HOP_BY_HOP_HEADERS.add("upgrade");
+        // The framing is set according to the forwarded body
+        HOP_BY_HOP_HEADERS.add("content-length");
+    }
+
+    private final ProxyHttpSessionFactory factory;
+    private final InetAddress clientAddress;
+
+    /**
+     * Constructs a ProxyHttpSession
+     *
+     * @param factory the factory holding the proxy configuration
+     * @param acceptSocket the socket of the client connection
+     */
+    public ProxyHttpSession(ProxyHttpSessionFactory factory, Socket acceptSocket) {
+        this.factory = factory;
+        this.clientAddress = acceptSocket != null ? acceptSocket.getInetAddress() : null;
+    }
+
+    @Override
+    public HttpResponse serve(HttpRequest httpRequest) {
+        UpstreamGroup upstreamGroup = factory.getUpstreamGroup();
+        Object upstream = upstreamGroup != null ? upstreamGroup.getUpstreams()
+                : factory.getUpstream();
+        try {
+            HttpResponse upstreamResponse = upstreamGroup != null
+                    ? upstreamGroup.execute(host -> forward(host, httpRequest))
+                    : forward(factory.getUpstream(), httpRequest);
+            return toClientResponse(upstreamResponse);
+        }
+        catch (ConnectException | UnknownHostException e) {
+            LOGGER.warn("Failed to connect to upstream {}: {}", upstream, e.toString());
+            return errorResponse(DefaultHttpStatus.BAD_GATEWAY);
+        }
+        catch (SocketTimeoutException e) {
+            LOGGER.warn("Upstream {} timed out", upstream);
+            return errorResponse(DefaultHttpStatus.GATEWAY_TIMEOUT);
+        }
+        catch (IOException | HttpResponseException e) {
+            LOGGER.warn("Exception caught while forwarding request to {}", upstream, e);
+            return errorResponse(DefaultHttpStatus.BAD_GATEWAY);
+        }
+    }
+
+    @Override
+    public void onResponseSent(HttpResponse httpResponse) {
+    }
+
+    private HttpResponse forward(HttpHost upstream, HttpRequest httpRequest)
+            throws IOException, HttpResponseException {
+        CachingHttpClient cachingClient = factory.getCachingClient();
+        HttpRequest upstreamRequest = toUpstreamRequest(upstream, httpRequest);
+        return cachingClient != null
+                ? cachingClient.execute(upstream, upstreamRequest, cacheKey(httpRequest))
+                : factory.getHttpClient().executeStreaming(upstream, upstreamRequest);
+    }
+
+    /**
+     * The cache key is the same whichever server of the upstream group the request is sent to, and
+     * distinguishes the virtual hosts requested by the clients when the Host header is preserved
+     */
+    private String cacheKey(HttpRequest httpRequest) {
+        String host = httpRequest.getHeaders().get("host");
+        if (!factory.isPreserveHost() || host == null) {
+            UpstreamGroup upstreamGroup = factory.getUpstreamGroup();
+            HttpHost upstream = upstreamGroup != null
+                    ? upstreamGroup.getUpstreams().get(0).getHost() : factory.getUpstream();
+            host = upstream.toHostHeader();
+        }
+        return HttpCache.key(host, httpRequest);
+    }
+
+    private HttpRequest toUpstreamRequest(HttpHost upstream, HttpRequest httpRequest)
+            throws IOException {
+        Map<String, String> requestHeaders = httpRequest.getHeaders();
+        Map<String, String> headers = new LinkedHashMap<>();
+        copyEndToEndHeaders(requestHeaders, headers);
+
+        String host = requestHeaders.get("host");
+        if (!factory.isPreserveHost() || host == null) {
+            headers.put("host", upstream.toHostHeader());
+        }
+        appendHeader(headers, "via", viaEntry(httpRequest.getHttpVersion()));
+        if (clientAddress != null) {
+            appendHeader(headers, "x-forwarded-for", clientAddress.getHostAddress());
+        }
+        if (host != null) {
+            headers.putIfAbsent("x-forwarded-host", host);
+        }
+        headers.putIfAbsent("x-forwarded-proto", "http");
+        setFraming(headers, httpRequest.getEntityBody());
+
+        return new HttpRequest(httpRequest.getMethod(), httpRequest.getUriPath(),
+                httpRequest.getQueries(), HttpRequest.DEFAULT_HTTP_VERSION, headers,
+                httpRequest.getEntityBody());
+    }
+
+    private HttpResponse toClientResponse(HttpResponse upstreamResponse) throws IOException {
+        Map<String, String> upstreamHeaders = upstreamResponse.getHeaders();
+        Map<String, String> headers = new LinkedHashMap<>();
+        copyEndToEndHeaders(upstreamHeaders, headers);
+        appendHeader(headers, "via", viaEntry(upstreamResponse.getHttpVersion()));
+
+        HttpEntity body = upstreamResponse.getEntityBody();
+        if (body != null) {
+            setFraming(headers, body);
+        }
+        else if (upstreamHeaders.containsKey("content-length")) {
+            // e.g. the length of the representation in the response to a HEAD request
+            headers.put("content-length", upstreamHeaders.get("content-length"));
+        }
+        return new HttpResponse(HttpResponse.DEFAULT_HTTP_VERSION, upstreamResponse.getStatus(),
+                headers, body);
+    }
+
+    /**
+     * Copy the headers except the hop-by-hop headers, including the ones listed in Connection
+     */
+    private static void copyEndToEndHeaders(Map<String, String> from, Map<String, String> to) {
+        Set<String> connectionHeaders = new HashSet<>();
+        String connection = from.get("connection");
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                connectionHeaders.add(token.trim().toLowerCase(Locale.US));
+            }
+        }
+        for (Map.Entry<String, String> entry : from.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.US);
+            if (!HOP_BY_HOP_HEADERS.contains(name) && !connectionHeaders.contains(name)) {
+                to.put(name, entry.getValue());
+            }
+        }
+    }
+
+    private static void setFraming(Map<String, String> headers, HttpEntity body)
+            throws IOException {
+        if (body == null) {
+            return;
+        }
+        long length = body.getLength();
+        if (length >= 0) {
+            headers.put("content-length", Long.toString(length));
+        }
+        else {
+            headers.put("transfer-encoding", "chunked");
+        }
+    }
+
+    private String viaEntry(String httpVersion) {
+        String protocol = httpVersion != null && httpVersion.startsWith("HTTP/")
+                ? httpVersion.substring(5) : httpVersion;
+        return protocol + " " + factory.getViaPseudonym();
+    }
+
+    private static void appendHeader(Map<String, String> headers, String name, String value) {
+        String current = headers.get(name);
+        headers.put(name, current != null ? current + ", " + value : value);
+    }
+
+    private static HttpResponse errorResponse(HttpStatus status) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Length", "0");
+        return new HttpResponse(status, headers, null);
+    }
+}
@@ -0,0 +1,190 @@
+package io.luwak.httpd;
+
+import java.net.Socket;
+
+import io.luwak.http.cache.CachingHttpClient;
+import io.luwak.http.cache.HttpCache;
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.LuwakHttpClient;
+import io.luwak.http.client.balancer.UpstreamGroup;
+
+/**
+ * HTTP Session Factory that creates {@link ProxyHttpSession} instances forwarding requests to one
+ * upstream server, or to the servers of an {@link UpstreamGroup}. All sessions share the pooled
+ * upstream connections of the factory's client.
+ *
+ */
+public class ProxyHttpSessionFactory implements HttpSessionFactory {
+
+    public static final String DEFAULT_VIA_PSEUDONYM = "luwak";
+
+    private final HttpHost upstream;
+    private final UpstreamGroup upstreamGroup;
+    private final LuwakHttpClient httpClient;
+
+    private volatile boolean preserveHost;
+    private volatile String viaPseudonym = DEFAULT_VIA_PSEUDONYM;
+    private volatile CachingHttpClient cachingClient;
+
+    /**
+     * Constructs a ProxyHttpSessionFactory with a client using the default connection pool
+     * settings
+     *
+     * @param upstream the upstream server
+     */
+    public ProxyHttpSessionFactory(HttpHost upstream) {
+        this(upstream, new LuwakHttpClient());
+    }
+
+    /**
+     * Constructs a ProxyHttpSessionFactory
+     *
+     * @param upstream the upstream server
+     * @param httpClient the client used to send requests to the upstream server
+     */
+    public ProxyHttpSessionFactory(HttpHost upstream, LuwakHttpClient httpClient) {
+        this.upstream = upstream;
+        this.upstreamGroup = null;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Constructs a ProxyHttpSessionFactory balancing the requests over a group of upstream
+     * servers, with a client using the default connection pool settings
+     *
+     * @param upstreamGroup the upstream servers
+     */
+    public ProxyHttpSessionFactory(UpstreamGroup upstreamGroup) {
+        this(upstreamGroup, new LuwakHttpClient());
+    }
+
+    /**
+     * Constructs a ProxyHttpSessionFactory balancing the requests over a group of upstream
+     * servers
+     *
+     * @param upstreamGroup the upstream servers
+     * @param httpClient the client used to send requests to the upstream servers
+     */
+    public ProxyHttpSessionFactory(UpstreamGroup upstreamGroup, LuwakHttpClient httpClient) {
+        this.upstream = null;
+        this.upstreamGroup = upstreamGroup;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Get the upstream server
+     *
+     * @return the upstream server, or null if the requests are balanced over a group
+     */
+    public HttpHost getUpstream() {
+        return upstream;
+    }
+
+    /**
+     * Get the group of upstream servers
+     *
+     * @return the upstream group, or null if the requests are sent to one upstream server
+     */
+    public UpstreamGroup getUpstreamGroup() {
+        return upstreamGroup;
+    }
+
+    /**
+     * Get the client used to send requests to the upstream server
+     *
+     * @return the HTTP client
+     */
+    public LuwakHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Set whether the Host header of the client is sent upstream, by default the Host header is
+     * set to the upstream server and the original one is sent in X-Forwarded-Host
+     *
+     * @param preserveHost true to keep the Host header of the client
+     */
+    public void setPreserveHost(boolean preserveHost) {
+        this.preserveHost = preserveHost;
+    }
+
+    /**
+     * Return true if the Host header of the client is sent upstream
+     *
+     * @return true if the Host header is preserved
+     */
+    public boolean isPreserveHost() {
+        return preserveHost;
+    }
+
+    /**
+     * Set the pseudonym of the proxy in the Via header
+     *
+     * @param viaPseudonym the pseudonym
+     */
+    public void setViaPseudonym(String viaPseudonym) {
+        this.viaPseudonym = viaPseudonym;
+    }
+
+    /**
+     * Get the pseudonym of the proxy in the Via header
+     *
+     * @return the pseudonym
+     */
+    public String getViaPseudonym() {
+        return viaPseudonym;
+    }
+
+    /**
+     * Set the cache of upstream responses. GET requests are answered from the cache when
+     * possible, other requests are always forwarded.
+     *
+     * @param httpCache the cache, or null to forward all requests
+     */
+    public void setHttpCache(HttpCache httpCache) {
+        CachingHttpClient previous = cachingClient;
+        cachingClient = httpCache != null ? new CachingHttpClient(httpClient, httpCache) : null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Get the cache of upstream responses
+     *
+     * @return the cache, or null if responses are not cached
+     */
+    public HttpCache getHttpCache() {
+        CachingHttpClient client = cachingClient;
+        return client != null ? client.getCache() : null;
+    }
+
+    CachingHttpClient getCachingClient() {
+        return cachingClient;
+    }
+
+    /**
+     * Create the configuration of a route served by a proxy, request bodies are streamed
+     * upstream instead of being read before the request is served
+     *
+     * @return a new route configuration
+     */
+    public static HttpRouteConfig newRouteConfig() {
+        HttpRouteConfig config = new HttpRouteConfig();
+        config.getEntityLimits().setStreaming(true);
+        return config;
+    }
+
+    @Override
+    public HttpSession newInstance(Socket acceptSocket) {
+        return new ProxyHttpSession(this, acceptSocket);
+    }
+
+    /**
+     * A proxy session only depends on the client connection, it serves all its requests
+     */
+    @Override
+    public HttpSessionScope getScope() {
+        return HttpSessionScope.CONNECTION;
+    }
+}
@@ -0,0 +1,27 @@
+package io.luwak.httpd;
+
+import io.luwak.http.message.RecyclableHttpRequest;
+
+/**
+ * Whether the server reuses the request and response objects of a connection, see
+ * {@link LuwakHttpd#setRecyclingMode(RecyclingMode)}
+ *
+ */
+public enum RecyclingMode {
+
+    /** A new request object is created for each request */
+    OFF,
+
+    /**
+     * The request object of a connection, its maps and its response object (see
+     * {@link RecyclableHttpRequest#newResponse}) are reused once the response has been sent
+     */
+    ON,
+
+    /**
+     * The requests are {@link RecyclableHttpRequest} objects as with {@link #ON}, but they are not
+     * reused: any use of a request or of its response after the response has been sent throws an
+     * IllegalStateException. Meant for testing that sessions support recycling.
+     */
+    DEBUG
+}
@@ -5,12 +5,26 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.luwak.accesslog.AccessLog;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http2.Http2Config;
+import io.luwak.jfr.LuwakEvents;
+import io.luwak.metrics.HttpMetrics;
+import io.luwak.metrics.RequestTracer;
+
 /**
  * The runnable that will be used by the main listening thread. This runnable will accept new
  * connections and then run a new runnable to serve the connection
@@ -23,11 +37,119 @@ public class ServerRunnable implements Runnable {
     private String hostname;
     private int port;
     private final int timeout;
-    private ExecutorService executorService;
+    private ThreadPoolExecutor executorService;
     private HttpdContext httpdContext;
+    /** Shares the thread-confined and singleton sessions across connections */
+    private final HttpSessionProvider sessionProvider = new HttpSessionProvider();
+    private volatile RecyclingMode recyclingMode = RecyclingMode.OFF;
+    private volatile TlsConfig tlsConfig;
+    private volatile Http2Config http2Config;
+    private volatile HttpMetrics metrics;
+    private volatile RequestTracer requestTracer;
+    private volatile AccessLog accessLog;
+    private volatile MemoryBudget memoryBudget;
+    private volatile SpoolManager spoolManager;
+    /** Connections currently being served, closed on shutdown */
+    private final Set<Socket> acceptSockets = ConcurrentHashMap.newKeySet();
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ServerRunnable.class);
 
+    /**
+     * Set whether the request and response objects of a connection are reused
+     *
+     * @param recyclingMode the recycling mode
+     */
+    public void setRecyclingMode(RecyclingMode recyclingMode) {
+        this.recyclingMode = recyclingMode;
+    }
+
+    /**
+     * Set the TLS configuration of the accepted connections
+     *
+     * @param tlsConfig the TLS configuration, or null to serve plain HTTP
+     */
+    public void setTlsConfig(TlsConfig tlsConfig) {
+        this.tlsConfig = tlsConfig;
+    }
+
+    /**
+     * Set the HTTP/2 configuration of the accepted connections. HTTP/2 is only served in
+     * cleartext (h2c), not on TLS connections.
+     *
+     * @param http2Config the HTTP/2 configuration, or null to serve HTTP/1.1 only
+     */
+    public void setHttp2Config(Http2Config http2Config) {
+        this.http2Config = http2Config;
+    }
+
+    /**
+     * Record the metrics of the server: the accepted connections, the depth of the executor queue
+     * and the metrics recorded by the client handlers
+     *
+     * @param metrics the metrics registry, or null to record nothing
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            ThreadPoolExecutor executor = executorService;
+            metrics.registerGauge("luwak_executor_queue_depth",
+                    "Accepted connections waiting for a server thread",
+                    () -> executor.getQueue().size());
+            metrics.registerGauge("luwak_executor_active_threads",
+                    "Server threads serving a connection", executor::getActiveCount);
+            if (memoryBudget != null) {
+                metrics.setMemoryBudget(memoryBudget);
+            }
+            if (spoolManager != null) {
+                metrics.setSpoolManager(spoolManager);
+            }
+        }
+    }
+
+    /**
+     * Time the phases of the requests served on the accepted connections
+     *
+     * @param requestTracer the tracer, or null to time nothing
+     */
+    public void setRequestTracer(RequestTracer requestTracer) {
+        this.requestTracer = requestTracer;
+    }
+
+    /**
+     * Log the requests served on the accepted connections
+     *
+     * @param accessLog the access log, or null to log nothing
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Set the budget of heap memory reserved by the request bodies kept in memory
+     *
+     * @param memoryBudget the memory budget, or null to use {@link MemoryBudget#getDefault()}
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        HttpMetrics serverMetrics = metrics;
+        if (serverMetrics != null && memoryBudget != null) {
+            serverMetrics.setMemoryBudget(memoryBudget);
+        }
+    }
+
+    /**
+     * Set the SpoolManager providing the spool files of the request bodies not kept in memory
+     *
+     * @param spoolManager the SpoolManager, or null to use {@link SpoolManager#getDefault()}
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        this.spoolManager = spoolManager;
+        HttpMetrics serverMetrics = metrics;
+        if (serverMetrics != null && spoolManager != null) {
+            serverMetrics.setSpoolManager(spoolManager);
+        }
+    }
+
     /**
      * Create a new server runnable
      * 
@@ -46,37 +168,144 @@ public class ServerRunnable implements Runnable {
         this.port = port;
         this.timeout = timeout;
         this.httpdContext = httpdContext;
-        this.executorService = Executors.newFixedThreadPool(maxThreads);
+        // The same executor as Executors.newFixedThreadPool(), whose queue depth can be read
+        this.executorService = new ThreadPoolExecutor(maxThreads, maxThreads, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
 
         LOGGER.info("ServerRunnable created hostname={} port={} timeout={} httpdContext={} maxThread={}",
                 hostname, port, timeout, httpdContext, maxThreads);
     }
 
-    @Override
-    public void run() {
+    /**
+     * Bind the server socket to the host name and port of this server runnable. This is done by
+     * {@link #run()} if the server socket has not been bound yet.
+     *
+     * @throws IOException if the server socket can't be bound
+     */
+    public void bind() throws IOException {
+        SocketAddress sockAddress = hostname != null ?
+                new InetSocketAddress(hostname, port) : new InetSocketAddress(port);
+        serverSocket.bind(sockAddress);
+        LOGGER.info("Bound to: {}", serverSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * Stop accepting new connections by closing the server socket, and close the connections that
+     * are being served
+     */
+    public void shutdown() {
         try {
-            SocketAddress sockAddress = hostname != null ?
-                    new InetSocketAddress(hostname, port) : new InetSocketAddress(port);
-            serverSocket.bind(sockAddress);
-            LOGGER.info("Bound to: {}", sockAddress);
+            serverSocket.close();
         }
         catch (IOException e) {
-            LOGGER.error("Exception caught while binding server socket", e);
-            return;
+            LOGGER.debug("Exception caught while closing server socket", e);
+        }
+        executorService.shutdown();
+        for (Socket acceptSocket : acceptSockets) {
+            try {
+                acceptSocket.close();
+            }
+            catch (IOException e) {
+                LOGGER.debug("Exception caught while closing accept socket", e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!serverSocket.isBound()) {
+            try {
+                bind();
+            }
+            catch (IOException e) {
+                LOGGER.error("Exception caught while binding server socket", e);
+                return;
+            }
         }
 
         do {
             try {
-                final Socket acceptSocket = serverSocket.accept();
-                LOGGER.debug("Accepted connection from {}", acceptSocket.getRemoteSocketAddress());
+                Socket plainSocket = serverSocket.accept();
+                long acceptedNanos = System.nanoTime();
+                Object connectionEvent = LuwakEvents.beginConnection();
+                LOGGER.debug("Accepted connection from {}", plainSocket.getRemoteSocketAddress());
                 if (timeout > 0) {
-                    acceptSocket.setSoTimeout(this.timeout);
+                    plainSocket.setSoTimeout(this.timeout);
+                }
+                // Responses are written in one piece, waiting for more data only adds latency
+                plainSocket.setTcpNoDelay(true);
+                final TlsConfig tls = tlsConfig;
+                final Socket acceptSocket = tls != null ? wrap(tls, plainSocket) : plainSocket;
+                if (acceptSocket == null) {
+                    continue;
+                }
+                ClientHandler clientHandler = new ClientHandler(acceptSocket, httpdContext,
+                        sessionProvider);
+                clientHandler.setRecyclingMode(recyclingMode);
+                if (tls == null) {
+                    clientHandler.setHttp2Config(http2Config);
+                }
+                final HttpMetrics connectionMetrics = metrics;
+                clientHandler.setMetrics(connectionMetrics);
+                clientHandler.setRequestTracer(requestTracer);
+                clientHandler.setAccessLog(accessLog);
+                clientHandler.setMemoryBudget(memoryBudget);
+                clientHandler.setSpoolManager(spoolManager);
+                clientHandler.setAcceptedNanos(acceptedNanos);
+                clientHandler.setConnectionEvent(connectionEvent);
+                if (connectionMetrics != null) {
+                    connectionMetrics.connectionOpened();
+                }
+                acceptSockets.add(acceptSocket);
+                try {
+                    executorService.execute(() -> {
+                        try {
+                            // The handshake is done here, not to hold up the accepting thread
+                            if (tls == null || tls.handshake((SSLSocket) acceptSocket)) {
+                                clientHandler.run();
+                            }
+                        }
+                        finally {
+                            acceptSockets.remove(acceptSocket);
+                            if (connectionMetrics != null) {
+                                connectionMetrics.connectionClosed();
+                            }
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    // Shutting down
+                    acceptSockets.remove(acceptSocket);
+                    if (connectionMetrics != null) {
+                        connectionMetrics.connectionClosed();
+                    }
+                    acceptSocket.close();
                 }
-                executorService.execute(new ClientHandler(acceptSocket, httpdContext));
             }
             catch (IOException e) {
-                e.printStackTrace();
+                if (!serverSocket.isClosed()) {
+                    LOGGER.error("Exception caught while accepting connection", e);
+                }
             }
         } while (!serverSocket.isClosed());
     }
+
+    /**
+     * Layer TLS over an accepted connection, which is closed if it fails
+     */
+    private static Socket wrap(TlsConfig tls, Socket plainSocket) {
+        try {
+            return tls.wrap(plainSocket);
+        }
+        catch (IOException e) {
+            LOGGER.error("Exception caught while setting up TLS", e);
+            try {
+                plainSocket.close();
+            }
+            catch (IOException e1) {
+                LOGGER.debug("Exception caught while closing accept socket", e1);
+            }
+            return null;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,253 @@
+package io.luwak.httpd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.jfr.LuwakEvents;
+
+/**
+ * TLS configuration of a server, see {@link LuwakHttpd#setTlsConfig(TlsConfig)}. The accepted
+ * connections are layered with an SSLSocket, and the handshake is done by the thread serving the
+ * connection, bounded by the handshake timeout.
+ *
+ * The server keeps its sessions in a session cache, so that a client coming back resumes its
+ * session with an abbreviated handshake instead of a full one. On Java 13 and later, session
+ * tickets are also issued unless disabled with the system property
+ * {@code jdk.tls.server.enableSessionTicketExtension}, which keeps the resumption state on the
+ * clients.
+ *
+ */
+public class TlsConfig {
+
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    public static final int DEFAULT_SESSION_TIMEOUT = 86400;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TlsConfig.class);
+
+    private final KeyStore keyStore;
+    private final char[] keyPassword;
+    private String[] protocols;
+    private String[] cipherSuites;
+    private int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+    private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+    private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+    private final TlsStatistics statistics = new TlsStatistics();
+    private SSLContext sslContext;
+
+    /**
+     * Constructs a TlsConfig with the server key and certificate chain of a key store
+     *
+     * @param keyStore the key store holding the server key
+     * @param keyPassword the password of the key
+     */
+    public TlsConfig(KeyStore keyStore, char[] keyPassword) {
+        this.keyStore = keyStore;
+        this.keyPassword = keyPassword;
+    }
+
+    /**
+     * Constructs a TlsConfig with the server key and certificate chain of a key store file, the
+     * key being protected with the password of the key store
+     *
+     * @param keyStoreFile the key store file
+     * @param keyStoreType the key store type, e.g. PKCS12 or JKS
+     * @param password the password of the key store
+     * @throws IOException if the key store can't be loaded
+     */
+    public TlsConfig(File keyStoreFile, String keyStoreType, char[] password) throws IOException {
+        this(loadKeyStore(keyStoreFile, keyStoreType, password), password);
+    }
+
+    private static KeyStore loadKeyStore(File keyStoreFile, String keyStoreType, char[] password)
+            throws IOException {
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+            keyStore.load(in, password);
+            return keyStore;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Failed to load key store " + keyStoreFile, e);
+        }
+    }
+
+    /**
+     * Set the protocols enabled on the connections, e.g. TLSv1.3 and TLSv1.2. By default the
+     * protocols enabled by the JDK are used.
+     *
+     * @param protocols the protocols
+     */
+    public void setProtocols(String... protocols) {
+        this.protocols = protocols;
+    }
+
+    public String[] getProtocols() {
+        return protocols;
+    }
+
+    /**
+     * Set the cipher suites enabled on the connections, in order of preference: the server picks
+     * the first one supported by the client. By default the cipher suites enabled by the JDK are
+     * used.
+     *
+     * @param cipherSuites the cipher suites
+     */
+    public void setCipherSuites(String... cipherSuites) {
+        this.cipherSuites = cipherSuites;
+    }
+
+    public String[] getCipherSuites() {
+        return cipherSuites;
+    }
+
+    /**
+     * Set the maximum number of sessions kept in the session cache
+     *
+     * @param sessionCacheSize the number of sessions, 0 for no limit
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Set how long a session can be resumed, in the session cache or with a session ticket
+     *
+     * @param sessionTimeout the timeout in seconds, 0 for no limit
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Set the maximum time a handshake can take, so that slow or idle clients do not hold server
+     * threads
+     *
+     * @param handshakeTimeout the timeout in milliseconds, 0 for no limit
+     */
+    public void setHandshakeTimeout(int handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Get the handshake counters of the connections using this configuration
+     *
+     * @return the statistics
+     */
+    public TlsStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get the SSLContext of the server, which is created on first use. Its session cache is
+     * shared by all the connections.
+     *
+     * @return the SSLContext
+     * @throws IOException if the SSLContext can't be initialized with the key store
+     */
+    public synchronized SSLContext getSslContext() throws IOException {
+        if (sslContext == null) {
+            try {
+                KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                        KeyManagerFactory.getDefaultAlgorithm());
+                keyManagerFactory.init(keyStore, keyPassword);
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(keyManagerFactory.getKeyManagers(), null, null);
+                SSLSessionContext sessionContext = context.getServerSessionContext();
+                sessionContext.setSessionCacheSize(sessionCacheSize);
+                sessionContext.setSessionTimeout(sessionTimeout);
+                sslContext = context;
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("Failed to initialize the SSLContext", e);
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Layer TLS over an accepted connection, the handshake is not started
+     *
+     * @param acceptSocket the accepted connection
+     * @return the SSLSocket of the connection, closing it closes the accepted connection
+     * @throws IOException if the SSLSocket can't be created
+     */
+    SSLSocket wrap(Socket acceptSocket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) getSslContext().getSocketFactory().createSocket(
+                acceptSocket, null, acceptSocket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        if (protocols != null) {
+            parameters.setProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            parameters.setCipherSuites(cipherSuites);
+            parameters.setUseCipherSuitesOrder(true);
+        }
+        sslSocket.setSSLParameters(parameters);
+        return sslSocket;
+    }
+
+    /**
+     * Do the handshake of a connection and record it in the statistics. The connection is closed
+     * if the handshake fails.
+     *
+     * @param sslSocket the connection returned by {@link #wrap(Socket)}
+     * @return true if the handshake has completed
+     */
+    boolean handshake(SSLSocket sslSocket) {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        Object event = LuwakEvents.beginTlsHandshake();
+        try {
+            int soTimeout = sslSocket.getSoTimeout();
+            sslSocket.setSoTimeout(handshakeTimeout);
+            sslSocket.startHandshake();
+            sslSocket.setSoTimeout(soTimeout);
+        }
+        catch (IOException e) {
+            statistics.failed();
+            LuwakEvents.endTlsHandshake(event, sslSocket.getRemoteSocketAddress(), null, false);
+            LOGGER.debug("TLS handshake with {} failed", sslSocket.getRemoteSocketAddress(), e);
+            try {
+                sslSocket.close();
+            }
+            catch (IOException e1) {
+                LOGGER.debug("Exception caught while closing accept socket", e1);
+            }
+            return false;
+        }
+        // A resumed session keeps the creation time of the session it resumes
+        SSLSession session = sslSocket.getSession();
+        boolean resumed = session.getCreationTime() < startMillis;
+        statistics.handshake(System.nanoTime() - start, resumed);
+        LuwakEvents.endTlsHandshake(event, sslSocket.getRemoteSocketAddress(), session, resumed);
+        return true;
+    }
+}
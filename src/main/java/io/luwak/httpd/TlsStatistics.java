@@ -0,0 +1,147 @@
+package io.luwak.httpd;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the TLS handshakes of a server, see {@link TlsConfig#getStatistics()}
+ *
+ */
+public final class TlsStatistics {
+
+    /** Number of one second buckets the handshake rate is averaged over */
+    private static final int RATE_SECONDS = 10;
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakeNanos = new AtomicLong();
+    private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+    /** Handshakes per second of the last seconds, indexed by second modulo RATE_SECONDS */
+    private final long[] rateBuckets = new long[RATE_SECONDS];
+    private final long[] rateBucketSeconds = new long[RATE_SECONDS];
+
+    TlsStatistics() {
+        Arrays.fill(rateBucketSeconds, Long.MIN_VALUE);
+    }
+
+    /**
+     * Get the number of completed handshakes which have negotiated a new session
+     *
+     * @return the number of full handshakes
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Get the number of completed handshakes which have resumed a session, from the session
+     * cache or from a session ticket
+     *
+     * @return the number of abbreviated handshakes
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Get the number of handshakes which have failed or timed out
+     *
+     * @return the number of failed handshakes
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+
+    /**
+     * Get the ratio of completed handshakes which have resumed a session
+     *
+     * @return the resumption ratio between 0 and 1
+     */
+    public double getResumptionRatio() {
+        long resumed = resumedHandshakes.get();
+        long total = resumed + fullHandshakes.get();
+        return total > 0 ? (double) resumed / total : 0;
+    }
+
+    /**
+     * Get the number of completed handshakes per second, averaged over the last 10 seconds
+     *
+     * @return the handshake rate
+     */
+    public synchronized double getHandshakeRate() {
+        long now = currentSecond();
+        long count = 0;
+        for (int i = 0; i < RATE_SECONDS; i++) {
+            // The current second is not complete yet
+            if (rateBucketSeconds[i] < now && rateBucketSeconds[i] >= now - RATE_SECONDS) {
+                count += rateBuckets[i];
+            }
+        }
+        return (double) count / RATE_SECONDS;
+    }
+
+    /**
+     * Get the average duration of the full handshakes
+     *
+     * @return the average duration in milliseconds
+     */
+    public double getAverageFullHandshakeMillis() {
+        return averageMillis(fullHandshakeNanos.get(), fullHandshakes.get());
+    }
+
+    /**
+     * Get the average duration of the resumed handshakes
+     *
+     * @return the average duration in milliseconds
+     */
+    public double getAverageResumedHandshakeMillis() {
+        return averageMillis(resumedHandshakeNanos.get(), resumedHandshakes.get());
+    }
+
+    /**
+     * Get the duration of the longest completed handshake
+     *
+     * @return the duration in milliseconds
+     */
+    public double getMaxHandshakeMillis() {
+        return maxHandshakeNanos.get() / 1e6;
+    }
+
+    void handshake(long nanos, boolean resumed) {
+        (resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+        (resumed ? resumedHandshakeNanos : fullHandshakeNanos).addAndGet(nanos);
+        maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
+        synchronized (this) {
+            long now = currentSecond();
+            int bucket = (int) Math.floorMod(now, (long) RATE_SECONDS);
+            if (rateBucketSeconds[bucket] != now) {
+                rateBucketSeconds[bucket] = now;
+                rateBuckets[bucket] = 0;
+            }
+            rateBuckets[bucket]++;
+        }
+    }
+
+    void failed() {
+        failedHandshakes.incrementAndGet();
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    private static double averageMillis(long nanos, long count) {
+        return count > 0 ? nanos / 1e6 / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "fullHandshakes=" + fullHandshakes + " resumedHandshakes=" + resumedHandshakes
+                + " failedHandshakes=" + failedHandshakes + " handshakeRate="
+                + getHandshakeRate();
+    }
+}
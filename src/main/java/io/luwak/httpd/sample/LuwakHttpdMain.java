@@ -21,13 +21,15 @@ public class LuwakHttpdMain {
         httpdContext.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET),
                 new DefaultHttpSessionFactory());
 
-        /* If SSL is needed
-        System.setProperty("javax.net.ssl.keyStore", "res\\keystore.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "p@ssw0rd");
-        */
-
         // Start a HTTP server at localhost port 8080 with max 100 threads
         LuwakHttpd httpd = new LuwakHttpd("localhost", 8080, 100, httpdContext);
+
+        /* If HTTPS is needed
+        TlsConfig tlsConfig = new TlsConfig(new File("res", "keystore.p12"), "PKCS12",
+                "p@ssw0rd".toCharArray());
+        tlsConfig.setProtocols("TLSv1.3", "TLSv1.2");
+        httpd.setTlsConfig(tlsConfig);
+        */
         httpd.start();
     }
 }
@@ -0,0 +1,65 @@
+package io.luwak.jfr;
+
+import java.net.SocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A connection, from being accepted to being closed or taken over
+ *
+ */
+@Name("io.luwak.Connection")
+@Label("HTTP Connection")
+@Category({ "Luwak", "HTTP" })
+@Description("A connection from being accepted to being closed or taken over")
+@StackTrace(false)
+final class ConnectionEvent extends Event {
+
+    private static final ConnectionEvent PROBE = new ConnectionEvent();
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("TLS")
+    boolean tls;
+
+    @Label("Requests")
+    int requests;
+
+    @Label("Bytes Received")
+    @DataAmount
+    long bytesReceived;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    long bytesSent;
+
+    static Object beginEvent() {
+        if (!PROBE.isEnabled()) {
+            return null;
+        }
+        ConnectionEvent event = new ConnectionEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endEvent(Object object, SocketAddress remoteAddress, boolean tls, int requests,
+            long bytesReceived, long bytesSent) {
+        ConnectionEvent event = (ConnectionEvent) object;
+        event.end();
+        if (event.shouldCommit()) {
+            event.remoteAddress = String.valueOf(remoteAddress);
+            event.tls = tls;
+            event.requests = requests;
+            event.bytesReceived = bytesReceived;
+            event.bytesSent = bytesSent;
+            event.commit();
+        }
+    }
+}
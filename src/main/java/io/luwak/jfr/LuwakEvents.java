@@ -0,0 +1,176 @@
+package io.luwak.jfr;
+
+import java.io.File;
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+import io.luwak.metrics.RequestTrace;
+
+/**
+ * Emits the JDK Flight Recorder events of the server, in the Luwak category: connections,
+ * requests with their phases, TLS handshakes, spool files created and content spilled to disk.
+ * They are recorded along with the JVM events with e.g. {@code jcmd <pid> JFR.start}.
+ *
+ * This class is the only one referring to the event classes, and only once it knows that the
+ * runtime has JFR (JDK 8u262 and later), so that the server still runs without it. The
+ * {@code begin} methods return an opaque event, or null if JFR is not available or no recording
+ * enables the event; nothing is allocated then, and the matching {@code end} method does nothing.
+ *
+ */
+public final class LuwakEvents {
+
+    private static final boolean AVAILABLE = detect();
+
+    private LuwakEvents() {
+    }
+
+    private static boolean detect() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Return true if the runtime has JDK Flight Recorder
+     *
+     * @return true if the events can be recorded
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Begin the event of a connection which has just been accepted
+     *
+     * @return the event, or null if it is not recorded
+     */
+    public static Object beginConnection() {
+        return AVAILABLE ? ConnectionEvent.beginEvent() : null;
+    }
+
+    /**
+     * Commit the event of a connection which has been closed or taken over
+     *
+     * @param event the event returned by {@link #beginConnection()}
+     * @param remoteAddress the address of the client
+     * @param tls true if the connection is secured with TLS
+     * @param requests the number of requests served on the connection
+     * @param bytesReceived the bytes received, -1 if not counted
+     * @param bytesSent the bytes sent, -1 if not counted
+     */
+    public static void endConnection(Object event, SocketAddress remoteAddress, boolean tls,
+            int requests, long bytesReceived, long bytesSent) {
+        if (event != null) {
+            ConnectionEvent.endEvent(event, remoteAddress, tls, requests, bytesReceived,
+                    bytesSent);
+        }
+    }
+
+    /**
+     * Create the event of the next request of a connection, begun with
+     * {@link #beginRequest(Object)} once its header has been read
+     *
+     * @return the event, or null if it is not recorded
+     */
+    public static Object newRequest() {
+        return AVAILABLE ? RequestEvent.newEvent() : null;
+    }
+
+    /**
+     * Begin the event of a request whose header has just been read
+     *
+     * @param event the event returned by {@link #newRequest()}
+     */
+    public static void beginRequest(Object event) {
+        if (event != null) {
+            RequestEvent.beginEvent(event);
+        }
+    }
+
+    /**
+     * Commit the event of a request which has been served
+     *
+     * @param event the event returned by {@link #newRequest()}
+     * @param trace the trace of the request, which has been described
+     * @param bytesReceived the bytes received while serving the request, -1 if not counted
+     * @param bytesSent the bytes sent while serving the request, -1 if not counted
+     */
+    public static void endRequest(Object event, RequestTrace trace, long bytesReceived,
+            long bytesSent) {
+        if (event != null) {
+            RequestEvent.endEvent(event, trace, bytesReceived, bytesSent);
+        }
+    }
+
+    /**
+     * Begin the event of a TLS handshake
+     *
+     * @return the event, or null if it is not recorded
+     */
+    public static Object beginTlsHandshake() {
+        return AVAILABLE ? TlsHandshakeEvent.beginEvent() : null;
+    }
+
+    /**
+     * Commit the event of a TLS handshake
+     *
+     * @param event the event returned by {@link #beginTlsHandshake()}
+     * @param remoteAddress the address of the client
+     * @param session the negotiated session, or null if the handshake has failed
+     * @param resumed true if the session has been resumed
+     */
+    public static void endTlsHandshake(Object event, SocketAddress remoteAddress,
+            SSLSession session, boolean resumed) {
+        if (event != null) {
+            TlsHandshakeEvent.endEvent(event, remoteAddress, session, resumed);
+        }
+    }
+
+    /**
+     * Begin the event of the creation of a spool file
+     *
+     * @return the event, or null if it is not recorded
+     */
+    public static Object beginSpoolFile() {
+        return AVAILABLE ? SpoolFileEvent.beginEvent() : null;
+    }
+
+    /**
+     * Commit the event of the creation of a spool file
+     *
+     * @param event the event returned by {@link #beginSpoolFile()}
+     * @param file the file created
+     */
+    public static void endSpoolFile(Object event, File file) {
+        if (event != null) {
+            SpoolFileEvent.endEvent(event, file);
+        }
+    }
+
+    /**
+     * Begin the event of content kept in memory being spilled to a spool file
+     *
+     * @return the event, or null if it is not recorded
+     */
+    public static Object beginSpill() {
+        return AVAILABLE ? SpillEvent.beginEvent() : null;
+    }
+
+    /**
+     * Commit the event of content being spilled to a spool file
+     *
+     * @param event the event returned by {@link #beginSpill()}
+     * @param file the spool file
+     * @param bytes the bytes moved from memory to the file
+     */
+    public static void endSpill(Object event, File file, long bytes) {
+        if (event != null) {
+            SpillEvent.endEvent(event, file, bytes);
+        }
+    }
+}
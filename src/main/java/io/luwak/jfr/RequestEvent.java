@@ -0,0 +1,106 @@
+package io.luwak.jfr;
+
+import io.luwak.metrics.RequestPhase;
+import io.luwak.metrics.RequestTrace;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * An HTTP/1.1 request, from its header being read to its response being sent, with the duration
+ * of each {@link RequestPhase}
+ *
+ */
+@Name("io.luwak.Request")
+@Label("HTTP Request")
+@Category({ "Luwak", "HTTP" })
+@Description("A request from its header being read to its response being sent")
+@StackTrace(false)
+final class RequestEvent extends Event {
+
+    private static final RequestEvent PROBE = new RequestEvent();
+
+    @Label("Method")
+    String method;
+
+    @Label("URI Path")
+    String uriPath;
+
+    @Label("Route")
+    String route;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Bytes Received")
+    @DataAmount
+    long bytesReceived;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    long bytesSent;
+
+    @Label("Queue Time")
+    @Description("From the connection being accepted to a server thread serving it, first "
+            + "request only")
+    @Timespan
+    long queueTime;
+
+    @Label("Parse Time")
+    @Timespan
+    long parseTime;
+
+    @Label("Route Time")
+    @Timespan
+    long routeTime;
+
+    @Label("Body Time")
+    @Timespan
+    long bodyTime;
+
+    @Label("Serve Time")
+    @Timespan
+    long serveTime;
+
+    @Label("Write Time")
+    @Timespan
+    long writeTime;
+
+    @Label("Complete Time")
+    @Timespan
+    long completeTime;
+
+    static Object newEvent() {
+        return PROBE.isEnabled() ? new RequestEvent() : null;
+    }
+
+    static void beginEvent(Object object) {
+        ((RequestEvent) object).begin();
+    }
+
+    static void endEvent(Object object, RequestTrace trace, long bytesReceived, long bytesSent) {
+        RequestEvent event = (RequestEvent) object;
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = String.valueOf(trace.getMethod());
+            event.uriPath = trace.getUriPath();
+            event.route = trace.getRoute();
+            event.statusCode = trace.getStatusCode();
+            event.bytesReceived = bytesReceived;
+            event.bytesSent = bytesSent;
+            event.queueTime = trace.getDuration(RequestPhase.QUEUE);
+            event.parseTime = trace.getDuration(RequestPhase.PARSE);
+            event.routeTime = trace.getDuration(RequestPhase.ROUTE);
+            event.bodyTime = trace.getDuration(RequestPhase.BODY);
+            event.serveTime = trace.getDuration(RequestPhase.SERVE);
+            event.writeTime = trace.getDuration(RequestPhase.WRITE);
+            event.completeTime = trace.getDuration(RequestPhase.COMPLETE);
+            event.commit();
+        }
+    }
+}
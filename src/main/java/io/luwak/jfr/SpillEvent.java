@@ -0,0 +1,51 @@
+package io.luwak.jfr;
+
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Content kept in memory being moved to a spool file, once it has outgrown its memory limit
+ *
+ */
+@Name("io.luwak.Spill")
+@Label("Spool To Disk")
+@Category({ "Luwak", "Spool" })
+@Description("Content kept in memory moved to a spool file, once it has outgrown its limit")
+@StackTrace(false)
+final class SpillEvent extends Event {
+
+    private static final SpillEvent PROBE = new SpillEvent();
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    static Object beginEvent() {
+        if (!PROBE.isEnabled()) {
+            return null;
+        }
+        SpillEvent event = new SpillEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endEvent(Object object, File file, long bytes) {
+        SpillEvent event = (SpillEvent) object;
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = file.getPath();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.luwak.jfr;
+
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The creation of a spool file, when none could be reused from the pool
+ *
+ */
+@Name("io.luwak.SpoolFile")
+@Label("Spool File Created")
+@Category({ "Luwak", "Spool" })
+@Description("A temporary file created to hold an entity too large to be kept in memory")
+@StackTrace(false)
+final class SpoolFileEvent extends Event {
+
+    private static final SpoolFileEvent PROBE = new SpoolFileEvent();
+
+    @Label("Path")
+    String path;
+
+    static Object beginEvent() {
+        if (!PROBE.isEnabled()) {
+            return null;
+        }
+        SpoolFileEvent event = new SpoolFileEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endEvent(Object object, File file) {
+        SpoolFileEvent event = (SpoolFileEvent) object;
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = file.getPath();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.luwak.jfr;
+
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The TLS handshake of an accepted connection
+ *
+ */
+@Name("io.luwak.TlsHandshake")
+@Label("TLS Handshake")
+@Category({ "Luwak", "TLS" })
+@Description("The TLS handshake of an accepted connection")
+@StackTrace(false)
+final class TlsHandshakeEvent extends Event {
+
+    private static final TlsHandshakeEvent PROBE = new TlsHandshakeEvent();
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    @Label("Resumed")
+    @Description("The client resumed a previous session with an abbreviated handshake")
+    boolean resumed;
+
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Cipher Suite")
+    String cipherSuite;
+
+    static Object beginEvent() {
+        if (!PROBE.isEnabled()) {
+            return null;
+        }
+        TlsHandshakeEvent event = new TlsHandshakeEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endEvent(Object object, SocketAddress remoteAddress, SSLSession session,
+            boolean resumed) {
+        TlsHandshakeEvent event = (TlsHandshakeEvent) object;
+        event.end();
+        if (event.shouldCommit()) {
+            event.remoteAddress = String.valueOf(remoteAddress);
+            event.succeeded = session != null;
+            event.resumed = resumed;
+            if (session != null) {
+                event.protocol = session.getProtocol();
+                event.cipherSuite = session.getCipherSuite();
+            }
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.luwak.loadgen;
+
+import io.luwak.metrics.LogLinearBuckets;
+
+/**
+ * A histogram of latencies in nanoseconds in the manner of HdrHistogram: its
+ * {@link LogLinearBuckets} split every power of two into 128 linear sub-buckets, so that a value
+ * is counted with a relative error below 1% from a nanosecond to hours, in a fixed array. The
+ * histogram is not thread-safe: every connection of a {@link LoadGenerator} records into its own
+ * histograms, which are merged with {@link #add(LatencyHistogram)} at the end of the run.
+ *
+ */
+public final class LatencyHistogram {
+
+    private static final LogLinearBuckets BUCKETS = new LogLinearBuckets(7);
+    private static final int BUCKET_COUNT = BUCKETS.getBucketCount();
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Record a value
+     *
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    private void record(long value, long times) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[BUCKETS.bucketIndex(value)] += times;
+        count += times;
+        sum += value * times;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add the values of another histogram to this one
+     *
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Get a copy of this histogram corrected for coordinated omission, for latencies measured by
+     * a closed loop which sends its next request only once the response has arrived. A request
+     * which took longer than the expected interval between two requests has delayed the requests
+     * which would have been sent meanwhile: they are recorded as if they had been sent on time
+     * and had waited for the stall, each one interval less than the previous one.
+     *
+     * @param expectedInterval the expected interval between two requests of a connection, in
+     *      nanoseconds, 0 for an uncorrected copy
+     * @return the corrected copy
+     */
+    public LatencyHistogram copyCorrectedForCoordinatedOmission(long expectedInterval) {
+        LatencyHistogram corrected = new LatencyHistogram();
+        corrected.add(this);
+        if (expectedInterval <= 0) {
+            return corrected;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            long value = Math.min(BUCKETS.highestValue(i), max);
+            for (long missed = value - expectedInterval; missed >= expectedInterval;
+                    missed -= expectedInterval) {
+                corrected.record(missed, counts[i]);
+            }
+        }
+        return corrected;
+    }
+
+    /**
+     * Get the number of recorded values
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the smallest recorded value
+     *
+     * @return the value, 0 if no value has been recorded
+     */
+    public long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    /**
+     * Get the largest recorded value
+     *
+     * @return the value, 0 if no value has been recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Get the mean of the recorded values
+     *
+     * @return the mean, 0 if no value has been recorded
+     */
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Get the value at a percentile, as the highest value of the bucket the percentile falls in
+     * but at most the largest recorded value
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the value, 0 if no value has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BUCKETS.highestValue(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,443 @@
+package io.luwak.loadgen;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.HttpClientStreams;
+import io.luwak.http.io.CountingInputStream;
+import io.luwak.http.io.CountingOutputStream;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+
+/**
+ * Generates HTTP/1.1 load against a server and measures the latency of its responses. Every
+ * connection is served by its own thread, which writes the requests of a {@link RequestMix},
+ * encoded once, and reads the responses with {@link HttpClientStreams}.
+ *
+ * With a rate of 0 (the default) the load is a closed loop: every connection keeps its pipeline
+ * depth of requests in flight, and sends the next request once a response has arrived. With a
+ * rate, the load is an open loop: the requests are scheduled at a fixed rate spread over the
+ * connections whatever the responses, and a request which is sent late because its connection is
+ * busy has its latency counted from the time it was scheduled (see {@link LoadReport}).
+ *
+ */
+public class LoadGenerator {
+
+    public static final int DEFAULT_CONNECTIONS = 16;
+    public static final long DEFAULT_DURATION = 10_000;
+    public static final long DEFAULT_WARMUP = 2_000;
+    public static final int DEFAULT_TIMEOUT = 10_000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+
+    /** Pause after a failed connection attempt, so that a closed loop does not spin */
+    private static final long RECONNECT_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_STATUS_CODE = 599;
+
+    private final String host;
+    private final int port;
+    private final RequestMix mix;
+
+    private int connections = DEFAULT_CONNECTIONS;
+    private double rate;
+    private int pipelineDepth = 1;
+    private boolean keepAlive = true;
+    private long duration = DEFAULT_DURATION;
+    private long warmup = DEFAULT_WARMUP;
+    private int timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Create a LoadGenerator
+     *
+     * @param host the host name of the server
+     * @param port the port of the server
+     * @param mix the requests to send
+     */
+    public LoadGenerator(String host, int port, RequestMix mix) {
+        this.host = host;
+        this.port = port;
+        this.mix = mix;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Set the number of connections, each served by its own thread
+     *
+     * @param connections the number of connections
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Set the request rate of an open loop
+     *
+     * @param rate the number of requests per second over all connections, 0 (the default) for a
+     *      closed loop
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Set the number of requests a connection may have in flight. Requests are pipelined when it
+     * is more than 1 (the default).
+     *
+     * @param pipelineDepth the number of requests
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Enable or disable keep-alive. Without keep-alive, every request is sent on a new
+     * connection with a Connection: close header, and is never pipelined.
+     *
+     * @param keepAlive true (the default) to reuse the connections
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Set the duration of the measured period
+     *
+     * @param duration the duration in milliseconds
+     */
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    public long getWarmup() {
+        return warmup;
+    }
+
+    /**
+     * Set the duration of the warm-up before the measured period, whose responses are not
+     * recorded
+     *
+     * @param warmup the duration in milliseconds
+     */
+    public void setWarmup(long warmup) {
+        this.warmup = warmup;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the connect and read timeout, after which the requests in flight on a connection fail
+     *
+     * @param timeout the timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Run the load, during the warm-up and the measured period, then until the responses to the
+     * requests in flight have been received
+     *
+     * @return the report of the measured period
+     * @throws IOException if the requests can't be encoded
+     * @throws InterruptedException if the thread is interrupted while waiting for the connections
+     */
+    public LoadReport run() throws IOException, InterruptedException {
+        String hostHeader = port == 80 ? host : host + ":" + port;
+        RequestMix.Encoded encoded = mix.encode(hostHeader, keepAlive);
+        int depth = keepAlive ? Math.max(1, pipelineDepth) : 1;
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmup);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(duration);
+
+        Connection[] workers = new Connection[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Connection(i, encoded, depth, start, measureStart, end);
+            threads[i] = new Thread(workers[i], "luwak-loadgen-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            throw e;
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram serviceTime = new LatencyHistogram();
+        long[] statusCodes = new long[MAX_STATUS_CODE + 1];
+        long requests = 0;
+        long errors = 0;
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        for (Connection worker : workers) {
+            latency.add(worker.latency);
+            serviceTime.add(worker.serviceTime);
+            for (int status = 0; status <= MAX_STATUS_CODE; status++) {
+                statusCodes[status] += worker.statusCodes[status];
+            }
+            requests += worker.requests;
+            errors += worker.errors;
+            bytesSent += worker.measuredBytesSent;
+            bytesReceived += worker.measuredBytesReceived;
+        }
+        if (rate <= 0) {
+            // A closed loop only measures from the actual send time
+            latency = serviceTime.copyCorrectedForCoordinatedOmission(
+                    serviceTime.getValueAtPercentile(50));
+        }
+        Map<Integer, Long> statusCounts = new HashMap<>();
+        for (int status = 0; status <= MAX_STATUS_CODE; status++) {
+            if (statusCodes[status] > 0) {
+                statusCounts.put(status, statusCodes[status]);
+            }
+        }
+        return new LoadReport(this, end - measureStart, requests, errors, bytesSent,
+                bytesReceived, statusCounts, latency, serviceTime);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "LoadGenerator[%s:%d, %d connections, rate %.0f]",
+                host, port, connections, rate);
+    }
+
+    /**
+     * Returns true if the connection can be reused after a response
+     */
+    private static boolean isReusable(HttpResponse response) {
+        String connection = response.getHeaders().get("connection");
+        if (connection != null) {
+            connection = connection.toLowerCase(Locale.ROOT);
+            if (connection.contains("close")) {
+                return false;
+            }
+        }
+        return "HTTP/1.1".equals(response.getHttpVersion())
+                || (connection != null && connection.contains("keep-alive"));
+    }
+
+    /**
+     * A connection and the thread sending its requests. The requests in flight are kept in a
+     * ring of the pipeline depth, in the order of their responses.
+     */
+    private final class Connection implements Runnable {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final long[] statusCodes = new long[MAX_STATUS_CODE + 1];
+        long requests;
+        long errors;
+        long measuredBytesSent;
+        long measuredBytesReceived;
+
+        private final int index;
+        private final RequestMix.Encoded encoded;
+        private final long start;
+        private final long measureStart;
+        private final long end;
+        private final double interval;
+        private final SplittableRandom random;
+
+        private final long[] scheduledTimes;
+        private final long[] sentTimes;
+        private final int[] sentRequests;
+        private int head;
+        private int size;
+
+        private Socket socket;
+        private OutputStream out;
+        private HttpClientStreams streams;
+        private long bytesSent;
+        private long bytesReceived;
+
+        Connection(int index, RequestMix.Encoded encoded, int depth, long start,
+                long measureStart, long end) {
+            this.index = index;
+            this.encoded = encoded;
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+            this.interval = rate > 0 ? 1e9 / rate : 0;
+            this.random = new SplittableRandom(index);
+            this.scheduledTimes = new long[depth];
+            this.sentTimes = new long[depth];
+            this.sentRequests = new int[depth];
+        }
+
+        @Override
+        public void run() {
+            // The requests of the open loop are spread over the connections in turn
+            long sequence = index;
+            boolean measuring = false;
+            long bytesSentBefore = 0;
+            long bytesReceivedBefore = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.nanoTime();
+                if (!measuring && now >= measureStart) {
+                    measuring = true;
+                    bytesSentBefore = bytesSent;
+                    bytesReceivedBefore = bytesReceived;
+                }
+                long next = interval > 0 ? start + (long) (sequence * interval) : now;
+                try {
+                    boolean written = false;
+                    while (size < scheduledTimes.length && next <= now && next < end) {
+                        if (socket == null) {
+                            connect();
+                        }
+                        int request = encoded.next(random);
+                        long sent = System.nanoTime();
+                        out.write(encoded.bytes[request]);
+                        int tail = (head + size) % scheduledTimes.length;
+                        scheduledTimes[tail] = interval > 0 ? next : sent;
+                        sentTimes[tail] = sent;
+                        sentRequests[tail] = request;
+                        size++;
+                        written = true;
+                        if (interval > 0) {
+                            sequence += connections;
+                            next = start + (long) (sequence * interval);
+                        }
+                    }
+                    if (written) {
+                        out.flush();
+                    }
+                    if (size > 0) {
+                        readResponse();
+                    }
+                    else if (next >= end) {
+                        break;
+                    }
+                    else {
+                        // Only an open loop waits for the time of its next request
+                        LockSupport.parkNanos(next - System.nanoTime());
+                    }
+                }
+                catch (IOException | HttpResponseException e) {
+                    LOGGER.debug("Connection {} failed: {}", index, e.toString());
+                    boolean connected = socket != null;
+                    // The requests in flight are lost, a request which could not be written on
+                    // an open connection is sent again on the next one
+                    if (now >= measureStart) {
+                        errors += connected ? size : 1;
+                    }
+                    closeSocket();
+                    if (interval > 0 && !connected) {
+                        sequence += connections;
+                    }
+                    if (!connected) {
+                        LockSupport.parkNanos(RECONNECT_DELAY);
+                    }
+                }
+            }
+            closeSocket();
+            if (measuring) {
+                measuredBytesSent = bytesSent - bytesSentBefore;
+                measuredBytesReceived = bytesReceived - bytesReceivedBefore;
+            }
+        }
+
+        private void connect() throws IOException {
+            Socket newSocket = new Socket();
+            try {
+                newSocket.setTcpNoDelay(true);
+                newSocket.setSoTimeout(timeout);
+                newSocket.connect(new InetSocketAddress(host, port), timeout);
+                out = new BufferedOutputStream(new CountingOutputStream(
+                        newSocket.getOutputStream(), n -> bytesSent += n));
+                streams = new HttpClientStreams(new CountingInputStream(
+                        newSocket.getInputStream(), n -> bytesReceived += n), out);
+                socket = newSocket;
+            }
+            catch (IOException e) {
+                newSocket.close();
+                throw e;
+            }
+        }
+
+        private void readResponse() throws IOException, HttpResponseException {
+            int request = sentRequests[head];
+            HttpResponse response = streams.read(encoded.methods[request]);
+            long completed = System.nanoTime();
+            long scheduled = scheduledTimes[head];
+            long sent = sentTimes[head];
+            head = (head + 1) % scheduledTimes.length;
+            size--;
+            HttpEntity body = response.getEntityBody();
+            if (body != null) {
+                body.release();
+            }
+            if (scheduled >= measureStart) {
+                int statusCode = response.getStatus().getStatusCode();
+                statusCodes[statusCode >= 0 && statusCode <= MAX_STATUS_CODE ? statusCode : 0]++;
+                latency.record(completed - scheduled);
+                serviceTime.record(completed - sent);
+                requests++;
+            }
+            if (!keepAlive || !isReusable(response)) {
+                // The requests pipelined behind the last response are lost
+                if (size > 0 && completed >= measureStart) {
+                    errors += size;
+                }
+                closeSocket();
+            }
+        }
+
+        private void closeSocket() {
+            head = 0;
+            size = 0;
+            if (socket != null) {
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    // Ignored
+                }
+                socket = null;
+                out = null;
+                streams = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package io.luwak.loadgen;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Runs a {@link LoadGenerator} from the command line, against a server or against a
+ * {@link LuwakHttpd} started in the same JVM, prints the report and writes it in JSON.
+ *
+ * Usage: LoadGeneratorMain [options] [http://host:port/path]
+ *
+ */
+public class LoadGeneratorMain {
+
+    private static final String USAGE = "Usage: LoadGeneratorMain [options]"
+            + " [http://host:port/path]\n"
+            + "  -c <connections>   connections, each on its own thread (default "
+            + LoadGenerator.DEFAULT_CONNECTIONS + ")\n"
+            + "  -r <rate>          requests per second of an open loop, 0 for a closed loop"
+            + " (default)\n"
+            + "  -p <depth>         requests pipelined per connection (default 1)\n"
+            + "  -d <seconds>       measured duration (default 10)\n"
+            + "  -w <seconds>       warm-up duration (default 2)\n"
+            + "  -t <seconds>       connect and read timeout (default 10)\n"
+            + "  -s <script>        request mix script, instead of GET on the URL path\n"
+            + "  -o <file>          write the report in JSON\n"
+            + "  --no-keep-alive    send every request on a new connection\n"
+            + "  --self             start a LuwakHttpd answering Hello, World! and load it";
+
+    private static final byte[] BODY = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+
+    /** Answers a small body to every request */
+    private static class HelloHttpSession implements HttpSession {
+
+        @Override
+        public HttpResponse serve(HttpRequest httpRequest) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "text/plain");
+            headers.put("Content-Length", Integer.toString(BODY.length));
+            return new HttpResponse(DefaultHttpStatus.OK, headers,
+                    new HttpEntity(BODY, false, false));
+        }
+
+        @Override
+        public void onResponseSent(HttpResponse httpResponse) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = LoadGenerator.DEFAULT_CONNECTIONS;
+        double rate = 0;
+        int pipelineDepth = 1;
+        double duration = LoadGenerator.DEFAULT_DURATION / 1000.0;
+        double warmup = LoadGenerator.DEFAULT_WARMUP / 1000.0;
+        double timeout = LoadGenerator.DEFAULT_TIMEOUT / 1000.0;
+        File script = null;
+        File report = null;
+        boolean keepAlive = true;
+        boolean self = false;
+        String url = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                case "-c":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "-r":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "-p":
+                    pipelineDepth = Integer.parseInt(args[++i]);
+                    break;
+                case "-d":
+                    duration = Double.parseDouble(args[++i]);
+                    break;
+                case "-w":
+                    warmup = Double.parseDouble(args[++i]);
+                    break;
+                case "-t":
+                    timeout = Double.parseDouble(args[++i]);
+                    break;
+                case "-s":
+                    script = new File(args[++i]);
+                    break;
+                case "-o":
+                    report = new File(args[++i]);
+                    break;
+                case "--no-keep-alive":
+                    keepAlive = false;
+                    break;
+                case "--self":
+                    self = true;
+                    break;
+                default:
+                    if (args[i].startsWith("-") || url != null) {
+                        throw new IllegalArgumentException(args[i]);
+                    }
+                    url = args[i];
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        if (url == null && !self) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        LuwakHttpd httpd = null;
+        String host;
+        int port;
+        String path;
+        if (self) {
+            DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+            HttpSession session = new HelloHttpSession();
+            httpdContext.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET, HttpMethod.HEAD,
+                    HttpMethod.POST, HttpMethod.PUT, HttpMethod.DELETE), acceptSocket -> session);
+            // Every keep-alive connection holds a server thread
+            httpd = new LuwakHttpd("localhost", 0, connections + 1, httpdContext);
+            httpd.startInBackground();
+            host = "localhost";
+            port = httpd.getLocalPort();
+            path = url != null ? URI.create(url).getRawPath() : "/";
+        }
+        else {
+            URI uri = URI.create(url);
+            if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+                System.err.println("Only http:// URLs are supported: " + url);
+                System.exit(1);
+                return;
+            }
+            host = uri.getHost();
+            port = uri.getPort() > 0 ? uri.getPort() : 80;
+            path = uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                path += "?" + uri.getRawQuery();
+            }
+        }
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+
+        try {
+            RequestMix mix = script != null ? RequestMix.load(script) : RequestMix.of(path);
+            LoadGenerator generator = new LoadGenerator(host, port, mix);
+            generator.setConnections(connections);
+            generator.setRate(rate);
+            generator.setPipelineDepth(pipelineDepth);
+            generator.setKeepAlive(keepAlive);
+            generator.setDuration((long) (duration * 1000));
+            generator.setWarmup((long) (warmup * 1000));
+            generator.setTimeout((int) (timeout * 1000));
+            LoadReport loadReport = generator.run();
+            System.out.print(loadReport);
+            if (report != null) {
+                loadReport.writeJson(report);
+            }
+        }
+        finally {
+            if (httpd != null) {
+                httpd.stop();
+            }
+        }
+    }
+}
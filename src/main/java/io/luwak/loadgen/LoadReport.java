@@ -0,0 +1,229 @@
+package io.luwak.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The result of a {@link LoadGenerator} run, over the measured period after the warm-up. The
+ * latency of a request is measured from the time it was scheduled to be sent in an open loop, so
+ * that the time a request waited behind a stalled one is counted; in a closed loop it is
+ * corrected for coordinated omission with the median service time as the expected interval. The
+ * service time is measured from the time the request was actually written.
+ *
+ */
+public class LoadReport {
+
+    static final double[] PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99 };
+
+    private final String mode;
+    private final int connections;
+    private final double rate;
+    private final int pipelineDepth;
+    private final boolean keepAlive;
+    private final long durationNanos;
+    private final long requests;
+    private final long errors;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final Map<Integer, Long> statusCodes;
+    private final LatencyHistogram latency;
+    private final LatencyHistogram serviceTime;
+
+    LoadReport(LoadGenerator generator, long durationNanos, long requests, long errors,
+            long bytesSent, long bytesReceived, Map<Integer, Long> statusCodes,
+            LatencyHistogram latency, LatencyHistogram serviceTime) {
+        this.mode = generator.getRate() > 0 ? "open" : "closed";
+        this.connections = generator.getConnections();
+        this.rate = generator.getRate();
+        this.pipelineDepth = generator.getPipelineDepth();
+        this.keepAlive = generator.isKeepAlive();
+        this.durationNanos = durationNanos;
+        this.requests = requests;
+        this.errors = errors;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.statusCodes = new TreeMap<>(statusCodes);
+        this.latency = latency;
+        this.serviceTime = serviceTime;
+    }
+
+    /**
+     * Get the mode of the run
+     *
+     * @return "open" for a fixed request rate, "closed" for a fixed concurrency
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Get the number of responses received in the measured period
+     *
+     * @return the number of responses
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Get the number of requests which failed, e.g. on a connection error or a timeout
+     *
+     * @return the number of failed requests
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Get the number of responses by status code
+     *
+     * @return the counts, sorted by status code
+     */
+    public Map<Integer, Long> getStatusCodes() {
+        return statusCodes;
+    }
+
+    /**
+     * Get the throughput over the measured period
+     *
+     * @return the number of responses per second
+     */
+    public double getThroughput() {
+        return durationNanos > 0 ? requests * 1e9 / durationNanos : 0;
+    }
+
+    /**
+     * Get the latencies corrected for coordinated omission
+     *
+     * @return the histogram in nanoseconds
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Get the times from writing the requests to receiving their responses
+     *
+     * @return the histogram in nanoseconds
+     */
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    /**
+     * Get the report in JSON, with the durations in milliseconds
+     *
+     * @return the JSON document
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n")
+                .append("  \"mode\": \"").append(mode).append("\",\n")
+                .append("  \"connections\": ").append(connections).append(",\n")
+                .append("  \"rate\": ").append(format(rate)).append(",\n")
+                .append("  \"pipelineDepth\": ").append(pipelineDepth).append(",\n")
+                .append("  \"keepAlive\": ").append(keepAlive).append(",\n")
+                .append("  \"durationSeconds\": ").append(format(durationNanos / 1e9))
+                .append(",\n")
+                .append("  \"requests\": ").append(requests).append(",\n")
+                .append("  \"errors\": ").append(errors).append(",\n")
+                .append("  \"throughput\": ").append(format(getThroughput())).append(",\n")
+                .append("  \"bytesSent\": ").append(bytesSent).append(",\n")
+                .append("  \"bytesReceived\": ").append(bytesReceived).append(",\n")
+                .append("  \"statusCodes\": {");
+        String separator = "";
+        for (Map.Entry<Integer, Long> entry : statusCodes.entrySet()) {
+            json.append(separator).append('"').append(entry.getKey()).append("\": ")
+                    .append(entry.getValue());
+            separator = ", ";
+        }
+        json.append("},\n");
+        appendHistogram(json, "latency", latency);
+        json.append(",\n");
+        appendHistogram(json, "serviceTime", serviceTime);
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Write the report in JSON to a file
+     *
+     * @param file the file
+     * @throws IOException if the file can't be written
+     */
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+
+    private static void appendHistogram(StringBuilder json, String name,
+            LatencyHistogram histogram) {
+        json.append("  \"").append(name).append("\": {")
+                .append("\"min\": ").append(millis(histogram.getMin()))
+                .append(", \"mean\": ").append(format(histogram.getMean() / 1e6));
+        for (double percentile : PERCENTILES) {
+            json.append(", \"p").append(formatPercentile(percentile)).append("\": ")
+                    .append(millis(histogram.getValueAtPercentile(percentile)));
+        }
+        json.append(", \"max\": ").append(millis(histogram.getMax())).append('}');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(512);
+        text.append(String.format(Locale.ROOT,
+                "%s loop, %d connections, pipeline depth %d%s%s%n", mode, connections,
+                pipelineDepth, keepAlive ? "" : ", no keep-alive",
+                rate > 0 ? String.format(Locale.ROOT, ", target %.0f req/s", rate) : ""));
+        text.append(String.format(Locale.ROOT,
+                "%d requests in %.1f s, %.0f req/s, %d errors, status codes %s%n", requests,
+                durationNanos / 1e9, getThroughput(), errors, statusCodes));
+        text.append(String.format(Locale.ROOT, "%-12s %10s %10s", "", "latency", "service"))
+                .append(System.lineSeparator());
+        text.append(row("mean", latency.getMean() / 1e6, serviceTime.getMean() / 1e6));
+        for (double percentile : PERCENTILES) {
+            text.append(row("p" + formatPercentile(percentile),
+                    latency.getValueAtPercentile(percentile) / 1e6,
+                    serviceTime.getValueAtPercentile(percentile) / 1e6));
+        }
+        text.append(row("max", latency.getMax() / 1e6, serviceTime.getMax() / 1e6));
+        return text.toString();
+    }
+
+    private static String row(String name, double latencyMillis, double serviceMillis) {
+        return String.format(Locale.ROOT, "%-12s %7.3f ms %7.3f ms%n", name, latencyMillis,
+                serviceMillis);
+    }
+
+    private static String millis(long nanos) {
+        return format(nanos / 1e6);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile)
+                : Double.toString(percentile);
+    }
+}
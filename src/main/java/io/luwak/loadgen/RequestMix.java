@@ -0,0 +1,218 @@
+package io.luwak.loadgen;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import io.luwak.http.HttpClientStreams;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+
+/**
+ * The requests sent by a {@link LoadGenerator}, each picked with a probability proportional to
+ * its weight. A mix can be read from a script with one request per line:
+ *
+ * <pre>
+ * # weight method target [body]
+ * 80 GET /hello?name=luwak
+ * 20 POST /items {"name":"luwak"}
+ *     Content-Type: application/json
+ * </pre>
+ *
+ * The indented lines following a request are its headers. The target is sent as written.
+ *
+ */
+public class RequestMix {
+
+    private final List<HttpRequest> requests = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+
+    /**
+     * Create a mix of a single GET request
+     *
+     * @param target the request target, e.g. /index.html
+     * @return the mix
+     */
+    public static RequestMix of(String target) {
+        RequestMix mix = new RequestMix();
+        mix.add(1, HttpMethod.GET, target, Collections.emptyMap(), null);
+        return mix;
+    }
+
+    /**
+     * Read a mix from a script file
+     *
+     * @param file the script
+     * @return the mix
+     * @throws IOException if the script can't be read or is malformed
+     */
+    public static RequestMix load(File file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    /**
+     * Read a mix from a script
+     *
+     * @param script the script
+     * @return the mix
+     * @throws IOException if the script can't be read or is malformed
+     */
+    public static RequestMix parse(Reader script) throws IOException {
+        RequestMix mix = new RequestMix();
+        BufferedReader reader = new BufferedReader(script);
+        Map<String, String> headers = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            if (Character.isWhitespace(line.charAt(0))) {
+                int colon = trimmed.indexOf(':');
+                if (headers == null || colon <= 0) {
+                    throw new IOException("Malformed header at line " + lineNumber + ": " + line);
+                }
+                headers.put(trimmed.substring(0, colon).trim(),
+                        trimmed.substring(colon + 1).trim());
+                continue;
+            }
+            String[] fields = trimmed.split("\\s+", 4);
+            HttpMethod method = fields.length >= 3 ? HttpMethod.fromString(fields[1]) : null;
+            int weight;
+            try {
+                weight = Integer.parseInt(fields[0]);
+            }
+            catch (NumberFormatException e) {
+                weight = 0;
+            }
+            if (method == null || weight <= 0 || !fields[2].startsWith("/")) {
+                throw new IOException("Malformed request at line " + lineNumber + ": " + line);
+            }
+            headers = new LinkedHashMap<>();
+            byte[] body = fields.length > 3 ? fields[3].getBytes(StandardCharsets.UTF_8) : null;
+            mix.add(weight, method, fields[2], headers, body);
+        }
+        if (mix.requests.isEmpty()) {
+            throw new IOException("No request in the script");
+        }
+        return mix;
+    }
+
+    /**
+     * Add a request to the mix
+     *
+     * @param weight the weight of the request
+     * @param method the method
+     * @param target the request target, sent as written
+     * @param headers the headers, Host and Content-Length are added when missing
+     * @param body the body, or null
+     */
+    public void add(int weight, HttpMethod method, String target, Map<String, String> headers,
+            byte[] body) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        // The map is kept, so that the headers which follow a request in a script can be added
+        requests.add(new HttpRequest(method, target, Collections.emptyMap(),
+                HttpRequest.DEFAULT_HTTP_VERSION, headers,
+                body != null ? new HttpEntity(body, false, false) : null));
+        weights.add(weight);
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Encode the requests for a server
+     *
+     * @param host the value of the Host header, unless a request has one
+     * @param keepAlive false to ask the server to close the connection after each response
+     * @return the encoded requests
+     * @throws IOException if a request can't be encoded
+     */
+    Encoded encode(String host, boolean keepAlive) throws IOException {
+        int count = requests.size();
+        Encoded encoded = new Encoded(count);
+        int totalWeight = 0;
+        for (int i = 0; i < count; i++) {
+            HttpRequest template = requests.get(i);
+            Map<String, String> headers = new LinkedHashMap<>();
+            if (!containsHeader(template.getHeaders(), "host")) {
+                headers.put("Host", host);
+            }
+            headers.putAll(template.getHeaders());
+            if (!keepAlive && !containsHeader(headers, "connection")) {
+                headers.put("Connection", "close");
+            }
+            HttpEntity body = template.getEntityBody();
+            if (body != null && !containsHeader(headers, "content-length")) {
+                headers.put("Content-Length", Long.toString(body.getLength()));
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            HttpClientStreams.writeRequest(new HttpRequest(template.getMethod(),
+                    template.getUriPath(), template.getQueries(), template.getHttpVersion(),
+                    headers, body), out);
+            totalWeight += weights.get(i);
+            encoded.methods[i] = template.getMethod();
+            encoded.bytes[i] = out.toByteArray();
+            encoded.cumulativeWeights[i] = totalWeight;
+        }
+        return encoded;
+    }
+
+    private static boolean containsHeader(Map<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The requests of a mix encoded for a server, shared by the connections
+     */
+    static final class Encoded {
+
+        final HttpMethod[] methods;
+        final byte[][] bytes;
+        final int[] cumulativeWeights;
+
+        Encoded(int count) {
+            methods = new HttpMethod[count];
+            bytes = new byte[count][];
+            cumulativeWeights = new int[count];
+        }
+
+        /**
+         * Pick the index of the next request
+         */
+        int next(SplittableRandom random) {
+            if (bytes.length == 1) {
+                return 0;
+            }
+            int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            int index = 0;
+            while (cumulativeWeights[index] <= value) {
+                index++;
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.luwak.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values with {@link LogLinearBuckets}: every power of
+ * two is split into 8 linear sub-buckets, so that a value is counted with a relative error below
+ * 12.5% over the whole long range. Recording a value is a few atomic increments and never
+ * allocates.
+ *
+ */
+public final class Histogram {
+
+    private static final LogLinearBuckets BUCKETS = new LogLinearBuckets(3);
+    private static final int BUCKET_COUNT = BUCKETS.getBucketCount();
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Record a value
+     *
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(BUCKETS.bucketIndex(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Get the number of recorded values
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the sum of the recorded values
+     *
+     * @return the sum
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the number of recorded values which are less than or equal to a bound. The values of
+     * the bucket the bound falls in are not counted, unless the bound is the highest value of
+     * the bucket.
+     *
+     * @param bound the bound
+     * @return the number of values
+     */
+    public long getCountAtOrBelow(long bound) {
+        if (bound < 0) {
+            return 0;
+        }
+        int last = BUCKETS.bucketIndex(bound);
+        if (last < BUCKET_COUNT - 1 && BUCKETS.highestValue(last) != bound) {
+            last--;
+        }
+        long result = 0;
+        for (int i = 0; i <= last; i++) {
+            result += counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get the value at a percentile, as the highest value of the bucket the percentile falls in
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the value, 0 if no value has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return BUCKETS.highestValue(i);
+            }
+        }
+        return 0;
+    }
+}
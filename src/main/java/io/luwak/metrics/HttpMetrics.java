@@ -0,0 +1,370 @@
+package io.luwak.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import io.luwak.http.cache.CacheStatistics;
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.httpd.HttpRoute;
+import io.luwak.httpd.MicroCache;
+
+/**
+ * Registry of the metrics of a server, exposed in the Prometheus text format by
+ * {@link MetricsHttpSessionFactory}. The server records the latency of every request in a
+ * {@link Histogram} per route and status code, and counts the bytes received and sent, the
+ * connections and the requests which could not be parsed. Other values, such as the depth of the
+ * executor queue or cache statistics, are registered as suppliers read when the metrics are
+ * scraped. Recording does not allocate once a route and status code have been seen.
+ *
+ */
+public class HttpMetrics {
+
+    /** Upper bounds of the latency buckets exposed to Prometheus, in seconds */
+    static final double[] LATENCY_BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+        0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private static final int MAX_STATUS_CODE = 599;
+
+    private final Map<HttpRoute, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private final RouteMetrics noRoute = new RouteMetrics("");
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+
+    /** Registered values by name and labels, guarded by this */
+    private final Map<String, Sample> samples = new LinkedHashMap<>();
+
+    /**
+     * Constructs an HttpMetrics registry, with the usage of the default spool manager and memory
+     * budget
+     */
+    public HttpMetrics() {
+        registerSpoolGauges(SpoolManager::getDefault);
+        registerMemoryBudgetGauge(MemoryBudget::getDefault);
+    }
+
+    /**
+     * Report the usage of the spool manager of the server instead of the default one
+     *
+     * @param spoolManager the spool manager
+     */
+    public void setSpoolManager(SpoolManager spoolManager) {
+        registerSpoolGauges(() -> spoolManager);
+    }
+
+    private void registerSpoolGauges(Supplier<SpoolManager> spoolManager) {
+        registerGauge("luwak_spool_usage_bytes", "Bytes used by the spool files",
+                () -> spoolManager.get().getUsage());
+        registerGauge("luwak_spool_active_files", "Spool files in use",
+                () -> spoolManager.get().getActiveFiles());
+    }
+
+    /**
+     * Report the usage of the memory budget of the server instead of the default one
+     *
+     * @param memoryBudget the memory budget
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        registerMemoryBudgetGauge(() -> memoryBudget);
+    }
+
+    private void registerMemoryBudgetGauge(Supplier<MemoryBudget> memoryBudget) {
+        registerGauge("luwak_memory_budget_used_bytes",
+                "Heap bytes reserved for request bodies kept in memory", () -> {
+                    MemoryBudget budget = memoryBudget.get();
+                    return budget != null ? budget.getUsed() : 0;
+                });
+    }
+
+    /**
+     * Record the latency of a request
+     *
+     * @param route the route of the request, null if it had no route
+     * @param statusCode the status code of the response
+     * @param durationNanos the time taken to serve the request, in nanoseconds
+     */
+    public void recordRequest(HttpRoute route, int statusCode, long durationNanos) {
+        RouteMetrics routeMetrics = noRoute;
+        if (route != null) {
+            routeMetrics = routes.get(route);
+            if (routeMetrics == null) {
+                routeMetrics = routes.computeIfAbsent(route,
+                        r -> new RouteMetrics(r.getUriPattern()));
+            }
+        }
+        routeMetrics.histogram(statusCode).record(durationNanos);
+    }
+
+    /**
+     * Get the latency histogram of a route and status code
+     *
+     * @param route the route, null for the requests without route
+     * @param statusCode the status code
+     * @return the histogram in nanoseconds, or null if no such request has been recorded
+     */
+    public Histogram getHistogram(HttpRoute route, int statusCode) {
+        RouteMetrics routeMetrics = route != null ? routes.get(route) : noRoute;
+        if (routeMetrics == null || statusCode < 0 || statusCode > MAX_STATUS_CODE) {
+            return null;
+        }
+        return routeMetrics.byStatus.get(statusCode);
+    }
+
+    public void addReceivedBytes(long bytes) {
+        receivedBytes.add(bytes);
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    public void addSentBytes(long bytes) {
+        sentBytes.add(bytes);
+    }
+
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    public void connectionOpened() {
+        activeConnections.increment();
+        totalConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    public void parseError() {
+        parseErrors.increment();
+    }
+
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    /**
+     * Register a value which can go up and down. A value registered with the same name replaces
+     * the previous one.
+     *
+     * @param name the metric name
+     * @param help the description of the metric
+     * @param value the supplier of the value, called when the metrics are scraped
+     */
+    public void registerGauge(String name, String help, DoubleSupplier value) {
+        register(new Sample(name, help, "gauge", "", value));
+    }
+
+    /**
+     * Register a value which only goes up. A value registered with the same name replaces the
+     * previous one.
+     *
+     * @param name the metric name, which should end with _total
+     * @param help the description of the metric
+     * @param value the supplier of the value, called when the metrics are scraped
+     */
+    public void registerCounter(String name, String help, DoubleSupplier value) {
+        register(new Sample(name, help, "counter", "", value));
+    }
+
+    /**
+     * Register the statistics of a micro-cache of the server
+     *
+     * @param cacheName the value of the cache label
+     * @param cache the cache
+     */
+    public void registerMicroCache(String cacheName, MicroCache cache) {
+        String labels = "cache=\"" + escape(cacheName) + "\"";
+        register(new Sample("luwak_microcache_hits_total", "Micro-cache hits", "counter", labels,
+                cache::getHits));
+        register(new Sample("luwak_microcache_misses_total", "Micro-cache misses", "counter",
+                labels, cache::getMisses));
+        register(new Sample("luwak_microcache_evictions_total", "Micro-cache evictions",
+                "counter", labels, cache::getEvictions));
+        register(new Sample("luwak_microcache_size_bytes", "Bytes held by the micro-cache",
+                "gauge", labels, cache::getSize));
+    }
+
+    /**
+     * Register the statistics of an HTTP client cache, e.g. of a proxy
+     *
+     * @param cacheName the value of the cache label
+     * @param statistics the statistics of the cache
+     */
+    public void registerHttpCache(String cacheName, CacheStatistics statistics) {
+        String labels = "cache=\"" + escape(cacheName) + "\"";
+        register(new Sample("luwak_http_cache_hits_total", "HTTP cache hits", "counter", labels,
+                statistics::getHits));
+        register(new Sample("luwak_http_cache_misses_total", "HTTP cache misses", "counter",
+                labels, statistics::getMisses));
+        register(new Sample("luwak_http_cache_revalidations_total", "HTTP cache revalidations",
+                "counter", labels, statistics::getRevalidations));
+    }
+
+    private synchronized void register(Sample sample) {
+        samples.put(sample.name + "{" + sample.labels + "}", sample);
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format (version 0.0.4)
+     *
+     * @param out the output
+     */
+    public void writeTo(StringBuilder out) {
+        writeCounter(out, "luwak_http_received_bytes_total", "Bytes received from the clients",
+                getReceivedBytes());
+        writeCounter(out, "luwak_http_sent_bytes_total", "Bytes sent to the clients",
+                getSentBytes());
+        out.append("# HELP luwak_http_connections_active Connections being served\n")
+                .append("# TYPE luwak_http_connections_active gauge\n")
+                .append("luwak_http_connections_active ").append(getActiveConnections())
+                .append('\n');
+        writeCounter(out, "luwak_http_connections_total", "Connections accepted",
+                getTotalConnections());
+        writeCounter(out, "luwak_http_parse_errors_total", "Requests which could not be parsed",
+                getParseErrors());
+
+        out.append("# HELP luwak_http_request_duration_seconds Time taken to serve the requests\n")
+                .append("# TYPE luwak_http_request_duration_seconds histogram\n");
+        noRoute.writeTo(out);
+        for (RouteMetrics routeMetrics : routes.values()) {
+            routeMetrics.writeTo(out);
+        }
+
+        List<Sample> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(samples.values());
+        }
+        // The samples of a metric must be grouped, the sort is stable
+        snapshot.sort(Comparator.comparing(sample -> sample.name));
+        String previousName = null;
+        for (Sample sample : snapshot) {
+            if (!sample.name.equals(previousName)) {
+                out.append("# HELP ").append(sample.name).append(' ').append(sample.help)
+                        .append('\n')
+                        .append("# TYPE ").append(sample.name).append(' ').append(sample.type)
+                        .append('\n');
+                previousName = sample.name;
+            }
+            out.append(sample.name);
+            if (!sample.labels.isEmpty()) {
+                out.append('{').append(sample.labels).append('}');
+            }
+            out.append(' ').append(format(sample.value.getAsDouble())).append('\n');
+        }
+    }
+
+    /**
+     * Get all metrics in the Prometheus text exposition format
+     *
+     * @return the metrics
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        writeTo(out);
+        return out.toString();
+    }
+
+    private static void writeCounter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)
+                && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The histograms of a route, indexed by status code
+     */
+    private static final class RouteMetrics {
+
+        private final String routeLabel;
+        private final AtomicReferenceArray<Histogram> byStatus =
+                new AtomicReferenceArray<>(MAX_STATUS_CODE + 1);
+
+        RouteMetrics(String uriPattern) {
+            this.routeLabel = "route=\"" + escape(uriPattern) + "\"";
+        }
+
+        Histogram histogram(int statusCode) {
+            int index = statusCode >= 0 && statusCode <= MAX_STATUS_CODE ? statusCode : 0;
+            Histogram histogram = byStatus.get(index);
+            if (histogram == null) {
+                byStatus.compareAndSet(index, null, new Histogram());
+                histogram = byStatus.get(index);
+            }
+            return histogram;
+        }
+
+        void writeTo(StringBuilder out) {
+            for (int status = 0; status <= MAX_STATUS_CODE; status++) {
+                Histogram histogram = byStatus.get(status);
+                if (histogram == null) {
+                    continue;
+                }
+                String labels = routeLabel + ",status=\"" + status + "\"";
+                // Read the count first, the buckets may be ahead of it but not behind
+                long count = histogram.getCount();
+                for (double bound : LATENCY_BUCKETS) {
+                    out.append("luwak_http_request_duration_seconds_bucket{").append(labels)
+                            .append(",le=\"").append(bound).append("\"} ")
+                            .append(Math.min(count,
+                                    histogram.getCountAtOrBelow((long) (bound * 1e9))))
+                            .append('\n');
+                }
+                out.append("luwak_http_request_duration_seconds_bucket{").append(labels)
+                        .append(",le=\"+Inf\"} ").append(count).append('\n')
+                        .append("luwak_http_request_duration_seconds_sum{").append(labels)
+                        .append("} ").append(histogram.getSum() / 1e9).append('\n')
+                        .append("luwak_http_request_duration_seconds_count{").append(labels)
+                        .append("} ").append(count).append('\n');
+            }
+        }
+    }
+
+    private static final class Sample {
+
+        final String name;
+        final String help;
+        final String type;
+        final String labels;
+        final DoubleSupplier value;
+
+        Sample(String name, String help, String type, String labels, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.luwak.metrics;
+
+/**
+ * The bucket layout of the log-linear histograms: every power of two is split into
+ * 2^subBucketBits linear sub-buckets, so that a non-negative long value is counted with a
+ * relative error below 2^-subBucketBits over the whole long range. The smallest values have a
+ * bucket of their own.
+ *
+ * The layout only maps values to bucket indexes, the counts are kept by the histograms: the
+ * lock-free {@link Histogram} of the server metrics and the single-threaded
+ * {@link io.luwak.loadgen.LatencyHistogram} of the load generator.
+ *
+ */
+public final class LogLinearBuckets {
+
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final int bucketCount;
+
+    /**
+     * Constructs a LogLinearBuckets
+     *
+     * @param subBucketBits the precision, the number of sub-buckets of a power of two is
+     *      2^subBucketBits
+     */
+    public LogLinearBuckets(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 16) {
+            throw new IllegalArgumentException("Invalid sub-bucket bits: " + subBucketBits);
+        }
+        this.subBucketBits = subBucketBits;
+        this.subBucketCount = 1 << subBucketBits;
+        // Values below 2 * subBucketCount have their own bucket, then subBucketCount buckets per
+        // power of two up to 2^63
+        this.bucketCount = (64 - subBucketBits) * subBucketCount;
+    }
+
+    /**
+     * Get the number of buckets
+     *
+     * @return the number of buckets
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * Get the index of the bucket a value is counted in
+     *
+     * @param value the non-negative value
+     * @return the index of the bucket
+     */
+    public int bucketIndex(long value) {
+        if (value < 2 * subBucketCount) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBucketCount - 1);
+        return (exponent - subBucketBits + 1) * subBucketCount + subBucket;
+    }
+
+    /**
+     * Get the lowest value of a bucket
+     *
+     * @param index the index of the bucket
+     * @return the lowest value counted in the bucket
+     */
+    public long lowerBound(int index) {
+        if (index < 2 * subBucketCount) {
+            return index;
+        }
+        int exponent = index / subBucketCount + subBucketBits - 1;
+        long subBucket = index % subBucketCount;
+        return (subBucketCount + subBucket) << (exponent - subBucketBits);
+    }
+
+    /**
+     * Get the highest value of a bucket
+     *
+     * @param index the index of the bucket
+     * @return the highest value counted in the bucket
+     */
+    public long highestValue(int index) {
+        return index < bucketCount - 1 ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
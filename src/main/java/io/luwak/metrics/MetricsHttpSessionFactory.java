@@ -0,0 +1,61 @@
+package io.luwak.metrics;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.HttpSessionFactory;
+import io.luwak.httpd.HttpSessionScope;
+
+/**
+ * HTTP Session Factory serving the metrics of an {@link HttpMetrics} registry in the Prometheus
+ * text format, typically routed as GET /metrics. A single thread-safe session serves all scrapes.
+ *
+ */
+public class MetricsHttpSessionFactory implements HttpSessionFactory {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpMetrics metrics;
+
+    /**
+     * Constructs a MetricsHttpSessionFactory
+     *
+     * @param metrics the registry to expose
+     */
+    public MetricsHttpSessionFactory(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public HttpSession newInstance(Socket acceptSocket) {
+        return new HttpSession() {
+
+            @Override
+            public HttpResponse serve(HttpRequest httpRequest) {
+                byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Content-Type", CONTENT_TYPE);
+                headers.put("Content-Length", Integer.toString(body.length));
+                headers.put("Cache-Control", "no-cache");
+                return new HttpResponse(DefaultHttpStatus.OK, headers,
+                        new HttpEntity(body, false, false));
+            }
+
+            @Override
+            public void onResponseSent(HttpResponse httpResponse) {
+            }
+        };
+    }
+
+    @Override
+    public HttpSessionScope getScope() {
+        return HttpSessionScope.SINGLETON;
+    }
+}
@@ -0,0 +1,32 @@
+package io.luwak.metrics;
+
+/**
+ * The phases of serving a request on an HTTP/1.1 connection, timed by a {@link RequestTracer}
+ *
+ */
+public enum RequestPhase {
+
+    /**
+     * From the connection being accepted to a server thread starting to serve it, including the
+     * TLS handshake. Only the first request of a connection has this phase.
+     */
+    QUEUE,
+
+    /** From the first bytes of the request header being read to the header being parsed */
+    PARSE,
+
+    /** Looking up the route of the request */
+    ROUTE,
+
+    /** Reading the request body, if any */
+    BODY,
+
+    /** The session serving the request */
+    SERVE,
+
+    /** Sending the response head and body */
+    WRITE,
+
+    /** Notifying the session that the response has been sent, and releasing the request */
+    COMPLETE
+}
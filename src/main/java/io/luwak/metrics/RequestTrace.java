@@ -0,0 +1,171 @@
+package io.luwak.metrics;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import io.luwak.http.message.HttpMethod;
+
+/**
+ * The timing of a request, phase by phase. A connection reuses one trace for all its requests,
+ * so recording allocates nothing; a {@link RequestTracer} copies the traces it exports.
+ *
+ */
+public final class RequestTrace {
+
+    private static final RequestPhase[] PHASES = RequestPhase.values();
+
+    private final long[] durations = new long[PHASES.length];
+    private long last;
+    private boolean started;
+    private HttpMethod method;
+    private String uriPath;
+    private String route;
+    private int statusCode;
+
+    /**
+     * Start timing a request
+     *
+     * @param startNanos when the request started, from {@link System#nanoTime()}
+     */
+    public void begin(long startNanos) {
+        Arrays.fill(durations, 0);
+        last = startNanos;
+        started = true;
+        method = null;
+        uriPath = null;
+        route = null;
+        statusCode = 0;
+    }
+
+    /**
+     * Set the duration of a phase which is not contiguous with the others, e.g.
+     * {@link RequestPhase#QUEUE}
+     *
+     * @param phase the phase
+     * @param durationNanos the duration in nanoseconds
+     */
+    public void setDuration(RequestPhase phase, long durationNanos) {
+        durations[phase.ordinal()] = durationNanos;
+    }
+
+    /**
+     * End a phase now, the next phase starts now
+     *
+     * @param phase the phase
+     */
+    public void end(RequestPhase phase) {
+        long now = System.nanoTime();
+        durations[phase.ordinal()] = now - last;
+        last = now;
+    }
+
+    /**
+     * Describe the request once it has been served
+     *
+     * @param method the method
+     * @param uriPath the URI path
+     * @param route the URI pattern of the route, null if the request had no route
+     * @param statusCode the status code of the response
+     */
+    public void describe(HttpMethod method, String uriPath, String route, int statusCode) {
+        this.method = method;
+        this.uriPath = uriPath;
+        this.route = route;
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Return true between {@link #begin(long)} and {@link #clear()}
+     *
+     * @return true if a request is being timed
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Stop timing, until the next request begins
+     */
+    public void clear() {
+        started = false;
+    }
+
+    /**
+     * Get the duration of a phase
+     *
+     * @param phase the phase
+     * @return the duration in nanoseconds, 0 if the request did not go through the phase
+     */
+    public long getDuration(RequestPhase phase) {
+        return durations[phase.ordinal()];
+    }
+
+    /**
+     * Get the total duration of the request, without the {@link RequestPhase#QUEUE} phase
+     *
+     * @return the duration in nanoseconds
+     */
+    public long getTotalDuration() {
+        long total = 0;
+        for (int i = RequestPhase.PARSE.ordinal(); i < durations.length; i++) {
+            total += durations[i];
+        }
+        return total;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public String getUriPath() {
+        return uriPath;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Copy this trace, e.g. to hand it over to another thread
+     *
+     * @return the copy
+     */
+    public RequestTrace copy() {
+        RequestTrace copy = new RequestTrace();
+        System.arraycopy(durations, 0, copy.durations, 0, durations.length);
+        copy.last = last;
+        copy.started = started;
+        copy.method = method;
+        copy.uriPath = uriPath;
+        copy.route = route;
+        copy.statusCode = statusCode;
+        return copy;
+    }
+
+    /**
+     * Format the request and its breakdown in milliseconds, e.g.
+     * {@code GET /items 200 12.345 ms [queue=0.000 parse=0.021 ...]}
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(160);
+        text.append(method).append(' ').append(uriPath).append(' ').append(statusCode).append(' ')
+                .append(millis(getTotalDuration())).append(" ms [");
+        for (RequestPhase phase : PHASES) {
+            if (phase.ordinal() > 0) {
+                text.append(' ');
+            }
+            text.append(phase.name().toLowerCase(Locale.ROOT)).append('=')
+                    .append(millis(durations[phase.ordinal()]));
+        }
+        return text.append(']').toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,117 @@
+package io.luwak.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times the phases of the requests served by a server, see
+ * {@link io.luwak.httpd.LuwakHttpd#setRequestTracer(RequestTracer)}. The duration of each phase is
+ * recorded in a {@link Histogram}, requests slower than a threshold are logged with their
+ * breakdown, and a sample of the traces can be exported. A server without tracer does not time
+ * anything.
+ *
+ */
+public class RequestTracer {
+
+    public static final long DEFAULT_SLOW_THRESHOLD = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestTracer.class);
+
+    private final Histogram[] histograms = new Histogram[RequestPhase.values().length];
+    private final Histogram totalHistogram = new Histogram();
+
+    private volatile long slowThresholdNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_THRESHOLD);
+    private volatile int sampleRate;
+    private volatile Consumer<RequestTrace> exporter;
+
+    public RequestTracer() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Set the duration from which requests are logged with their breakdown, at WARN level
+     *
+     * @param slowThreshold the threshold in milliseconds, 0 to disable
+     */
+    public void setSlowThreshold(long slowThreshold) {
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThreshold);
+    }
+
+    public long getSlowThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(slowThresholdNanos);
+    }
+
+    /**
+     * Export one out of every sampleRate requests on average, chosen at random
+     *
+     * @param sampleRate the sampling rate, 1 to export all requests, 0 (the default) to disable
+     * @param exporter receives a copy of the sampled traces on the server thread, it should hand
+     *      them over to another thread rather than block
+     */
+    public void setSampling(int sampleRate, Consumer<RequestTrace> exporter) {
+        this.exporter = exporter;
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the durations of a phase
+     *
+     * @param phase the phase
+     * @return the histogram in nanoseconds
+     */
+    public Histogram getHistogram(RequestPhase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * Get the total durations of the requests, without the {@link RequestPhase#QUEUE} phase
+     *
+     * @return the histogram in nanoseconds
+     */
+    public Histogram getTotalHistogram() {
+        return totalHistogram;
+    }
+
+    /**
+     * Record a request which has been served, called by the server
+     *
+     * @param trace the trace of the request, which is reused once this method returns
+     */
+    public void complete(RequestTrace trace) {
+        for (RequestPhase phase : RequestPhase.values()) {
+            long duration = trace.getDuration(phase);
+            // A request without QUEUE phase does not count as a 0 ns queue
+            if (duration > 0 || phase != RequestPhase.QUEUE) {
+                histograms[phase.ordinal()].record(duration);
+            }
+        }
+        long total = trace.getTotalDuration();
+        totalHistogram.record(total);
+
+        long threshold = slowThresholdNanos;
+        if (threshold > 0 && total >= threshold) {
+            LOGGER.warn("Slow request: {}", trace);
+        }
+        int rate = sampleRate;
+        Consumer<RequestTrace> sink = exporter;
+        if (rate > 0 && sink != null && ThreadLocalRandom.current().nextInt(rate) == 0) {
+            try {
+                sink.accept(trace.copy());
+            }
+            catch (RuntimeException e) {
+                LOGGER.error("Exception caught while exporting request trace", e);
+            }
+        }
+    }
+}
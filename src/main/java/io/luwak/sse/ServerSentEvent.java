@@ -0,0 +1,95 @@
+package io.luwak.sse;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An event of a text/event-stream (HTML Living Standard, section 9.2). The event is encoded once,
+ * framed as an HTTP chunk, and the same bytes are written to every subscriber it is sent to.
+ *
+ */
+public final class ServerSentEvent {
+
+    private final String id;
+    private final String event;
+    private final String data;
+    private final byte[] chunk;
+
+    /**
+     * Constructs a ServerSentEvent
+     *
+     * @param id the id, which a reconnecting client sends back in Last-Event-ID, may be null
+     * @param event the event type, null for the default "message" type
+     * @param data the data, may span several lines
+     */
+    public ServerSentEvent(String id, String event, String data) {
+        checkField("id", id);
+        checkField("event", event);
+        this.id = id;
+        this.event = event;
+        this.data = data;
+
+        StringBuilder text = new StringBuilder(data.length() + 32);
+        if (id != null) {
+            text.append("id: ").append(id).append('\n');
+        }
+        if (event != null) {
+            text.append("event: ").append(event).append('\n');
+        }
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            text.append("data: ").append(line).append('\n');
+        }
+        text.append('\n');
+        this.chunk = chunk(text.toString());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    /**
+     * Get the event framed as an HTTP chunk
+     *
+     * @return the chunk, which must not be modified
+     */
+    byte[] getChunk() {
+        return chunk;
+    }
+
+    /**
+     * Frame a part of the event stream as an HTTP chunk
+     *
+     * @param text the text
+     * @return the chunk
+     */
+    static byte[] chunk(String text) {
+        byte[] content = text.getBytes(StandardCharsets.UTF_8);
+        byte[] size = (Integer.toHexString(content.length) + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] chunk = new byte[size.length + content.length + 2];
+        System.arraycopy(size, 0, chunk, 0, size.length);
+        System.arraycopy(content, 0, chunk, size.length, content.length);
+        chunk[chunk.length - 2] = '\r';
+        chunk[chunk.length - 1] = '\n';
+        return chunk;
+    }
+
+    private static void checkField(String name, String value) {
+        if (value != null && (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0
+                || value.indexOf('\0') >= 0)) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ServerSentEvent [id=" + id + ", event=" + event + "]";
+    }
+}
@@ -0,0 +1,17 @@
+package io.luwak.sse;
+
+/**
+ * What to do with a subscriber whose queue of unsent events is full
+ *
+ */
+public enum SlowConsumerPolicy {
+
+    /** Skip the events that do not fit, the subscriber misses them */
+    DROP,
+
+    /**
+     * Close the connection, the client reconnects with Last-Event-ID and the missed events are
+     * replayed if they are still buffered
+     */
+    DISCONNECT
+}
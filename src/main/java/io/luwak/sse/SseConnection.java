@@ -0,0 +1,267 @@
+package io.luwak.sse;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.nio.SelectorLoop;
+
+/**
+ * A subscriber of the event stream of a {@link SseManager}, served on one of its
+ * {@link SelectorLoop}s. Events can be sent from any thread: their chunks are queued and written by
+ * the loop, several at a time with a gathering write. The connection is only read to notice that
+ * the client has gone away.
+ *
+ */
+public final class SseConnection implements SelectorLoop.Handler {
+
+    /** A comment, ignored by the client, sent to keep idle connections open */
+    static final byte[] HEARTBEAT = ServerSentEvent.chunk(":\n\n");
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SseConnection.class);
+
+    private static final int BATCH_SIZE = 16;
+
+    private final SseManager manager;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private final HttpRequest request;
+    private final SocketAddress remoteAddress;
+
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean sentSinceHeartbeat;
+    /** Makes checking closing and queueing a chunk atomic, nothing is queued after the end */
+    private final Object queueLock = new Object();
+    // Written under the queue lock
+    private volatile boolean closing;
+    private volatile boolean closed;
+
+    // Only accessed on the loop thread
+    private SelectionKey key;
+    private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+
+    SseConnection(SseManager manager, SelectorLoop loop, ByteBuffer readBuffer,
+            SocketChannel channel, HttpRequest request) {
+        this.manager = manager;
+        this.loop = loop;
+        this.readBuffer = readBuffer;
+        this.channel = channel;
+        this.request = request;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Start serving the connection, must be called on the loop thread
+     */
+    void start() {
+        try {
+            channel.configureBlocking(false);
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            flush();
+        }
+        catch (IOException | RuntimeException e) {
+            // The loop may have been closed in the meantime
+            terminate(e);
+        }
+    }
+
+    /**
+     * Send an event to this subscriber only
+     *
+     * @param event the event
+     * @return false if the event was dropped because the connection is closing or too slow
+     */
+    public boolean send(ServerSentEvent event) {
+        return enqueue(event.getChunk());
+    }
+
+    /**
+     * End the event stream and close the connection once the queued events have been written.
+     * Unless it is told not to by a 204 response, the client reconnects after its retry delay.
+     */
+    public void close() {
+        synchronized (queueLock) {
+            if (!closing && !closed) {
+                closing = true;
+                queuedBytes.addAndGet(LAST_CHUNK.length);
+                add(LAST_CHUNK);
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return !closing && !closed;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Get the request which has opened the event stream
+     *
+     * @return the request, without body
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Get the number of bytes queued for this connection and not written yet
+     *
+     * @return the number of bytes
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SseConnection " + remoteAddress;
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            // Nothing is expected from the client, the input is discarded
+            readBuffer.clear();
+            if (channel.read(readBuffer) < 0) {
+                terminate(null);
+                return;
+            }
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onClosed(Throwable cause) {
+        terminate(cause);
+    }
+
+    /**
+     * Send a heartbeat if nothing has been sent since the previous one
+     */
+    void heartbeat() {
+        if (!sentSinceHeartbeat) {
+            enqueue(HEARTBEAT);
+        }
+        sentSinceHeartbeat = false;
+    }
+
+    boolean enqueue(byte[] chunk) {
+        synchronized (queueLock) {
+            if (closing || closed) {
+                return false;
+            }
+            long queued = queuedBytes.addAndGet(chunk.length);
+            // One event is always accepted, however large it is
+            if (queued > manager.getMaxQueuedBytes() && queued > chunk.length) {
+                queuedBytes.addAndGet(-chunk.length);
+                if (manager.getSlowConsumerPolicy() == SlowConsumerPolicy.DISCONNECT) {
+                    LOGGER.debug("{} too slow, {} bytes queued", this, queued);
+                    closing = true;
+                    loop.execute(() -> terminate(new IOException("Slow consumer")));
+                }
+                return false;
+            }
+            add(chunk);
+            return true;
+        }
+    }
+
+    private void add(byte[] chunk) {
+        // The chunk is shared, each connection writes it through its own buffer
+        outbound.add(ByteBuffer.wrap(chunk));
+        sentSinceHeartbeat = true;
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null || closed) {
+            return;
+        }
+        try {
+            int count;
+            do {
+                count = 0;
+                for (ByteBuffer chunk : outbound) {
+                    batch[count++] = chunk;
+                    if (count == BATCH_SIZE) {
+                        break;
+                    }
+                }
+                if (count == 0) {
+                    break;
+                }
+                long written = channel.write(batch, 0, count);
+                queuedBytes.addAndGet(-written);
+                int done = 0;
+                while (done < count && !batch[done].hasRemaining()) {
+                    outbound.poll();
+                    done++;
+                }
+                Arrays.fill(batch, 0, count, null);
+                if (done < count) {
+                    // The socket buffer is full
+                    break;
+                }
+            } while (true);
+            boolean pending = !outbound.isEmpty();
+            if (!pending && closing) {
+                terminate(null);
+            }
+            else if (key.isValid()) {
+                key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+            }
+        }
+        catch (IOException e) {
+            terminate(e);
+        }
+    }
+
+    /**
+     * Close the connection, on the loop thread
+     */
+    private void terminate(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cause != null) {
+            LOGGER.debug("Closing {} after exception", this, cause);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Exception caught while closing event stream", e);
+        }
+        outbound.clear();
+        manager.connectionClosed(this);
+    }
+}
@@ -0,0 +1,114 @@
+package io.luwak.sse;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpStatus;
+import io.luwak.httpd.ConnectionHandler;
+import io.luwak.httpd.HttpSession;
+
+/**
+ * HTTP Session that subscribes a request to an event stream. The response head is sent with
+ * chunked transfer coding, then the connection is handed over to the {@link SseManager} of the
+ * factory, which writes each event as a chunk. Requests are answered with 405 (not GET), 505 (not
+ * HTTP/1.1, chunked transfer coding is needed) or 503 (too many subscribers).
+ *
+ */
+public class SseHttpSession implements HttpSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SseHttpSession.class);
+
+    private final SseHttpSessionFactory factory;
+
+    /** The accepted request, until the connection has been handed over */
+    private HttpRequest request;
+
+    /**
+     * Constructs a SseHttpSession
+     *
+     * @param factory the factory holding the event stream
+     */
+    public SseHttpSession(SseHttpSessionFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public HttpResponse serve(HttpRequest httpRequest) {
+        if (httpRequest.getMethod() != HttpMethod.GET) {
+            return errorResponse(DefaultHttpStatus.METHOD_NOT_ALLOWED);
+        }
+        if (!"HTTP/1.1".equals(httpRequest.getHttpVersion())) {
+            return errorResponse(DefaultHttpStatus.HTTP_VERSION_NOT_SUPPORTED);
+        }
+        SseManager manager = factory.getManager();
+        if (!manager.reserve()) {
+            LOGGER.warn("Event stream subscription rejected, {} subscribers",
+                    manager.getActiveConnections());
+            return errorResponse(DefaultHttpStatus.SERVICE_UNAVAILABLE);
+        }
+        // The request object may be recycled once the connection has been taken over
+        request = new HttpRequest(httpRequest);
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "text/event-stream");
+        headers.put("Cache-Control", "no-cache");
+        headers.put("Transfer-Encoding", "chunked");
+        // Tell reverse proxies not to buffer the stream
+        headers.put("X-Accel-Buffering", "no");
+        return new HttpResponse(DefaultHttpStatus.OK, headers, null);
+    }
+
+    @Override
+    public void onResponseSent(HttpResponse httpResponse) {
+    }
+
+    @Override
+    public ConnectionHandler getConnectionHandler(HttpResponse httpResponse) {
+        if (request == null) {
+            return null;
+        }
+        return new ConnectionHandler() {
+
+            @Override
+            public void takeOver(Socket acceptSocket, ByteBuffer bufferedInput)
+                    throws IOException {
+                SocketChannel channel = acceptSocket.getChannel();
+                if (channel == null) {
+                    abort();
+                    throw new IOException(
+                            "Event streams need a server socket created from a channel");
+                }
+                acceptSocket.setSoTimeout(0);
+                HttpRequest subscription = request;
+                request = null;
+                factory.getManager().open(channel,
+                        subscription.getHeaders().get("last-event-id"), subscription);
+            }
+
+            @Override
+            public void abort() {
+                if (request != null) {
+                    factory.getManager().cancelReservation();
+                    request = null;
+                }
+            }
+        };
+    }
+
+    private static HttpResponse errorResponse(HttpStatus status) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Length", "0");
+        return new HttpResponse(status, headers, null);
+    }
+}
@@ -0,0 +1,33 @@
+package io.luwak.sse;
+
+import java.net.Socket;
+
+import io.luwak.httpd.HttpSessionFactory;
+
+/**
+ * HTTP Session Factory that creates {@link SseHttpSession} instances, which subscribe GET requests
+ * to the event stream of a {@link SseManager}
+ *
+ */
+public class SseHttpSessionFactory implements HttpSessionFactory {
+
+    private final SseManager manager;
+
+    /**
+     * Constructs a SseHttpSessionFactory
+     *
+     * @param manager the event stream, which caps the number of subscribers
+     */
+    public SseHttpSessionFactory(SseManager manager) {
+        this.manager = manager;
+    }
+
+    public SseManager getManager() {
+        return manager;
+    }
+
+    @Override
+    public SseHttpSession newInstance(Socket acceptSocket) {
+        return new SseHttpSession(this);
+    }
+}
@@ -0,0 +1,364 @@
+package io.luwak.sse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.nio.SelectorLoop;
+
+/**
+ * An event stream whose subscribers are served on a few {@link SelectorLoop}s, so that an open
+ * connection does not hold any thread. A published event is encoded once and its chunk is queued
+ * for every subscriber. The latest events are kept in a ring buffer and replayed to the clients
+ * reconnecting with Last-Event-ID. Idle connections receive a heartbeat comment, which also
+ * detects the clients that have gone away.
+ *
+ */
+public class SseManager implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 256 * 1024;
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+    public static final int DEFAULT_REPLAY_CAPACITY = 256;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SseManager.class);
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private final SelectorLoop[] loops;
+    private final ByteBuffer[] readBuffers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final Set<SseConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean heartbeatScheduled = new AtomicBoolean();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private volatile long retry;
+    private volatile boolean closed;
+
+    // Guarded by this
+    private ServerSentEvent[] replay = new ServerSentEvent[DEFAULT_REPLAY_CAPACITY];
+    private int replayCount;
+    private int replayNext;
+    private long lastId;
+
+    /**
+     * Create a SseManager with one selector loop
+     *
+     * @throws IOException if the selector can't be opened
+     */
+    public SseManager() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Create a SseManager with the specified number of selector loops
+     *
+     * @param loopCount the number of selector loops
+     * @throws IOException if a selector can't be opened
+     */
+    public SseManager(int loopCount) throws IOException {
+        loops = new SelectorLoop[loopCount];
+        readBuffers = new ByteBuffer[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new SelectorLoop("luwak-sse-" + i);
+                readBuffers[i] = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the maximum number of concurrent subscribers
+     *
+     * @param maxConnections the maximum number of connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Set the maximum number of bytes queued for a subscriber which does not read fast enough,
+     * see {@link #setSlowConsumerPolicy(SlowConsumerPolicy)}
+     *
+     * @param maxQueuedBytes the maximum number of bytes
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Set what to do with a subscriber whose queue is full
+     *
+     * @param slowConsumerPolicy the policy, {@link SlowConsumerPolicy#DISCONNECT} by default
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Set the interval of the heartbeats sent to the subscribers which have not received anything
+     * in the meantime
+     *
+     * @param heartbeatInterval the interval in milliseconds, 0 to disable
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+        if (!connections.isEmpty()) {
+            startHeartbeat();
+        }
+    }
+
+    public long getRetry() {
+        return retry;
+    }
+
+    /**
+     * Set the reconnection delay sent to the new subscribers
+     *
+     * @param retry the delay in milliseconds, 0 (the default) to let the clients use their own
+     */
+    public void setRetry(long retry) {
+        this.retry = retry;
+    }
+
+    public synchronized int getReplayCapacity() {
+        return replay.length;
+    }
+
+    /**
+     * Set the number of latest events kept for the clients reconnecting with Last-Event-ID
+     *
+     * @param replayCapacity the number of events, 0 to disable the replay
+     */
+    public synchronized void setReplayCapacity(int replayCapacity) {
+        ServerSentEvent[] resized = new ServerSentEvent[replayCapacity];
+        int count = Math.min(replayCount, replayCapacity);
+        for (int i = 0; i < count; i++) {
+            resized[count - 1 - i] = replay[Math.floorMod(replayNext - 1 - i, replay.length)];
+        }
+        replay = resized;
+        replayCount = count;
+        replayNext = replayCapacity > 0 ? count % replayCapacity : 0;
+    }
+
+    /**
+     * Publish an event of the default "message" type, with the next numeric id
+     *
+     * @param data the data
+     * @return the number of subscribers the event has been queued for
+     */
+    public int publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * Publish an event with the next numeric id
+     *
+     * @param event the event type, null for the default "message" type
+     * @param data the data
+     * @return the number of subscribers the event has been queued for
+     */
+    public synchronized int publish(String event, String data) {
+        return publish(new ServerSentEvent(Long.toString(++lastId), event, data));
+    }
+
+    /**
+     * Publish an event to all subscribers and keep it for the replay. Events are published one at
+     * a time, so that every subscriber receives them in the same order as the replay. Queuing an
+     * event does not block, it is written by the selector loops.
+     *
+     * @param event the event, with an id unless it does not need to be replayed
+     * @return the number of subscribers the event has been queued for
+     */
+    public synchronized int publish(ServerSentEvent event) {
+        if (replay.length > 0) {
+            replay[replayNext] = event;
+            replayNext = (replayNext + 1) % replay.length;
+            replayCount = Math.min(replayCount + 1, replay.length);
+        }
+        int count = 0;
+        int dropped = 0;
+        for (SseConnection connection : connections) {
+            if (connection.send(event)) {
+                count++;
+            }
+            else {
+                dropped++;
+            }
+        }
+        droppedEvents.addAndGet(dropped);
+        return count;
+    }
+
+    /**
+     * Reserve a slot for a new subscriber
+     *
+     * @return false if the maximum number of connections has been reached
+     */
+    public boolean reserve() {
+        while (true) {
+            int count = reserved.get();
+            if (closed || count >= maxConnections) {
+                return false;
+            }
+            if (reserved.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a slot reserved with {@link #reserve()} for a connection which is not opened
+     */
+    public void cancelReservation() {
+        reserved.decrementAndGet();
+    }
+
+    /**
+     * Open a subscriber connection in a slot reserved with {@link #reserve()}, once the response
+     * head has been sent. The events published after the last event received by the client are
+     * replayed first, if they are still buffered.
+     */
+    synchronized SseConnection open(SocketChannel channel, String lastEventId,
+            HttpRequest request) throws IOException {
+        if (closed) {
+            cancelReservation();
+            channel.close();
+            throw new IOException("SSE manager has been closed");
+        }
+        int index = Math.abs(nextLoop.getAndIncrement() % loops.length);
+        SseConnection connection = new SseConnection(this, loops[index], readBuffers[index],
+                channel, request);
+        if (retry > 0) {
+            connection.enqueue(ServerSentEvent.chunk("retry: " + retry + "\n\n"));
+        }
+        if (lastEventId != null) {
+            replayAfter(connection, lastEventId);
+        }
+        connections.add(connection);
+        LOGGER.debug("Opening {}", connection);
+        loops[index].execute(connection::start);
+        startHeartbeat();
+        return connection;
+    }
+
+    private void replayAfter(SseConnection connection, String lastEventId) {
+        for (int i = 0; i < replayCount; i++) {
+            int index = Math.floorMod(replayNext - 1 - i, replay.length);
+            if (lastEventId.equals(replay[index].getId())) {
+                for (int j = i - 1; j >= 0; j--) {
+                    connection.send(replay[Math.floorMod(replayNext - 1 - j, replay.length)]);
+                }
+                return;
+            }
+        }
+        LOGGER.debug("Event {} is not buffered anymore, nothing replayed to {}", lastEventId,
+                connection);
+    }
+
+    private void startHeartbeat() {
+        if (heartbeatScheduled.compareAndSet(false, true)) {
+            scheduleHeartbeat();
+        }
+    }
+
+    private void scheduleHeartbeat() {
+        long interval = heartbeatInterval;
+        if (interval <= 0 || closed) {
+            heartbeatScheduled.set(false);
+            return;
+        }
+        loops[0].schedule(() -> {
+            for (SseConnection connection : connections) {
+                connection.heartbeat();
+            }
+            scheduleHeartbeat();
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the number of subscribers
+     *
+     * @return the number of connections
+     */
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Get the subscribers
+     *
+     * @return an unmodifiable snapshot of the open connections
+     */
+    public Collection<SseConnection> getConnections() {
+        return Collections.unmodifiableList(new ArrayList<>(connections));
+    }
+
+    /**
+     * Get the number of events which have not been queued for a subscriber because it was too
+     * slow or closing
+     *
+     * @return the number of events
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Close all connections and the selector loops
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+
+    void connectionClosed(SseConnection connection) {
+        if (connections.remove(connection)) {
+            reserved.decrementAndGet();
+        }
+    }
+}
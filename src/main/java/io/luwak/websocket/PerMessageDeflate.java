@@ -0,0 +1,197 @@
+package io.luwak.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension (RFC 7692) negotiated on a connection. The server always
+ * compresses without context takeover, so a message compresses to the same bytes for every
+ * connection and a broadcast is compressed once. The messages of the client are inflated with the
+ * context of the connection, unless the client has offered client_no_context_takeover.
+ *
+ */
+final class PerMessageDeflate {
+
+    static final String EXTENSION = "permessage-deflate";
+
+    /** The end of a block flushed with SYNC_FLUSH, removed from the compressed messages */
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final boolean clientNoContextTakeover;
+    private final String responseHeader;
+    /** Only used on the loop thread of the connection */
+    private Inflater inflater;
+
+    private PerMessageDeflate(boolean clientNoContextTakeover) {
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.responseHeader = EXTENSION + "; server_no_context_takeover"
+                + (clientNoContextTakeover ? "; client_no_context_takeover" : "");
+    }
+
+    /**
+     * Accept the first permessage-deflate offer of a Sec-WebSocket-Extensions header that the
+     * server can honour. Offers requiring a server window smaller than 15 bits are declined, the
+     * Deflater always uses a 32 KB window.
+     *
+     * @param extensions the Sec-WebSocket-Extensions header of the request, may be null
+     * @return the negotiated extension, or null if there is no acceptable offer
+     */
+    static PerMessageDeflate negotiate(String extensions) {
+        if (extensions == null) {
+            return null;
+        }
+        for (String offer : extensions.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION)) {
+                continue;
+            }
+            boolean acceptable = true;
+            boolean clientNoContextTakeover = false;
+            Set<String> seen = new HashSet<>();
+            for (int i = 1; i < params.length && acceptable; i++) {
+                String param = params[i].trim();
+                int eq = param.indexOf('=');
+                String name = (eq < 0 ? param : param.substring(0, eq)).trim();
+                String value = eq < 0 ? null : param.substring(eq + 1).trim().replace("\"", "");
+                acceptable = seen.add(name);
+                if (name.equals("client_no_context_takeover") && value == null) {
+                    clientNoContextTakeover = true;
+                }
+                else if (name.equals("server_max_window_bits")) {
+                    acceptable &= "15".equals(value);
+                }
+                else if (name.equals("client_max_window_bits")) {
+                    // Any client window can be inflated with a 32 KB window
+                    acceptable &= value == null || value.matches("9|1[0-5]");
+                }
+                else if (!name.equals("server_no_context_takeover") || value != null) {
+                    acceptable = false;
+                }
+            }
+            if (acceptable) {
+                return new PerMessageDeflate(clientNoContextTakeover);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the Sec-WebSocket-Extensions header of the response
+     *
+     * @return the header value
+     */
+    String getResponseHeader() {
+        return responseHeader;
+    }
+
+    /**
+     * Compress a message without context takeover
+     *
+     * @param data the buffer holding the message
+     * @param offset the offset of the message
+     * @param length the length of the message
+     * @return the compressed message, without the trailing empty block
+     */
+    static byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.setInput(data, offset, length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+        byte[] buffer = new byte[Math.min(Math.max(length, 64), 8192)];
+        int n;
+        do {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, n);
+        } while (n == buffer.length);
+        deflater.reset();
+        byte[] compressed = out.toByteArray();
+        int compressedLength = compressed.length;
+        if (endsWithTail(compressed, compressedLength)) {
+            compressedLength -= TAIL.length;
+        }
+        byte[] result = new byte[compressedLength];
+        System.arraycopy(compressed, 0, result, 0, compressedLength);
+        return result;
+    }
+
+    /**
+     * Inflate a message received from the client, must be called on the loop thread
+     *
+     * @param data the compressed message, without the trailing empty block
+     * @param length the length of the compressed message
+     * @param maxSize the maximum size of the inflated message
+     * @return the inflated message
+     * @throws WebSocketException if the message is too large or can't be inflated
+     */
+    byte[] decompress(byte[] data, int length, int maxSize) throws WebSocketException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(length * 4 + 16, maxSize));
+        byte[] buffer = new byte[Math.min(Math.max(length * 2, 256), 16384)];
+        try {
+            inflater.setInput(data, 0, length);
+            inflate(buffer, out, maxSize);
+            inflater.setInput(TAIL);
+            inflate(buffer, out, maxSize);
+        }
+        catch (DataFormatException e) {
+            throw new WebSocketException(WebSocket.INVALID_PAYLOAD, "Invalid compressed data");
+        }
+        if (clientNoContextTakeover) {
+            inflater.reset();
+        }
+        return out.toByteArray();
+    }
+
+    private void inflate(byte[] buffer, ByteArrayOutputStream out, int maxSize)
+            throws DataFormatException, WebSocketException {
+        while (true) {
+            int n = inflater.inflate(buffer);
+            if (out.size() + n > maxSize) {
+                throw new WebSocketException(WebSocket.MESSAGE_TOO_BIG, "Message too big");
+            }
+            out.write(buffer, 0, n);
+            if (inflater.finished()) {
+                // The client has ended the stream with a final block, it starts a new one
+                inflater.reset();
+                return;
+            }
+            if (n == 0) {
+                if (inflater.needsDictionary()) {
+                    throw new DataFormatException("Dictionary needed");
+                }
+                if (inflater.needsInput()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the native memory of the inflater, once the connection is closed
+     */
+    void release() {
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    private static boolean endsWithTail(byte[] data, int length) {
+        if (length < TAIL.length) {
+            return false;
+        }
+        for (int i = 0; i < TAIL.length; i++) {
+            if (data[length - TAIL.length + i] != TAIL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,651 @@
+package io.luwak.websocket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.nio.SelectorLoop;
+
+/**
+ * A WebSocket connection (RFC 6455) served on a {@link SelectorLoop} of a
+ * {@link WebSocketManager}. Frames are read from the shared buffer of the loop, so an idle
+ * connection holds no buffer. Messages can be sent from any thread: their frames are queued and
+ * written by the loop, several at a time with a gathering write. A connection whose queue grows
+ * beyond {@link WebSocketManager#getMaxQueuedBytes()} is too slow to keep up and is closed.
+ *
+ */
+public final class WebSocket implements SelectorLoop.Handler {
+
+    public static final int NORMAL_CLOSURE = 1000;
+    public static final int GOING_AWAY = 1001;
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int UNSUPPORTED_DATA = 1003;
+    public static final int NO_STATUS_RECEIVED = 1005;
+    public static final int ABNORMAL_CLOSURE = 1006;
+    public static final int INVALID_PAYLOAD = 1007;
+    public static final int POLICY_VIOLATION = 1008;
+    public static final int MESSAGE_TOO_BIG = 1009;
+    public static final int INTERNAL_ERROR = 1011;
+
+    /** Time given to the client to answer a close frame before the connection is closed */
+    static final long CLOSE_TIMEOUT = 5000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebSocket.class);
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final int BATCH_SIZE = 16;
+
+    private final WebSocketManager manager;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private final WebSocketHandler handler;
+    private final HttpRequest upgradeRequest;
+    private final PerMessageDeflate deflate;
+    private final SocketAddress remoteAddress;
+    private final long idleTimeout;
+
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closeSent;
+    private volatile boolean closed;
+    private volatile Object attachment;
+
+    // Only accessed on the loop thread
+    private ByteBuffer initialInput;
+    private SelectionKey key;
+    private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+    private final byte[] header = new byte[WebSocketFrame.MAX_HEADER_LENGTH];
+    private int headerLength;
+    private int opcode;
+    private boolean fin;
+    private boolean compressed;
+    private int maskKey;
+    private byte[] payload;
+    private int payloadPosition;
+    /** Opcode of the fragmented message being received, -1 if there is none */
+    private int messageOpcode = -1;
+    private boolean messageCompressed;
+    private byte[] message;
+    private int messageLength;
+    private boolean closeReceived;
+    /** Set when the connection has failed, it is closed once the close frame has been written */
+    private boolean failed;
+    private int closeCode = ABNORMAL_CLOSURE;
+    private String closeReason = "";
+    private long lastActivity;
+    private SelectorLoop.Timer idleTimer;
+    private SelectorLoop.Timer closeTimer;
+
+    WebSocket(WebSocketManager manager, SelectorLoop loop, ByteBuffer readBuffer,
+            SocketChannel channel, ByteBuffer initialInput, WebSocketHandler handler,
+            HttpRequest upgradeRequest, PerMessageDeflate deflate) {
+        this.manager = manager;
+        this.loop = loop;
+        this.readBuffer = readBuffer;
+        this.channel = channel;
+        this.initialInput = initialInput;
+        this.handler = handler;
+        this.upgradeRequest = upgradeRequest;
+        this.deflate = deflate;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+        this.idleTimeout = manager.getIdleTimeout();
+    }
+
+    /**
+     * Start serving the connection, must be called on the loop thread
+     */
+    void start() {
+        try {
+            channel.configureBlocking(false);
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            lastActivity = System.nanoTime();
+            if (idleTimeout > 0) {
+                scheduleIdleTimer(idleTimeout);
+            }
+            handler.onOpen(this);
+            // Frames the client has sent along with the upgrade request
+            ByteBuffer input = initialInput;
+            initialInput = null;
+            consume(input);
+            flush();
+        }
+        catch (WebSocketException e) {
+            fail(e.getStatusCode(), e.getMessage());
+        }
+        catch (IOException | RuntimeException e) {
+            // The loop may have been closed in the meantime
+            terminate(e);
+        }
+    }
+
+    /**
+     * Send a text message
+     *
+     * @param text the message
+     * @return false if the message was dropped because the connection is closing or too slow
+     */
+    public boolean send(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        return enqueue(encode(WebSocketFrame.TEXT, data));
+    }
+
+    /**
+     * Send a binary message
+     *
+     * @param data the message
+     * @return false if the message was dropped because the connection is closing or too slow
+     */
+    public boolean send(byte[] data) {
+        return enqueue(encode(WebSocketFrame.BINARY, data));
+    }
+
+    /**
+     * Send a prepared message, whose frame is shared with the other connections it is sent to
+     *
+     * @param message the message
+     * @return false if the message was dropped because the connection is closing or too slow
+     */
+    public boolean send(WebSocketMessage message) {
+        byte[] frame = deflate != null && message.getLength() >= manager.getCompressionThreshold()
+                ? message.getCompressedFrame() : message.getFrame();
+        return enqueue(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Send a ping, the client answers with a pong
+     *
+     * @param data the application data, at most 125 bytes
+     * @return false if the ping was dropped because the connection is closing or too slow
+     */
+    public boolean ping(byte[] data) {
+        if (data.length > WebSocketFrame.MAX_CONTROL_PAYLOAD) {
+            throw new IllegalArgumentException("Ping data longer than 125 bytes");
+        }
+        return enqueue(ByteBuffer.wrap(WebSocketFrame.encode(WebSocketFrame.PING, false, data, 0,
+                data.length)));
+    }
+
+    /**
+     * Start the closing handshake with {@link #NORMAL_CLOSURE}
+     */
+    public void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Start the closing handshake, the connection is closed once the client has answered or after
+     * a timeout. Messages sent afterwards are dropped.
+     *
+     * @param statusCode the status code
+     * @param reason the reason, at most 123 bytes in UTF-8
+     */
+    public void close(int statusCode, String reason) {
+        loop.execute(() -> sendClose(statusCode, reason));
+    }
+
+    /**
+     * Return true until the closing handshake has been started
+     *
+     * @return true if messages can be sent
+     */
+    public boolean isOpen() {
+        return !closeSent && !closed;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Get the request which has been upgraded to this connection
+     *
+     * @return the request, without body
+     */
+    public HttpRequest getUpgradeRequest() {
+        return upgradeRequest;
+    }
+
+    /**
+     * Return true if permessage-deflate has been negotiated on this connection
+     *
+     * @return true if messages may be compressed
+     */
+    public boolean isCompressed() {
+        return deflate != null;
+    }
+
+    /**
+     * Get the number of bytes queued for this connection and not written yet
+     *
+     * @return the number of bytes
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Attach an application object to this connection
+     *
+     * @param attachment the object, may be null
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocket " + remoteAddress;
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) throws IOException {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+        catch (WebSocketException e) {
+            fail(e.getStatusCode(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void onClosed(Throwable cause) {
+        terminate(cause);
+    }
+
+    private ByteBuffer encode(int opcode, byte[] data) {
+        if (deflate != null && data.length >= manager.getCompressionThreshold()) {
+            byte[] compressedData = PerMessageDeflate.compress(data, 0, data.length);
+            if (compressedData.length < data.length) {
+                return ByteBuffer.wrap(WebSocketFrame.encode(opcode, true, compressedData, 0,
+                        compressedData.length));
+            }
+        }
+        return ByteBuffer.wrap(WebSocketFrame.encode(opcode, false, data, 0, data.length));
+    }
+
+    private boolean enqueue(ByteBuffer frame) {
+        if (closeSent || closed) {
+            return false;
+        }
+        long queued = queuedBytes.addAndGet(frame.remaining());
+        // One message is always accepted, however large it is
+        if (queued > manager.getMaxQueuedBytes() && queued > frame.remaining()) {
+            queuedBytes.addAndGet(-frame.remaining());
+            LOGGER.debug("{} too slow, {} bytes queued", this, queued);
+            loop.execute(() -> terminate(new IOException("Slow consumer")));
+            return false;
+        }
+        outbound.add(frame);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return true;
+    }
+
+    private void read() throws IOException {
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            terminate(null);
+            return;
+        }
+        if (n > 0) {
+            lastActivity = System.nanoTime();
+            readBuffer.flip();
+            consume(readBuffer);
+        }
+    }
+
+    /**
+     * Parse the frames in a buffer, a frame may span several reads
+     */
+    private void consume(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && !closeReceived && !failed && !closed) {
+            if (payload == null) {
+                header[headerLength++] = in.get();
+                if (headerLength >= 2 && headerLength == headerSize()) {
+                    beginFrame();
+                }
+            }
+            else {
+                int n = Math.min(in.remaining(), payload.length - payloadPosition);
+                in.get(payload, payloadPosition, n);
+                payloadPosition += n;
+                if (payloadPosition == payload.length) {
+                    endFrame();
+                }
+            }
+        }
+    }
+
+    private int headerSize() {
+        int lengthCode = header[1] & 0x7f;
+        return 2 + (lengthCode == 126 ? 2 : lengthCode == 127 ? 8 : 0)
+                + ((header[1] & WebSocketFrame.MASK) != 0 ? 4 : 0);
+    }
+
+    private void beginFrame() throws IOException {
+        int b0 = header[0] & 0xff;
+        fin = (b0 & WebSocketFrame.FIN) != 0;
+        compressed = (b0 & WebSocketFrame.RSV1) != 0;
+        opcode = b0 & WebSocketFrame.OPCODE;
+        if ((b0 & WebSocketFrame.RSV2_3) != 0) {
+            throw new WebSocketException(PROTOCOL_ERROR, "Reserved bits set");
+        }
+        if ((header[1] & WebSocketFrame.MASK) == 0) {
+            throw new WebSocketException(PROTOCOL_ERROR, "Unmasked frame");
+        }
+        int lengthCode = header[1] & 0x7f;
+        long length = lengthCode;
+        int position = 2;
+        if (lengthCode == 126) {
+            length = (header[2] & 0xff) << 8 | (header[3] & 0xff);
+            position = 4;
+        }
+        else if (lengthCode == 127) {
+            length = ByteBuffer.wrap(header, 2, 8).getLong();
+            position = 10;
+            if (length < 0) {
+                throw new WebSocketException(PROTOCOL_ERROR, "Invalid frame length");
+            }
+        }
+        maskKey = ByteBuffer.wrap(header, position, 4).getInt();
+        headerLength = 0;
+
+        if ((opcode & 0x8) != 0) {
+            if (opcode > WebSocketFrame.PONG) {
+                throw new WebSocketException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (!fin || compressed || length > WebSocketFrame.MAX_CONTROL_PAYLOAD) {
+                throw new WebSocketException(PROTOCOL_ERROR, "Invalid control frame");
+            }
+        }
+        else if (opcode == WebSocketFrame.CONTINUATION) {
+            if (messageOpcode == -1 || compressed) {
+                throw new WebSocketException(PROTOCOL_ERROR, "Unexpected continuation frame");
+            }
+        }
+        else if (opcode == WebSocketFrame.TEXT || opcode == WebSocketFrame.BINARY) {
+            if (messageOpcode != -1) {
+                throw new WebSocketException(PROTOCOL_ERROR, "Message interrupted");
+            }
+            if (compressed && deflate == null) {
+                throw new WebSocketException(PROTOCOL_ERROR, "Compression not negotiated");
+            }
+        }
+        else {
+            throw new WebSocketException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+        }
+        if ((opcode & 0x8) == 0 && messageLength + length > manager.getMaxMessageSize()) {
+            throw new WebSocketException(MESSAGE_TOO_BIG, "Message too big");
+        }
+
+        payload = length == 0 ? EMPTY : new byte[(int) length];
+        payloadPosition = 0;
+        if (length == 0) {
+            endFrame();
+        }
+    }
+
+    private void endFrame() throws IOException {
+        byte[] data = payload;
+        payload = null;
+        WebSocketFrame.mask(data, 0, data.length, maskKey);
+        switch (opcode) {
+            case WebSocketFrame.PING:
+                enqueue(ByteBuffer.wrap(WebSocketFrame.encode(WebSocketFrame.PONG, false, data, 0,
+                        data.length)));
+                return;
+            case WebSocketFrame.PONG:
+                return;
+            case WebSocketFrame.CLOSE:
+                onCloseFrame(data);
+                return;
+            case WebSocketFrame.CONTINUATION:
+                break;
+            default:
+                messageOpcode = opcode;
+                messageCompressed = compressed;
+                if (fin) {
+                    // Unfragmented message, the payload is used as is
+                    messageOpcode = -1;
+                    deliver(opcode, compressed, data, data.length);
+                    return;
+                }
+                break;
+        }
+        if (message == null || messageLength + data.length > message.length) {
+            int capacity = Math.max(messageLength + data.length,
+                    message == null ? 1024 : message.length * 2);
+            message = Arrays.copyOf(message == null ? EMPTY : message,
+                    Math.min(capacity, Math.max(manager.getMaxMessageSize(),
+                            messageLength + data.length)));
+        }
+        System.arraycopy(data, 0, message, messageLength, data.length);
+        messageLength += data.length;
+        if (fin) {
+            byte[] complete = message;
+            int length = messageLength;
+            int completeOpcode = messageOpcode;
+            message = null;
+            messageLength = 0;
+            messageOpcode = -1;
+            deliver(completeOpcode, messageCompressed, complete, length);
+        }
+    }
+
+    private void deliver(int messageType, boolean inflate, byte[] data, int length)
+            throws WebSocketException {
+        if (inflate) {
+            data = deflate.decompress(data, length, manager.getMaxMessageSize());
+            length = data.length;
+        }
+        try {
+            if (messageType == WebSocketFrame.TEXT) {
+                handler.onText(this, decodeUtf8(data, 0, length));
+            }
+            else {
+                handler.onBinary(this, length == data.length ? data
+                        : Arrays.copyOf(data, length));
+            }
+        }
+        catch (RuntimeException e) {
+            LOGGER.error("Exception caught in WebSocket handler", e);
+            throw new WebSocketException(INTERNAL_ERROR, "Internal error");
+        }
+    }
+
+    private void onCloseFrame(byte[] data) throws WebSocketException {
+        if (data.length == 1) {
+            throw new WebSocketException(PROTOCOL_ERROR, "Invalid close frame");
+        }
+        int code = NO_STATUS_RECEIVED;
+        String reason = "";
+        if (data.length >= 2) {
+            code = (data[0] & 0xff) << 8 | (data[1] & 0xff);
+            if (!isValidCloseCode(code)) {
+                throw new WebSocketException(PROTOCOL_ERROR, "Invalid close code " + code);
+            }
+            reason = decodeUtf8(data, 2, data.length - 2);
+        }
+        closeReceived = true;
+        closeCode = code;
+        closeReason = reason;
+        // Echo the status code, the connection is closed once the close frame has been written
+        sendClose(code == NO_STATUS_RECEIVED ? NORMAL_CLOSURE : code, "");
+    }
+
+    private static boolean isValidCloseCode(int code) {
+        return code >= 1000 && code <= 1003 || code >= 1007 && code <= 1011
+                || code >= 3000 && code <= 4999;
+    }
+
+    private static String decodeUtf8(byte[] data, int offset, int length)
+            throws WebSocketException {
+        try {
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(data, offset, length));
+            return chars.toString();
+        }
+        catch (CharacterCodingException e) {
+            throw new WebSocketException(INVALID_PAYLOAD, "Invalid UTF-8");
+        }
+    }
+
+    /**
+     * Fail the connection: send a close frame and close the connection once it is written
+     */
+    private void fail(int statusCode, String reason) {
+        LOGGER.debug("{} failed: {} {}", this, statusCode, reason);
+        failed = true;
+        closeCode = statusCode;
+        closeReason = reason;
+        sendClose(statusCode, reason);
+    }
+
+    private void sendClose(int statusCode, String reason) {
+        if (closeSent || closed) {
+            return;
+        }
+        byte[] closePayload = WebSocketFrame.closePayload(statusCode, reason);
+        ByteBuffer frame = ByteBuffer.wrap(WebSocketFrame.encode(WebSocketFrame.CLOSE, false,
+                closePayload, 0, closePayload.length));
+        queuedBytes.addAndGet(frame.remaining());
+        outbound.add(frame);
+        closeSent = true;
+        if (!closeReceived && !failed) {
+            closeTimer = loop.schedule(() -> terminate(
+                    new SocketTimeoutException("No answer to the close frame")),
+                    CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        flush();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null || closed) {
+            return;
+        }
+        try {
+            int count;
+            do {
+                count = 0;
+                for (ByteBuffer frame : outbound) {
+                    batch[count++] = frame;
+                    if (count == BATCH_SIZE) {
+                        break;
+                    }
+                }
+                if (count == 0) {
+                    break;
+                }
+                long written = channel.write(batch, 0, count);
+                queuedBytes.addAndGet(-written);
+                int done = 0;
+                while (done < count && !batch[done].hasRemaining()) {
+                    outbound.poll();
+                    done++;
+                }
+                Arrays.fill(batch, 0, count, null);
+                if (done < count) {
+                    // The socket buffer is full
+                    break;
+                }
+            } while (true);
+            boolean pending = !outbound.isEmpty();
+            if (key.isValid()) {
+                key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+            }
+            if (!pending && closeSent && (closeReceived || failed)) {
+                terminate(null);
+            }
+        }
+        catch (IOException e) {
+            terminate(e);
+        }
+    }
+
+    private void scheduleIdleTimer(long delay) {
+        idleTimer = loop.schedule(() -> {
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+            if (idle >= idleTimeout) {
+                LOGGER.debug("{} idle for {} ms", this, idle);
+                sendClose(GOING_AWAY, "Idle timeout");
+            }
+            else if (!closed) {
+                scheduleIdleTimer(idleTimeout - idle);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close the connection and notify the handler, on the loop thread
+     */
+    private void terminate(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cause != null) {
+            LOGGER.debug("Closing {} after exception", this, cause);
+        }
+        if (idleTimer != null) {
+            idleTimer.cancel();
+        }
+        if (closeTimer != null) {
+            closeTimer.cancel();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            LOGGER.debug("Exception caught while closing WebSocket connection", e);
+        }
+        outbound.clear();
+        if (deflate != null) {
+            deflate.release();
+        }
+        manager.connectionClosed(this);
+        int code = closeReceived || failed ? closeCode : ABNORMAL_CLOSURE;
+        try {
+            handler.onClose(this, code, closeReceived || failed ? closeReason : "");
+        }
+        catch (RuntimeException e) {
+            LOGGER.error("Exception caught in WebSocket handler", e);
+        }
+    }
+}
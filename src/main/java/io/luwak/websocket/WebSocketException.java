@@ -0,0 +1,30 @@
+package io.luwak.websocket;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a WebSocket peer violates the protocol, the connection is closed with the
+ * status code of the exception
+ *
+ */
+public class WebSocketException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    /**
+     * Constructs a WebSocketException
+     *
+     * @param statusCode the close status code, see {@link WebSocket}
+     * @param message the reason sent in the close frame
+     */
+    public WebSocketException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,114 @@
+package io.luwak.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec of WebSocket frames (RFC 6455 section 5). The server sends unmasked frames, each message
+ * in a single frame, so a frame is encoded once into one array which can be written to any number
+ * of connections. Masked payloads received from the clients are unmasked eight bytes at a time.
+ *
+ */
+public final class WebSocketFrame {
+
+    public static final int CONTINUATION = 0x0;
+    public static final int TEXT = 0x1;
+    public static final int BINARY = 0x2;
+    public static final int CLOSE = 0x8;
+    public static final int PING = 0x9;
+    public static final int PONG = 0xa;
+
+    static final int FIN = 0x80;
+    static final int RSV1 = 0x40;
+    static final int RSV2_3 = 0x30;
+    static final int OPCODE = 0x0f;
+    static final int MASK = 0x80;
+
+    /** Longest header of a client frame: 2 bytes, 8 bytes of extended length and the mask key */
+    static final int MAX_HEADER_LENGTH = 14;
+    static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private WebSocketFrame() {
+    }
+
+    /**
+     * Encode an unfragmented, unmasked frame
+     *
+     * @param opcode the opcode
+     * @param compressed true to set the RSV1 bit of a message compressed with permessage-deflate
+     * @param payload the buffer holding the payload
+     * @param offset the offset of the payload
+     * @param length the length of the payload
+     * @return the frame
+     */
+    public static byte[] encode(int opcode, boolean compressed, byte[] payload, int offset,
+            int length) {
+        int headerLength = length <= MAX_CONTROL_PAYLOAD ? 2 : length <= 0xffff ? 4 : 10;
+        byte[] frame = new byte[headerLength + length];
+        frame[0] = (byte) (FIN | (compressed ? RSV1 : 0) | opcode);
+        if (headerLength == 2) {
+            frame[1] = (byte) length;
+        }
+        else if (headerLength == 4) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        }
+        else {
+            frame[1] = 127;
+            // The length is an int, the four most significant bytes are 0
+            frame[6] = (byte) (length >>> 24);
+            frame[7] = (byte) (length >>> 16);
+            frame[8] = (byte) (length >>> 8);
+            frame[9] = (byte) length;
+        }
+        System.arraycopy(payload, offset, frame, headerLength, length);
+        return frame;
+    }
+
+    /**
+     * Encode the payload of a close frame
+     *
+     * @param statusCode the status code
+     * @param reason the reason, truncated to fit in a control frame
+     * @return the payload
+     */
+    static byte[] closePayload(int statusCode, String reason) {
+        byte[] reasonBytes = reason != null ? reason.getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        int reasonLength = Math.min(reasonBytes.length, MAX_CONTROL_PAYLOAD - 2);
+        if (reasonLength < reasonBytes.length) {
+            // Do not cut a character in the middle
+            while (reasonLength > 0 && (reasonBytes[reasonLength] & 0xc0) == 0x80) {
+                reasonLength--;
+            }
+        }
+        byte[] payload = new byte[2 + reasonLength];
+        payload[0] = (byte) (statusCode >>> 8);
+        payload[1] = (byte) statusCode;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+        return payload;
+    }
+
+    /**
+     * Apply a mask key to a payload, which masks or unmasks it. The key is repeated over a long
+     * and applied to eight bytes at a time, the remaining bytes are masked one by one.
+     *
+     * @param data the buffer holding the payload
+     * @param offset the offset of the payload
+     * @param length the length of the payload
+     * @param maskKey the mask key, its most significant byte masks the first byte
+     */
+    public static void mask(byte[] data, int offset, int length, int maskKey) {
+        long longKey = (maskKey & 0xffffffffL) << 32 | (maskKey & 0xffffffffL);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            buffer.putLong(i, buffer.getLong(i) ^ longKey);
+        }
+        for (; i < end; i++) {
+            data[i] ^= (byte) (maskKey >>> (24 - 8 * ((i - offset) & 3)));
+        }
+    }
+}
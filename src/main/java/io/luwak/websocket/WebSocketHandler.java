@@ -0,0 +1,49 @@
+package io.luwak.websocket;
+
+/**
+ * Handler of the WebSocket connections accepted by a {@link WebSocketHttpSessionFactory}. The
+ * methods are called on the selector loop thread of the connection, so they must not block: long
+ * work should be handed over to another thread, which can send on the connection at any time.
+ *
+ */
+public interface WebSocketHandler {
+
+    /**
+     * Called once the connection has been upgraded, before any message is received
+     *
+     * @param webSocket the connection
+     */
+    public default void onOpen(WebSocket webSocket) {
+    }
+
+    /**
+     * Called when a text message has been received completely
+     *
+     * @param webSocket the connection
+     * @param text the message
+     */
+    public default void onText(WebSocket webSocket, String text) {
+    }
+
+    /**
+     * Called when a binary message has been received completely
+     *
+     * @param webSocket the connection
+     * @param data the message
+     */
+    public default void onBinary(WebSocket webSocket, byte[] data) {
+    }
+
+    /**
+     * Called once when the connection is closed, after the closing handshake or when it has
+     * failed
+     *
+     * @param webSocket the connection
+     * @param statusCode the status code received from the client, the status code sent by the
+     *      server if the connection has failed, or {@link WebSocket#ABNORMAL_CLOSURE} if the
+     *      connection was closed without a close frame
+     * @param reason the reason of the status code, may be empty
+     */
+    public default void onClose(WebSocket webSocket, int statusCode, String reason) {
+    }
+}
@@ -0,0 +1,191 @@
+package io.luwak.websocket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpStatus;
+import io.luwak.httpd.ConnectionHandler;
+import io.luwak.httpd.HttpSession;
+
+/**
+ * HTTP Session that upgrades a request to a WebSocket connection (RFC 6455 section 4.2). Once the
+ * 101 response has been sent, the connection is handed over to the {@link WebSocketManager} of the
+ * factory. Invalid upgrade requests are answered with 405 (not GET), 400 (missing headers or
+ * invalid key), 426 (unsupported version or not an upgrade), 403 (origin not allowed) or 503 (too
+ * many connections).
+ *
+ */
+public class WebSocketHttpSession implements HttpSession {
+
+    /** Appended to the key of the client to compute Sec-WebSocket-Accept */
+    static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    static final String VERSION = "13";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebSocketHttpSession.class);
+
+    private final WebSocketHttpSessionFactory factory;
+
+    /** The accepted upgrade, until the connection has been handed over */
+    private HttpRequest upgradeRequest;
+    private PerMessageDeflate deflate;
+
+    /**
+     * Constructs a WebSocketHttpSession
+     *
+     * @param factory the factory holding the manager and the handler
+     */
+    public WebSocketHttpSession(WebSocketHttpSessionFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public HttpResponse serve(HttpRequest httpRequest) {
+        if (httpRequest.getMethod() != HttpMethod.GET) {
+            return errorResponse(DefaultHttpStatus.METHOD_NOT_ALLOWED, null, null);
+        }
+        Map<String, String> headers = httpRequest.getHeaders();
+        if (!hasToken(headers.get("upgrade"), "websocket")
+                || !hasToken(headers.get("connection"), "upgrade")) {
+            return errorResponse(DefaultHttpStatus.UPGRADE_REQUIRED, "Upgrade", "websocket");
+        }
+        if (!VERSION.equals(headers.get("sec-websocket-version"))) {
+            return errorResponse(DefaultHttpStatus.UPGRADE_REQUIRED, "Sec-WebSocket-Version",
+                    VERSION);
+        }
+        String key = headers.get("sec-websocket-key");
+        if (!isValidKey(key)) {
+            return errorResponse(DefaultHttpStatus.BAD_REQUEST, null, null);
+        }
+        if (!factory.isAllowedOrigin(headers.get("origin"))) {
+            LOGGER.debug("WebSocket upgrade from origin {} forbidden", headers.get("origin"));
+            return errorResponse(DefaultHttpStatus.FORBIDDEN, null, null);
+        }
+        WebSocketManager manager = factory.getManager();
+        if (!manager.reserve()) {
+            LOGGER.warn("WebSocket upgrade rejected, {} connections open",
+                    manager.getActiveConnections());
+            return errorResponse(DefaultHttpStatus.SERVICE_UNAVAILABLE, null, null);
+        }
+
+        deflate = manager.isPerMessageDeflate()
+                ? PerMessageDeflate.negotiate(headers.get("sec-websocket-extensions")) : null;
+        // The request object may be recycled once the connection has been taken over
+        upgradeRequest = new HttpRequest(httpRequest);
+
+        Map<String, String> responseHeaders = new LinkedHashMap<>();
+        responseHeaders.put("Upgrade", "websocket");
+        responseHeaders.put("Connection", "Upgrade");
+        responseHeaders.put("Sec-WebSocket-Accept", acceptKey(key.trim()));
+        if (deflate != null) {
+            responseHeaders.put("Sec-WebSocket-Extensions", deflate.getResponseHeader());
+        }
+        return new HttpResponse(DefaultHttpStatus.SWITCHING_PROTOCOLS, responseHeaders, null);
+    }
+
+    @Override
+    public void onResponseSent(HttpResponse httpResponse) {
+    }
+
+    @Override
+    public ConnectionHandler getConnectionHandler(HttpResponse httpResponse) {
+        if (upgradeRequest == null) {
+            return null;
+        }
+        return new ConnectionHandler() {
+
+            @Override
+            public void takeOver(Socket acceptSocket, ByteBuffer bufferedInput)
+                    throws IOException {
+                SocketChannel channel = acceptSocket.getChannel();
+                if (channel == null) {
+                    abort();
+                    throw new IOException(
+                            "WebSockets need a server socket created from a channel");
+                }
+                acceptSocket.setSoTimeout(0);
+                HttpRequest request = upgradeRequest;
+                upgradeRequest = null;
+                factory.getManager().open(channel, bufferedInput, factory.getHandler(),
+                        request, deflate);
+            }
+
+            @Override
+            public void abort() {
+                if (upgradeRequest != null) {
+                    factory.getManager().cancelReservation();
+                    upgradeRequest = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Compute the Sec-WebSocket-Accept header for the key of a client
+     *
+     * @param key the Sec-WebSocket-Key header
+     * @return the header value
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isValidKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        try {
+            return Base64.getDecoder().decode(key.trim()).length == 16;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String element : value.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static HttpResponse errorResponse(HttpStatus status, String headerName,
+            String headerValue) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (headerName != null) {
+            headers.put(headerName, headerValue);
+            if (headerName.equals("Upgrade")) {
+                headers.put("Connection", "Upgrade");
+            }
+        }
+        headers.put("Content-Length", "0");
+        return new HttpResponse(status, headers, null);
+    }
+}
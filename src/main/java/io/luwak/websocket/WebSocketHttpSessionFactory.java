@@ -0,0 +1,73 @@
+package io.luwak.websocket;
+
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import io.luwak.httpd.HttpSessionFactory;
+
+/**
+ * HTTP Session Factory that creates {@link WebSocketHttpSession} instances, which upgrade GET
+ * requests to WebSocket connections served by a {@link WebSocketManager}. All connections accepted
+ * through the factory are handled by the same {@link WebSocketHandler}. Upgrades from any origin
+ * are allowed by default.
+ *
+ */
+public class WebSocketHttpSessionFactory implements HttpSessionFactory {
+
+    private final WebSocketManager manager;
+    private final WebSocketHandler handler;
+
+    private volatile Set<String> allowedOrigins;
+
+    /**
+     * Constructs a WebSocketHttpSessionFactory
+     *
+     * @param manager the manager serving the connections, which caps their number
+     * @param handler the handler of the connections
+     */
+    public WebSocketHttpSessionFactory(WebSocketManager manager, WebSocketHandler handler) {
+        this.manager = manager;
+        this.handler = handler;
+    }
+
+    public WebSocketManager getManager() {
+        return manager;
+    }
+
+    public WebSocketHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Set the origins allowed to open a connection, upgrade requests from other origins are
+     * forbidden. Browsers send the Origin header, which protects against cross-site WebSocket
+     * hijacking.
+     *
+     * @param allowedOrigins the allowed origins, e.g. https://example.com, or null to allow all
+     */
+    public void setAllowedOrigins(Set<String> allowedOrigins) {
+        this.allowedOrigins = allowedOrigins != null ?
+                Collections.unmodifiableSet(new HashSet<>(allowedOrigins)) : null;
+    }
+
+    /**
+     * Get the origins allowed to open a connection
+     *
+     * @return the allowed origins, or null if all origins are allowed
+     */
+    public Set<String> getAllowedOrigins() {
+        return allowedOrigins;
+    }
+
+    boolean isAllowedOrigin(String origin) {
+        Set<String> origins = allowedOrigins;
+        return origins == null || origin != null && origins.contains(origin);
+    }
+
+    @Override
+    public WebSocketHttpSession newInstance(Socket acceptSocket) {
+        return new WebSocketHttpSession(this);
+    }
+}
@@ -0,0 +1,261 @@
+package io.luwak.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.nio.SelectorLoop;
+
+/**
+ * Serves {@link WebSocket} connections on a few {@link SelectorLoop}s, so that an open connection
+ * does not hold any thread. Each loop reads all its connections through one shared buffer. The
+ * number of concurrent connections is capped: a slot is reserved when the upgrade request is
+ * accepted, and released when the connection is closed.
+ *
+ */
+public class WebSocketManager implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebSocketManager.class);
+
+    private final SelectorLoop[] loops;
+    private final ByteBuffer[] readBuffers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final Set<WebSocket> connections = ConcurrentHashMap.newKeySet();
+
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private volatile long idleTimeout;
+    private volatile boolean perMessageDeflate = true;
+    private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private volatile boolean closed;
+
+    /**
+     * Create a WebSocketManager with one selector loop
+     *
+     * @throws IOException if the selector can't be opened
+     */
+    public WebSocketManager() throws IOException {
+        this(1, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a WebSocketManager with the specified number of selector loops
+     *
+     * @param loopCount the number of selector loops
+     * @param bufferSize the size of the read buffer shared by the connections of a loop
+     * @throws IOException if a selector can't be opened
+     */
+    public WebSocketManager(int loopCount, int bufferSize) throws IOException {
+        loops = new SelectorLoop[loopCount];
+        readBuffers = new ByteBuffer[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new SelectorLoop("luwak-websocket-" + i);
+                readBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the maximum number of concurrent connections
+     *
+     * @param maxConnections the maximum number of connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Set the maximum size of a message received from a client, after decompression. Larger
+     * messages close the connection with {@link WebSocket#MESSAGE_TOO_BIG}.
+     *
+     * @param maxMessageSize the maximum size in bytes
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Set the maximum number of bytes queued for a connection which does not read fast enough.
+     * A connection is closed when a message would exceed it.
+     *
+     * @param maxQueuedBytes the maximum number of bytes
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the time after which a connection which has not received anything is closed
+     *
+     * @param idleTimeout the idle timeout in milliseconds, 0 (the default) to disable
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public boolean isPerMessageDeflate() {
+        return perMessageDeflate;
+    }
+
+    /**
+     * Enable or disable the permessage-deflate extension for the new connections
+     *
+     * @param perMessageDeflate true (the default) to accept the offers of the clients
+     */
+    public void setPerMessageDeflate(boolean perMessageDeflate) {
+        this.perMessageDeflate = perMessageDeflate;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Set the size from which messages are compressed on the connections using
+     * permessage-deflate, smaller messages are sent uncompressed
+     *
+     * @param compressionThreshold the minimum size in bytes
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Reserve a slot for a new connection
+     *
+     * @return false if the maximum number of connections has been reached
+     */
+    public boolean reserve() {
+        while (true) {
+            int count = reserved.get();
+            if (closed || count >= maxConnections) {
+                return false;
+            }
+            if (reserved.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a slot reserved with {@link #reserve()} for a connection which is not opened
+     */
+    public void cancelReservation() {
+        reserved.decrementAndGet();
+    }
+
+    /**
+     * Open a connection in a slot reserved with {@link #reserve()}. The channel is switched to
+     * non-blocking mode and owned by the connection from now on.
+     */
+    WebSocket open(SocketChannel channel, ByteBuffer bufferedInput, WebSocketHandler handler,
+            HttpRequest upgradeRequest, PerMessageDeflate deflate) throws IOException {
+        if (closed) {
+            cancelReservation();
+            channel.close();
+            throw new IOException("WebSocket manager has been closed");
+        }
+        int index = Math.abs(nextLoop.getAndIncrement() % loops.length);
+        WebSocket webSocket = new WebSocket(this, loops[index], readBuffers[index], channel,
+                bufferedInput, handler, upgradeRequest, deflate);
+        connections.add(webSocket);
+        LOGGER.debug("Opening {}", webSocket);
+        loops[index].execute(webSocket::start);
+        return webSocket;
+    }
+
+    /**
+     * Send a message to all open connections. The message is encoded once, and compressed once
+     * for the connections using permessage-deflate, the same frame is queued for every
+     * connection.
+     *
+     * @param message the message
+     * @return the number of connections the message has been queued for
+     */
+    public int broadcast(WebSocketMessage message) {
+        int count = 0;
+        for (WebSocket webSocket : connections) {
+            if (webSocket.send(message)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of open connections
+     *
+     * @return the number of connections
+     */
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Get the open connections
+     *
+     * @return an unmodifiable snapshot of the open connections
+     */
+    public Collection<WebSocket> getConnections() {
+        return Collections.unmodifiableList(new ArrayList<>(connections));
+    }
+
+    /**
+     * Close all connections and the selector loops
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+
+    void connectionClosed(WebSocket webSocket) {
+        if (connections.remove(webSocket)) {
+            reserved.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.luwak.websocket;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message encoded once into a frame and sent as is to any number of connections, see
+ * {@link WebSocketManager#broadcast(WebSocketMessage)}. The compressed frame for the connections
+ * which have negotiated permessage-deflate is built the first time it is needed.
+ *
+ */
+public final class WebSocketMessage {
+
+    private final int opcode;
+    private final byte[] payload;
+    private final byte[] frame;
+    private volatile byte[] compressedFrame;
+
+    private WebSocketMessage(int opcode, byte[] payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+        this.frame = WebSocketFrame.encode(opcode, false, payload, 0, payload.length);
+    }
+
+    /**
+     * Prepare a text message
+     *
+     * @param text the text
+     * @return the message
+     */
+    public static WebSocketMessage text(String text) {
+        return new WebSocketMessage(WebSocketFrame.TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Prepare a binary message
+     *
+     * @param data the data, which must not be modified afterwards
+     * @return the message
+     */
+    public static WebSocketMessage binary(byte[] data) {
+        return new WebSocketMessage(WebSocketFrame.BINARY, data);
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Get the length of the uncompressed payload
+     *
+     * @return the length in bytes
+     */
+    public int getLength() {
+        return payload.length;
+    }
+
+    /**
+     * Get the frame of this message, uncompressed
+     *
+     * @return the frame, which must not be modified
+     */
+    byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * Get the frame of this message compressed with permessage-deflate, or uncompressed if the
+     * compression does not make it smaller
+     *
+     * @return the frame, which must not be modified
+     */
+    byte[] getCompressedFrame() {
+        byte[] result = compressedFrame;
+        if (result == null) {
+            // Compressing twice concurrently gives the same bytes, no need to lock
+            byte[] compressed = PerMessageDeflate.compress(payload, 0, payload.length);
+            result = compressed.length < payload.length
+                    ? WebSocketFrame.encode(opcode, true, compressed, 0, compressed.length)
+                    : frame;
+            compressedFrame = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+package io.luwak.accesslog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+
+/**
+ * Unit test for AccessLog
+ *
+ */
+public class AccessLogTest {
+
+    private File dir;
+    private File file;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("access-log-test").toFile();
+        file = new File(dir, "access.log");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (File child : dir.listFiles()) {
+            child.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testFormats() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("user-agent", "test \"agent\" \u00e9");
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/items",
+                Collections.singletonMap("q", "1"), "HTTP/1.1", headers, null);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+
+        AccessLog accessLog = new AccessLog(file, 16, 1024, ZoneOffset.UTC);
+        assertTrue(accessLog.log(address, request, 200, 5, 1500000));
+        // Wait for the first record to be encoded in the combined format
+        while (accessLog.getWrittenRecords() < 1) {
+            Thread.yield();
+        }
+        accessLog.setFormat(AccessLogFormat.JSON);
+        assertTrue(accessLog.log(address, request, 404, 0, 2500000));
+        accessLog.close();
+        assertEquals(2, accessLog.getWrittenRecords());
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("127\\.0\\.0\\.1 - - \\[\\d\\d/[A-Z][a-z]{2}/\\d{4}"
+                + ":\\d\\d:\\d\\d:\\d\\d \\+0000\\] \"GET /items\\?q=1 HTTP/1\\.1\" 200 5 \"-\""
+                + " \"test \\\\x22agent\\\\x22 \u00e9\""), lines.get(0));
+        assertTrue(lines.get(1).matches("\\{\"time\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d"
+                + "\\.\\d{3}Z\",\"remote_addr\":\"127\\.0\\.0\\.1\",\"method\":\"GET\","
+                + "\"uri\":\"/items\\?q=1\",\"protocol\":\"HTTP/1\\.1\",\"status\":404,"
+                + "\"body_bytes\":0,\"duration_us\":2500,\"referer\":null,"
+                + "\"user_agent\":\"test \\\\\"agent\\\\\" \u00e9\"\\}"), lines.get(1));
+    }
+
+    @Test
+    public void testDropWhenFull() throws IOException {
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/", Collections.emptyMap(),
+                "HTTP/1.1", new HashMap<>(), null);
+        AccessLog accessLog = new AccessLog(file, 2, 1024, ZoneOffset.UTC);
+        int logged = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (accessLog.log(null, request, 200, 0, 0)) {
+                logged++;
+            }
+        }
+        accessLog.close();
+        assertEquals(logged, accessLog.getWrittenRecords());
+        assertEquals(10000 - logged, accessLog.getDroppedRecords());
+        assertEquals(logged, Files.readAllLines(file.toPath()).size());
+        assertTrue(!accessLog.log(null, request, 200, 0, 0));
+    }
+
+    @Test
+    public void testRotationBySize() throws IOException {
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/", Collections.emptyMap(),
+                "HTTP/1.1", new HashMap<>(), null);
+        AccessLog accessLog = new AccessLog(file, 16, 1024, ZoneOffset.UTC);
+        accessLog.setMaxFileSize(100);
+        accessLog.setFlushInterval(0);
+        for (int i = 1; i <= 3; i++) {
+            accessLog.log(null, request, 200, 0, 0);
+            while (accessLog.getWrittenRecords() < i) {
+                Thread.yield();
+            }
+        }
+        accessLog.close();
+        // Every line is longer than the maximum size, each one ends up in its own file
+        assertEquals(3, dir.listFiles().length);
+        assertEquals(1, Files.readAllLines(file.toPath()).size());
+    }
+}
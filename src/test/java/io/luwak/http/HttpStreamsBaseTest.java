@@ -0,0 +1,122 @@
+package io.luwak.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpRequestException;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+
+/**
+ * Unit test for HttpStreamsBase
+ *
+ */
+public class HttpStreamsBaseTest {
+
+    private static final String[] INVALID_LENGTHS = { "-2", "-1", "abc", "+5", "0x10", "5, 5",
+        "", "99999999999999999999" };
+
+    private static HttpServerStreams serverStreams(String message) {
+        return new HttpServerStreams(
+                new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)),
+                new ByteArrayOutputStream());
+    }
+
+    private static HttpClientStreams clientStreams(String message) {
+        return new HttpClientStreams(
+                new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)),
+                new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testParseContentLength() {
+        assertEquals(0, HttpStreamsBase.parseContentLength("0"));
+        assertEquals(1234, HttpStreamsBase.parseContentLength(" 1234 "));
+        for (String value : INVALID_LENGTHS) {
+            assertEquals(-1, HttpStreamsBase.parseContentLength(value), value);
+        }
+    }
+
+    @Test
+    public void testInvalidRequestContentLength() throws Exception {
+        for (String value : INVALID_LENGTHS) {
+            HttpServerStreams streams = serverStreams("POST /items HTTP/1.1\r\n"
+                    + "Host: localhost\r\nContent-Length: " + value + "\r\n\r\nHello");
+            HttpRequestException e = assertThrows(HttpRequestException.class,
+                    () -> streams.read(), value);
+            assertEquals(DefaultHttpStatus.BAD_REQUEST, e.getStatus());
+        }
+
+        HttpRequest request = serverStreams("POST /items HTTP/1.1\r\n"
+                + "Host: localhost\r\nContent-Length: 5\r\n\r\nHello").read();
+        assertEquals(5, request.getEntityBody().getLength());
+    }
+
+    @Test
+    public void testInvalidResponseContentLength() throws IOException, HttpResponseException {
+        for (String value : INVALID_LENGTHS) {
+            for (boolean streamBody : new boolean[] { false, true }) {
+                HttpClientStreams streams = clientStreams("HTTP/1.1 200 OK\r\n"
+                        + "Content-Length: " + value + "\r\n\r\nHello");
+                assertThrows(HttpResponseException.class,
+                        () -> streams.read(HttpMethod.GET, streamBody), value);
+            }
+        }
+
+        // Without Content-Length, the body is delimited by closing the connection
+        HttpResponse response = clientStreams("HTTP/1.1 200 OK\r\n\r\nHello")
+                .read(HttpMethod.GET);
+        assertEquals(5, response.getEntityBody().getLength());
+    }
+
+    @Test
+    public void testSpoolManager() throws Exception {
+        File dir = Files.createTempDirectory("spool-test").toFile();
+        SpoolManager spoolManager = new SpoolManager(dir, SpoolManager.DEFAULT_QUOTA,
+                SpoolManager.DEFAULT_MAX_FILE_SIZE, 0);
+        int defaultActiveFiles = SpoolManager.getDefault().getActiveFiles();
+        HttpServerStreams streams = serverStreams("POST /items HTTP/1.1\r\n"
+                + "Host: localhost\r\nContent-Length: 2000000\r\n\r\n"
+                + new String(new char[2000000]));
+        streams.setSpoolManager(spoolManager);
+
+        // Beyond the in-memory limit, the body is spooled by the SpoolManager of the streams
+        HttpRequest request = streams.read();
+        assertEquals(1, spoolManager.getActiveFiles());
+        assertEquals(defaultActiveFiles, SpoolManager.getDefault().getActiveFiles());
+        request.getEntityBody().release();
+        assertEquals(0, spoolManager.getActiveFiles());
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        long defaultUsed = MemoryBudget.getDefault().getUsed();
+        HttpServerStreams streams = serverStreams("POST /items HTTP/1.1\r\n"
+                + "Host: localhost\r\nContent-Length: 5\r\n\r\nHello");
+        streams.setMemoryBudget(memoryBudget);
+
+        // The body kept in memory is accounted against the budget of the streams
+        HttpRequest request = streams.read();
+        assertEquals(5, memoryBudget.getUsed());
+        assertEquals(defaultUsed, MemoryBudget.getDefault().getUsed());
+        request.getEntityBody().release();
+        assertEquals(0, memoryBudget.getUsed());
+    }
+}
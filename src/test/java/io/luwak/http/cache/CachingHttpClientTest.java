@@ -0,0 +1,212 @@
+package io.luwak.http.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.LuwakHttpClient;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for CachingHttpClient
+ *
+ */
+public class CachingHttpClientTest {
+
+    private LuwakHttpd httpd;
+    private HttpHost host;
+    private LuwakHttpClient httpClient;
+    private HttpCache cache;
+    private CachingHttpClient client;
+    private final AtomicLong now = new AtomicLong(1000000);
+    /** Number of requests received by the origin per path */
+    private final Map<String, AtomicInteger> originRequests = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+        httpdContext.addHttpSessionFactory("*", EnumSet.allOf(HttpMethod.class),
+                acceptSocket -> new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        return origin(httpRequest);
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        httpd = new LuwakHttpd("localhost", 0, 10, httpdContext);
+        httpd.startInBackground();
+        host = new HttpHost("localhost", httpd.getLocalPort());
+        httpClient = new LuwakHttpClient();
+        cache = new HttpCache();
+        cache.clock = now::get;
+        client = new CachingHttpClient(httpClient, cache);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        cache.close();
+        httpClient.close();
+        httpd.stop();
+    }
+
+    private HttpResponse origin(HttpRequest request) {
+        String path = request.getUriPath();
+        int count = originRequests.computeIfAbsent(path, p -> new AtomicInteger())
+                .incrementAndGet();
+        Map<String, String> headers = new LinkedHashMap<>();
+        String body = path + " " + count;
+        switch (path) {
+            case "/fresh":
+                headers.put("Cache-Control", "max-age=60");
+                break;
+            case "/etag":
+                headers.put("Cache-Control", "no-cache");
+                headers.put("ETag", "\"v1\"");
+                if ("\"v1\"".equals(request.getHeaders().get("if-none-match"))) {
+                    return new HttpResponse(DefaultHttpStatus.NOT_MODIFIED, headers, null);
+                }
+                break;
+            case "/swr":
+                headers.put("Cache-Control", "max-age=1, stale-while-revalidate=60");
+                break;
+            case "/vary":
+                headers.put("Cache-Control", "max-age=60");
+                headers.put("Vary", "Accept-Language");
+                body = request.getHeaders().get("accept-language");
+                break;
+            default:
+                break;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        headers.put("Content-Length", Integer.toString(bytes.length));
+        return new HttpResponse(DefaultHttpStatus.OK, headers,
+                new HttpEntity(bytes, false, false));
+    }
+
+    private String get(String path, String... headerPairs) throws Exception {
+        return send(HttpMethod.GET, path, headerPairs);
+    }
+
+    private String send(HttpMethod method, String path, String... headerPairs) throws Exception {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < headerPairs.length; i += 2) {
+            headers.put(headerPairs[i], headerPairs[i + 1]);
+        }
+        HttpResponse response = client.execute(host, new HttpRequest(method, path,
+                Collections.emptyMap(), HttpRequest.DEFAULT_HTTP_VERSION, headers, null));
+        HttpEntity body = response.getEntityBody();
+        if (body == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = body.getContent()) {
+            byte[] buffer = new byte[1024];
+            int rlen;
+            while ((rlen = in.read(buffer)) != -1) {
+                out.write(buffer, 0, rlen);
+            }
+        }
+        finally {
+            body.release();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private int originRequests(String path) {
+        AtomicInteger count = originRequests.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    private long storedResponseTime(String path) {
+        HttpRequest request = new HttpRequest(HttpMethod.GET, path, Collections.emptyMap(),
+                HttpRequest.DEFAULT_HTTP_VERSION, Collections.emptyMap(), null);
+        return cache.get(HttpCache.key(host, request), request.getHeaders()).getResponseTime();
+    }
+
+    @Test
+    public void testFreshHit() throws Exception {
+        assertEquals("/fresh 1", get("/fresh"));
+        now.addAndGet(30000);
+        assertEquals("/fresh 1", get("/fresh"));
+        assertEquals(1, originRequests("/fresh"));
+
+        // Expired after 60 seconds, no validator: fetched again
+        now.addAndGet(31000);
+        assertEquals("/fresh 2", get("/fresh"));
+        // The client may ask for a fresher response
+        assertEquals("/fresh 3", get("/fresh", "Cache-Control", "no-cache"));
+
+        CacheStatistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getHits());
+        assertEquals(3, statistics.getMisses());
+        assertEquals("/fresh 1".length(), statistics.getBytesSaved());
+        assertEquals(0.25, statistics.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        assertEquals("/etag 1", get("/etag"));
+        // no-cache: validated every time, the body comes from the cache
+        assertEquals("/etag 1", get("/etag"));
+        assertEquals("/etag 1", get("/etag"));
+        assertEquals(3, originRequests("/etag"));
+        assertEquals(2, cache.getStatistics().getRevalidations());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        assertEquals("/swr 1", get("/swr"));
+        now.addAndGet(5000);
+        // Stale, served while it is revalidated in the background
+        assertEquals("/swr 1", get("/swr"));
+        for (int i = 0; i < 100 && storedResponseTime("/swr") != now.get(); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("/swr 2", get("/swr"));
+        assertEquals(2, originRequests("/swr"));
+        assertEquals(1, cache.getStatistics().getStaleHits());
+
+        // Beyond the stale-while-revalidate window
+        now.addAndGet(120000);
+        assertEquals("/swr 3", get("/swr"));
+    }
+
+    @Test
+    public void testVaryAndInvalidation() throws Exception {
+        assertEquals("en", get("/vary", "Accept-Language", "en"));
+        assertEquals("en", get("/vary", "Accept-Language", "en"));
+        assertEquals("fr", get("/vary", "Accept-Language", "fr"));
+        assertEquals(2, originRequests("/vary"));
+
+        assertEquals("/fresh 1", get("/fresh"));
+        send(HttpMethod.POST, "/fresh");
+        assertEquals("/fresh 3", get("/fresh"));
+    }
+}
@@ -0,0 +1,107 @@
+package io.luwak.http.cache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * Unit test for HttpCache
+ *
+ */
+public class HttpCacheTest {
+
+    private static final HttpRequest GET = new HttpRequest(HttpMethod.GET, "/",
+            Collections.emptyMap(), HttpRequest.DEFAULT_HTTP_VERSION, Collections.emptyMap(),
+            null);
+
+    private static HttpResponse response(String... headerPairs) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < headerPairs.length; i += 2) {
+            headers.put(headerPairs[i], headerPairs[i + 1]);
+        }
+        return new HttpResponse(DefaultHttpStatus.OK, headers, null);
+    }
+
+    @Test
+    public void testCacheable() {
+        assertTrue(HttpCache.isCacheable(GET, response("Cache-Control", "max-age=10")));
+        assertTrue(HttpCache.isCacheable(GET, response("ETag", "\"a\"")));
+        assertFalse(HttpCache.isCacheable(GET, response()));
+        assertFalse(HttpCache.isCacheable(GET, response("Cache-Control", "private, max-age=10")));
+        assertFalse(HttpCache.isCacheable(GET, response("Cache-Control", "no-store")));
+        assertFalse(HttpCache.isCacheable(GET, response("Cache-Control", "max-age=10",
+                "Vary", "*")));
+    }
+
+    @Test
+    public void testFreshness() {
+        HttpCache cache = new HttpCache();
+        long date = 1500000000000L;
+        CacheEntry entry = cache.put("k", GET, response("Date", "Fri, 14 Jul 2017 02:40:00 GMT",
+                "Expires", "Fri, 14 Jul 2017 02:41:00 GMT"), null, date, date);
+        assertEquals(60000, entry.getFreshnessLifetime());
+        assertTrue(entry.isFresh(date + 59000));
+        assertFalse(entry.isFresh(date + 60000));
+
+        // The Age header and s-maxage take precedence
+        entry = cache.put("k", GET, response("Cache-Control", "max-age=10, s-maxage=100",
+                "Age", "40"), null, date, date);
+        assertEquals(100000, entry.getFreshnessLifetime());
+        assertEquals(40000, entry.getCurrentAge(date));
+        assertFalse(entry.isFresh(date + 60000));
+
+        // Heuristic freshness: 10% of the time since Last-Modified
+        entry = cache.put("k", GET, response("Date", "Fri, 14 Jul 2017 02:40:00 GMT",
+                "Last-Modified", "Fri, 14 Jul 2017 02:23:20 GMT"), null, date, date);
+        assertEquals(100000, entry.getFreshnessLifetime());
+
+        // An invalid Expires is in the past
+        entry = cache.put("k", GET, response("Expires", "0"), null, date, date);
+        assertEquals(0, entry.getFreshnessLifetime());
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+        File directory = Files.createTempDirectory("luwak-cache").toFile();
+        try (HttpCache cache = new HttpCache(3000, directory, 64 * 1024)) {
+            byte[] body = new byte[1000];
+            for (int i = 0; i < 5; i++) {
+                body[0] = (byte) i;
+                cache.put("k" + i, GET, response("Cache-Control", "max-age=60"), body.clone(),
+                        0, 0);
+            }
+            // The least recently used entries have spilled to disk
+            assertEquals(5, cache.getEntryCount());
+            assertTrue(cache.getMemoryEntryCount() < 5);
+            assertTrue(cache.getStatistics().getDiskWrites() > 0);
+            assertTrue(cache.getMemorySize() <= 3000);
+
+            CacheEntry entry = cache.get("k0", Collections.emptyMap());
+            assertNotNull(entry);
+            assertEquals(0, entry.getBody()[0]);
+            assertEquals("max-age=60", entry.getHeaders().get("cache-control"));
+            assertEquals(1000, entry.getBody().length);
+            assertArrayEquals(new byte[999], Arrays.copyOfRange(entry.getBody(), 1,
+                    1000));
+            assertEquals(5, cache.getEntryCount());
+        }
+        assertEquals(0, directory.list().length);
+        directory.delete();
+    }
+}
@@ -0,0 +1,225 @@
+package io.luwak.http.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for LuwakAsyncHttpClient
+ *
+ */
+public class LuwakAsyncHttpClientTest {
+
+    private LuwakHttpd httpd;
+    private HttpHost host;
+    private LuwakAsyncHttpClient client;
+    private final Set<Socket> serverConnections = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+        httpdContext.addHttpSessionFactory("*", EnumSet.allOf(HttpMethod.class), acceptSocket -> {
+            serverConnections.add(acceptSocket);
+            return new HttpSession() {
+
+                @Override
+                public HttpResponse serve(HttpRequest httpRequest) {
+                    if (httpRequest.getUriPath().equals("/slow")) {
+                        try {
+                            Thread.sleep(500);
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    byte[] body = httpRequest.getUriPath().getBytes();
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Content-Length", Integer.toString(body.length));
+                    return new HttpResponse(DefaultHttpStatus.OK, headers,
+                            new HttpEntity(body, false, false));
+                }
+
+                @Override
+                public void onResponseSent(HttpResponse httpResponse) {
+                }
+            };
+        });
+        httpd = new LuwakHttpd("localhost", 0, 20, httpdContext);
+        httpd.startInBackground();
+        host = new HttpHost("localhost", httpd.getLocalPort());
+        client = new LuwakAsyncHttpClient(2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        httpd.stop();
+    }
+
+    private static HttpRequest request(HttpMethod method, String path) {
+        return new HttpRequest(method, path, Collections.emptyMap(),
+                HttpRequest.DEFAULT_HTTP_VERSION, new HashMap<>(), null);
+    }
+
+    private static String body(HttpResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = response.getEntityBody().getContent()) {
+            byte[] buffer = new byte[1024];
+            int rlen;
+            while ((rlen = in.read(buffer)) != -1) {
+                out.write(buffer, 0, rlen);
+            }
+        }
+        response.getEntityBody().release();
+        return out.toString();
+    }
+
+    @Test
+    public void testConnectionReused() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            HttpResponse response = client.execute(host, request(HttpMethod.GET, "/" + i))
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus().getStatusCode());
+            assertEquals("/" + i, body(response));
+        }
+        assertEquals(1, serverConnections.size());
+
+        HttpResponse response = client.execute(host, request(HttpMethod.HEAD, "/head"))
+                .get(5, TimeUnit.SECONDS);
+        assertNull(response.getEntityBody());
+        assertEquals(1, serverConnections.size());
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        client.setMaxPerHost(4);
+        List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(client.execute(host, request(HttpMethod.GET, "/" + i)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("/" + i, body(futures.get(i).get(10, TimeUnit.SECONDS)));
+        }
+        assertTrue(serverConnections.size() <= 4, "connections: " + serverConnections.size());
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        client.setMaxPerHost(1);
+        client.setMaxPipelinedRequests(8);
+        List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(client.execute(host, request(HttpMethod.GET, "/" + i)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("/" + i, body(futures.get(i).get(10, TimeUnit.SECONDS)));
+        }
+        assertEquals(1, serverConnections.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        CompletableFuture<HttpResponse> future = client.execute(host,
+                request(HttpMethod.GET, "/slow"), 100);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+
+        // The connection of the timed out request is not reused
+        assertEquals("/next", body(client.execute(host, request(HttpMethod.GET, "/next"))
+                .get(5, TimeUnit.SECONDS)));
+        assertEquals(2, serverConnections.size());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CompletableFuture<HttpResponse> future = client.execute(host,
+                request(HttpMethod.GET, "/slow"));
+        Thread.sleep(100);
+        assertTrue(future.cancel(true));
+        assertThrows(CancellationException.class, () -> future.get());
+        assertEquals("/next", body(client.execute(host, request(HttpMethod.GET, "/next"))
+                .get(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void testChunkedAndCloseDelimitedResponses() throws Exception {
+        String[] responses = {
+            "HTTP/1.1 100 Continue\r\n\r\n"
+                    + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n"
+                    + "Connection: close\r\n\r\n"
+                    + "5;ext=1\r\nHello\r\n8\r\n, World!\r\n0\r\nX-Trailer: 1\r\n\r\n",
+            "HTTP/1.0 200 OK\r\n\r\nUntil close"
+        };
+        try (ServerSocket serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            Thread serverThread = new Thread(() -> {
+                for (String response : responses) {
+                    try (Socket socket = serverSocket.accept()) {
+                        InputStream in = socket.getInputStream();
+                        int state = 0;
+                        while (state < 4) {
+                            int b = in.read();
+                            state = (b == '\r' && state % 2 == 0) || (b == '\n' && state % 2 == 1)
+                                    ? state + 1 : 0;
+                        }
+                        OutputStream out = socket.getOutputStream();
+                        // Written byte by byte to exercise the incremental parsing
+                        for (byte b : response.getBytes()) {
+                            out.write(b);
+                            out.flush();
+                        }
+                    }
+                    catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            serverThread.start();
+
+            HttpHost rawHost = new HttpHost("127.0.0.1", serverSocket.getLocalPort());
+            HttpResponse response = client.execute(rawHost, request(HttpMethod.GET, "/"))
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus().getStatusCode());
+            assertEquals("Hello, World!", body(response));
+            response = client.execute(rawHost, request(HttpMethod.GET, "/"))
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals("Until close", body(response));
+            serverThread.join();
+        }
+    }
+}
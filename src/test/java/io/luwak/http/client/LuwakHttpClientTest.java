@@ -0,0 +1,202 @@
+package io.luwak.http.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.HttpResponseException;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for LuwakHttpClient and HttpConnectionPool
+ *
+ */
+public class LuwakHttpClientTest {
+
+    private static final byte[] BODY = "Hello, World!".getBytes();
+
+    private LuwakHttpd httpd;
+    private HttpHost host;
+    private final Set<Socket> serverConnections = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+        httpdContext.addHttpSessionFactory("*", EnumSet.allOf(HttpMethod.class), acceptSocket -> {
+            serverConnections.add(acceptSocket);
+            return new HttpSession() {
+
+                @Override
+                public HttpResponse serve(HttpRequest httpRequest) {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Content-Length", Integer.toString(BODY.length));
+                    return new HttpResponse(DefaultHttpStatus.OK, headers,
+                            new HttpEntity(BODY, false, false));
+                }
+
+                @Override
+                public void onResponseSent(HttpResponse httpResponse) {
+                }
+            };
+        });
+        httpd = new LuwakHttpd("localhost", 0, 10, httpdContext);
+        httpd.startInBackground();
+        host = new HttpHost("localhost", httpd.getLocalPort());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        httpd.stop();
+    }
+
+    private static HttpRequest request(HttpMethod method, Map<String, String> headers) {
+        return new HttpRequest(method, "/", Collections.emptyMap(),
+                HttpRequest.DEFAULT_HTTP_VERSION, headers, null);
+    }
+
+    private static String body(HttpResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = response.getEntityBody().getContent()) {
+            byte[] buffer = new byte[1024];
+            int rlen;
+            while ((rlen = in.read(buffer)) != -1) {
+                out.write(buffer, 0, rlen);
+            }
+        }
+        response.getEntityBody().release();
+        return out.toString();
+    }
+
+    @Test
+    public void testConnectionReused() throws IOException, HttpResponseException {
+        LuwakHttpClient client = new LuwakHttpClient();
+        for (int i = 0; i < 10; i++) {
+            HttpResponse response = client.execute(host, request(HttpMethod.GET,
+                    new HashMap<>()));
+            assertEquals(200, response.getStatus().getStatusCode());
+            assertEquals("Hello, World!", body(response));
+        }
+        assertEquals(1, serverConnections.size());
+        assertEquals(1, client.getConnectionPool().getIdleConnections());
+        assertEquals(0, client.getConnectionPool().getLeasedConnections());
+        client.close();
+        assertEquals(0, client.getConnectionPool().getIdleConnections());
+    }
+
+    @Test
+    public void testHostHeader() throws IOException, HttpResponseException {
+        LuwakHttpClient client = new LuwakHttpClient();
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Host", "localhost:" + httpd.getLocalPort());
+        HttpResponse response = client.execute(request(HttpMethod.GET, headers));
+        assertEquals("Hello, World!", body(response));
+        client.close();
+    }
+
+    @Test
+    public void testConnectionClose() throws IOException, HttpResponseException {
+        LuwakHttpClient client = new LuwakHttpClient();
+        for (int i = 0; i < 3; i++) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Connection", "close");
+            body(client.execute(host, request(HttpMethod.GET, headers)));
+        }
+        assertEquals(3, serverConnections.size());
+        assertEquals(0, client.getConnectionPool().getIdleConnections());
+        client.close();
+    }
+
+    @Test
+    public void testHeadResponseHasNoBody() throws IOException, HttpResponseException {
+        LuwakHttpClient client = new LuwakHttpClient();
+        HttpResponse response = client.execute(host, request(HttpMethod.HEAD, new HashMap<>()));
+        assertNull(response.getEntityBody());
+        assertEquals("Hello, World!", body(client.execute(host,
+                request(HttpMethod.GET, new HashMap<>()))));
+        assertEquals(1, serverConnections.size());
+        client.close();
+    }
+
+    @Test
+    public void testLeaseTimeout() throws IOException {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        pool.setMaxPerHost(1);
+        pool.setLeaseTimeout(100);
+        HttpConnection connection = pool.lease(host);
+        assertThrows(ConnectionPoolTimeoutException.class, () -> pool.lease(host));
+        pool.release(connection, true);
+        assertEquals(connection, pool.lease(host));
+        pool.close();
+    }
+
+    @Test
+    public void testRetryOnClosedConnection() throws Exception {
+        // A server that closes every connection after the first response, until its socket is
+        // closed
+        ServerSocket serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    InputStream in = socket.getInputStream();
+                    int state = 0;
+                    while (state < 4) {
+                        int b = in.read();
+                        state = (b == '\r' && state % 2 == 0) || (b == '\n' && state % 2 == 1)
+                                ? state + 1 : 0;
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK".getBytes());
+                    out.flush();
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        serverThread.start();
+
+        try {
+            HttpConnectionPool pool = new HttpConnectionPool();
+            pool.setValidateAfterInactivity(-1);
+            LuwakHttpClient client = new LuwakHttpClient(pool);
+            HttpHost closingHost = new HttpHost("127.0.0.1", serverSocket.getLocalPort());
+            for (int i = 0; i < 3; i++) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                HttpResponse response = client.execute(closingHost,
+                        request(HttpMethod.GET, headers));
+                assertEquals("OK", body(response));
+            }
+            client.close();
+        }
+        finally {
+            serverSocket.close();
+            serverThread.join();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.luwak.http.client.balancer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.LuwakHttpClient;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for UpstreamGroup
+ *
+ */
+public class UpstreamGroupTest {
+
+    private static final int BACKENDS = 3;
+
+    private final List<LuwakHttpd> backends = new ArrayList<>();
+    private final List<HttpHost> hosts = new ArrayList<>();
+    private final List<AtomicInteger> backendRequests = new ArrayList<>();
+    private final List<AtomicInteger> backendStatus = new ArrayList<>();
+    private LuwakHttpClient httpClient;
+    private UpstreamGroup group;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        for (int i = 0; i < BACKENDS; i++) {
+            AtomicInteger requests = new AtomicInteger();
+            AtomicInteger status = new AtomicInteger(200);
+            DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+            httpdContext.addHttpSessionFactory("*", EnumSet.allOf(HttpMethod.class),
+                    acceptSocket -> new HttpSession() {
+
+                        @Override
+                        public HttpResponse serve(HttpRequest httpRequest) {
+                            if (!"/health".equals(httpRequest.getUriPath())) {
+                                requests.incrementAndGet();
+                            }
+                            Map<String, String> headers = new LinkedHashMap<>();
+                            headers.put("Content-Length", "0");
+                            return new HttpResponse(status.get() == 200 ? DefaultHttpStatus.OK
+                                    : DefaultHttpStatus.INTERNAL_SERVER_ERROR, headers, null);
+                        }
+
+                        @Override
+                        public void onResponseSent(HttpResponse httpResponse) {
+                        }
+                    });
+            LuwakHttpd httpd = new LuwakHttpd("localhost", 0, 10, httpdContext);
+            httpd.startInBackground();
+            backends.add(httpd);
+            hosts.add(new HttpHost("localhost", httpd.getLocalPort()));
+            backendRequests.add(requests);
+            backendStatus.add(status);
+        }
+        httpClient = new LuwakHttpClient();
+        group = new UpstreamGroup(hosts);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        group.close();
+        httpClient.close();
+        for (LuwakHttpd httpd : backends) {
+            httpd.stop();
+        }
+    }
+
+    private int get() throws Exception {
+        HttpResponse response = group.execute(host -> httpClient.execute(host,
+                new HttpRequest(HttpMethod.GET, "/", Collections.emptyMap(),
+                        HttpRequest.DEFAULT_HTTP_VERSION, Collections.emptyMap(), null)));
+        return response.getStatus().getStatusCode();
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        group.setPolicy(LoadBalancingPolicy.roundRobin());
+        for (int i = 0; i < 30; i++) {
+            assertEquals(200, get());
+        }
+        for (AtomicInteger requests : backendRequests) {
+            assertEquals(10, requests.get());
+        }
+    }
+
+    @Test
+    public void testEjection() throws Exception {
+        group.setPolicy(LoadBalancingPolicy.roundRobin());
+        group.setConsecutiveFailures(3);
+        backendStatus.get(1).set(500);
+        int errors = 0;
+        for (int i = 0; i < 30; i++) {
+            if (get() == 500) {
+                errors++;
+            }
+        }
+        // Ejected after 3 consecutive 500 responses
+        assertEquals(3, errors);
+        assertEquals(3, backendRequests.get(1).get());
+        Upstream failing = group.getUpstreams().get(1);
+        assertEquals(CircuitBreaker.State.OPEN, failing.getCircuitBreaker().getState());
+        assertEquals(3, failing.getFailures());
+    }
+
+    @Test
+    public void testHealthCheck() throws Exception {
+        group.setHealthCheckThresholds(1, 1);
+        group.startHealthChecks(httpClient, "/health", 20);
+        backends.get(2).stop();
+        Upstream stopped = group.getUpstreams().get(2);
+        for (int i = 0; i < 250 && stopped.isHealthy(); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(stopped.isHealthy());
+
+        // No request is sent to the unhealthy upstream
+        for (int i = 0; i < 30; i++) {
+            assertEquals(200, get());
+        }
+        assertEquals(30, backendRequests.get(0).get() + backendRequests.get(1).get());
+        assertEquals(0, stopped.getRequests());
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        UpstreamGroup local = new UpstreamGroup(new HttpHost("a"), new HttpHost("b"),
+                new HttpHost("c"));
+        List<Upstream> upstreams = local.getUpstreams();
+        upstreams.get(0).started();
+        upstreams.get(0).started();
+        upstreams.get(2).started();
+        LoadBalancingPolicy policy = LoadBalancingPolicy.leastOutstanding();
+        for (int i = 0; i < 10; i++) {
+            assertSame(upstreams.get(1), policy.select(upstreams));
+        }
+        assertSame(upstreams.get(2), policy.select(Arrays.asList(upstreams.get(0),
+                upstreams.get(2))));
+    }
+}
@@ -2,10 +2,12 @@ package io.luwak.http.io;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 import org.junit.jupiter.api.Test;
 
@@ -208,4 +210,26 @@ public class ChunkedInputStreamTest {
 
         in.close();
     }
+
+    /**
+     * Test that signed, overflowing and malformed chunk sizes are rejected
+     */
+    @Test
+    public void testInvalidChunkSize() {
+        for (String size : new String[] { "-2", "-1", "+a", "0x10", "", "80000000", "1 0" }) {
+            InputStream in = new ChunkedInputStream(new ByteArrayInputStream(
+                    (size + "\r\n0123456789\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+            assertThrows(IOException.class, () -> in.read(new byte[16]), size);
+        }
+    }
+
+    @Test
+    public void testChunkSizeWithExtension() throws IOException {
+        InputStream in = new ChunkedInputStream(new ByteArrayInputStream(
+                "A ; name=value\r\n0123456789\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        byte[] buf = new byte[16];
+        assertEquals(10, in.read(buf));
+        assertEquals(-1, in.read(buf));
+        in.close();
+    }
 }
@@ -0,0 +1,108 @@
+package io.luwak.http.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for ChunkedOutputStream
+ *
+ */
+public class ChunkedOutputStreamTest {
+
+    /**
+     * OutputStream that counts the number of write invocations
+     */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void testCoalesceWrites() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out, 16);
+        for (int i = 0; i < 4; i++) {
+            chunkedOut.write("01234567".getBytes());
+        }
+        chunkedOut.write('X');
+        chunkedOut.finish();
+
+        assertEquals("10\r\n0123456701234567\r\n"
+                + "10\r\n0123456701234567\r\n"
+                + "1\r\nX\r\n"
+                + "0\r\n\r\n", out.toString());
+        // 3 chunks + last chunk
+        assertEquals(4, out.writes);
+    }
+
+    @Test
+    public void testFlushSendsPartialChunk() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out);
+        chunkedOut.write("0123456789".getBytes());
+        assertEquals(0, out.size());
+
+        chunkedOut.flush();
+        assertEquals("a\r\n0123456789\r\n", out.toString());
+    }
+
+    @Test
+    public void testTrailers() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out);
+        chunkedOut.write("abc".getBytes());
+        chunkedOut.finish(Collections.singletonMap("X-Checksum", "1234"));
+
+        assertEquals("3\r\nabc\r\n0\r\nX-Checksum: 1234\r\n\r\n", out.toString());
+
+        ChunkedInputStream in = new ChunkedInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] buf = new byte[8];
+        assertEquals(3, in.read(buf));
+        assertEquals(-1, in.read(buf));
+        assertEquals("1234", in.getTrailers().get("x-checksum"));
+        in.close();
+    }
+
+    /**
+     * Round trip content bigger than the chunk size through ChunkedInputStream
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] content = new byte[100 * 1024 + 7];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream chunkedOut = new ChunkedOutputStream(out, 4096);
+        chunkedOut.write(content, 0, 1000);
+        chunkedOut.write(content, 1000, content.length - 1000);
+        ((ChunkedOutputStream) chunkedOut).finish();
+
+        ChunkedInputStream in = new ChunkedInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] buf = new byte[3000];
+        int rlen;
+        while ((rlen = in.read(buf)) != -1) {
+            decoded.write(buf, 0, rlen);
+        }
+        in.close();
+
+        assertArrayEquals(content, decoded.toByteArray());
+    }
+}
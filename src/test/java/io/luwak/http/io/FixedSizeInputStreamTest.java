@@ -0,0 +1,123 @@
+package io.luwak.http.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for FixedSizeInputStream
+ *
+ */
+public class FixedSizeInputStreamTest {
+
+    private static final byte[] BYTES = "0123456789ABCDEFnext message".getBytes();
+
+    @Test
+    public void testReadWithOffset() throws IOException {
+        InputStream in = new FixedSizeInputStream(new ByteArrayInputStream(BYTES), 16);
+        byte[] buf = new byte[20];
+        int rlen = in.read(buf, 4, 8);
+        assertEquals(8, rlen);
+        rlen = in.read(buf, 12, 8);
+        assertEquals(8, rlen);
+        byte[] expected = new byte[20];
+        System.arraycopy("0123456789ABCDEF".getBytes(), 0, expected, 4, 16);
+        assertArrayEquals(expected, buf);
+        assertEquals(-1, in.read(buf, 0, 8));
+        in.close();
+    }
+
+    @Test
+    public void testEmptyContent() throws IOException {
+        ByteArrayInputStream underlying = new ByteArrayInputStream(BYTES);
+        InputStream in = new FixedSizeInputStream(underlying, 0);
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[8]));
+        assertEquals(BYTES.length, underlying.available());
+        in.close();
+    }
+
+    @Test
+    public void testSkipAndAvailable() throws IOException {
+        InputStream in = new FixedSizeInputStream(new ByteArrayInputStream(BYTES), 16);
+        assertEquals(16, in.available());
+        assertEquals(10, in.skip(10));
+        assertEquals(6, in.available());
+        assertEquals(6, in.skip(100));
+        assertEquals(0, in.available());
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testCloseDrainsContent() throws IOException {
+        ByteArrayInputStream underlying = new ByteArrayInputStream(BYTES);
+        InputStream in = new FixedSizeInputStream(underlying, 16);
+        assertEquals('0', in.read());
+        in.close();
+
+        byte[] next = new byte[12];
+        assertEquals(12, underlying.read(next));
+        assertArrayEquals("next message".getBytes(), next);
+    }
+
+    @Test
+    public void testTransferTo() throws IOException {
+        FixedSizeInputStream in = new FixedSizeInputStream(new ByteArrayInputStream(BYTES), 16);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(16, in.transferTo(out));
+        assertArrayEquals("0123456789ABCDEF".getBytes(), out.toByteArray());
+        in.close();
+    }
+
+    @Test
+    public void testPrematureEnd() throws IOException {
+        InputStream in = new FixedSizeInputStream(new ByteArrayInputStream(BYTES), 100);
+        byte[] buf = new byte[100];
+        assertEquals(BYTES.length, in.read(buf));
+        assertThrows(EOFException.class, () -> in.read(buf));
+    }
+
+    /**
+     * GZIPInputStream must be able to read directly from FixedSizeInputStream and must not read
+     * beyond the fixed size content
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testGzip() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOut = new GZIPOutputStream(baos);
+        for (int i = 0; i < 1000; i++) {
+            gzipOut.write("0123456789ABCDEF".getBytes());
+        }
+        gzipOut.close();
+        int gzipLength = baos.size();
+        baos.write("next message".getBytes());
+
+        ByteArrayInputStream underlying = new ByteArrayInputStream(baos.toByteArray());
+        InputStream in = new GZIPInputStream(new FixedSizeInputStream(underlying, gzipLength));
+        byte[] buf = new byte[1024];
+        int total = 0;
+        int rlen;
+        while ((rlen = in.read(buf, 0, buf.length)) != -1) {
+            total += rlen;
+        }
+        in.close();
+
+        assertEquals(16000, total);
+        byte[] next = new byte[12];
+        assertEquals(12, underlying.read(next));
+        assertArrayEquals("next message".getBytes(), next);
+    }
+}
@@ -0,0 +1,156 @@
+package io.luwak.http.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpEntityLimits;
+
+/**
+ * Unit test for InflatingInputStream
+ *
+ */
+public class InflatingInputStreamTest {
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + (i * 7) % 26);
+        }
+        return content;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bout)) {
+            out.write(content);
+        }
+        return bout.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] content, boolean nowrap) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bout, deflater)) {
+            out.write(content);
+        }
+        deflater.end();
+        return bout.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int rlen;
+        while ((rlen = in.read(buffer)) != -1) {
+            bout.write(buffer, 0, rlen);
+        }
+        in.close();
+        return bout.toByteArray();
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        byte[] content = content(100000);
+        InflatingInputStream in = new InflatingInputStream(
+                new ByteArrayInputStream(gzip(content)), InflatingInputStream.Format.GZIP);
+        assertArrayEquals(content, readAll(in));
+        assertEquals(content.length, in.getInflatedSize());
+    }
+
+    @Test
+    public void testGzipMultipleMembers() throws IOException {
+        byte[] first = gzip("Hello, ".getBytes());
+        byte[] second = gzip("World!".getBytes());
+        byte[] encoded = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, encoded, first.length, second.length);
+
+        InflatingInputStream in = new InflatingInputStream(new ByteArrayInputStream(encoded),
+                InflatingInputStream.Format.GZIP);
+        assertEquals("Hello, World!", new String(readAll(in)));
+    }
+
+    @Test
+    public void testGzipCorruptTrailer() throws IOException {
+        byte[] encoded = gzip(content(1000));
+        encoded[encoded.length - 8] ^= 1;
+        InflatingInputStream in = new InflatingInputStream(new ByteArrayInputStream(encoded),
+                InflatingInputStream.Format.GZIP);
+        assertThrows(ZipException.class, () -> readAll(in));
+    }
+
+    @Test
+    public void testDeflate() throws IOException {
+        byte[] content = content(50000);
+        for (boolean nowrap : new boolean[] { false, true }) {
+            InflatingInputStream in = new InflatingInputStream(
+                    new ByteArrayInputStream(deflate(content, nowrap)),
+                    InflatingInputStream.Format.DEFLATE);
+            assertArrayEquals(content, readAll(in));
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] encoded = gzip(content(10000));
+        InflatingInputStream in = new InflatingInputStream(
+                new ByteArrayInputStream(Arrays.copyOf(encoded, encoded.length / 2)),
+                InflatingInputStream.Format.GZIP);
+        assertThrows(IOException.class, () -> readAll(in));
+    }
+
+    @Test
+    public void testMaxInflatedSize() throws IOException {
+        byte[] encoded = gzip(content(10000));
+        InflatingInputStream in = new InflatingInputStream(new ByteArrayInputStream(encoded),
+                InflatingInputStream.Format.GZIP, 5000, 0, InflaterPool.getDefault());
+        assertThrows(PayloadTooLargeException.class, () -> readAll(in));
+        assertEquals(5001, in.getInflatedSize());
+    }
+
+    @Test
+    public void testMaxInflationRatio() throws IOException {
+        // 8 MB of zeroes compress to a few KB
+        byte[] encoded = gzip(new byte[8 * 1024 * 1024]);
+        InflatingInputStream in = new InflatingInputStream(new ByteArrayInputStream(encoded),
+                InflatingInputStream.Format.GZIP, -1, 100, InflaterPool.getDefault());
+        assertThrows(PayloadTooLargeException.class, () -> readAll(in));
+    }
+
+    @Test
+    public void testRejectedBodyGivesBackInflater() throws IOException {
+        InflaterPool pool = InflaterPool.getDefault();
+        // At least one idle inflater, which the entity borrows
+        Inflater warm = pool.borrow(true);
+        pool.giveBack(warm, true);
+        int idle = pool.getIdleCount(true);
+
+        byte[] bomb = gzip(new byte[10 * 1024 * 1024]);
+        HttpEntityLimits limits = new HttpEntityLimits();
+        assertThrows(PayloadTooLargeException.class, () -> HttpEntity.fromInputStream(
+                new ByteArrayInputStream(bomb), bomb.length, "gzip", limits, null,
+                SpoolManager.getDefault()));
+        assertEquals(idle, pool.getIdleCount(true));
+
+        byte[] corrupt = gzip(content(1000));
+        corrupt[corrupt.length - 5] ^= 1;
+        assertThrows(ZipException.class, () -> HttpEntity.fromInputStream(
+                new ByteArrayInputStream(corrupt), corrupt.length, "gzip", limits, null,
+                SpoolManager.getDefault()));
+        assertEquals(idle, pool.getIdleCount(true));
+    }
+}
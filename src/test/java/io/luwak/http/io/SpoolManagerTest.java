@@ -0,0 +1,68 @@
+package io.luwak.http.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for SpoolManager
+ *
+ */
+public class SpoolManagerTest {
+
+    @Test
+    public void testQuota() throws IOException {
+        File dir = Files.createTempDirectory("spool-test").toFile();
+        SpoolManager spoolManager = new SpoolManager(dir, 100, 80, 0);
+
+        SpoolFile first = spoolManager.create();
+        try (OutputStream out = first.getOutputStream()) {
+            out.write(new byte[60]);
+        }
+        assertEquals(60, spoolManager.getUsage());
+
+        SpoolFile second = spoolManager.create();
+        try (OutputStream out = second.getOutputStream()) {
+            assertThrows(InsufficientStorageException.class, () -> out.write(new byte[50]));
+            assertThrows(PayloadTooLargeException.class, () -> out.write(new byte[90]));
+        }
+
+        first.release();
+        second.release();
+        assertEquals(0, spoolManager.getUsage());
+        assertEquals(0, spoolManager.getActiveFiles());
+        assertFalse(first.getFile().exists());
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        File dir = Files.createTempDirectory("spool-test").toFile();
+        SpoolManager spoolManager = new SpoolManager(dir, 1000, 1000, 1);
+
+        SpoolFile first = spoolManager.create();
+        try (OutputStream out = first.getOutputStream()) {
+            out.write(new byte[10]);
+        }
+        first.release();
+        // released twice has no effect
+        first.release();
+
+        SpoolFile second = spoolManager.create();
+        assertEquals(first.getFile(), second.getFile());
+        assertEquals(0, second.getFile().length());
+        assertEquals(0, spoolManager.getUsage());
+
+        second.release();
+        assertTrue(second.getFile().delete());
+        assertTrue(dir.delete());
+    }
+}
@@ -0,0 +1,103 @@
+package io.luwak.http.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for SpoolingOutputStream
+ *
+ */
+public class SpoolingOutputStreamTest {
+
+    private File spoolDir;
+    private SpoolManager spoolManager;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        spoolDir = Files.createTempDirectory("spool-test").toFile();
+        spoolManager = new SpoolManager(spoolDir, 1024 * 1024, 1024 * 1024, 0);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        assertEquals(0, spoolManager.getActiveFiles());
+        spoolDir.delete();
+    }
+
+    @Test
+    public void testKeptInMemoryWithinBudget() throws IOException {
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        SpoolingOutputStream out = new SpoolingOutputStream(-1, 1000, -1, memoryBudget,
+                spoolManager);
+        out.write(new byte[300], 0, 300);
+        out.write(new byte[400], 0, 400);
+        out.close();
+
+        assertTrue(out.isInMemory());
+        assertEquals(700, out.toByteArray().length);
+        assertEquals(700, out.getReserved());
+        assertEquals(700, memoryBudget.getUsed());
+
+        out.discard();
+        assertEquals(0, memoryBudget.getUsed());
+    }
+
+    @Test
+    public void testSpillWhenBudgetExhausted() throws IOException {
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        assertTrue(memoryBudget.tryReserve(900));
+
+        byte[] content = new byte[500];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        SpoolingOutputStream out = new SpoolingOutputStream(content.length, 1000, -1,
+                memoryBudget, spoolManager);
+        out.write(content, 0, content.length);
+        out.close();
+
+        assertFalse(out.isInMemory());
+        assertNotNull(out.getSpoolFile());
+        assertArrayEquals(content, Files.readAllBytes(out.getSpoolFile().getFile().toPath()));
+        assertEquals(900, memoryBudget.getUsed());
+
+        out.discard();
+    }
+
+    @Test
+    public void testSpillWhenGrowing() throws IOException {
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        SpoolingOutputStream out = new SpoolingOutputStream(-1, 1000, -1, memoryBudget,
+                spoolManager);
+        out.write(new byte[600], 0, 600);
+        assertTrue(out.isInMemory());
+        out.write(new byte[600], 0, 600);
+        out.close();
+
+        assertFalse(out.isInMemory());
+        assertEquals(1200, out.getSpoolFile().length());
+        assertEquals(0, memoryBudget.getUsed());
+
+        out.discard();
+    }
+
+    @Test
+    public void testMaxSize() throws IOException {
+        SpoolingOutputStream out = new SpoolingOutputStream(-1, 1000, 100, null, spoolManager);
+        out.write(new byte[100], 0, 100);
+        assertThrows(PayloadTooLargeException.class, () -> out.write(new byte[1], 0, 1));
+        out.discard();
+    }
+}
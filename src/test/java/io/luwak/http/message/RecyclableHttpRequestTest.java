@@ -0,0 +1,83 @@
+package io.luwak.http.message;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.HttpServerStreams;
+
+/**
+ * Unit test for RecyclableHttpRequest
+ *
+ */
+public class RecyclableHttpRequestTest {
+
+    private static HttpServerStreams streams(String requests) {
+        return new HttpServerStreams(
+                new ByteArrayInputStream(requests.getBytes(StandardCharsets.US_ASCII)),
+                new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        HttpServerStreams streams = streams("GET /a?x=1 HTTP/1.1\r\nHost: one\r\n\r\n"
+                + "POST /b HTTP/1.1\r\nContent-Length: 0\r\n\r\n");
+        RecyclableHttpRequest recyclable = new RecyclableHttpRequest(false);
+
+        HttpRequest first = streams.read(recyclable);
+        assertSame(recyclable, first);
+        assertEquals(HttpMethod.GET, first.getMethod());
+        assertEquals("/a?x=1", first.getRequestUri());
+        assertEquals("1", first.getQueries().get("x"));
+        assertEquals("one", first.getHeaders().get("host"));
+        Map<String, String> headers = first.getHeaders();
+        HttpResponse response = recyclable.newResponse(DefaultHttpStatus.OK, null);
+        response.getHeaders().put("X-Test", "1");
+        recyclable.recycle();
+
+        HttpRequest second = streams.read(recyclable);
+        assertSame(recyclable, second);
+        assertEquals(HttpMethod.POST, second.getMethod());
+        assertEquals("/b", second.getRequestUri());
+        assertSame(headers, second.getHeaders());
+        assertNull(second.getHeaders().get("host"));
+        assertEquals(0, second.getQueries().size());
+        assertSame(response, recyclable.newResponse(DefaultHttpStatus.NOT_FOUND, null));
+        assertEquals(0, response.getHeaders().size());
+        assertEquals(DefaultHttpStatus.NOT_FOUND, response.getStatus());
+    }
+
+    @Test
+    public void testGuarded() throws Exception {
+        RecyclableHttpRequest recyclable = new RecyclableHttpRequest(true);
+        HttpRequest request = streams("GET /?x=1 HTTP/1.1\r\nHost: one\r\n\r\n")
+                .read(recyclable);
+        assertEquals("one", request.getHeaders().get("host"));
+        Map<String, String> queries = request.getQueries();
+        Map<String, String> headers = request.getHeaders();
+        Set<String> headerNames = headers.keySet();
+        HttpResponse response = recyclable.newResponse(DefaultHttpStatus.OK, null);
+        Map<String, String> responseHeaders = response.getHeaders();
+        responseHeaders.put("X-Test", "1");
+        recyclable.recycle();
+
+        // A session keeping references beyond onResponseSent fails
+        assertThrows(IllegalStateException.class, request::getHeaders);
+        assertThrows(IllegalStateException.class, () -> headers.get("host"));
+        assertThrows(IllegalStateException.class, () -> queries.get("x"));
+        assertThrows(IllegalStateException.class, () -> headerNames.iterator());
+        assertThrows(IllegalStateException.class, () -> responseHeaders.put("X-Test", "2"));
+        assertThrows(IllegalStateException.class, response::getStatus);
+        assertThrows(IllegalStateException.class, () -> recyclable.newResponse(
+                DefaultHttpStatus.OK, null));
+    }
+}
@@ -0,0 +1,115 @@
+package io.luwak.http.nio;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.HeaderTooLargeException;
+import io.luwak.http.HttpHeaderParser;
+import io.luwak.http.HttpParseException;
+
+/**
+ * Unit test for HttpBodyDecoder and HttpHeaderParser
+ *
+ */
+public class HttpBodyDecoderTest {
+
+    /**
+     * Feed the input one byte at a time and return the decoded content
+     */
+    private static String decodeByteByByte(HttpBodyDecoder decoder, String input)
+            throws HttpParseException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte b : input.getBytes()) {
+            ByteBuffer in = ByteBuffer.wrap(new byte[] { b });
+            while (in.hasRemaining() && !decoder.isComplete()) {
+                ByteBuffer content = decoder.decode(in);
+                while (content.hasRemaining()) {
+                    out.write(content.get());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        HttpBodyDecoder decoder = new HttpBodyDecoder(HttpBodyDecoder.Framing.CHUNKED, -1);
+        assertEquals("Hello, World!", decodeByteByByte(decoder,
+                "5;name=value\r\nHello\r\n8\r\n, World!\r\n0\r\nX-Checksum: abc\r\n\r\n"));
+        assertTrue(decoder.isComplete());
+        assertEquals("abc", decoder.getTrailers().get("x-checksum"));
+    }
+
+    @Test
+    public void testLengthLeavesNextMessage() throws Exception {
+        HttpBodyDecoder decoder = new HttpBodyDecoder(HttpBodyDecoder.Framing.LENGTH, 5);
+        ByteBuffer in = ByteBuffer.wrap("HelloHTTP/1.1".getBytes());
+        ByteBuffer content = decoder.decode(in);
+        assertEquals(5, content.remaining());
+        assertTrue(decoder.isComplete());
+        assertEquals(8, in.remaining());
+        assertThrows(EOFException.class,
+                () -> new HttpBodyDecoder(HttpBodyDecoder.Framing.LENGTH, 5).endOfInput());
+    }
+
+    @Test
+    public void testInvalidChunkSize() {
+        HttpBodyDecoder decoder = new HttpBodyDecoder(HttpBodyDecoder.Framing.CHUNKED, -1);
+        assertThrows(HttpParseException.class, () -> decodeByteByByte(decoder, "zz\r\n"));
+    }
+
+    @Test
+    public void testForHeaders() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        assertEquals(HttpBodyDecoder.Framing.UNTIL_CLOSE,
+                HttpBodyDecoder.forHeaders(headers, false).getFraming());
+        assertTrue(HttpBodyDecoder.forHeaders(headers, true).isComplete());
+        headers.put("content-length", "10");
+        headers.put("transfer-encoding", "chunked");
+        assertEquals(HttpBodyDecoder.Framing.CHUNKED,
+                HttpBodyDecoder.forHeaders(headers, false).getFraming());
+        headers.remove("transfer-encoding");
+        headers.put("content-length", "-1");
+        assertThrows(HttpParseException.class, () -> HttpBodyDecoder.forHeaders(headers, false));
+    }
+
+    @Test
+    public void testHeaderParserByteByByte() throws Exception {
+        String message = "\r\nGET /a HTTP/1.1\r\nHost: localhost\nX-Folded: a\r\n b\r\n\r\nBODY";
+        HttpHeaderParser parser = new HttpHeaderParser();
+        ByteBuffer buffer = ByteBuffer.wrap(message.getBytes());
+        boolean complete = false;
+        while (!complete) {
+            ByteBuffer one = buffer.slice();
+            one.limit(1);
+            complete = parser.parse(one);
+            buffer.position(buffer.position() + one.position());
+        }
+        assertEquals("GET /a HTTP/1.1", parser.getStartLine());
+        assertEquals("localhost", parser.getHeaders().get("host"));
+        assertEquals("a b", parser.getHeaders().get("x-folded"));
+        assertEquals(4, buffer.remaining());
+
+        parser.reset();
+        assertTrue(parser.isEmpty());
+        assertFalse(parser.isComplete());
+    }
+
+    @Test
+    public void testHeaderTooLarge() {
+        HttpHeaderParser parser = new HttpHeaderParser(32);
+        ByteBuffer buffer = ByteBuffer.wrap(
+                "GET / HTTP/1.1\r\nX-Long: 0123456789012345678901234567890\r\n\r\n".getBytes());
+        assertThrows(HeaderTooLargeException.class, () -> parser.parse(buffer));
+    }
+}
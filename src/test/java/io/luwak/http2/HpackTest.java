@@ -0,0 +1,128 @@
+package io.luwak.http2;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for HpackEncoder and HpackDecoder, with the examples of RFC 7541 appendix C
+ *
+ */
+public class HpackTest {
+
+    private static final String[][] REQUEST1 = {
+        { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" },
+        { ":authority", "www.example.com" } };
+    private static final String[][] REQUEST2 = {
+        { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" },
+        { ":authority", "www.example.com" }, { "cache-control", "no-cache" } };
+    private static final String[][] REQUEST3 = {
+        { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" },
+        { ":authority", "www.example.com" }, { "custom-key", "custom-value" } };
+
+    @Test
+    public void testDecodeWithoutHuffman() throws Exception {
+        // RFC 7541 C.3
+        HpackDecoder decoder = new HpackDecoder(4096);
+        assertDecoded(REQUEST1, decoder, "828684410f7777772e6578616d706c652e636f6d");
+        assertEquals(57, decoder.getTableSize());
+        assertDecoded(REQUEST2, decoder, "828684be58086e6f2d6361636865");
+        assertEquals(110, decoder.getTableSize());
+        assertDecoded(REQUEST3, decoder,
+                "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565");
+        assertEquals(164, decoder.getTableSize());
+        assertEquals(3, decoder.getTableLength());
+    }
+
+    @Test
+    public void testEncodeDecodeWithHuffman() throws Exception {
+        // RFC 7541 C.4
+        String[] blocks = {
+            "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+            "828684be5886a8eb10649cbf",
+            "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf" };
+        String[][][] requests = { REQUEST1, REQUEST2, REQUEST3 };
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096);
+        for (int i = 0; i < blocks.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.beginBlock(out);
+            for (String[] field : requests[i]) {
+                encoder.encode(out, field[0], field[1]);
+            }
+            assertArrayEquals(hex(blocks[i]), out.toByteArray());
+            assertDecoded(requests[i], decoder, blocks[i]);
+        }
+        assertEquals(164, decoder.getTableSize());
+    }
+
+    @Test
+    public void testTableSizeUpdate() throws Exception {
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(out, "x-trace", "abc");
+        decoder.decode(out.toByteArray(), 0, out.size(), (name, value) -> { });
+        assertEquals(1, decoder.getTableLength());
+
+        // The peer disables the dynamic table, the entries are evicted by the size update
+        encoder.setMaxTableSize(0);
+        out.reset();
+        encoder.beginBlock(out);
+        encoder.encode(out, "x-trace", "abc");
+        assertEquals(0x20, out.toByteArray()[0]);
+        List<String> values = new ArrayList<>();
+        decoder.decode(out.toByteArray(), 0, out.size(), (name, value) -> values.add(value));
+        assertEquals(1, values.size());
+        assertEquals(0, decoder.getTableLength());
+
+        // A size update above the limit announced in our settings
+        decoder.setMaxTableSizeLimit(100);
+        byte[] update = { 0x3f, 0x46 };
+        assertThrows(Http2Exception.class, () ->
+                decoder.decode(update, 0, update.length, (name, value) -> { }));
+    }
+
+    @Test
+    public void testNeverIndexed() throws Exception {
+        HpackEncoder encoder = new HpackEncoder(4096);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(out, "authorization", "secret");
+        // Literal never indexed, with the static name index 23
+        assertEquals(0x1f, out.toByteArray()[0]);
+        assertEquals(8, out.toByteArray()[1]);
+        HpackDecoder decoder = new HpackDecoder(4096);
+        decoder.decode(out.toByteArray(), 0, out.size(), (name, value) -> {
+            assertEquals("authorization", name);
+            assertEquals("secret", value);
+        });
+        assertEquals(0, decoder.getTableLength());
+    }
+
+    private static void assertDecoded(String[][] expected, HpackDecoder decoder, String block)
+            throws Http2Exception {
+        byte[] bytes = hex(block);
+        List<String[]> fields = new ArrayList<>();
+        decoder.decode(bytes, 0, bytes.length, (name, value) ->
+                fields.add(new String[] { name, value }));
+        assertEquals(expected.length, fields.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], fields.get(i)[0]);
+            assertEquals(expected[i][1], fields.get(i)[1]);
+        }
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,230 @@
+package io.luwak.http2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for Http2ConnectionHandler
+ *
+ */
+public class Http2ConnectionHandlerTest {
+
+    private final CountDownLatch slowReleased = new CountDownLatch(1);
+    private final MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024);
+    private LuwakHttpd httpd;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET, HttpMethod.POST),
+                acceptSocket -> new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        if (httpRequest.getUriPath().equals("/slow")) {
+                            try {
+                                slowReleased.await(5, TimeUnit.SECONDS);
+                            }
+                            catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        String body = httpRequest.getMethod() + " " + httpRequest.getUriPath()
+                                + " " + httpRequest.getHttpVersion();
+                        if (httpRequest.getEntityBody() != null) {
+                            ByteArrayOutputStream content = new ByteArrayOutputStream();
+                            try {
+                                httpRequest.getEntityBody().writeContentTo(content);
+                            }
+                            catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            body += " " + new String(content.toByteArray(),
+                                    StandardCharsets.US_ASCII);
+                        }
+                        if (httpRequest.getUriPath().equals("/budget")) {
+                            body += " " + memoryBudget.getUsed();
+                        }
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        headers.put("Content-Type", "text/plain");
+                        headers.put("Connection", "keep-alive");
+                        return new HttpResponse(DefaultHttpStatus.OK, headers, new HttpEntity(
+                                body.getBytes(StandardCharsets.US_ASCII), false, false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        httpd = new LuwakHttpd("localhost", 0, 10, context);
+        httpd.setHttp2Config(new Http2Config());
+        httpd.setMemoryBudget(memoryBudget);
+        httpd.startInBackground();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        slowReleased.countDown();
+        httpd.stop();
+    }
+
+    @Test
+    public void testMultiplexing() throws Exception {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(Http2ConnectionHandler.PREFACE);
+            Http2Frame.write(out, Http2Frame.SETTINGS, 0, 0, new byte[0]);
+            HpackEncoder encoder = new HpackEncoder(4096);
+            sendRequest(out, encoder, 1, "GET", "/slow", null);
+            sendRequest(out, encoder, 3, "POST", "/fast", "data");
+            out.flush();
+
+            HpackDecoder decoder = new HpackDecoder(4096);
+            Map<Integer, String> bodies = new LinkedHashMap<>();
+            // The fast stream completes while the slow one is still being served
+            readResponses(in, out, decoder, bodies, 3);
+            assertEquals("POST /fast HTTP/2.0 data", bodies.get(3));
+            assertFalse(bodies.containsKey(1));
+
+            slowReleased.countDown();
+            readResponses(in, out, decoder, bodies, 1);
+            assertEquals("GET /slow HTTP/2.0", bodies.get(1));
+        }
+    }
+
+    @Test
+    public void testUpgrade() throws Exception {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("GET /fast HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: Upgrade, HTTP2-Settings\r\nUpgrade: h2c\r\n"
+                    + "HTTP2-Settings: AAMAAABkAAQAAP__\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            while (!head.toString("US-ASCII").endsWith("\r\n\r\n")) {
+                int c = in.read();
+                assertTrue(c != -1);
+                head.write(c);
+            }
+            assertTrue(head.toString("US-ASCII").startsWith("HTTP/1.1 101"));
+
+            out.write(Http2ConnectionHandler.PREFACE);
+            Http2Frame.write(out, Http2Frame.SETTINGS, 0, 0, new byte[0]);
+            out.flush();
+            Map<Integer, String> bodies = new LinkedHashMap<>();
+            readResponses(in, out, new HpackDecoder(4096), bodies, 1);
+            assertEquals("GET /fast HTTP/2.0", bodies.get(1));
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(Http2ConnectionHandler.PREFACE);
+            Http2Frame.write(out, Http2Frame.SETTINGS, 0, 0, new byte[0]);
+            sendRequest(out, new HpackEncoder(4096), 1, "POST", "/budget", "data");
+            out.flush();
+
+            // The body is held within the budget of the server while it is served
+            Map<Integer, String> bodies = new LinkedHashMap<>();
+            readResponses(in, out, new HpackDecoder(4096), bodies, 1);
+            assertEquals("POST /budget HTTP/2.0 data 4", bodies.get(1));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (memoryBudget.getUsed() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, memoryBudget.getUsed());
+    }
+
+    private static void sendRequest(OutputStream out, HpackEncoder encoder, int streamId,
+            String method, String path, String body) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.beginBlock(block);
+        encoder.encode(block, ":method", method);
+        encoder.encode(block, ":scheme", "http");
+        encoder.encode(block, ":path", path);
+        encoder.encode(block, ":authority", "localhost");
+        int flags = Http2Frame.FLAG_END_HEADERS | (body == null ? Http2Frame.FLAG_END_STREAM : 0);
+        Http2Frame.write(out, Http2Frame.HEADERS, flags, streamId, block.toByteArray());
+        if (body != null) {
+            Http2Frame.write(out, Http2Frame.DATA, Http2Frame.FLAG_END_STREAM, streamId,
+                    body.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Read frames until the response of a stream is complete, acknowledging the settings
+     */
+    private static void readResponses(InputStream in, OutputStream out, HpackDecoder decoder,
+            Map<Integer, String> bodies, int streamId) throws IOException {
+        Map<Integer, ByteArrayOutputStream> data = new LinkedHashMap<>();
+        while (!bodies.containsKey(streamId)) {
+            Http2Frame frame = Http2Frame.read(in, 16384);
+            assertNotNull(frame);
+            switch (frame.getType()) {
+                case Http2Frame.SETTINGS:
+                    if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                        Http2Frame.write(out, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0,
+                                new byte[0]);
+                        out.flush();
+                    }
+                    break;
+                case Http2Frame.HEADERS:
+                    Map<String, String> headers = new LinkedHashMap<>();
+                    decoder.decode(frame.getPayload(), 0, frame.getPayload().length,
+                            headers::put);
+                    assertEquals("200", headers.get(":status"));
+                    assertEquals("text/plain", headers.get("content-type"));
+                    assertFalse(headers.containsKey("connection"));
+                    break;
+                case Http2Frame.DATA:
+                    ByteArrayOutputStream body = data.computeIfAbsent(frame.getStreamId(),
+                            id -> new ByteArrayOutputStream());
+                    body.write(frame.getPayload(), 0, frame.getPayload().length);
+                    if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+                        bodies.put(frame.getStreamId(), body.toString("US-ASCII"));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
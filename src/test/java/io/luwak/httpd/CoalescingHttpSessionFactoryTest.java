@@ -0,0 +1,214 @@
+package io.luwak.httpd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.io.MemoryBudget;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpEntityLimits;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * Unit test for CoalescingHttpSessionFactory
+ *
+ */
+public class CoalescingHttpSessionFactoryTest {
+
+    private final AtomicInteger served = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private final HttpSessionFactory origin = acceptSocket -> new HttpSession() {
+
+        @Override
+        public HttpResponse serve(HttpRequest httpRequest) {
+            int count = served.incrementAndGet();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = ("response " + count + " "
+                    + httpRequest.getHeaders().get("accept-language"))
+                    .getBytes(StandardCharsets.UTF_8);
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Content-Length", Integer.toString(body.length));
+            // Streamed, so that it has to be read once to be shared
+            return new HttpResponse(DefaultHttpStatus.OK, headers,
+                    HttpEntity.fromStream(new ByteArrayInputStream(body), body.length, false));
+        }
+
+        @Override
+        public void onResponseSent(HttpResponse httpResponse) {
+        }
+    };
+
+    private static HttpRequest request(HttpMethod method, String language) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("accept-language", language);
+        return new HttpRequest(method, "/expensive", Collections.emptyMap(),
+                HttpRequest.DEFAULT_HTTP_VERSION, headers, null);
+    }
+
+    private static String read(HttpResponse response) throws IOException {
+        HttpEntity body = response.getEntityBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = body.getContent()) {
+            byte[] buffer = new byte[256];
+            int rlen;
+            while ((rlen = in.read(buffer)) != -1) {
+                out.write(buffer, 0, rlen);
+            }
+        }
+        finally {
+            body.release();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private List<Future<String>> serveConcurrently(CoalescingHttpSessionFactory factory,
+            HttpRequest... requests) throws InterruptedException {
+        List<Future<String>> results = new ArrayList<>();
+        for (HttpRequest request : requests) {
+            results.add(executor.submit(() -> read(factory.newInstance(null).serve(request))));
+        }
+        // Let the requests reach the factory before the first one completes
+        Thread.sleep(300);
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        CoalescingHttpSessionFactory factory = new CoalescingHttpSessionFactory(origin,
+                Arrays.asList("accept-language"));
+        HttpRequest[] requests = new HttpRequest[5];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = request(HttpMethod.GET, "en");
+        }
+        for (Future<String> result : serveConcurrently(factory, requests)) {
+            assertEquals("response 1 en", result.get());
+        }
+        assertEquals(1, served.get());
+        assertEquals(4, factory.getCoalescedRequests());
+        assertEquals(0, factory.getInFlight());
+
+        // Not in flight anymore: served again
+        assertEquals("response 2 en", read(factory.newInstance(null).serve(
+                request(HttpMethod.GET, "en"))));
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        CoalescingHttpSessionFactory factory = new CoalescingHttpSessionFactory(origin,
+                Arrays.asList("accept-language"));
+        List<Future<String>> results = serveConcurrently(factory,
+                request(HttpMethod.GET, "en"), request(HttpMethod.GET, "fr"),
+                request(HttpMethod.POST, "en"));
+        for (Future<String> result : results) {
+            result.get();
+        }
+        assertEquals(3, served.get());
+        assertEquals(0, factory.getCoalescedRequests());
+    }
+
+    @Test
+    public void testLimitsAndMemoryBudget() throws Exception {
+        HttpEntityLimits limits = new HttpEntityLimits();
+        CoalescingHttpSessionFactory factory = new CoalescingHttpSessionFactory(origin,
+                Arrays.asList("accept-language"), limits);
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        factory.setMemoryBudget(memoryBudget);
+        List<Future<HttpResponse>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(() -> factory.newInstance(null).serve(
+                    request(HttpMethod.GET, "en"))));
+        }
+        Thread.sleep(300);
+        release.countDown();
+        List<HttpResponse> responses = new ArrayList<>();
+        for (Future<HttpResponse> result : results) {
+            responses.add(result.get());
+        }
+        // The shared body is held once, within the budget of the factory
+        assertEquals("response 1 en".length(), memoryBudget.getUsed());
+        for (HttpResponse response : responses) {
+            assertEquals("response 1 en", read(response));
+        }
+        assertEquals(0, memoryBudget.getUsed());
+    }
+
+    @Test
+    public void testBodyTooLarge() throws Exception {
+        HttpEntityLimits limits = new HttpEntityLimits();
+        limits.setMaxBodySize(5);
+        CoalescingHttpSessionFactory factory = new CoalescingHttpSessionFactory(origin,
+                Arrays.asList("accept-language"), limits);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(() -> {
+                HttpResponse response = factory.newInstance(null).serve(
+                        request(HttpMethod.GET, "en"));
+                if (response.getEntityBody() != null) {
+                    response.getEntityBody().release();
+                }
+                return response.getStatus().getStatusCode();
+            }));
+        }
+        Thread.sleep(300);
+        release.countDown();
+        // The first request fails, the others are served on their own
+        int errors = 0;
+        for (Future<Integer> result : results) {
+            if (result.get() == 500) {
+                errors++;
+            }
+        }
+        assertEquals(1, errors);
+        assertEquals(3, served.get());
+    }
+
+    @Test
+    public void testSharedEntity() throws Exception {
+        HttpEntity entity = new HttpEntity("shared".getBytes(StandardCharsets.UTF_8), true, true);
+        HttpEntity first = entity.share();
+        HttpEntity second = entity.share();
+        entity.release();
+        first.release();
+        // Still readable until the last holder releases it
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        second.writeTo(out);
+        assertEquals(-1, second.getLength());
+        second.release();
+        assertEquals(true, out.size() > 0);
+    }
+}
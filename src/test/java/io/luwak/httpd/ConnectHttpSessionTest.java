@@ -0,0 +1,152 @@
+package io.luwak.httpd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.nio.TunnelManager;
+
+/**
+ * Unit test for ConnectHttpSession
+ *
+ */
+public class ConnectHttpSessionTest {
+
+    private ServerSocket echoServer;
+    private Thread echoThread;
+    private TunnelManager tunnelManager;
+    private ConnectHttpSessionFactory factory;
+    private LuwakHttpd proxy;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        // The upstream echoes everything it receives until the client shuts down its output
+        echoServer = new ServerSocket(0);
+        echoThread = new Thread(() -> {
+            while (!echoServer.isClosed()) {
+                try (Socket socket = echoServer.accept()) {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[1024];
+                    int rlen;
+                    while ((rlen = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, rlen);
+                    }
+                }
+                catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        echoThread.start();
+
+        tunnelManager = new TunnelManager();
+        factory = new ConnectHttpSessionFactory(tunnelManager);
+        factory.setAllowedPorts(Collections.singleton(echoServer.getLocalPort()));
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("*", EnumSet.of(HttpMethod.CONNECT), factory);
+        proxy = new LuwakHttpd("localhost", 0, 10, context);
+        proxy.startInBackground();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        proxy.stop();
+        tunnelManager.close();
+        echoServer.close();
+        echoThread.join();
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            head.write(b);
+            String s = head.toString("UTF-8");
+            if (s.endsWith("\r\n\r\n")) {
+                return s;
+            }
+        }
+        return head.toString("UTF-8");
+    }
+
+    private static String readFully(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int rlen = in.read(buffer, n, length - n);
+            if (rlen == -1) {
+                break;
+            }
+            n += rlen;
+        }
+        return new String(buffer, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private static String connectRequest(int port) {
+        return "CONNECT 127.0.0.1:" + port + " HTTP/1.1\r\nHost: 127.0.0.1:" + port + "\r\n\r\n";
+    }
+
+    @Test
+    public void testTunnel() throws Exception {
+        try (Socket socket = new Socket("localhost", proxy.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            // Bytes sent along with the request must not be lost
+            out.write((connectRequest(echoServer.getLocalPort()) + "hello")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String head = readHead(in);
+            assertTrue(head.startsWith("HTTP/1.1 200 Connection Established\r\n"), head);
+            assertEquals("hello", readFully(in, 5));
+
+            out.write("world".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("world", readFully(in, 5));
+            assertEquals(1, tunnelManager.getActiveTunnels());
+
+            // The half-close is propagated upstream, the echo server closes its side
+            socket.shutdownOutput();
+            assertEquals(-1, in.read());
+        }
+        for (int i = 0; i < 100 && tunnelManager.getActiveTunnels() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, tunnelManager.getActiveTunnels());
+        assertEquals(10, tunnelManager.getTotalBytesUpstream());
+        assertEquals(10, tunnelManager.getTotalBytesDownstream());
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        tunnelManager.setMaxTunnels(0);
+        assertEquals("HTTP/1.1 503 Service Unavailable", connect(echoServer.getLocalPort()));
+        tunnelManager.setMaxTunnels(1);
+        assertEquals("HTTP/1.1 403 Forbidden", connect(echoServer.getLocalPort() + 1));
+    }
+
+    private String connect(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", proxy.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(connectRequest(port).getBytes(StandardCharsets.UTF_8));
+            String head = readHead(socket.getInputStream());
+            return head.substring(0, head.indexOf("\r\n"));
+        }
+    }
+}
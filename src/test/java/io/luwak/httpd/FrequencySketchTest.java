@@ -0,0 +1,70 @@
+package io.luwak.httpd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for FrequencySketch
+ *
+ */
+public class FrequencySketchTest {
+
+    @Test
+    public void testFrequency() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("/a");
+        }
+        sketch.increment("/b");
+        assertEquals(5, sketch.frequency("/a"));
+        assertEquals(1, sketch.frequency("/b"));
+        assertEquals(0, sketch.frequency("/c"));
+
+        // Saturated at 15
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("/a");
+        }
+        assertEquals(15, sketch.frequency("/a"));
+    }
+
+    @Test
+    public void testAging() {
+        // Halved after 160 increments
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment("/a");
+        }
+        int i = 0;
+        while (sketch.frequency("/a") == 15) {
+            sketch.increment("/key" + i++);
+            assertTrue(i <= 160, "not halved");
+        }
+        assertEquals(7, sketch.frequency("/a"));
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            String key = "/" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 12; i++) {
+                    sketch.increment(key);
+                    sketch.increment("/shared");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // No increment is lost, the shared counters saturate
+        for (int t = 0; t < threads.length; t++) {
+            assertTrue(sketch.frequency("/" + t) >= 12);
+        }
+        assertEquals(15, sketch.frequency("/shared"));
+    }
+}
@@ -0,0 +1,96 @@
+package io.luwak.httpd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * Unit test for HttpSessionProvider
+ *
+ */
+public class HttpSessionProviderTest {
+
+    private static class CountingFactory implements HttpSessionFactory {
+
+        private final HttpSessionScope scope;
+        final AtomicInteger instances = new AtomicInteger();
+        final AtomicInteger connectionsClosed = new AtomicInteger();
+
+        CountingFactory(HttpSessionScope scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public HttpSession newInstance(Socket acceptSocket) {
+            instances.incrementAndGet();
+            return new HttpSession() {
+
+                @Override
+                public HttpResponse serve(HttpRequest httpRequest) {
+                    return null;
+                }
+
+                @Override
+                public void onResponseSent(HttpResponse httpResponse) {
+                }
+
+                @Override
+                public void onConnectionClosed() {
+                    connectionsClosed.incrementAndGet();
+                }
+            };
+        }
+
+        @Override
+        public HttpSessionScope getScope() {
+            return scope;
+        }
+    }
+
+    @Test
+    public void testScopes() throws Exception {
+        HttpSessionProvider provider = new HttpSessionProvider();
+        CountingFactory request = new CountingFactory(HttpSessionScope.REQUEST);
+        CountingFactory connection = new CountingFactory(HttpSessionScope.CONNECTION);
+        CountingFactory thread = new CountingFactory(HttpSessionScope.THREAD);
+        CountingFactory singleton = new CountingFactory(HttpSessionScope.SINGLETON);
+
+        for (int i = 0; i < 2; i++) {
+            HttpSessionProvider.Connection sessions = provider.connection(null);
+            assertNotSame(sessions.get(request), sessions.get(request));
+            assertSame(sessions.get(connection), sessions.get(connection));
+            assertSame(sessions.get(thread), sessions.get(thread));
+            assertSame(sessions.get(singleton), sessions.get(singleton));
+            sessions.closed();
+        }
+        assertEquals(4, request.instances.get());
+        assertEquals(2, connection.instances.get());
+        assertEquals(1, thread.instances.get());
+        assertEquals(1, singleton.instances.get());
+
+        // Notified once per connection, except the request sessions
+        assertEquals(0, request.connectionsClosed.get());
+        assertEquals(2, connection.connectionsClosed.get());
+        assertEquals(2, thread.connectionsClosed.get());
+        assertEquals(2, singleton.connectionsClosed.get());
+
+        // Another thread has its own thread-confined session, but shares the singleton
+        CompletableFuture.runAsync(() -> {
+            HttpSessionProvider.Connection sessions = provider.connection(null);
+            sessions.get(thread);
+            sessions.get(singleton);
+            sessions.closed();
+        }).get();
+        assertEquals(2, thread.instances.get());
+        assertEquals(1, singleton.instances.get());
+    }
+}
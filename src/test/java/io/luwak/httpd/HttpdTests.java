@@ -0,0 +1,42 @@
+package io.luwak.httpd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers shared by the tests running requests against a {@link LuwakHttpd}
+ *
+ */
+public final class HttpdTests {
+
+    private HttpdTests() {
+    }
+
+    /**
+     * Send a raw request on a new connection and read the response until the server closes the
+     * connection
+     *
+     * @param httpd the running server
+     * @param request the request, including its headers and body
+     * @return the raw response
+     * @throws IOException if the exchange fails or times out
+     */
+    public static String exchange(LuwakHttpd httpd, String request) throws IOException {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                response.write(buffer, 0, n);
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
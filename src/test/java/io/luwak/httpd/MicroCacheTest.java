@@ -0,0 +1,162 @@
+package io.luwak.httpd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.HttpServerStreams;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.http.message.SerializedHttpResponse;
+
+/**
+ * Unit test for MicroCache and MicroCachingHttpSessionFactory
+ *
+ */
+public class MicroCacheTest {
+
+    private final AtomicInteger served = new AtomicInteger();
+    private final AtomicLong now = new AtomicLong(1000000);
+
+    /** Responds with the number of requests served, varying on Accept-Language for /vary */
+    private final HttpSessionFactory origin = acceptSocket -> new HttpSession() {
+
+        @Override
+        public HttpResponse serve(HttpRequest httpRequest) {
+            String body = "served " + served.incrementAndGet();
+            Map<String, String> headers = new LinkedHashMap<>();
+            switch (httpRequest.getUriPath()) {
+                case "/vary":
+                    headers.put("Vary", "Accept-Language");
+                    body += " " + httpRequest.getHeaders().get("accept-language");
+                    break;
+                case "/cookie":
+                    headers.put("Set-Cookie", "id=1");
+                    break;
+                default:
+                    break;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            headers.put("Content-Length", Integer.toString(bytes.length));
+            return new HttpResponse(DefaultHttpStatus.OK, headers,
+                    new HttpEntity(bytes, false, false));
+        }
+
+        @Override
+        public void onResponseSent(HttpResponse httpResponse) {
+        }
+    };
+
+    private MicroCache newCache(long maxSize, int maxEntrySize) {
+        MicroCache cache = new MicroCache(maxSize, maxEntrySize);
+        cache.clock = now::get;
+        return cache;
+    }
+
+    private static String get(HttpSessionFactory factory, HttpMethod method, String path,
+            String language) throws Exception {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (language != null) {
+            headers.put("accept-language", language);
+        }
+        HttpResponse response = factory.newInstance(null).serve(new HttpRequest(method, path,
+                Collections.emptyMap(), HttpRequest.DEFAULT_HTTP_VERSION, headers, null));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HttpServerStreams(null, out).send(response, method != HttpMethod.HEAD);
+        String message = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        return message.substring(message.indexOf("\r\n\r\n") + 4);
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        MicroCache cache = newCache(MicroCache.DEFAULT_MAX_SIZE, MicroCache.DEFAULT_MAX_ENTRY_SIZE);
+        MicroCachingHttpSessionFactory factory = new MicroCachingHttpSessionFactory(origin,
+                cache, 1000);
+        assertEquals("served 1", get(factory, HttpMethod.GET, "/", null));
+        now.addAndGet(500);
+        assertEquals("served 1", get(factory, HttpMethod.GET, "/", null));
+        // HEAD is answered from the stored GET response
+        assertEquals("", get(factory, HttpMethod.HEAD, "/", null));
+        // The query is part of the key
+        assertEquals("served 2", get(factory, HttpMethod.GET, "/?page=2", null));
+
+        now.addAndGet(600);
+        assertEquals("served 3", get(factory, HttpMethod.GET, "/", null));
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void testVaryAndNotCacheable() throws Exception {
+        MicroCache cache = newCache(MicroCache.DEFAULT_MAX_SIZE, MicroCache.DEFAULT_MAX_ENTRY_SIZE);
+        MicroCachingHttpSessionFactory factory = new MicroCachingHttpSessionFactory(origin,
+                cache, 1000);
+        assertEquals("served 1 en", get(factory, HttpMethod.GET, "/vary", "en"));
+        assertEquals("served 2 fr", get(factory, HttpMethod.GET, "/vary", "fr"));
+        assertEquals("served 1 en", get(factory, HttpMethod.GET, "/vary", "en"));
+        assertEquals(2, cache.getEntryCount());
+
+        assertEquals("served 3", get(factory, HttpMethod.GET, "/cookie", null));
+        assertEquals("served 4", get(factory, HttpMethod.GET, "/cookie", null));
+        assertEquals("served 5", get(factory, HttpMethod.POST, "/", null));
+        assertEquals("served 6", get(factory, HttpMethod.POST, "/", null));
+    }
+
+    @Test
+    public void testAdmission() {
+        // Room for 3 responses of 300 bytes
+        MicroCache cache = newCache(1000, 500);
+        Map<String, String> headers = Collections.emptyMap();
+        for (int i = 1; i <= 3; i++) {
+            for (int j = 0; j < 5; j++) {
+                cache.get("/hot" + i, headers);
+            }
+            cache.put("/hot" + i, headers, new String[0], response(), 10000);
+        }
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(900, cache.getSize());
+
+        // Requested less often than the responses it would evict
+        assertNull(cache.get("/cold", headers));
+        cache.put("/cold", headers, new String[0], response(), 10000);
+        assertEquals(1, cache.getRejections());
+        assertNull(cache.get("/cold", headers));
+        assertNotNull(cache.get("/hot1", headers));
+
+        // Once it is requested more often, the oldest response is evicted
+        for (int j = 0; j < 10; j++) {
+            cache.get("/cold", headers);
+        }
+        SerializedHttpResponse response = response();
+        cache.put("/cold", headers, new String[0], response, 10000);
+        assertSame(response, cache.get("/cold", headers));
+        assertNull(cache.get("/hot1", headers));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(4, cache.getAdmissions());
+
+        // Expired responses make room first
+        now.addAndGet(20000);
+        cache.put("/new", headers, new String[0], response(), 10000);
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    private static SerializedHttpResponse response() {
+        return new SerializedHttpResponse(HttpResponse.DEFAULT_HTTP_VERSION,
+                DefaultHttpStatus.OK, Collections.emptyMap(), new byte[300], 19);
+    }
+}
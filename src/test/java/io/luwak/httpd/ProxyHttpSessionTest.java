@@ -0,0 +1,345 @@
+package io.luwak.httpd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.cache.HttpCache;
+import io.luwak.http.client.HttpHost;
+import io.luwak.http.client.LuwakHttpClient;
+import io.luwak.http.client.balancer.UpstreamGroup;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * Unit test for ProxyHttpSession
+ *
+ */
+public class ProxyHttpSessionTest {
+
+    private LuwakHttpd upstream;
+    private LuwakHttpd proxy;
+    private LuwakHttpClient client;
+    private ProxyHttpSessionFactory proxyFactory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        // The upstream echoes the request headers and body
+        DefaultHttpdContext upstreamContext = new DefaultHttpdContext();
+        upstreamContext.addHttpSessionFactory("*", EnumSet.allOf(HttpMethod.class),
+                acceptSocket -> new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        for (Map.Entry<String, String> entry
+                                : httpRequest.getHeaders().entrySet()) {
+                            headers.put("X-Echo-" + entry.getKey(), entry.getValue());
+                        }
+                        headers.put("Connection", "X-Private");
+                        headers.put("X-Private", "hidden");
+                        byte[] body = httpRequest.getEntityBody() != null
+                                ? read(httpRequest.getEntityBody()) : new byte[0];
+                        headers.put("Content-Length", Integer.toString(body.length));
+                        return new HttpResponse(DefaultHttpStatus.OK, headers,
+                                new HttpEntity(body, false, false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        upstream = new LuwakHttpd("localhost", 0, 10, upstreamContext);
+        upstream.startInBackground();
+
+        proxyFactory = new ProxyHttpSessionFactory(
+                new HttpHost("localhost", upstream.getLocalPort()));
+        proxy = startProxy(proxyFactory);
+        client = new LuwakHttpClient();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        proxyFactory.getHttpClient().close();
+        proxy.stop();
+        upstream.stop();
+    }
+
+    private static LuwakHttpd startProxy(ProxyHttpSessionFactory factory) throws IOException {
+        DefaultHttpdContext proxyContext = new DefaultHttpdContext();
+        proxyContext.addHttpSessionFactory("*", EnumSet.allOf(HttpMethod.class), factory,
+                ProxyHttpSessionFactory.newRouteConfig());
+        LuwakHttpd httpd = new LuwakHttpd("localhost", 0, 10, proxyContext);
+        httpd.startInBackground();
+        return httpd;
+    }
+
+    private static byte[] read(HttpEntity entity) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = entity.getContent()) {
+            byte[] buffer = new byte[1024];
+            int rlen;
+            while ((rlen = in.read(buffer)) != -1) {
+                out.write(buffer, 0, rlen);
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private HttpHost proxyHost() {
+        return new HttpHost("localhost", proxy.getLocalPort());
+    }
+
+    /** Start an upstream answering cacheable responses numbered by the specified counter */
+    private static LuwakHttpd startCacheableUpstream(AtomicInteger counter) throws IOException {
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("*", EnumSet.allOf(HttpMethod.class),
+                acceptSocket -> new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        byte[] body = (httpRequest.getHeaders().get("host") + " "
+                                + counter.incrementAndGet()).getBytes(StandardCharsets.US_ASCII);
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        headers.put("Cache-Control", "max-age=60");
+                        headers.put("Content-Length", Integer.toString(body.length));
+                        return new HttpResponse(DefaultHttpStatus.OK, headers,
+                                new HttpEntity(body, false, false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        LuwakHttpd httpd = new LuwakHttpd("localhost", 0, 10, context);
+        httpd.startInBackground();
+        return httpd;
+    }
+
+    private String send(LuwakHttpd httpd, HttpMethod method, String host) throws Exception {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Host", host);
+        HttpResponse response = client.execute(new HttpHost("localhost", httpd.getLocalPort()),
+                new HttpRequest(method, "/page", Collections.emptyMap(),
+                        HttpRequest.DEFAULT_HTTP_VERSION, headers, null));
+        assertEquals(200, response.getStatus().getStatusCode());
+        return new String(read(response.getEntityBody()), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testHeaders() throws Exception {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Connection", "X-Hop");
+        headers.put("X-Hop", "1");
+        headers.put("X-End", "2");
+        HttpResponse response = client.execute(proxyHost(), new HttpRequest(HttpMethod.GET,
+                "/path", Collections.emptyMap(), HttpRequest.DEFAULT_HTTP_VERSION, headers, null));
+        response.getEntityBody().release();
+        Map<String, String> responseHeaders = response.getHeaders();
+
+        assertEquals(200, response.getStatus().getStatusCode());
+        assertEquals("2", responseHeaders.get("x-echo-x-end"));
+        assertNull(responseHeaders.get("x-echo-x-hop"));
+        assertEquals("localhost:" + upstream.getLocalPort(), responseHeaders.get("x-echo-host"));
+        assertEquals("localhost:" + proxy.getLocalPort(),
+                responseHeaders.get("x-echo-x-forwarded-host"));
+        assertEquals("127.0.0.1", responseHeaders.get("x-echo-x-forwarded-for"));
+        assertEquals("1.1 luwak", responseHeaders.get("x-echo-via"));
+        assertEquals("1.1 luwak", responseHeaders.get("via"));
+        assertNull(responseHeaders.get("x-private"));
+    }
+
+    @Test
+    public void testChunkedRequestBody() throws Exception {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        HttpEntity body = new HttpEntity(content, true, false);
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Transfer-Encoding", "chunked");
+        HttpResponse response = client.execute(proxyHost(), new HttpRequest(HttpMethod.POST,
+                "/upload", Collections.emptyMap(), HttpRequest.DEFAULT_HTTP_VERSION, headers,
+                body));
+        assertEquals("chunked", response.getHeaders().get("x-echo-transfer-encoding"));
+        assertEquals(new String(content), new String(read(response.getEntityBody())));
+        response.getEntityBody().release();
+    }
+
+    @Test
+    public void testResponseStreamed() throws Exception {
+        CountDownLatch firstChunkReceived = new CountDownLatch(1);
+        try (ServerSocket serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    InputStream in = socket.getInputStream();
+                    int state = 0;
+                    while (state < 4) {
+                        int b = in.read();
+                        state = (b == '\r' && state % 2 == 0) || (b == '\n' && state % 2 == 1)
+                                ? state + 1 : 0;
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                            + "5\r\nfirst\r\n").getBytes());
+                    out.flush();
+                    // The rest is only sent once the client has received the first chunk
+                    firstChunkReceived.await(5, TimeUnit.SECONDS);
+                    out.write("6\r\nsecond\r\n0\r\n\r\n".getBytes());
+                    out.flush();
+                }
+                catch (IOException | InterruptedException e) {
+                    // closed
+                }
+            });
+            serverThread.start();
+
+            ProxyHttpSessionFactory factory = new ProxyHttpSessionFactory(
+                    new HttpHost("127.0.0.1", serverSocket.getLocalPort()));
+            LuwakHttpd streamingProxy = startProxy(factory);
+            try {
+                HttpResponse response = client.executeStreaming(
+                        new HttpHost("localhost", streamingProxy.getLocalPort()),
+                        new HttpRequest(HttpMethod.GET, "/", Collections.emptyMap(),
+                                HttpRequest.DEFAULT_HTTP_VERSION, new LinkedHashMap<>(), null));
+                assertEquals("chunked", response.getHeaders().get("transfer-encoding"));
+                InputStream in = response.getEntityBody().getContent();
+                byte[] first = new byte[5];
+                int n = 0;
+                while (n < first.length) {
+                    n += in.read(first, n, first.length - n);
+                }
+                assertEquals("first", new String(first));
+                assertFalse(firstChunkReceived.getCount() == 0);
+                firstChunkReceived.countDown();
+                ByteArrayOutputStream rest = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1) {
+                    rest.write(b);
+                }
+                assertEquals("second", rest.toString());
+                response.getEntityBody().release();
+            }
+            finally {
+                firstChunkReceived.countDown();
+                streamingProxy.stop();
+                factory.getHttpClient().close();
+            }
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testUpstreamDown() throws Exception {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = serverSocket.getLocalPort();
+        }
+        ProxyHttpSessionFactory factory = new ProxyHttpSessionFactory(
+                new HttpHost("127.0.0.1", port));
+        LuwakHttpd downProxy = startProxy(factory);
+        try {
+            HttpResponse response = client.execute(
+                    new HttpHost("localhost", downProxy.getLocalPort()),
+                    new HttpRequest(HttpMethod.GET, "/", Collections.emptyMap(),
+                            HttpRequest.DEFAULT_HTTP_VERSION, new LinkedHashMap<>(), null));
+            assertEquals(502, response.getStatus().getStatusCode());
+            assertTrue(response.getEntityBody() == null
+                    || response.getEntityBody().getLength() == 0);
+        }
+        finally {
+            downProxy.stop();
+        }
+    }
+
+    @Test
+    public void testCacheKeyOfVirtualHosts() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        LuwakHttpd origin = startCacheableUpstream(counter);
+        HttpCache cache = new HttpCache();
+        ProxyHttpSessionFactory factory = new ProxyHttpSessionFactory(
+                new HttpHost("localhost", origin.getLocalPort()));
+        factory.setPreserveHost(true);
+        factory.setHttpCache(cache);
+        LuwakHttpd cachingProxy = startProxy(factory);
+        try {
+            assertEquals("a.example 1", send(cachingProxy, HttpMethod.GET, "a.example"));
+            assertEquals("b.example 2", send(cachingProxy, HttpMethod.GET, "b.example"));
+            assertEquals("a.example 1", send(cachingProxy, HttpMethod.GET, "A.example"));
+            assertEquals("b.example 2", send(cachingProxy, HttpMethod.GET, "b.example"));
+            assertEquals(2, counter.get());
+        }
+        finally {
+            cachingProxy.stop();
+            factory.setHttpCache(null);
+            cache.close();
+            factory.getHttpClient().close();
+            origin.stop();
+        }
+    }
+
+    @Test
+    public void testCacheKeyOfUpstreamGroup() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        LuwakHttpd first = startCacheableUpstream(counter);
+        LuwakHttpd second = startCacheableUpstream(counter);
+        HttpHost firstHost = new HttpHost("localhost", first.getLocalPort());
+        UpstreamGroup group = new UpstreamGroup(firstHost,
+                new HttpHost("localhost", second.getLocalPort()));
+        HttpCache cache = new HttpCache();
+        ProxyHttpSessionFactory factory = new ProxyHttpSessionFactory(group);
+        factory.setHttpCache(cache);
+        LuwakHttpd cachingProxy = startProxy(factory);
+        try {
+            // Whichever server is chosen, the requests share the same entry
+            String body = send(cachingProxy, HttpMethod.GET, "www.example");
+            for (int i = 0; i < 4; i++) {
+                assertEquals(body, send(cachingProxy, HttpMethod.GET, "www.example"));
+            }
+            assertEquals(1, counter.get());
+
+            // An unsafe request invalidates the entry, whichever server it is sent to
+            send(cachingProxy, HttpMethod.POST, "www.example");
+            send(cachingProxy, HttpMethod.GET, "www.example");
+            assertEquals(3, counter.get());
+            assertEquals(4, cache.getStatistics().getHits());
+        }
+        finally {
+            cachingProxy.stop();
+            factory.setHttpCache(null);
+            cache.close();
+            factory.getHttpClient().close();
+            group.close();
+            first.stop();
+            second.stop();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.luwak.httpd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+
+/**
+ * Unit test for TlsConfig
+ *
+ */
+public class TlsConfigTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private File keyStoreFile;
+    private TlsConfig tlsConfig;
+    private LuwakHttpd httpd;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // Self-signed certificate generated for the test
+        keyStoreFile = new File(Files.createTempDirectory("luwak-tls").toFile(), "server.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "luwak",
+                "-keyalg", "EC", "-dname", "CN=localhost", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keyStoreFile.getPath(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true).start();
+        assertEquals(0, process.waitFor());
+
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET), acceptSocket ->
+                new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        headers.put("Content-Length", "5");
+                        return new HttpResponse(DefaultHttpStatus.OK, headers, new HttpEntity(
+                                "hello".getBytes(StandardCharsets.US_ASCII), false, false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        tlsConfig = new TlsConfig(keyStoreFile, "PKCS12", PASSWORD);
+        tlsConfig.setProtocols("TLSv1.2");
+        httpd = new LuwakHttpd("localhost", 0, 10, context);
+        httpd.setTlsConfig(tlsConfig);
+        httpd.startInBackground();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        httpd.stop();
+        keyStoreFile.delete();
+        keyStoreFile.getParentFile().delete();
+    }
+
+    private String get(SSLContext client) throws IOException {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost",
+                httpd.getLocalPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            int c;
+            while (!response.toString("US-ASCII").endsWith("hello") && (c = in.read()) != -1) {
+                response.write(c);
+            }
+            return response.toString("US-ASCII");
+        }
+    }
+
+    @Test
+    public void testResumption() throws Exception {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        // The client trusts the self-signed certificate
+        trustManagerFactory.init(loadKeyStore());
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, trustManagerFactory.getTrustManagers(), null);
+
+        assertTrue(get(client).startsWith("HTTP/1.1 200"));
+        // The client offers the session of the first connection
+        assertTrue(get(client).startsWith("HTTP/1.1 200"));
+
+        TlsStatistics statistics = tlsConfig.getStatistics();
+        assertEquals(1, statistics.getFullHandshakes());
+        assertEquals(1, statistics.getResumedHandshakes());
+        assertEquals(0.5, statistics.getResumptionRatio(), 0.001);
+        assertTrue(statistics.getMaxHandshakeMillis() > 0);
+
+        // Plain HTTP on the HTTPS port
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals(-1, drain(socket.getInputStream()));
+        }
+        // The connection is closed by the SSLSocket before the failure is counted
+        for (int i = 0; i < 100 && statistics.getFailedHandshakes() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, statistics.getFailedHandshakes());
+    }
+
+    private KeyStore loadKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStoreFile.toPath())) {
+            keyStore.load(in, PASSWORD);
+        }
+        return keyStore;
+    }
+
+    /** Read until the end of the stream, the server sends an alert before closing */
+    private static int drain(InputStream in) throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c != -1);
+        return c;
+    }
+}
@@ -0,0 +1,145 @@
+package io.luwak.jfr;
+
+import static io.luwak.httpd.HttpdTests.exchange;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.io.SpoolManager;
+import io.luwak.http.io.SpoolingOutputStream;
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Unit test for LuwakEvents
+ *
+ */
+public class LuwakEventsTest {
+
+    @Test
+    public void testRequestEvents() throws Exception {
+        assertTrue(LuwakEvents.isAvailable());
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("/hello", EnumSet.of(HttpMethod.GET),
+                acceptSocket -> new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        headers.put("Content-Length", "5");
+                        return new HttpResponse(DefaultHttpStatus.OK, headers,
+                                new HttpEntity("hello".getBytes(StandardCharsets.US_ASCII), false,
+                                        false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("io.luwak.Connection");
+            recording.enable("io.luwak.Request");
+            recording.start();
+            LuwakHttpd httpd = new LuwakHttpd("localhost", 0, 10, context);
+            httpd.startInBackground();
+            try {
+                String response = exchange(httpd, "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        + "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            }
+            finally {
+                httpd.stop();
+            }
+            recording.stop();
+            events = readEvents(recording);
+        }
+
+        RecordedEvent connection = find(events, "io.luwak.Connection");
+        assertNotNull(connection, events.toString());
+        assertEquals(2, connection.getInt("requests"));
+        assertTrue(connection.getLong("bytesReceived") > 0);
+        assertTrue(connection.getLong("bytesSent") > 10);
+
+        RecordedEvent request = find(events, "io.luwak.Request");
+        assertNotNull(request, events.toString());
+        assertEquals("GET", request.getString("method"));
+        assertEquals("/hello", request.getString("route"));
+        assertEquals(200, request.getInt("statusCode"));
+        assertTrue(request.getLong("bytesSent") > 5);
+        assertEquals(2, events.stream()
+                .filter(event -> event.getEventType().getName().equals("io.luwak.Request"))
+                .count());
+    }
+
+    @Test
+    public void testSpillEvents() throws Exception {
+        File spoolDir = Files.createTempDirectory("spool-test").toFile();
+        SpoolManager spoolManager = new SpoolManager(spoolDir, 1024 * 1024, 1024 * 1024, 0);
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("io.luwak.Spill");
+            recording.enable("io.luwak.SpoolFile");
+            recording.start();
+            SpoolingOutputStream out = new SpoolingOutputStream(-1, 100, -1, null,
+                    spoolManager);
+            out.write(new byte[80], 0, 80);
+            out.write(new byte[80], 0, 80);
+            out.close();
+            out.discard();
+            recording.stop();
+            events = readEvents(recording);
+        }
+        finally {
+            spoolDir.delete();
+        }
+
+        RecordedEvent spill = find(events, "io.luwak.Spill");
+        assertNotNull(spill);
+        assertEquals(80, spill.getLong("bytes"));
+        RecordedEvent spoolFile = find(events, "io.luwak.SpoolFile");
+        assertNotNull(spoolFile);
+        assertEquals(spill.getString("path"), spoolFile.getString("path"));
+    }
+
+    private static List<RecordedEvent> readEvents(Recording recording) throws IOException {
+        Path file = Files.createTempFile("luwak", ".jfr");
+        try {
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String name) {
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                return event;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,55 @@
+package io.luwak.loadgen;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for LatencyHistogram
+ *
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean(), 1);
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 5_000_000 && median < 5_000_000 * 1.01, "median " + median);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 9_900_000 && p99 < 9_900_000 * 1.01, "p99 " + p99);
+        assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(20_000_000);
+        histogram.add(other);
+        assertEquals(10_001, histogram.getCount());
+        assertEquals(20_000_000, histogram.getMax());
+    }
+
+    @Test
+    public void testCoordinatedOmission() {
+        // 99 responses of 1 ms, then a stall of 100 ms
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1_000_000);
+        }
+        histogram.record(100_000_000);
+        assertTrue(histogram.getValueAtPercentile(90) < 1_010_000);
+
+        // The 99 requests which would have been sent during the stall waited for it
+        LatencyHistogram corrected = histogram.copyCorrectedForCoordinatedOmission(1_000_000);
+        assertEquals(199, corrected.getCount(), 1);
+        assertEquals(100_000_000, corrected.getMax());
+        long p75 = corrected.getValueAtPercentile(75);
+        assertTrue(p75 > 40_000_000 && p75 < 60_000_000, "p75 " + p75);
+        assertEquals(100, histogram.copyCorrectedForCoordinatedOmission(0).getCount());
+    }
+}
@@ -0,0 +1,124 @@
+package io.luwak.loadgen;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for LoadGenerator
+ *
+ */
+public class LoadGeneratorTest {
+
+    private static LuwakHttpd startHttpd() throws IOException {
+        byte[] body = "Hello".getBytes(StandardCharsets.US_ASCII);
+        DefaultHttpdContext httpdContext = new DefaultHttpdContext();
+        HttpSession session = new HttpSession() {
+
+            @Override
+            public HttpResponse serve(HttpRequest httpRequest) {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Length", Integer.toString(body.length));
+                return new HttpResponse(httpRequest.getMethod() == HttpMethod.POST
+                        ? DefaultHttpStatus.CREATED : DefaultHttpStatus.OK, headers,
+                        new HttpEntity(body, false, false));
+            }
+
+            @Override
+            public void onResponseSent(HttpResponse httpResponse) {
+            }
+        };
+        httpdContext.addHttpSessionFactory("*", EnumSet.of(HttpMethod.GET, HttpMethod.POST),
+                acceptSocket -> session);
+        LuwakHttpd httpd = new LuwakHttpd("localhost", 0, 8, httpdContext);
+        httpd.startInBackground();
+        return httpd;
+    }
+
+    @Test
+    public void testClosedLoop() throws Exception {
+        LuwakHttpd httpd = startHttpd();
+        try {
+            RequestMix mix = RequestMix.parse(new StringReader("# test mix\n"
+                    + "3 GET /hello?name=luwak\n"
+                    + "1 POST /items {\"name\":\"luwak\"}\n"
+                    + "    Content-Type: application/json\n"));
+            assertEquals(2, mix.size());
+            LoadGenerator generator = new LoadGenerator("localhost", httpd.getLocalPort(), mix);
+            generator.setConnections(2);
+            generator.setPipelineDepth(4);
+            generator.setWarmup(100);
+            generator.setDuration(500);
+            LoadReport report = generator.run();
+
+            assertEquals("closed", report.getMode());
+            assertEquals(0, report.getErrors());
+            assertTrue(report.getRequests() > 0);
+            long ok = report.getStatusCodes().getOrDefault(200, 0L);
+            long created = report.getStatusCodes().getOrDefault(
+                    DefaultHttpStatus.CREATED.getStatusCode(), 0L);
+            assertEquals(report.getRequests(), ok + created);
+            assertTrue(created > 0 && ok > created, ok + " OK, " + created + " CREATED");
+            assertEquals(report.getRequests(), report.getServiceTime().getCount());
+            assertTrue(report.getLatency().getCount() >= report.getRequests());
+            assertTrue(report.getBytesSent() > 0 && report.getBytesReceived() > 0);
+            String json = report.toJson();
+            assertTrue(json.contains("\"mode\": \"closed\""), json);
+            assertTrue(json.contains("\"p99.9\": "), json);
+        }
+        finally {
+            httpd.stop();
+        }
+    }
+
+    @Test
+    public void testOpenLoop() throws Exception {
+        LuwakHttpd httpd = startHttpd();
+        try {
+            LoadGenerator generator = new LoadGenerator("localhost", httpd.getLocalPort(),
+                    RequestMix.of("/hello"));
+            generator.setConnections(2);
+            generator.setRate(200);
+            generator.setKeepAlive(false);
+            generator.setWarmup(100);
+            generator.setDuration(500);
+            LoadReport report = generator.run();
+
+            // 100 requests are scheduled in the measured period
+            assertEquals("open", report.getMode());
+            assertEquals(0, report.getErrors());
+            assertEquals(100, report.getRequests(), 2);
+            assertEquals(report.getRequests(), report.getLatency().getCount());
+            assertTrue(report.getLatency().getMax() >= report.getServiceTime().getMax());
+        }
+        finally {
+            httpd.stop();
+        }
+    }
+
+    @Test
+    public void testMalformedScript() {
+        assertThrows(IOException.class,
+                () -> RequestMix.parse(new StringReader("1 FETCH /hello\n")));
+        assertThrows(IOException.class,
+                () -> RequestMix.parse(new StringReader("    Accept: */*\n1 GET /\n")));
+    }
+}
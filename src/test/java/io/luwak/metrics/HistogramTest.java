@@ -0,0 +1,43 @@
+package io.luwak.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for Histogram
+ *
+ */
+public class HistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500000L, histogram.getSum());
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 500000 && median < 500000 * 1.125, Long.toString(median));
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 990000 && p99 < 990000 * 1.125, Long.toString(p99));
+        assertEquals(0, new Histogram().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testCountAtOrBelow() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(10);
+        histogram.record(1000);
+        histogram.record(1100);
+        assertEquals(1, histogram.getCountAtOrBelow(0));
+        assertEquals(2, histogram.getCountAtOrBelow(10));
+        // 1000 and 1100 share the bucket [1024, 1152), 1000 is in [960, 1024)
+        assertEquals(3, histogram.getCountAtOrBelow(1100));
+        assertEquals(4, histogram.getCountAtOrBelow(1151));
+        assertEquals(0, histogram.getCountAtOrBelow(-1));
+    }
+}
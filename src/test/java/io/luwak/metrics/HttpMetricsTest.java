@@ -0,0 +1,112 @@
+package io.luwak.metrics;
+
+import static io.luwak.httpd.HttpdTests.exchange;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpRoute;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+import io.luwak.httpd.MicroCache;
+
+/**
+ * Unit test for HttpMetrics
+ *
+ */
+public class HttpMetricsTest {
+
+    @Test
+    public void testScrapeFormat() {
+        HttpMetrics metrics = new HttpMetrics();
+        HttpRoute route = new HttpRoute("/a\"b", EnumSet.of(HttpMethod.GET),
+                acceptSocket -> null, null);
+        metrics.recordRequest(route, 200, 300000);
+        metrics.recordRequest(route, 200, 2000000);
+        metrics.recordRequest(null, 404, 50000);
+        metrics.registerMicroCache("first", new MicroCache());
+        metrics.registerMicroCache("second", new MicroCache());
+        metrics.registerGauge("test_gauge", "A gauge", () -> 2.5);
+
+        String text = metrics.scrape();
+        String labels = "route=\"/a\\\"b\",status=\"200\"";
+        assertTrue(text.contains("luwak_http_request_duration_seconds_bucket{" + labels
+                + ",le=\"2.5E-4\"} 0\n"), text);
+        assertTrue(text.contains("luwak_http_request_duration_seconds_bucket{" + labels
+                + ",le=\"5.0E-4\"} 1\n"), text);
+        assertTrue(text.contains("luwak_http_request_duration_seconds_bucket{" + labels
+                + ",le=\"+Inf\"} 2\n"), text);
+        assertTrue(text.contains("luwak_http_request_duration_seconds_count{" + labels
+                + "} 2\n"), text);
+        assertTrue(text.contains("luwak_http_request_duration_seconds_count{route=\"\","
+                + "status=\"404\"} 1\n"), text);
+        assertTrue(text.contains("test_gauge 2.5\n"), text);
+
+        // The samples of a metric follow its HELP line
+        int help = text.indexOf("# HELP luwak_microcache_hits_total");
+        assertEquals(help, text.lastIndexOf("# HELP luwak_microcache_hits_total"));
+        assertTrue(text.indexOf("luwak_microcache_hits_total{cache=\"first\"} 0\n") > help);
+        assertTrue(text.indexOf("luwak_microcache_hits_total{cache=\"second\"} 0\n") > help);
+    }
+
+    @Test
+    public void testServerMetrics() throws Exception {
+        HttpMetrics metrics = new HttpMetrics();
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("/hello", EnumSet.of(HttpMethod.GET),
+                acceptSocket -> new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        byte[] body = "hello".getBytes(StandardCharsets.US_ASCII);
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        headers.put("Content-Length", Integer.toString(body.length));
+                        return new HttpResponse(DefaultHttpStatus.OK, headers,
+                                new HttpEntity(body, false, false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        context.addHttpSessionFactory("/metrics", EnumSet.of(HttpMethod.GET),
+                new MetricsHttpSessionFactory(metrics));
+        LuwakHttpd httpd = new LuwakHttpd("localhost", 0, 10, context);
+        httpd.setMetrics(metrics);
+        httpd.startInBackground();
+        try {
+            String hello = exchange(httpd, "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(hello.startsWith("HTTP/1.1 200"), hello);
+            String scrape = exchange(httpd, "GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(scrape.contains("Content-Type: " + MetricsHttpSessionFactory.CONTENT_TYPE),
+                    scrape);
+            assertTrue(scrape.contains("luwak_http_request_duration_seconds_count{"
+                    + "route=\"/hello\",status=\"200\"} 1\n"), scrape);
+            assertTrue(scrape.contains("luwak_executor_queue_depth 0\n"), scrape);
+            assertTrue(scrape.contains("luwak_http_connections_total 2\n"), scrape);
+
+            exchange(httpd, "BREW /pot HTTP/1.1\r\n\r\n");
+            assertEquals(1, metrics.getParseErrors());
+            HttpRoute route = context.getHttpRoute("/hello", HttpMethod.GET);
+            assertNotNull(metrics.getHistogram(route, 200));
+            assertTrue(metrics.getReceivedBytes() > 0);
+            assertTrue(metrics.getSentBytes() > hello.length());
+        }
+        finally {
+            httpd.stop();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package io.luwak.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for LogLinearBuckets
+ *
+ */
+public class LogLinearBucketsTest {
+
+    @Test
+    public void testBucketBounds() {
+        // The precisions of the metrics and of the load generator
+        for (int subBucketBits : new int[] { 3, 7 }) {
+            LogLinearBuckets buckets = new LogLinearBuckets(subBucketBits);
+            int subBucketCount = 1 << subBucketBits;
+            int bucketCount = buckets.getBucketCount();
+            assertEquals((64 - subBucketBits) * subBucketCount, bucketCount);
+            assertEquals(bucketCount - 1, buckets.bucketIndex(Long.MAX_VALUE));
+            assertEquals(Long.MAX_VALUE, buckets.highestValue(bucketCount - 1));
+            for (int i = 1; i < bucketCount; i++) {
+                long lower = buckets.lowerBound(i);
+                assertEquals(i, buckets.bucketIndex(lower));
+                assertEquals(i - 1, buckets.bucketIndex(lower - 1));
+                assertEquals(lower - 1, buckets.highestValue(i - 1));
+                // Relative width below 2^-subBucketBits
+                if (i >= 2 * subBucketCount && i < bucketCount - 1) {
+                    assertTrue(buckets.lowerBound(i + 1) - lower <= lower / subBucketCount);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidPrecision() {
+        assertThrows(IllegalArgumentException.class, () -> new LogLinearBuckets(0));
+        assertThrows(IllegalArgumentException.class, () -> new LogLinearBuckets(17));
+    }
+}
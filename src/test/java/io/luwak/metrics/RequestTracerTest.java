@@ -0,0 +1,120 @@
+package io.luwak.metrics;
+
+import static io.luwak.httpd.HttpdTests.exchange;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.DefaultHttpStatus;
+import io.luwak.http.message.HttpEntity;
+import io.luwak.http.message.HttpMethod;
+import io.luwak.http.message.HttpRequest;
+import io.luwak.http.message.HttpResponse;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.HttpSession;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for RequestTracer
+ *
+ */
+public class RequestTracerTest {
+
+    @Test
+    public void testTrace() {
+        RequestTrace trace = new RequestTrace();
+        trace.begin(System.nanoTime());
+        trace.setDuration(RequestPhase.QUEUE, 5000000);
+        trace.setDuration(RequestPhase.PARSE, 1000000);
+        trace.setDuration(RequestPhase.SERVE, 2500000);
+        trace.describe(HttpMethod.GET, "/items", "/items", 200);
+        assertEquals(3500000, trace.getTotalDuration());
+        assertEquals("GET /items 200 3.500 ms [queue=5.000 parse=1.000 route=0.000 body=0.000"
+                + " serve=2.500 write=0.000 complete=0.000]", trace.toString());
+
+        RequestTrace copy = trace.copy();
+        trace.begin(System.nanoTime());
+        assertEquals(0, trace.getDuration(RequestPhase.SERVE));
+        assertEquals(2500000, copy.getDuration(RequestPhase.SERVE));
+
+        RequestTracer tracer = new RequestTracer();
+        tracer.complete(copy);
+        tracer.complete(trace);
+        // A request without queue phase is not recorded as queued for 0 ns
+        assertEquals(1, tracer.getHistogram(RequestPhase.QUEUE).getCount());
+        assertEquals(2, tracer.getHistogram(RequestPhase.SERVE).getCount());
+        assertEquals(2, tracer.getTotalHistogram().getCount());
+    }
+
+    @Test
+    public void testServerTracing() throws Exception {
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("/slow", EnumSet.of(HttpMethod.GET),
+                acceptSocket -> new HttpSession() {
+
+                    @Override
+                    public HttpResponse serve(HttpRequest httpRequest) {
+                        try {
+                            Thread.sleep(20);
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        Map<String, String> headers = new LinkedHashMap<>();
+                        headers.put("Content-Length", "2");
+                        return new HttpResponse(DefaultHttpStatus.OK, headers,
+                                new HttpEntity("ok".getBytes(StandardCharsets.US_ASCII), false,
+                                        false));
+                    }
+
+                    @Override
+                    public void onResponseSent(HttpResponse httpResponse) {
+                    }
+                });
+        List<RequestTrace> traces = Collections.synchronizedList(new ArrayList<>());
+        RequestTracer tracer = new RequestTracer();
+        tracer.setSlowThreshold(10);
+        tracer.setSampling(1, traces::add);
+        LuwakHttpd httpd = new LuwakHttpd("localhost", 0, 10, context);
+        httpd.setRequestTracer(tracer);
+        httpd.startInBackground();
+        try {
+            String response = exchange(httpd, "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.contains("HTTP/1.1 404"), response);
+        }
+        finally {
+            httpd.stop();
+        }
+
+        assertEquals(2, traces.size());
+        RequestTrace slow = traces.get(0);
+        assertEquals("/slow", slow.getRoute());
+        assertEquals(200, slow.getStatusCode());
+        assertTrue(slow.getDuration(RequestPhase.QUEUE) > 0, slow.toString());
+        assertTrue(slow.getDuration(RequestPhase.SERVE) >= TimeUnit.MILLISECONDS.toNanos(20),
+                slow.toString());
+        assertTrue(slow.getTotalDuration() >= slow.getDuration(RequestPhase.SERVE));
+
+        RequestTrace missing = traces.get(1);
+        assertEquals("/missing", missing.getUriPath());
+        assertNull(missing.getRoute());
+        assertEquals(404, missing.getStatusCode());
+        // Only the first request of a connection waits in the queue
+        assertEquals(0, missing.getDuration(RequestPhase.QUEUE));
+        assertEquals(1, tracer.getHistogram(RequestPhase.QUEUE).getCount());
+        assertEquals(2, tracer.getHistogram(RequestPhase.PARSE).getCount());
+    }
+}
@@ -0,0 +1,204 @@
+package io.luwak.sse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.HttpMethod;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for SseManager
+ *
+ */
+public class SseTest {
+
+    private SseManager manager;
+    private LuwakHttpd httpd;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        manager = new SseManager();
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("/events", EnumSet.of(HttpMethod.GET),
+                new SseHttpSessionFactory(manager));
+        httpd = new LuwakHttpd("localhost", 0, 10, context);
+        httpd.startInBackground();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        httpd.stop();
+        manager.close();
+    }
+
+    @Test
+    public void testEventEncoding() {
+        ServerSentEvent event = new ServerSentEvent("7", "update", "first\nsecond");
+        String chunk = new String(event.getChunk(), StandardCharsets.UTF_8);
+        String text = "id: 7\nevent: update\ndata: first\ndata: second\n\n";
+        assertEquals(Integer.toHexString(text.length()) + "\r\n" + text + "\r\n", chunk);
+    }
+
+    @Test
+    public void testInvalidId() {
+        try {
+            new ServerSentEvent("1\n2", null, "data");
+            assertTrue(false, "Id with a line break accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testPublishAndReplay() throws Exception {
+        try (Socket socket = subscribe(null)) {
+            awaitConnections(1);
+            assertEquals(1, manager.publish("first"));
+            assertEquals(1, manager.publish("update", "second"));
+            assertEquals("id: 1\ndata: first\n\n", readChunk(socket.getInputStream()));
+            assertEquals("id: 2\nevent: update\ndata: second\n\n",
+                    readChunk(socket.getInputStream()));
+        }
+        manager.publish("third");
+
+        // Reconnecting after the first event
+        try (Socket socket = subscribe("1")) {
+            assertEquals("id: 2\nevent: update\ndata: second\n\n",
+                    readChunk(socket.getInputStream()));
+            assertEquals("id: 3\ndata: third\n\n", readChunk(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testReplayCapacity() throws Exception {
+        manager.setReplayCapacity(2);
+        for (int i = 0; i < 5; i++) {
+            manager.publish("event " + i);
+        }
+        // Only the events 4 and 5 are kept when the buffer grows
+        manager.setReplayCapacity(4);
+        manager.publish("event 5");
+        try (Socket socket = subscribe("4")) {
+            assertEquals("id: 5\ndata: event 4\n\n", readChunk(socket.getInputStream()));
+            assertEquals("id: 6\ndata: event 5\n\n", readChunk(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testHeartbeat() throws Exception {
+        manager.setHeartbeatInterval(50);
+        try (Socket socket = subscribe(null)) {
+            assertEquals(":\n\n", readChunk(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        try (Socket socket = subscribe(null)) {
+            awaitConnections(1);
+            manager.getConnections().iterator().next().close();
+            InputStream in = socket.getInputStream();
+            assertEquals("0\r\n\r\n", readLine(in) + readLine(in));
+            assertEquals(-1, in.read());
+            awaitConnections(0);
+        }
+    }
+
+    @Test
+    public void testCloseWhilePublishing() throws Exception {
+        try (Socket socket = subscribe(null)) {
+            awaitConnections(1);
+            SseConnection connection = manager.getConnections().iterator().next();
+            CountDownLatch publishing = new CountDownLatch(1);
+            Thread publisher = new Thread(() -> {
+                // Stays below the queue limit while the client doesn't read
+                for (int i = 0; i < 5000 && connection.isOpen(); i++) {
+                    manager.publish("event");
+                    publishing.countDown();
+                }
+            });
+            publisher.start();
+            publishing.await();
+            connection.close();
+            publisher.join();
+
+            // No event is written after the last chunk
+            InputStream in = socket.getInputStream();
+            String size;
+            while (!(size = readLine(in)).equals("0\r\n")) {
+                for (int n = Integer.parseInt(size.trim(), 16); n > 0; n--) {
+                    assertTrue(in.read() >= 0);
+                }
+                assertEquals("\r\n", readLine(in));
+            }
+            assertEquals("\r\n", readLine(in));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private Socket subscribe(String lastEventId) throws IOException {
+        Socket socket = new Socket("localhost", httpd.getLocalPort());
+        socket.setSoTimeout(5000);
+        String request = "GET /events HTTP/1.1\r\nHost: localhost\r\n"
+                + (lastEventId != null ? "Last-Event-ID: " + lastEventId + "\r\n" : "") + "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        InputStream in = socket.getInputStream();
+        String statusLine = readLine(in);
+        assertEquals("HTTP/1.1 200 OK\r\n", statusLine);
+        boolean eventStream = false;
+        String line;
+        while (!(line = readLine(in)).equals("\r\n")) {
+            eventStream |= line.equals("Content-Type: text/event-stream\r\n");
+        }
+        assertTrue(eventStream);
+        return socket;
+    }
+
+    private void awaitConnections(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.getActiveConnections() != count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, manager.getActiveConnections());
+    }
+
+    private static String readChunk(InputStream in) throws IOException {
+        String size = readLine(in);
+        byte[] content = new byte[Integer.parseInt(size.trim(), 16)];
+        int n = 0;
+        while (n < content.length) {
+            int read = in.read(content, n, content.length - n);
+            assertTrue(read > 0);
+            n += read;
+        }
+        assertEquals("\r\n", readLine(in));
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            line.write(b);
+            if (b == '\n') {
+                break;
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
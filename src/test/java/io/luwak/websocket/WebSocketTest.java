@@ -0,0 +1,303 @@
+package io.luwak.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.luwak.http.message.HttpMethod;
+import io.luwak.httpd.DefaultHttpdContext;
+import io.luwak.httpd.LuwakHttpd;
+
+/**
+ * Unit test for WebSocket
+ *
+ */
+public class WebSocketTest {
+
+    private static final int MASK_KEY = 0x37fa213d;
+
+    private final BlockingQueue<String> closes = new LinkedBlockingQueue<>();
+    private WebSocketManager manager;
+    private LuwakHttpd httpd;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        manager = new WebSocketManager();
+        WebSocketHandler echo = new WebSocketHandler() {
+
+            @Override
+            public void onText(WebSocket webSocket, String text) {
+                webSocket.send(text);
+            }
+
+            @Override
+            public void onBinary(WebSocket webSocket, byte[] data) {
+                webSocket.send(data);
+            }
+
+            @Override
+            public void onClose(WebSocket webSocket, int statusCode, String reason) {
+                closes.add(statusCode + " " + reason);
+            }
+        };
+        DefaultHttpdContext context = new DefaultHttpdContext();
+        context.addHttpSessionFactory("/ws", EnumSet.of(HttpMethod.GET),
+                new WebSocketHttpSessionFactory(manager, echo));
+        httpd = new LuwakHttpd("localhost", 0, 10, context);
+        httpd.startInBackground();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        httpd.stop();
+        manager.close();
+    }
+
+    @Test
+    public void testAcceptKey() {
+        // RFC 6455 section 1.3
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=",
+                WebSocketHttpSession.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void testMask() {
+        byte[] data = "Hello, WebSocket masking".getBytes(StandardCharsets.US_ASCII);
+        byte[] masked = data.clone();
+        WebSocketFrame.mask(masked, 1, data.length - 1, MASK_KEY);
+        assertEquals(data[0], masked[0]);
+        for (int i = 1; i < data.length; i++) {
+            int keyByte = MASK_KEY >>> (24 - 8 * ((i - 1) % 4)) & 0xff;
+            assertEquals((byte) (data[i] ^ keyByte), masked[i]);
+        }
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws IOException {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            String response = upgrade(socket, "Sec-WebSocket-Version: 8\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 426"), response);
+            assertTrue(response.contains("Sec-WebSocket-Version: 13"), response);
+        }
+    }
+
+    @Test
+    public void testFragmentedEcho() throws IOException {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            String response = upgrade(socket, "");
+            assertTrue(response.startsWith("HTTP/1.1 101"), response);
+            assertTrue(response.contains("Sec-WebSocket-Accept: "
+                    + WebSocketHttpSession.acceptKey("dGhlIHNhbXBsZSBub25jZQ==")), response);
+
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            sendFrame(out, 0x00 | WebSocketFrame.TEXT, ascii("Hello, "));
+            // Control frames may be interleaved with the fragments of a message
+            sendFrame(out, 0x80 | WebSocketFrame.PING, ascii("ping"));
+            sendFrame(out, 0x80 | WebSocketFrame.CONTINUATION, ascii("fragmented world"));
+
+            byte[] pong = readFrame(in);
+            assertEquals(0x80 | WebSocketFrame.PONG, pong[0] & 0xff);
+            assertEquals("ping", payloadText(pong));
+            byte[] echo = readFrame(in);
+            assertEquals(0x80 | WebSocketFrame.TEXT, echo[0] & 0xff);
+            assertEquals("Hello, fragmented world", payloadText(echo));
+        }
+    }
+
+    @Test
+    public void testCloseHandshake() throws Exception {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            upgrade(socket, "");
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            sendFrame(socket.getOutputStream(), 0x80 | WebSocketFrame.CLOSE,
+                    WebSocketFrame.closePayload(WebSocket.NORMAL_CLOSURE, "bye"));
+            byte[] close = readFrame(in);
+            assertEquals(0x80 | WebSocketFrame.CLOSE, close[0] & 0xff);
+            assertEquals(WebSocket.NORMAL_CLOSURE, (close[2] & 0xff) << 8 | (close[3] & 0xff));
+            assertEquals(-1, in.read());
+            assertEquals("1000 bye", closes.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testUnmaskedFrame() throws Exception {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            upgrade(socket, "");
+            OutputStream out = socket.getOutputStream();
+            out.write(WebSocketFrame.encode(WebSocketFrame.TEXT, false, ascii("x"), 0, 1));
+            out.flush();
+            byte[] close = readFrame(new DataInputStream(socket.getInputStream()));
+            assertEquals(WebSocket.PROTOCOL_ERROR, (close[2] & 0xff) << 8 | (close[3] & 0xff));
+            assertTrue(closes.poll(5, TimeUnit.SECONDS).startsWith("1002"));
+        }
+    }
+
+    @Test
+    public void testBroadcast() throws Exception {
+        try (Socket first = new Socket("localhost", httpd.getLocalPort());
+                Socket second = new Socket("localhost", httpd.getLocalPort())) {
+            upgrade(first, "");
+            upgrade(second, "");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (manager.getActiveConnections() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            byte[] data = new byte[70000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            WebSocketMessage message = WebSocketMessage.binary(data);
+            assertEquals(2, manager.broadcast(message));
+            byte[] firstFrame = readFrame(new DataInputStream(first.getInputStream()));
+            byte[] secondFrame = readFrame(new DataInputStream(second.getInputStream()));
+            assertEquals(data.length + 10, firstFrame.length);
+            assertEquals(firstFrame.length, secondFrame.length);
+            for (int i = 0; i < firstFrame.length; i++) {
+                assertEquals(message.getFrame()[i], firstFrame[i]);
+                assertEquals(firstFrame[i], secondFrame[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testPerMessageDeflate() throws Exception {
+        try (Socket socket = new Socket("localhost", httpd.getLocalPort())) {
+            String response = upgrade(socket,
+                    "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n");
+            assertTrue(response.contains(
+                    "Sec-WebSocket-Extensions: permessage-deflate; server_no_context_takeover"),
+                    response);
+
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                text.append("compressible text ").append(i % 10).append(' ');
+            }
+            // Two messages in the same compression context of the client
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                deflater.setInput(ascii(text.toString()));
+                byte[] buffer = new byte[4096];
+                int n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                byte[] compressed = new byte[n - 4];
+                System.arraycopy(buffer, 0, compressed, 0, compressed.length);
+                sendFrame(socket.getOutputStream(), 0xc0 | WebSocketFrame.TEXT, compressed);
+
+                byte[] echo = readFrame(in);
+                assertEquals(0xc0 | WebSocketFrame.TEXT, echo[0] & 0xff);
+                int offset = (echo[1] & 0x7f) == 126 ? 4 : 2;
+                Inflater inflater = new Inflater(true);
+                inflater.setInput(echo, offset, echo.length - offset);
+                byte[] inflated = new byte[8192];
+                int length = inflater.inflate(inflated);
+                inflater.setInput(new byte[] { 0, 0, (byte) 0xff, (byte) 0xff });
+                length += inflater.inflate(inflated, length, inflated.length - length);
+                inflater.end();
+                assertEquals(text.toString(),
+                        new String(inflated, 0, length, StandardCharsets.US_ASCII));
+            }
+            deflater.end();
+        }
+    }
+
+    private static String upgrade(Socket socket, String extraHeaders) throws IOException {
+        String request = "GET /ws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + (extraHeaders.contains("Sec-WebSocket-Version")
+                        ? "" : "Sec-WebSocket-Version: 13\r\n")
+                + extraHeaders + "\r\n";
+        socket.getOutputStream().write(ascii(request));
+        socket.getOutputStream().flush();
+        socket.setSoTimeout(5000);
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            header.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+        return new String(header.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void sendFrame(OutputStream out, int b0, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(b0);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        }
+        else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        }
+        frame.write(MASK_KEY >>> 24);
+        frame.write(MASK_KEY >>> 16);
+        frame.write(MASK_KEY >>> 8);
+        frame.write(MASK_KEY);
+        byte[] masked = payload.clone();
+        WebSocketFrame.mask(masked, 0, masked.length, MASK_KEY);
+        frame.write(masked);
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Read an unmasked frame sent by the server
+     *
+     * @return the whole frame, header included
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        frame.write(b0);
+        frame.write(b1);
+        long length = b1 & 0x7f;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+            frame.write((int) length >>> 8);
+            frame.write((int) length);
+        }
+        else if (length == 127) {
+            length = in.readLong();
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                frame.write((int) (length >>> shift));
+            }
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        frame.write(payload);
+        return frame.toByteArray();
+    }
+
+    private static String payloadText(byte[] frame) {
+        return new String(frame, 2, frame.length - 2, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}